@@ -0,0 +1,119 @@
+package krum.weaponm.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+import krum.jplex.UnderflowException;
+import krum.weaponm.database.lexer.DataEventListener;
+import krum.weaponm.database.lexer.DataLexer;
+import krum.weaponm.database.lexer.DataState;
+import krum.weaponm.network.CaptureReader;
+import krum.weaponm.network.NetworkManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lexes a whole session through the {@link DataLexer}, feeding it in
+ * network-sized chunks the way the network thread does.  The session is
+ * a {@link SyntheticSession} unless the <tt>session</tt> parameter names a
+ * capture or raw log of a TWGS session.
+ * <p>
+ * The {@link DataParser} cannot run without a Weapon, so events go to a
+ * listener that only counts them.  This measures the lexer, which is where
+ * the parser spends most of its time between events.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataLexerBenchmark {
+	@Param({ "" })
+	public String session;
+
+	@Param({ "2000" })
+	public int moves;
+
+	private String text;
+	private DataLexer lexer;
+	private final CharBuffer buffer = CharBuffer.allocate(NetworkManager.BUFFER_SIZE);
+	private int events;
+
+	@Setup
+	public void setup() throws IOException, ClassNotFoundException {
+		if("".equals(session)) {
+			text = SyntheticSession.generate(SyntheticUniverse.generate(5000, 1), moves, 1);
+		}
+		else {
+			text = read(new File(session));
+		}
+		lexer = new DataLexer();
+		lexer.addEventListener((DataEventListener) Proxy.newProxyInstance(
+				DataEventListener.class.getClassLoader(),
+				new Class<?>[] { DataEventListener.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						++events;
+						return null;
+					}
+				}));
+	}
+
+	@Benchmark
+	public int lexSession() throws UnderflowException {
+		events = 0;
+		lexer.jumpState(DataState.CORRECT_GAME);
+		buffer.clear();
+		int off = 0;
+		while(off < text.length()) {
+			int len = Math.min(buffer.remaining(), text.length() - off);
+			buffer.append(text, off, off + len);
+			off += len;
+			buffer.flip();
+			try {
+				int pos = buffer.position();
+				while(buffer.hasRemaining()) {
+					pos += lexer.lex(buffer, 0, buffer.length(), false);
+					buffer.position(pos);
+				}
+			}
+			catch(UnderflowException e) {
+				if(buffer.length() == buffer.capacity()) throw e;
+			}
+			buffer.compact();
+		}
+		return events;
+	}
+
+	// captures and raw logs alike
+	static String read(File file) throws IOException {
+		StringBuilder sb = new StringBuilder((int) file.length());
+		CaptureReader reader = new CaptureReader(file);
+		try {
+			while(reader.next()) {
+				byte[] chunk = reader.getChunk();
+				int end = reader.getOffset() + reader.getLength();
+				for(int i = reader.getOffset(); i < end; ++i) sb.append((char) (chunk[i] & 0xff));
+			}
+		}
+		finally { reader.close(); }
+		return sb.toString();
+	}
+}
@@ -0,0 +1,278 @@
+package krum.weaponm.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Round trips a database through {@link DatabaseJournal} and
+ * {@link DatabaseStore} the way {@link DatabaseManager} uses them: a
+ * journal replayed into an empty database, a replay repeated over its own
+ * result, a checkpoint followed by more journal, and journal segments with
+ * torn tails.  This is not a JMH benchmark; run it with
+ * <tt>java -cp target/benchmarks.jar krum.weaponm.database.JournalRoundTrip</tt>.
+ * It throws an {@link AssertionError} at the first failure.
+ */
+public class JournalRoundTrip implements Constants {
+	private static final int SECTORS = 5000;
+	private static final int CHANGES = 20000;
+	private static final String[] NOTES = { "busted", "hostile", "route" };
+
+	private final File file;
+
+	private JournalRoundTrip(File file) {
+		this.file = file;
+	}
+
+	public static void main(String[] args) throws Exception {
+		File file = File.createTempFile("roundtrip", ".wmd");
+		try {
+			JournalRoundTrip test = new JournalRoundTrip(file);
+			test.replay();
+			test.checkpoint();
+			test.tornTail();
+			System.out.println("journal round trip ok");
+		} finally {
+			DatabaseJournal.delete(file);
+			DatabaseManager.checkpointFile(file).delete();
+			file.delete();
+		}
+	}
+
+	// everything in the journal, replayed into an empty database and then
+	// again over the result
+	private void replay() throws IOException {
+		DatabaseJournal.delete(file);
+		Database db = new Database();
+		DatabaseJournal journal = new DatabaseJournal(null, file);
+		db.journal = journal;
+		SyntheticUniverse.generate(db, SECTORS, 1);
+		change(db, new Random(2));
+		journal.close();
+		Database replayed = new Database();
+		int records = DatabaseJournal.replay(file, replayed);
+		check(records > 0, "nothing replayed");
+		compare(db, replayed, "replay");
+		int again = DatabaseJournal.replay(file, replayed);
+		check(again == records, "replayed " + again + " records the second time, " + records + " the first");
+		compare(db, replayed, "second replay");
+		System.out.println("replayed " + records + " records from " + segmentLength(1) + " bytes");
+	}
+
+	// a checkpoint written as the manager compacts, with more changes after
+	// it.  the old segments are kept at first, as when a crash comes between
+	// writing the checkpoint and deleting them
+	private void checkpoint() throws IOException {
+		DatabaseJournal.delete(file);
+		Database db = new Database();
+		DatabaseJournal journal = new DatabaseJournal(null, file);
+		db.journal = journal;
+		SyntheticUniverse.generate(db, SECTORS, 3);
+		change(db, new Random(4));
+		int segment = journal.rotate();
+		File checkpoint = DatabaseManager.checkpointFile(file);
+		DatabaseStore.write(checkpoint, new DatabaseStore.Snapshot(db));
+		check(DatabaseStore.isStoreFile(checkpoint), "checkpoint is not a store file");
+		compare(db, DatabaseStore.read(checkpoint), "checkpoint");
+		change(db, new Random(5));
+		journal.close();
+		Database recovered = DatabaseStore.read(checkpoint);
+		DatabaseJournal.replay(file, recovered);
+		compare(db, recovered, "checkpoint and all segments");
+		journal = new DatabaseJournal(null, file);
+		journal.deleteSegments(segment);
+		journal.close();
+		recovered = DatabaseStore.read(checkpoint);
+		DatabaseJournal.replay(file, recovered);
+		compare(db, recovered, "checkpoint and later segments");
+		checkpoint.delete();
+	}
+
+	// cuts the newest segment at several points; replay must stop cleanly at
+	// the cut, replaying fewer records the more is cut
+	private void tornTail() throws IOException {
+		DatabaseJournal.delete(file);
+		Database db = new Database();
+		DatabaseJournal journal = new DatabaseJournal(null, file);
+		db.journal = journal;
+		SyntheticUniverse.generate(db, SECTORS, 6);
+		change(db, new Random(7));
+		journal.close();
+		File segment = new File(file.getPath() + DatabaseJournal.SUFFIX + 1);
+		long length = segment.length();
+		int previous = DatabaseJournal.replay(file, new Database());
+		long[] cuts = { 1, 2, 3, 4, 5, 100, length / 2, length - 9, length - 8 };
+		for(long cut : cuts) {
+			RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+			try {
+				raf.setLength(length - cut);
+			} finally {
+				raf.close();
+			}
+			int records = DatabaseJournal.replay(file, new Database());
+			check(records <= previous, "replayed " + records + " records after cutting " + cut + " bytes");
+			if(cut == 1) check(records == previous - 1, "cutting one byte did not lose exactly one record");
+			previous = records;
+			System.out.println("cut " + cut + " of " + length + " bytes: replayed " + records + " records");
+		}
+		check(previous == 0, "replayed records from a segment cut to its header");
+	}
+
+	// makes every kind of change the journal records, at random
+	private static void change(Database db, Random random) {
+		int sectors = db.getNumSectors();
+		You you = db.getYou();
+		for(int i = 0; i < CHANGES; ++i) {
+			Sector sector = db.getSector(1 + random.nextInt(sectors));
+			Port port = sector.getPort();
+			switch(random.nextInt(16)) {
+			case 0:
+				sector.addWarpTo(1 + random.nextInt(sectors));
+				break;
+			case 1:
+				sector.setDensityData(random.nextInt(1000), 1 + random.nextInt(6), random.nextInt(10), random.nextBoolean());
+				break;
+			case 2:
+				sector.setHoloDate(new Date(random.nextInt()));
+				break;
+			case 3:
+				sector.setAvoided(random.nextBoolean());
+				break;
+			case 4:
+				sector.setNebula(random.nextBoolean() ? "Nebula " + random.nextInt(10) : null);
+				break;
+			case 5:
+				String note = NOTES[random.nextInt(NOTES.length)];
+				if(random.nextBoolean()) sector.setNote(note, Integer.toString(i));
+				else sector.removeNote(note);
+				break;
+			case 6:
+				sector.setBeaconMessage(random.nextBoolean() ? "Beacon " + i : null);
+				break;
+			case 7:
+				int fighters = random.nextInt(3) * random.nextInt(1000);
+				sector.setFighters(fighters, fighters == 0 ? null : you, fighters == 0 ? null : FighterMode.values()[random.nextInt(FighterMode.values().length)]);
+				break;
+			case 8:
+				sector.setFigHit("Trader " + random.nextInt(10), new Date(random.nextInt()));
+				break;
+			case 9:
+				int limpets = random.nextInt(3) * random.nextInt(100);
+				sector.setLimpets(limpets, limpets == 0 ? null : you);
+				break;
+			case 10:
+				int armids = random.nextInt(3) * random.nextInt(100);
+				sector.setArmids(armids, armids == 0 ? null : you);
+				break;
+			case 11:
+				db.addZeroSector(sector.getNumber());
+				break;
+			case 12:
+				if(random.nextBoolean()) db.setNote(NOTES[random.nextInt(NOTES.length)], Integer.toString(i));
+				else db.removeNote(NOTES[random.nextInt(NOTES.length)]);
+				break;
+			case 13:
+				db.setLastCimPortsDate(new Date(random.nextInt()));
+				break;
+			default:
+				if(port == null) {
+					port = new Port(sector);
+					sector.setPort(port);
+					port.setTradingClass(1 + random.nextInt(8));
+				}
+				switch(random.nextInt(5)) {
+				case 0:
+					port.setName("Port " + i);
+					break;
+				case 1:
+					port.setStatus(PortStatus.values()[random.nextInt(PortStatus.values().length)]);
+					break;
+				case 2:
+					port.setCapacity(random.nextInt(3), random.nextInt(5000));
+					break;
+				case 3:
+					port.setCredits(random.nextInt(1000000));
+					break;
+				default:
+					port.setReport(new int[] { random.nextInt(3000), random.nextInt(3000), random.nextInt(3000) },
+							new int[] { random.nextInt(101), random.nextInt(101), random.nextInt(101) });
+				}
+			}
+		}
+	}
+
+	private static void compare(Database expected, Database actual, String what) {
+		check(actual.getNumSectors() == expected.getNumSectors(), what + ": sector count");
+		check(actual.getStardockSector().getNumber() == expected.getStardockSector().getNumber(), what + ": Stardock");
+		check(Arrays.equals(numbers(actual.getZeroSectors()), numbers(expected.getZeroSectors())), what + ": zero sectors");
+		check(equal(actual.getLastCimPortsDate(), expected.getLastCimPortsDate()), what + ": last CIM ports date");
+		for(String note : NOTES) check(equal(actual.getNote(note), expected.getNote(note)), what + ": note " + note);
+		Sector.State a = new Sector.State();
+		Sector.State e = new Sector.State();
+		for(int s = 1; s <= expected.getNumSectors(); ++s) {
+			expected.getSector(s).copyState(e);
+			actual.getSector(s).copyState(a);
+			String sector = what + ": sector " + s + " ";
+			check(Arrays.equals(a.warpsOut, e.warpsOut), sector + "warps out");
+			check(Arrays.equals(a.warpsIn, e.warpsIn), sector + "warps in");
+			check(a.density == e.density && a.warpDensity == e.warpDensity && a.navhaz == e.navhaz && a.anomaly == e.anomaly, sector + "density");
+			check(equal(a.densityDate, e.densityDate) && equal(a.holoDate, e.holoDate), sector + "scan dates");
+			check(a.fullyMapped == e.fullyMapped && a.explored == e.explored && a.avoided == e.avoided, sector + "flags");
+			check(equal(a.nebula, e.nebula), sector + "nebula");
+			check(a.notes.equals(e.notes), sector + "notes");
+			check(equal(a.beaconMessage, e.beaconMessage), sector + "beacon");
+			check(a.fighters == e.fighters && sameOwner(a.fighterOwner, e.fighterOwner) && a.fighterMode == e.fighterMode, sector + "fighters");
+			check(equal(a.figHitName, e.figHitName) && equal(a.figHitDate, e.figHitDate), sector + "fighter hit");
+			check(a.armids == e.armids && sameOwner(a.armidOwner, e.armidOwner), sector + "armids");
+			check(a.limpets == e.limpets && sameOwner(a.limpetOwner, e.limpetOwner), sector + "limpets");
+			comparePorts(a.port, e.port, sector);
+		}
+	}
+
+	private static void comparePorts(Port actual, Port expected, String sector) {
+		if(expected == null) {
+			check(actual == null, sector + "has a port");
+			return;
+		}
+		check(actual != null && actual.getClass() == expected.getClass(), sector + "port");
+		Port.State a = new Port.State();
+		Port.State e = new Port.State();
+		actual.copyState(a);
+		expected.copyState(e);
+		check(equal(a.name, e.name), sector + "port name");
+		check(a.status == e.status && equal(a.statusDate, e.statusDate), sector + "port status");
+		check(a.tradingClass == e.tradingClass && Arrays.equals(a.mcic, e.mcic), sector + "port class");
+		check(Arrays.equals(a.levels, e.levels) && Arrays.equals(a.percents, e.percents) && equal(a.reportDate, e.reportDate), sector + "port report");
+		check(Arrays.equals(a.capacities, e.capacities), sector + "port capacities");
+		check(a.credits == e.credits && equal(a.creditsDate, e.creditsDate), sector + "port credits");
+		check(equal(a.bustDate, e.bustDate), sector + "port bust");
+	}
+
+	// owners belong to their own databases, so they are compared by kind and name
+	private static boolean sameOwner(Owner a, Owner b) {
+		if(a == null || b == null) return a == b;
+		return a.getClass() == b.getClass() && equal(a.getName(), b.getName());
+	}
+
+	private static int[] numbers(Sector[] sectors) {
+		int[] numbers = new int[sectors.length];
+		for(int i = 0; i < sectors.length; ++i) numbers[i] = sectors[i].getNumber();
+		Arrays.sort(numbers);
+		return numbers;
+	}
+
+	private long segmentLength(int segment) {
+		return new File(file.getPath() + DatabaseJournal.SUFFIX + segment).length();
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static void check(boolean condition, String message) {
+		if(!condition) throw new AssertionError(message);
+	}
+}
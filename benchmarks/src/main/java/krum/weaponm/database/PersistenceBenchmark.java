@@ -0,0 +1,100 @@
+package krum.weaponm.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Database save and load round trips, in the current store format and in
+ * the Java serialization format used by older versions.  The store format
+ * is measured through a temp file, as {@link DatabaseManager#save()} uses
+ * it; the legacy format is measured in memory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+	@Param({ "5000", "20000" })
+	public int sectors;
+
+	private Database db;
+	private File file;
+	private byte[] serialized;
+
+	@Setup
+	public void setup() throws IOException {
+		db = SyntheticUniverse.generate(sectors, 1);
+		file = File.createTempFile("weaponm-bench", ".db");
+		DatabaseStore.write(file, db);
+		serialized = serialize(db);
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public void storeWrite() throws IOException {
+		DatabaseStore.write(file, db);
+	}
+
+	@Benchmark
+	public Database storeRead() throws IOException {
+		return DatabaseStore.read(file);
+	}
+
+	@Benchmark
+	public Database storeRoundTrip() throws IOException {
+		DatabaseStore.write(file, db);
+		return DatabaseStore.read(file);
+	}
+
+	@Benchmark
+	public Database serializationRoundTrip() throws IOException, ClassNotFoundException {
+		return deserialize(serialize(db));
+	}
+
+	@Benchmark
+	public Database serializationRead() throws IOException, ClassNotFoundException {
+		return deserialize(serialized);
+	}
+
+	private static byte[] serialize(Database db) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		try {
+			out.writeObject(db);
+		}
+		finally { out.close(); }
+		return bytes.toByteArray();
+	}
+
+	private static Database deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return (Database) in.readObject();
+		}
+		finally { in.close(); }
+	}
+}
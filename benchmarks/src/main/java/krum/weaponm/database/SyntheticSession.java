@@ -0,0 +1,110 @@
+package krum.weaponm.database;
+
+import java.util.Random;
+
+/**
+ * Generates reproducible synthetic game output for benchmarks, as a trader
+ * wandering a {@link SyntheticUniverse} would see it.  The output is a
+ * random walk of sector displays and command prompts, with a CIM port and
+ * sector report every few hundred moves.  It uses the same ANSI sequences
+ * as TWGS, so it exercises the same lexer rules as a recorded session, but
+ * it has none of a real session's login, trading, or chatter.
+ */
+public class SyntheticSession implements Constants {
+	private static final String ESC = "\u001b[";
+	private static final String NL = "\r\n";
+	private static final int CIM_INTERVAL = 250;
+	private static final int CIM_LINES = 200;
+
+	private SyntheticSession() { }
+
+	/**
+	 * Generates a session.
+	 *
+	 * @param db the universe to wander
+	 * @param moves the number of moves
+	 * @param seed the random seed
+	 * @return the session text, one char per byte as received from the server
+	 */
+	public static String generate(Database db, int moves, long seed) {
+		Random random = new Random(seed);
+		Sector[] sectors = db.getSectors();
+		StringBuilder sb = new StringBuilder(moves * 400);
+		int current = 1 + random.nextInt(sectors.length);
+		for(int move = 0; move < moves; ++move) {
+			Sector sector = sectors[current - 1];
+			sectorDisplay(sb, sector);
+			commandPrompt(sb, current);
+			if(move % CIM_INTERVAL == CIM_INTERVAL - 1) {
+				sb.append('^');
+				cimReports(sb, sectors, random);
+				commandPrompt(sb, current);
+			}
+			int[] warps = sector.getWarpsOut();
+			int next = warps.length == 0 ? 1 + random.nextInt(sectors.length) : warps[random.nextInt(warps.length)];
+			sb.append(next).append(NL);
+			sb.append(ESC).append("33mWarping to Sector ").append(ESC).append("1;33m").append(next).append(NL);
+			current = next;
+		}
+		return sb.toString();
+	}
+
+	private static void sectorDisplay(StringBuilder sb, Sector sector) {
+		sb.append(NL).append(ESC).append("1;32mSector  ").append(ESC).append("33m: ").append(ESC).append("36m");
+		sb.append(sector.getNumber()).append(' ').append(ESC).append("0;32min ").append(ESC).append("1muncharted space.").append(NL);
+		Port port = sector.getPort();
+		if(port != null && port.getTradingClass() > 0 && port.getTradingClass() < SyntheticUniverse.PORT_CLASSES.length) {
+			sb.append(ESC).append("35mPorts   ").append(ESC).append("1;33m: ").append(ESC).append("36m").append(port.getName());
+			sb.append(ESC).append("33m, ").append(ESC).append("0;35mClass ").append(ESC).append("1;36m").append(port.getTradingClass());
+			sb.append(' ').append(ESC).append("0;35m(").append(ESC).append("1;32m");
+			sb.append(SyntheticUniverse.PORT_CLASSES[port.getTradingClass()]).append(ESC).append("0;35m)").append(NL);
+		}
+		sb.append(ESC).append("1;32mWarps to Sector(s) ").append(ESC).append("33m:  ");
+		int[] warps = sector.getWarpsOut();
+		for(int i = 0; i < warps.length; ++i) {
+			if(i > 0) sb.append(ESC).append("0;32m - ");
+			sb.append(ESC).append("1;36m").append(warps[i]);
+		}
+		sb.append(NL).append(NL);
+	}
+
+	private static void commandPrompt(StringBuilder sb, int sector) {
+		sb.append(ESC).append("35mCommand [").append(ESC).append("1;33mTL").append(ESC).append("0;33m=");
+		sb.append(ESC).append("1m00:00:00").append(ESC).append("0;35m]").append(ESC).append("1;37m:");
+		sb.append(ESC).append("0;35m[").append(ESC).append("1;36m").append(sector).append(ESC).append("0;35m] (");
+		sb.append(ESC).append("1;33m?=Help").append(ESC).append("0;35m)? : ");
+	}
+
+	// a port report followed by a sector report
+	private static void cimReports(StringBuilder sb, Sector[] sectors, Random random) {
+		sb.append(NL).append(": ");
+		int start = random.nextInt(sectors.length);
+		int lines = 0;
+		for(int i = 0; i < sectors.length && lines < CIM_LINES; ++i) {
+			Sector sector = sectors[(start + i) % sectors.length];
+			Port port = sector.getPort();
+			if(port == null || port.getTradingClass() < 1 || port.getTradingClass() > 8) continue;
+			String indicators = SyntheticUniverse.PORT_CLASSES[port.getTradingClass()];
+			sb.append(NL).append(pad(sector.getNumber(), 5));
+			for(int p = 0; p < 3; ++p) {
+				sb.append(indicators.charAt(p) == 'B' ? " - " : "   ");
+				sb.append(pad(port.getLevel(p), 5)).append(' ').append(pad(port.getPercent(p), 3)).append('%');
+			}
+			++lines;
+		}
+		sb.append(NL).append(": ");
+		for(int i = 0; i < CIM_LINES; ++i) {
+			Sector sector = sectors[(start + i) % sectors.length];
+			sb.append(NL).append(pad(sector.getNumber(), 5));
+			for(int w : sector.getWarpsOut()) sb.append(pad(w, 6));
+		}
+		sb.append(NL).append(": ").append('Q').append(NL);
+	}
+
+	private static String pad(int value, int width) {
+		String s = Integer.toString(value);
+		StringBuilder sb = new StringBuilder(width);
+		for(int i = s.length(); i < width; ++i) sb.append(' ');
+		return sb.append(s).toString();
+	}
+}
@@ -0,0 +1,87 @@
+package krum.weaponm.database;
+
+import java.util.Random;
+
+/**
+ * Generates reproducible synthetic universes for benchmarks.  The same size
+ * and seed always produce the same universe.
+ * <p>
+ * The shape roughly follows a TW2002 big bang: each sector has one to six
+ * warps out, mostly two-way, and about 40% of sectors have ports with
+ * reports.  One port is Stardock.  Warps are random, so unlike a real
+ * universe there are no tunnels or dead-end bubbles to speak of.
+ */
+public class SyntheticUniverse implements Constants {
+	/** Port class indicators, indexed by class. */
+	static final String[] PORT_CLASSES = { "SSS", "BBS", "BSB", "SBB", "SSB", "SBS", "BSS", "SSS", "BBB" };
+	// weights for one to six warps out
+	private static final int[] WARP_WEIGHTS = { 10, 30, 30, 15, 10, 5 };
+
+	private SyntheticUniverse() { }
+
+	/**
+	 * Generates a universe.
+	 *
+	 * @param sectors the number of sectors
+	 * @param seed the random seed
+	 * @return a new, initialized database
+	 */
+	public static Database generate(int sectors, long seed) {
+		return generate(new Database(), sectors, seed);
+	}
+
+	/**
+	 * Generates a universe in a new database that may already have a journal
+	 * attached.
+	 *
+	 * @return the database
+	 */
+	static Database generate(Database db, int sectors, long seed) {
+		if(sectors < 10) throw new IllegalArgumentException("Too few sectors: " + sectors);
+		Random random = new Random(seed);
+		db.getGameStats().statsMap.put("Sectors", Integer.toString(sectors));
+		db.initialize();
+		for(int s = 1; s <= sectors; ++s) {
+			Sector sector = db.getSector(s);
+			int warps = warpCount(random) - sector.getWarpsOut().length;
+			for(int i = 0; i < warps; ++i) {
+				int w = 1 + random.nextInt(sectors);
+				if(w == s) continue;
+				sector.addWarpTo(w);
+				// a warp back counts toward the other sector's warps out
+				if(random.nextInt(10) < 8 && db.getSector(w).getWarpsOut().length < 6) {
+					db.getSector(w).addWarpTo(s);
+				}
+			}
+			sector.setExplored(true);
+			if(random.nextInt(10) < 4) {
+				Port port = new Port(sector);
+				sector.setPort(port);
+				port.setName("Port " + s);
+				port.setTradingClass(1 + random.nextInt(8));
+				int[] levels = new int[3];
+				int[] percents = new int[3];
+				for(int i = 0; i < 3; ++i) {
+					levels[i] = random.nextInt(3000);
+					percents[i] = random.nextInt(101);
+				}
+				port.setReport(levels, percents);
+			}
+		}
+		int stardock = 2 + random.nextInt(sectors - 1);
+		Stardock port = new Stardock(db.getSector(stardock));
+		db.getSector(stardock).setPort(port);
+		port.setName("Stargate Alpha I");
+		db.setStardockSector(stardock);
+		return db;
+	}
+
+	private static int warpCount(Random random) {
+		int r = random.nextInt(100);
+		for(int i = 0; i < WARP_WEIGHTS.length; ++i) {
+			r -= WARP_WEIGHTS[i];
+			if(r < 0) return i + 1;
+		}
+		return WARP_WEIGHTS.length;
+	}
+}
@@ -0,0 +1,78 @@
+package krum.weaponm.emulation;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+import krum.jplex.UnderflowException;
+import krum.jtx.ScrollbackBuffer;
+import krum.weaponm.database.SyntheticSession;
+import krum.weaponm.database.SyntheticUniverse;
+import krum.weaponm.network.NetworkManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Emulation throughput: lexes a {@link SyntheticSession} through the
+ * {@link EmulationParser} into a {@link ScrollbackBuffer}, feeding it in
+ * network-sized chunks the way the network thread does.  The buffer is
+ * created once, so after the first invocation every line scrolls out an
+ * old one, as in a long session.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmulationBenchmark {
+	@Param({ "2000" })
+	public int moves;
+
+	@Param({ "5000" })
+	public int bufferLines;
+
+	private String text;
+	private Emulation emulation;
+	private final CharBuffer buffer = CharBuffer.allocate(NetworkManager.BUFFER_SIZE);
+
+	@Setup
+	public void setup() throws IOException, ClassNotFoundException {
+		text = SyntheticSession.generate(SyntheticUniverse.generate(5000, 1), moves, 1);
+		emulation = new Emulation(new ScrollbackBuffer(80, bufferLines));
+	}
+
+	@Benchmark
+	public int emulateSession() throws UnderflowException {
+		buffer.clear();
+		int off = 0;
+		while(off < text.length()) {
+			int len = Math.min(buffer.remaining(), text.length() - off);
+			buffer.append(text, off, off + len);
+			off += len;
+			buffer.flip();
+			try {
+				int pos = buffer.position();
+				while(buffer.hasRemaining()) {
+					pos += emulation.write(buffer, 0, buffer.length(), false);
+					buffer.position(pos);
+				}
+			}
+			catch(UnderflowException e) {
+				if(buffer.length() == buffer.capacity()) throw e;
+			}
+			buffer.compact();
+		}
+		return off;
+	}
+}
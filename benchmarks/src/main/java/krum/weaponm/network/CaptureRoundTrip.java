@@ -0,0 +1,189 @@
+package krum.weaponm.network;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Round trips a capture through {@link CaptureRecorder} and
+ * {@link CaptureReader}, then truncates it at several points to exercise
+ * the reader's recovery of an unfinished capture.  This is not a JMH
+ * benchmark; run it with
+ * <tt>java -cp target/benchmarks.jar krum.weaponm.network.CaptureRoundTrip</tt>.
+ * It throws an {@link AssertionError} at the first failure.
+ */
+public class CaptureRoundTrip {
+	private static final int CHUNKS = 20000;
+	private static final int OUTBOUND_CHUNKS = 500;
+
+	private final File file;
+	// the chunks the recorder accepted, and when the reader says they were recorded
+	private final List<byte[]> inbound = new ArrayList<byte[]>();
+	private final List<Long> elapsed = new ArrayList<Long>();
+	private int outbound;
+
+	private CaptureRoundTrip(File file) {
+		this.file = file;
+	}
+
+	public static void main(String[] args) throws Exception {
+		File file = File.createTempFile("roundtrip", ".wmc");
+		try {
+			CaptureRoundTrip test = new CaptureRoundTrip(file);
+			test.record(1);
+			test.readBack();
+			test.seek();
+			test.truncate();
+			System.out.println("capture round trip ok");
+		} finally {
+			file.delete();
+		}
+	}
+
+	// records compressible, repetitive chunks of random lengths, as a game session would produce
+	private void record(long seed) throws IOException, InterruptedException {
+		Random random = new Random(seed);
+		byte[] text = new byte[65536];
+		for(int i = 0; i < text.length; ++i) text[i] = (byte) ('A' + random.nextInt(8));
+		CaptureRecorder recorder = new CaptureRecorder(file);
+		try {
+			for(int i = 0; i < CHUNKS; ++i) {
+				int offset = random.nextInt(text.length - NetworkManager.BUFFER_SIZE);
+				int length = 1 + random.nextInt(NetworkManager.BUFFER_SIZE);
+				// the network thread records from a direct buffer
+				ByteBuffer buf = ByteBuffer.allocateDirect(length);
+				buf.put(text, offset, length);
+				buf.flip();
+				if(recorder.record(buf, false)) inbound.add(Arrays.copyOfRange(text, offset, offset + length));
+				check(buf.position() == 0 && buf.limit() == length, "record moved the buffer");
+				if(i == CHUNKS / 2) {
+					// a chunk larger than a block makes a block larger than usual
+					byte[] large = new byte[CaptureRecorder.BLOCK_SIZE * 4];
+					for(int j = 0; j < large.length; j += text.length) System.arraycopy(text, 0, large, j, text.length);
+					if(recorder.record(ByteBuffer.wrap(large), false)) inbound.add(large);
+				}
+				if(i % (CHUNKS / OUTBOUND_CHUNKS) == 0) {
+					if(recorder.record(ByteBuffer.wrap(("command " + i).getBytes("US-ASCII")), true)) ++outbound;
+				}
+				// spread the chunks over a few seconds so seeking has times to
+				// find, and so the writer keeps up and few chunks are dropped
+				if(i % 20 == 19) Thread.sleep(2);
+			}
+		} finally {
+			recorder.close();
+		}
+		check(!inbound.isEmpty(), "every chunk was dropped");
+		System.out.println("recorded " + inbound.size() + " chunks, dropped " + recorder.getDropped() + ", " + file.length() + " bytes");
+	}
+
+	private void readBack() throws IOException {
+		CaptureReader reader = new CaptureReader(file);
+		try {
+			check(reader.isTimed(), "capture not recognized");
+			long last = 0;
+			while(reader.next()) {
+				int k = elapsed.size();
+				check(k < inbound.size(), "more chunks read than recorded");
+				checkChunk(reader, k);
+				check(reader.getElapsed() >= last, "time went backwards at chunk " + k);
+				last = reader.getElapsed();
+				elapsed.add(last);
+			}
+			check(elapsed.size() == inbound.size(), "read " + elapsed.size() + " of " + inbound.size() + " chunks");
+			check(reader.getDuration() >= last, "duration " + reader.getDuration() + " before last chunk " + last);
+		} finally {
+			reader.close();
+		}
+		int sent = 0;
+		reader = new CaptureReader(file, true);
+		try {
+			while(reader.next()) if(reader.isOutbound()) ++sent;
+		} finally {
+			reader.close();
+		}
+		check(sent == outbound, "read " + sent + " of " + outbound + " outbound chunks");
+	}
+
+	// seeks to the time of every 500th chunk, and past the end
+	private void seek() throws IOException {
+		CaptureReader reader = new CaptureReader(file);
+		try {
+			for(int k = elapsed.size() - 1; k >= 0; k -= 500) {
+				long time = elapsed.get(k);
+				reader.seek(time);
+				check(reader.next(), "nothing after seek to " + time);
+				checkChunk(reader, firstAt(time));
+			}
+			reader.seek(0);
+			check(reader.next(), "nothing after seek to start");
+			checkChunk(reader, 0);
+			reader.seek(reader.getDuration() + 1);
+			check(!reader.next(), "chunk after seek past end");
+		} finally {
+			reader.close();
+		}
+	}
+
+	// cuts the file at points from just inside the header to just inside
+	// the index; whatever is read must be a prefix of what was recorded
+	private void truncate() throws IOException {
+		byte[] all = new byte[(int) file.length()];
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.readFully(all);
+		} finally {
+			raf.close();
+		}
+		// a cut inside the file header leaves what looks like a raw log
+		int[] cuts = { CaptureReader.HEADER_SIZE, CaptureReader.HEADER_SIZE + 10,
+				all.length / 3, all.length / 2 + 1, all.length - 5000, all.length - 1 };
+		File cut = File.createTempFile("truncated", ".wmc");
+		try {
+			for(int length : cuts) {
+				FileOutputStream out = new FileOutputStream(cut);
+				try {
+					out.write(all, 0, length);
+				} finally {
+					out.close();
+				}
+				int k = 0;
+				CaptureReader reader = new CaptureReader(cut);
+				try {
+					while(reader.next()) {
+						check(k < inbound.size(), "more chunks than recorded after cut at " + length);
+						checkChunk(reader, k++);
+					}
+				} finally {
+					reader.close();
+				}
+				// only the index is missing, so every block is recovered
+				if(length == all.length - 1) check(k == inbound.size(), "lost chunks without the index");
+				System.out.println("cut at " + length + " of " + all.length + " bytes: recovered " + k + " chunks");
+			}
+		} finally {
+			cut.delete();
+		}
+	}
+
+	private int firstAt(long time) {
+		int k = 0;
+		while(elapsed.get(k) < time) ++k;
+		return k;
+	}
+
+	private void checkChunk(CaptureReader reader, int k) {
+		byte[] expected = inbound.get(k);
+		byte[] actual = Arrays.copyOfRange(reader.getChunk(), reader.getOffset(), reader.getOffset() + reader.getLength());
+		check(Arrays.equals(expected, actual), "chunk " + k + " does not match");
+	}
+
+	private static void check(boolean condition, String message) {
+		if(!condition) throw new AssertionError(message);
+	}
+}
@@ -0,0 +1,102 @@
+package krum.weaponm.script;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import krum.weaponm.database.CoursePlotter;
+import krum.weaponm.database.Database;
+import krum.weaponm.database.Sector;
+import krum.weaponm.database.SyntheticUniverse;
+import krum.weaponm.database.WarpGraph;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Breadth-first searches and course plotting on synthetic universes.  Each
+ * invocation uses the next of a fixed set of random origin and destination
+ * pairs, so results are comparable between runs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathfindingBenchmark {
+	private static final int PAIRS = 1024;
+
+	@Param({ "5000", "20000", "50000" })
+	public int sectors;
+
+	private Database db;
+	private Sector[] sectorArray;
+	private WarpGraph graph;
+	private final SearchContext context = new SearchContext();
+	private final CoursePlotter plotter = new CoursePlotter();
+	private final int[] from = new int[PAIRS];
+	private final int[] to = new int[PAIRS];
+	private int next;
+
+	@Setup
+	public void setup() {
+		db = SyntheticUniverse.generate(sectors, 1);
+		sectorArray = db.getSectors();
+		graph = db.getWarpGraph();
+		Random random = new Random(2);
+		for(int i = 0; i < PAIRS; ++i) {
+			from[i] = 1 + random.nextInt(sectors);
+			to[i] = 1 + random.nextInt(sectors);
+		}
+	}
+
+	/** The whole-universe search behind nearest-port and explore scripts. */
+	@Benchmark
+	public int searchContextFull() {
+		int i = next++ & (PAIRS - 1);
+		return context.search(graph, from[i], 0, SectorMatcher.ALL, SectorMatcher.NONE, false);
+	}
+
+	@Benchmark
+	public int searchContextToTarget() {
+		int i = next++ & (PAIRS - 1);
+		context.search(graph, from[i], 0, SectorMatcher.ALL, SectorMatcher.sector(to[i]), true);
+		return context.getSize();
+	}
+
+	/** The legacy API, which allocates a node per sector. */
+	@Benchmark
+	public int breadthFirstSearchToTarget() {
+		int i = next++ & (PAIRS - 1);
+		BreadthFirstSearch bfs = new BreadthFirstSearch(sectorArray, from[i], 0, NodeMatcher.ALL, NodeMatcher.sector(to[i]), true);
+		return bfs.getSize();
+	}
+
+	@Benchmark
+	public int[] plotCourse() {
+		int i = next++ & (PAIRS - 1);
+		return db.plotCourse(from[i], to[i], true);
+	}
+
+	@Benchmark
+	public int[] plotCourseWithAvoids() {
+		int i = next++ & (PAIRS - 1);
+		return db.plotCourse(from[i], to[i], false);
+	}
+
+	/** The bidirectional search alone, without the database's distance table or locking. */
+	@Benchmark
+	public int[] plotCourseBidirectional() {
+		int i = next++ & (PAIRS - 1);
+		return plotter.plotCourse(graph, from[i], to[i], null);
+	}
+}
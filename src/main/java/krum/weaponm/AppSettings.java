@@ -20,6 +20,12 @@ public class AppSettings {
 	protected static final String GIANT_FONT = "GiantFont";
 	protected static final boolean DEFAULT_GIANT_FONT = false;
 	
+	protected static final String WRITE_DELAY = "WriteDelay";
+	protected static final int DEFAULT_WRITE_DELAY = 0;
+	
+	protected static final String TIMER_THREADS = "TimerThreads";
+	protected static final int DEFAULT_TIMER_THREADS = 1;
+	
 	//protected static final String LOG_FILE = "LogFile";
 	//protected static final String DEFAULT_LOG_FILE = "WeaponM.log";
 	
@@ -37,6 +43,8 @@ public class AppSettings {
 		setScriptClasspath(getScriptClasspath());
 		setAutoLoadScripts(getAutoLoadScripts());
 		setGiantFont(getGiantFont());
+		setWriteDelay(getWriteDelay());
+		setTimerThreads(getTimerThreads());
 		//setLogFile(getLogFile());
 	}
 	
@@ -84,6 +92,26 @@ public class AppSettings {
 		prefs.putBoolean(GIANT_FONT, giantFont);
 	}
 	
+	/**
+	 * Returns how many milliseconds output waits to be coalesced with more
+	 * output before it is sent.
+	 */
+	public static int getWriteDelay() {
+		return prefs.getInt(WRITE_DELAY, DEFAULT_WRITE_DELAY);
+	}
+	
+	public static void setWriteDelay(int millis) {
+		prefs.putInt(WRITE_DELAY, millis);
+	}
+	
+	public static int getTimerThreads() {
+		return prefs.getInt(TIMER_THREADS, DEFAULT_TIMER_THREADS);
+	}
+	
+	public static void setTimerThreads(int threads) {
+		prefs.putInt(TIMER_THREADS, threads);
+	}
+	
 	/*
 	public static String getLogFile() {
 		return prefs.get(LOG_FILE, DEFAULT_LOG_FILE);
@@ -27,6 +27,7 @@ public class WeaponM {
 	public static volatile boolean DEBUG_ANSI = false;
 	public static volatile boolean DEBUG_SCRIPTS = false;
 	protected static final Logger log = LoggerFactory.getLogger(WeaponM.class);
+	private static int instances;
 	public final ScrollbackBuffer buffer;
 	public final Emulation emulation;
 	public final NetworkManager network;
@@ -42,10 +43,23 @@ public class WeaponM {
 		scripts = new ScriptManager(this);
 		dbm = new DatabaseManager(this);
 		gui = new GUI(this);
+		synchronized(WeaponM.class) {
+			++instances;
+		}
 	}
 
+	// exits when the last session in the process is closed
 	public void shutdown() {
 		dbm.close(); // kills network and scripts
+		network.dispose();
+		scripts.dispose();
+		synchronized(WeaponM.class) {
+			if(--instances > 0) {
+				gui.dispose();
+				log.info("Weapon M session closed");
+				return;
+			}
+		}
 		log.info("Weapon M exiting");
 		System.exit(0);
 	}
@@ -64,15 +78,21 @@ public class WeaponM {
 		}
 	}
 	
+	/**
+	 * Opens a window for each database named on the command line, or one
+	 * empty window if there are none.  All the sessions share one process
+	 * and one network selector thread.
+	 */
 	public static void main(final String[] args) {
 		SwingUtilities.invokeLater(new Runnable() {
 			@Override
 			public void run() {
 				try {
-					WeaponM weapon = new WeaponM();
-					if(args.length > 0) {
+					if(args.length == 0) new WeaponM();
+					for(String arg : args) {
+						WeaponM weapon = new WeaponM();
 						try {
-							weapon.dbm.open(new File(args[0]));
+							weapon.dbm.open(new File(arg));
 							weapon.autoLoadScripts();
 						}
 						catch(Throwable t) {
@@ -0,0 +1,156 @@
+package krum.weaponm.database;
+
+import java.util.Arrays;
+
+/**
+ * A reusable point-to-point course plotter.  Instead of searching outward
+ * from the origin until the destination turns up, it searches forward from
+ * the origin and backward from the destination along warps in, meeting in
+ * the middle.  For long courses this visits a small fraction of the sectors
+ * a one-way search would.
+ * <p>
+ * Avoided sectors are treated as by
+ * {@link krum.weaponm.script.NodeMatcher#NOT_AVOIDED}: a course may end in
+ * an avoided sector, but may not begin in or pass through one.
+ * <p>
+ * A plotter keeps its working arrays between calls and marks visited
+ * sectors with a generation number, so plotting allocates only the returned
+ * course.  Plotters are not thread safe.
+ */
+public class CoursePlotter implements Constants {
+	private int[] forwardQueue = new int[0];
+	private int[] backwardQueue = new int[0];
+	private int[] forwardStamp = new int[1];
+	private int[] backwardStamp = new int[1];
+	private int[] forwardDistance = new int[1];
+	private int[] backwardDistance = new int[1];
+	private int[] forwardParent = new int[1]; // previous sector on the course
+	private int[] backwardParent = new int[1]; // next sector on the course
+	private int generation;
+	private int visited;
+
+	/**
+	 * Plots a shortest course with a bidirectional breadth-first search.
+	 *
+	 * @param graph the warp graph
+	 * @param from the origin sector
+	 * @param to the destination sector
+	 * @param sectors all sectors, for checking avoids; null to ignore avoids
+	 * @return the course, or null if no course was found
+	 */
+	public int[] plotCourse(WarpGraph graph, int from, int to, Sector[] sectors) {
+		int n = graph.getNumSectors();
+		if(from < 1 || from > n || to < 1 || to > n) throw new IllegalArgumentException();
+		visited = 0;
+		if(from == to) return new int[] { from };
+		if(isAvoided(sectors, from)) return null;
+		prepare(n);
+		forwardStamp[from] = generation;
+		forwardDistance[from] = 0;
+		forwardParent[from] = NULL_SECTOR;
+		forwardQueue[0] = from;
+		backwardStamp[to] = generation;
+		backwardDistance[to] = 0;
+		backwardParent[to] = NULL_SECTOR;
+		backwardQueue[0] = to;
+		visited = 2;
+		int fHead = 0, fTail = 1, fLevel = 0;
+		int bHead = 0, bTail = 1, bLevel = 0;
+		int best = Integer.MAX_VALUE;
+		int meet = NULL_SECTOR;
+
+		while(fHead < fTail && bHead < bTail) {
+			// every course of length fLevel + bLevel + 1 or less has been found
+			if(best <= fLevel + bLevel + 1) break;
+			// expand one whole level of the smaller frontier
+			if(fTail - fHead <= bTail - bHead) {
+				for(int end = fTail; fHead < end; ++fHead) {
+					int u = forwardQueue[fHead];
+					int d = forwardDistance[u] + 1;
+					int warps = graph.getNumWarpsOut(u);
+					for(int j = 0; j < warps; ++j) {
+						int w = graph.getWarpOut(u, j);
+						if(forwardStamp[w] == generation) continue;
+						if(w != to && isAvoided(sectors, w)) continue;
+						forwardStamp[w] = generation;
+						forwardDistance[w] = d;
+						forwardParent[w] = u;
+						forwardQueue[fTail++] = w;
+						++visited;
+						if(backwardStamp[w] == generation && d + backwardDistance[w] < best) {
+							best = d + backwardDistance[w];
+							meet = w;
+						}
+					}
+				}
+				++fLevel;
+			}
+			else {
+				for(int end = bTail; bHead < end; ++bHead) {
+					int u = backwardQueue[bHead];
+					int d = backwardDistance[u] + 1;
+					int warps = graph.getNumWarpsIn(u);
+					for(int j = 0; j < warps; ++j) {
+						int w = graph.getWarpIn(u, j);
+						if(backwardStamp[w] == generation) continue;
+						if(isAvoided(sectors, w)) continue; // the origin was checked above
+						backwardStamp[w] = generation;
+						backwardDistance[w] = d;
+						backwardParent[w] = u;
+						backwardQueue[bTail++] = w;
+						++visited;
+						if(forwardStamp[w] == generation && d + forwardDistance[w] < best) {
+							best = d + forwardDistance[w];
+							meet = w;
+						}
+					}
+				}
+				++bLevel;
+			}
+		}
+		if(meet == NULL_SECTOR) return null;
+
+		int[] course = new int[best + 1];
+		int i = forwardDistance[meet];
+		for(int s = meet; s != NULL_SECTOR; s = forwardParent[s]) {
+			course[i--] = s;
+		}
+		i = forwardDistance[meet];
+		for(int s = backwardParent[meet]; s != NULL_SECTOR; s = backwardParent[s]) {
+			course[++i] = s;
+		}
+		return course;
+	}
+
+	/**
+	 * Returns the number of sectors visited by the last call to
+	 * <tt>plotCourse</tt>.  Useful for comparing search strategies.
+	 */
+	public int getSectorsVisited() {
+		return visited;
+	}
+
+	private static boolean isAvoided(Sector[] sectors, int sector) {
+		return sectors != null && sectors[sector - 1].isAvoided();
+	}
+
+	// grows the arrays and advances the generation
+	private void prepare(int n) {
+		if(forwardQueue.length < n) {
+			forwardQueue = new int[n];
+			backwardQueue = new int[n];
+			forwardStamp = new int[n + 1];
+			backwardStamp = new int[n + 1];
+			forwardDistance = new int[n + 1];
+			backwardDistance = new int[n + 1];
+			forwardParent = new int[n + 1];
+			backwardParent = new int[n + 1];
+			generation = 0;
+		}
+		if(++generation == 0) {
+			Arrays.fill(forwardStamp, 0);
+			Arrays.fill(backwardStamp, 0);
+			generation = 1;
+		}
+	}
+}
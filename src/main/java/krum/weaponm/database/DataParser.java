@@ -78,6 +78,18 @@ public class DataParser implements DataEventListener, Constants {
 		}
 	}
 
+	/**
+	 * Adds a listener that receives lexer events after this parser has
+	 * handled them.
+	 */
+	public void addEventListener(DataEventListener listener) {
+		lexer.addEventListener(listener);
+	}
+	
+	public void removeEventListener(DataEventListener listener) {
+		lexer.removeEventListener(listener);
+	}
+
 	public int parse(CharSequence seq, int off, int len, boolean endOfInput) throws UnderflowException {
 		return lexer.lex(seq, off, len, endOfInput);
 	}
@@ -13,16 +13,20 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
-import krum.weaponm.script.BreadthFirstSearch;
-import krum.weaponm.script.NodeMatcher;
-
 public class Database implements Serializable, Constants {
 	private static final long serialVersionUID = -4982847852694634925L;
 	
+	private static final ThreadLocal<CoursePlotter> plotters = new ThreadLocal<CoursePlotter>() {
+		@Override
+		protected CoursePlotter initialValue() {
+			return new CoursePlotter();
+		}
+	};
+	
 	private final LoginOptions loginOptions = new LoginOptions();
 	private final GameStats gameStats = new GameStats();
 	private final PersonalSettings personalSettings = new PersonalSettings();
-	private Sector[] sectors;
+	Sector[] sectors;
 	private final Map<String, String> notes = new HashMap<String, String>();
 	
 	private volatile int stardockSector = UNKNOWN;
@@ -45,6 +49,13 @@ public class Database implements Serializable, Constants {
 	
 	private final Map<Integer, Corporation> corpNumberIndex = new HashMap<Integer, Corporation>();
 	
+	// set by the database manager while the database is open
+	transient volatile DatabaseJournal journal;
+	transient WarpIndex warpIndex;
+	transient SectorColumns columns;
+	transient volatile DistanceTable distanceTable;
+	transient volatile TradeRoutes tradeRoutes;
+	
 	/*
 	private final Set<Boss> bosses = new HashSet<Boss>();
 	private transient Map<String, Boss> bossIndex;
@@ -65,6 +76,9 @@ public class Database implements Serializable, Constants {
 	// builds indexes and stuff; called when db is created or deserialized
 	void restoreTransients() {
 		
+		warpIndex = new WarpIndex(this);
+		columns = new SectorColumns(this);
+		
 		shipTypeNameIndex = new HashMap<String, ShipType>();
 		for(ShipType shipType : shipTypes) {
 			shipTypeNameIndex.put(shipType.getName(), shipType);
@@ -121,6 +135,8 @@ public class Database implements Serializable, Constants {
 		for(int i = 0; i < s; ++i) {
 			sectors[i] = new Sector(this, i + 1);
 		}
+		DatabaseJournal journal = this.journal;
+		if(journal != null) journal.initialize(gameStats);
 	}
 	
 	/**
@@ -163,6 +179,9 @@ public class Database implements Serializable, Constants {
 	
 	protected void setStardockSector(int sector) {
 		stardockSector = sector;
+		DatabaseJournal journal = this.journal;
+		if(journal != null) journal.stardock(sector);
+		if(sector != UNKNOWN) columns.update(sectors[sector - 1]);
 	}
 	
 	/**
@@ -183,7 +202,11 @@ public class Database implements Serializable, Constants {
 	}
 	
 	synchronized void addZeroSector(int sector) {
-		if(!zeroSectors.contains(sector)) zeroSectors.add(sector);
+		if(!zeroSectors.contains(sector)) {
+			zeroSectors.add(sector);
+			DatabaseJournal journal = this.journal;
+			if(journal != null) journal.zeroSector(sector);
+		}
 	}
 	
 	/**
@@ -207,13 +230,18 @@ public class Database implements Serializable, Constants {
 	 */
 	synchronized public void setNote(String name, String note) {
 		notes.put(name, note);
+		DatabaseJournal journal = this.journal;
+		if(journal != null) journal.note(name, note);
 	}
 	
 	/**
 	 * Removes the specified note from this database.
 	 */
 	synchronized public void removeNote(String name) {
-		notes.remove(name);
+		if(notes.remove(name) != null) {
+			DatabaseJournal journal = this.journal;
+			if(journal != null) journal.note(name, null);
+		}
 	}	
 	
 	/**
@@ -370,6 +398,8 @@ public class Database implements Serializable, Constants {
 	
 	void setLastCimPortsDate(Date date) {
 		lastCimPortsDate = date;
+		DatabaseJournal journal = this.journal;
+		if(journal != null) journal.lastCimPorts(date);
 	}
 	
 	/**
@@ -388,6 +418,63 @@ public class Database implements Serializable, Constants {
 		return sectors != null ? sectors.length : UNKNOWN;
 	}
 	
+	/**
+	 * Returns the column-oriented copy of the sectors' attributes, for fast
+	 * scans of the whole universe.
+	 * 
+	 * @see SectorColumns
+	 */
+	public SectorColumns getSectorColumns() {
+		return columns;
+	}
+	
+	/**
+	 * Returns an immutable snapshot of the known warps.  Graph traversal
+	 * through the snapshot does not lock or copy anything.  Returns null if
+	 * the database has not been initialized.
+	 * 
+	 * @see WarpGraph
+	 */
+	public WarpGraph getWarpGraph() {
+		return warpIndex.getGraph();
+	}
+	
+	/**
+	 * Returns the all-pairs distance table, creating it and starting its
+	 * computation in the background if necessary.  Returns null if the
+	 * database has not been initialized or the universe is larger than
+	 * {@link DistanceTable#MAX_SECTORS}.
+	 */
+	public DistanceTable getDistanceTable() {
+		// the warp index lock is taken before this one when the index is built
+		synchronized(warpIndex) {
+			if(distanceTable == null) {
+				int n = getNumSectors();
+				if(n == UNKNOWN || n > DistanceTable.MAX_SECTORS) return null;
+				distanceTable = new DistanceTable(this, n);
+			}
+			return distanceTable;
+		}
+	}
+	
+	/**
+	 * Returns the trade route engine, creating it and starting its
+	 * computation in the background if necessary.  Returns null if the
+	 * database has not been initialized.
+	 * 
+	 * @see TradeRoutes
+	 */
+	public TradeRoutes getTradeRoutes() {
+		synchronized(warpIndex) {
+			if(tradeRoutes == null) {
+				int n = getNumSectors();
+				if(n == UNKNOWN) return null;
+				tradeRoutes = new TradeRoutes(this, n);
+			}
+			return tradeRoutes;
+		}
+	}
+	
 	/**
 	 * Plots a course using warp information from the database.
 	 * 
@@ -397,20 +484,14 @@ public class Database implements Serializable, Constants {
 	 * @return the calculated course, or null if no route was found
 	 */
 	public Sector[] plotCourse(Sector from, Sector to, boolean ignoreAvoids) {
-		NodeMatcher include = ignoreAvoids ? NodeMatcher.ALL : NodeMatcher.NOT_AVOIDED;
-		NodeMatcher target = NodeMatcher.sector(to);
-		BreadthFirstSearch bfs = new BreadthFirstSearch(
-				sectors,
-				from,
-				0,
-				include,
-				target,
-				true
-			);
-		if(bfs.targetFound()) {
-			return bfs.plotCourse(to);
+		int[] course = plotCourse(from.getNumber(), to.getNumber(), ignoreAvoids);
+		if(course == null) return null;
+		Sector[] sectors = this.sectors;
+		Sector[] result = new Sector[course.length];
+		for(int i = 0; i < course.length; ++i) {
+			result[i] = sectors[course[i] - 1];
 		}
-		else return null;
+		return result;
 	}
 	
 	/**
@@ -422,20 +503,12 @@ public class Database implements Serializable, Constants {
 	 * @return the calculated course, or null if no route was found
 	 */
 	public int[] plotCourse(int from, int to, boolean ignoreAvoids) {
-		NodeMatcher include = ignoreAvoids ? NodeMatcher.ALL : NodeMatcher.NOT_AVOIDED;
-		NodeMatcher target = NodeMatcher.sector(to);
-		BreadthFirstSearch bfs = new BreadthFirstSearch(
-				sectors,
-				from,
-				0,
-				include,
-				target,
-				true
-			);
-		if(bfs.targetFound()) {
-			return bfs.plotCourse(to);
+		DistanceTable distances = distanceTable;
+		if(distances != null) {
+			int[] course = distances.plotCourse(from, to, ignoreAvoids ? null : sectors);
+			if(course != null) return course;
 		}
-		else return null;
+		return plotters.get().plotCourse(getWarpGraph(), from, to, ignoreAvoids ? null : sectors);
 	}
 	
 	/**
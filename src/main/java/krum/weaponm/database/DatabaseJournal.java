@@ -0,0 +1,878 @@
+package krum.weaponm.database;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only journal of changes to a database's universe data.  While a
+ * database is open, every change to a sector, port, or note is recorded here
+ * so that it survives a crash.  Records are batched in memory and written and
+ * synced by a background thread about once a second, so the network thread
+ * never waits on the disk.
+ * <p>
+ * The journal is written in numbered segments next to the database file,
+ * e.g., <tt>game.wmd.journal.3</tt>.  Saving the database starts a new
+ * segment and deletes the old ones once the save has succeeded.  When the
+ * journal grows large, the database manager writes a checkpoint of the
+ * database, e.g., <tt>game.wmd.checkpoint</tt>, from the journal's thread and
+ * deletes the segments it covers; the database file itself is only written by
+ * a save.  All records are idempotent, so replaying a segment that was already
+ * saved or checkpointed is harmless.
+ * <p>
+ * Your own status, your ship, and other traders are not journaled; they are
+ * refreshed from the game every time you log in.
+ */
+class DatabaseJournal implements Constants {
+	private static final Logger log = LoggerFactory.getLogger(DatabaseJournal.class);
+
+	/** The first four bytes of every journal segment: "WMDJ". */
+	static final int MAGIC = 0x574D444A;
+	static final int VERSION = 2;
+	static final String SUFFIX = ".journal.";
+
+	private static final long FLUSH_INTERVAL = 1000;
+	private static final long COMPACTION_THRESHOLD = 16 * 1024 * 1024;
+	private static final int INITIAL_BUFFER_SIZE = 16384;
+	private static final long NULL_DATE = Long.MIN_VALUE;
+
+	// record types; the sector and port types are passed to Sector.changed
+	static final int INITIALIZE = 1;
+	static final int WARP = 2;
+	static final int WARPS_OUT = 3;
+	static final int DENSITY = 4;
+	static final int HOLO_DATE = 5;
+	static final int EXPLORED = 6;
+	static final int FULLY_MAPPED = 7;
+	static final int AVOIDED = 8;
+	static final int NEBULA = 9;
+	static final int SECTOR_NOTE = 10;
+	static final int BEACON = 11;
+	static final int FIGHTERS = 12;
+	static final int FIG_HIT = 13;
+	static final int LIMPETS = 14;
+	static final int ARMIDS = 15;
+	static final int PORT = 16;
+	static final int PORT_NAME = 17;
+	static final int PORT_STATUS = 18;
+	static final int PORT_REPORT = 19;
+	static final int PORT_CAPACITY = 20;
+	static final int PORT_CREDITS = 21;
+	static final int PORT_CLASS = 22;
+	static final int PORT_BUST = 23;
+	static final int STARDOCK = 24;
+	static final int ZERO_SECTOR = 25;
+	static final int NOTE = 26;
+	static final int LAST_CIM_PORTS = 27;
+
+	// owner kinds
+	private static final int OWNER_NULL = 0;
+	private static final int OWNER_SPECIAL = 1;
+	private static final int OWNER_YOU = 2;
+	private static final int OWNER_CORP = 3;
+	private static final int OWNER_TRADER = 4;
+
+	private final DatabaseManager manager;
+	private final File file;
+	private final Thread flusher;
+	private final CRC32 crc = new CRC32();
+	// guards the channel and segment number
+	private final Object ioLock = new Object();
+	private FileChannel channel;
+	private int segment;
+	// appends go into pending; the flusher swaps it with writing
+	private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private ByteBuffer writing = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private int recordStart;
+	private long bytesSinceCompaction;
+	private boolean compactionRequested;
+	private volatile boolean closed;
+
+	/**
+	 * Starts a new journal segment for the specified database file.  Any
+	 * existing segments should already have been replayed.
+	 */
+	DatabaseJournal(DatabaseManager manager, File file) throws IOException {
+		this.manager = manager;
+		this.file = file;
+		File[] segments = segments(file);
+		segment = segments.length == 0 ? 0 : segmentNumber(file, segments[segments.length - 1]);
+		openSegment(segment + 1);
+		flusher = new Thread("DatabaseJournal") {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Asks the journal's thread to save the database the next time it wakes.
+	 */
+	synchronized void requestCompaction() {
+		compactionRequested = true;
+	}
+
+	/**
+	 * Flushes the current segment and starts a new one.  Returns the number
+	 * of the segment that was closed; once the database has been saved, it
+	 * and all earlier segments can be deleted.
+	 */
+	int rotate() throws IOException {
+		synchronized(ioLock) {
+			flush();
+			int closedSegment = segment;
+			if(channel != null) {
+				channel.close();
+				openSegment(segment + 1);
+			}
+			synchronized(this) {
+				bytesSinceCompaction = 0;
+				compactionRequested = false;
+			}
+			return closedSegment;
+		}
+	}
+
+	/**
+	 * Deletes the segments up to and including the specified one.
+	 */
+	void deleteSegments(int through) {
+		for(File f : segments(file)) {
+			if(segmentNumber(file, f) <= through && !f.delete()) {
+				log.warn("could not delete journal segment {}", f.getPath());
+			}
+		}
+	}
+
+	/**
+	 * Writes any pending records and closes the journal.  Records appended
+	 * after the journal is closed are ignored.
+	 */
+	void close() {
+		closed = true;
+		synchronized(this) {
+			notifyAll();
+		}
+		synchronized(ioLock) {
+			try {
+				flush();
+			} catch(IOException e) {
+				log.error("error flushing database journal", e);
+			}
+			if(channel != null) {
+				try {
+					channel.close();
+				} catch(IOException e) {
+					// whatever
+				}
+				channel = null;
+			}
+		}
+	}
+
+	/**
+	 * Deletes all journal segments belonging to the specified database file.
+	 */
+	static void delete(File file) {
+		for(File f : segments(file)) {
+			if(!f.delete()) log.warn("could not delete journal segment {}", f.getPath());
+		}
+	}
+
+	/**
+	 * Replays all journal segments belonging to the specified database file
+	 * over the database.  A torn record at the end of a segment, as left by a
+	 * crash, ends the replay of that segment.
+	 *
+	 * @return the number of records replayed
+	 */
+	static int replay(File file, Database database) throws IOException {
+		int count = 0;
+		for(File f : segments(file)) {
+			ByteBuffer buf = readFully(f);
+			if(buf.remaining() < 8) continue; // crashed before the header was synced
+			if(buf.getInt() != MAGIC) throw new IOException("Not a Weapon M journal: " + f.getPath());
+			int version = buf.getInt();
+			if(version != VERSION) throw new IOException("Unsupported journal version " + version + ": " + f.getPath());
+			CRC32 crc = new CRC32();
+			while(buf.remaining() >= 4) {
+				int len = buf.getInt();
+				if(len < 1 || buf.remaining() < len + 4) break;
+				crc.reset();
+				crc.update(buf.array(), buf.position(), len);
+				int end = buf.position() + len;
+				if(buf.getInt(end) != (int) crc.getValue()) break;
+				try {
+					apply(database, buf);
+				} catch(BufferUnderflowException e) {
+					throw new IOException("Corrupt journal record in " + f.getPath(), e);
+				}
+				buf.position(end + 4);
+				++count;
+			}
+			if(buf.hasRemaining()) {
+				log.warn("discarded torn record at end of journal segment {}", f.getPath());
+			}
+		}
+		return count;
+	}
+
+	/* record methods */
+
+	synchronized void initialize(GameStats stats) {
+		if(!begin(INITIALIZE)) return;
+		Map<String, String> map;
+		synchronized(stats.statsMap) {
+			map = new HashMap<String, String>(stats.statsMap);
+		}
+		putInt(map.size());
+		for(Map.Entry<String, String> entry : map.entrySet()) {
+			putString(entry.getKey());
+			putString(entry.getValue());
+		}
+		end();
+	}
+
+	/**
+	 * Records the current values of the sector or port fields that a record
+	 * of the specified type holds.  The fields are copied before the journal
+	 * is locked, so this may be called with or without the sector's lock.
+	 *
+	 * @param key the target of a new warp, the name of a changed note, or
+	 * the product of a changed capacity
+	 * @see Sector#changed(int, Object)
+	 */
+	void record(Sector sector, int type, Object key) {
+		if(type < WARP || type > PORT_BUST) throw new IllegalArgumentException("Not a sector record type: " + type);
+		Sector.State state = new Sector.State();
+		sector.copyState(state);
+		Port.State port = null;
+		if(type >= PORT && type <= PORT_BUST) {
+			if(state.port == null) return;
+			port = new Port.State();
+			state.port.copyState(port);
+		}
+		synchronized(this) {
+			if(!begin(type)) return;
+			putInt(sector.getNumber());
+			switch(type) {
+			case WARP:
+				putInt((Integer) key);
+				putBoolean(state.fullyMapped);
+				break;
+			case WARPS_OUT:
+				putInt(state.warpsOut.length);
+				for(int w : state.warpsOut) putInt(w);
+				break;
+			case DENSITY:
+				putInt(state.density);
+				putInt(state.warpDensity);
+				putInt(state.navhaz);
+				putBoolean(state.anomaly);
+				putDate(state.densityDate);
+				putBoolean(state.fullyMapped);
+				break;
+			case HOLO_DATE:
+				putDate(state.holoDate);
+				break;
+			case EXPLORED:
+				putBoolean(state.explored);
+				break;
+			case FULLY_MAPPED:
+				putBoolean(state.fullyMapped);
+				break;
+			case AVOIDED:
+				putBoolean(state.avoided);
+				break;
+			case NEBULA:
+				putString(state.nebula);
+				break;
+			case BEACON:
+				putString(state.beaconMessage);
+				break;
+			case SECTOR_NOTE:
+				// a null value records the removal of the note
+				putString((String) key);
+				putString(state.notes.get(key));
+				break;
+			case FIGHTERS:
+				putInt(state.fighters);
+				putOwner(state.fighterOwner);
+				putInt(state.fighterMode == null ? UNKNOWN : state.fighterMode.ordinal());
+				putDate(state.fighterDate);
+				break;
+			case FIG_HIT:
+				putString(state.figHitName);
+				putDate(state.figHitDate);
+				break;
+			case LIMPETS:
+				putInt(state.limpets);
+				putOwner(state.limpetOwner);
+				break;
+			case ARMIDS:
+				putInt(state.armids);
+				putOwner(state.armidOwner);
+				break;
+			case PORT:
+				// a new port may replace one whose state it does not share
+				putBoolean(state.port instanceof Stardock);
+				putPort(port);
+				break;
+			case PORT_NAME:
+				putString(port.name);
+				break;
+			case PORT_STATUS:
+				putInt(port.status == null ? UNKNOWN : port.status.ordinal());
+				putDate(port.statusDate);
+				break;
+			case PORT_REPORT:
+				for(int i = 0; i < 3; ++i) putInt(port.levels[i]);
+				for(int i = 0; i < 3; ++i) putInt(port.percents[i]);
+				putDate(port.reportDate);
+				break;
+			case PORT_CAPACITY: {
+				int product = (Integer) key;
+				putInt(product);
+				putInt(port.capacities[product]);
+				break;
+			}
+			case PORT_CREDITS:
+				putInt(port.credits);
+				putDate(port.creditsDate);
+				break;
+			case PORT_CLASS:
+				putInt(port.tradingClass);
+				break;
+			case PORT_BUST:
+				putDate(port.bustDate);
+				break;
+			}
+			end();
+		}
+	}
+
+	synchronized void stardock(int sector) {
+		if(!begin(STARDOCK)) return;
+		putInt(sector);
+		end();
+	}
+
+	synchronized void zeroSector(int sector) {
+		if(!begin(ZERO_SECTOR)) return;
+		putInt(sector);
+		end();
+	}
+
+	/** A null value records the removal of the note. */
+	synchronized void note(String name, String note) {
+		if(!begin(NOTE)) return;
+		putString(name);
+		putString(note);
+		end();
+	}
+
+	synchronized void lastCimPorts(Date date) {
+		if(!begin(LAST_CIM_PORTS)) return;
+		putDate(date);
+		end();
+	}
+
+	/* encoding */
+
+	// returns false if the journal is closed
+	private boolean begin(int type) {
+		if(closed) return false;
+		ensure(5);
+		recordStart = pending.position();
+		pending.putInt(0); // length placeholder
+		pending.put((byte) type);
+		return true;
+	}
+
+	private void end() {
+		int len = pending.position() - recordStart - 4;
+		pending.putInt(recordStart, len);
+		crc.reset();
+		crc.update(pending.array(), recordStart + 4, len);
+		ensure(4);
+		pending.putInt((int) crc.getValue());
+		bytesSinceCompaction += len + 8;
+	}
+
+	private void ensure(int bytes) {
+		if(pending.remaining() < bytes) {
+			ByteBuffer buf = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + bytes));
+			pending.flip();
+			buf.put(pending);
+			pending = buf;
+		}
+	}
+
+	private void putInt(int i) {
+		ensure(4);
+		pending.putInt(i);
+	}
+
+	private void putBoolean(boolean b) {
+		ensure(1);
+		pending.put((byte) (b ? 1 : 0));
+	}
+
+	private void putDate(Date date) {
+		ensure(8);
+		pending.putLong(date == null ? NULL_DATE : date.getTime());
+	}
+
+	private void putString(String s) {
+		if(s == null) {
+			putInt(UNKNOWN);
+			return;
+		}
+		ensure(4 + s.length() * 2);
+		pending.putInt(s.length());
+		for(int i = 0; i < s.length(); ++i) {
+			pending.putChar(s.charAt(i));
+		}
+	}
+
+	private void putPort(Port.State port) {
+		putString(port.name);
+		putInt(port.status == null ? UNKNOWN : port.status.ordinal());
+		putDate(port.statusDate);
+		for(int i = 0; i < 3; ++i) putInt(port.mcic[i]);
+		putInt(port.tradingClass);
+		for(int i = 0; i < 3; ++i) putInt(port.levels[i]);
+		for(int i = 0; i < 3; ++i) putInt(port.percents[i]);
+		for(int i = 0; i < 3; ++i) putInt(port.capacities[i]);
+		putDate(port.reportDate);
+		putInt(port.credits);
+		putDate(port.creditsDate);
+		putDate(port.bustDate);
+	}
+
+	private void putOwner(Owner owner) {
+		ensure(1);
+		if(owner == null) {
+			pending.put((byte) OWNER_NULL);
+		}
+		else if(owner instanceof SpecialOwner) {
+			pending.put((byte) OWNER_SPECIAL);
+			putInt(((SpecialOwner) owner).ordinal());
+		}
+		else if(owner instanceof You) {
+			pending.put((byte) OWNER_YOU);
+		}
+		else if(owner instanceof Corporation) {
+			pending.put((byte) OWNER_CORP);
+			putInt(((Corporation) owner).getNumber());
+		}
+		else if(owner instanceof Trader && owner.getName() != null) {
+			pending.put((byte) OWNER_TRADER);
+			putString(owner.getName());
+		}
+		else {
+			pending.put((byte) OWNER_SPECIAL);
+			putInt(SpecialOwner.UNKNOWN.ordinal());
+		}
+	}
+
+	/* decoding */
+
+	private static void apply(Database db, ByteBuffer buf) throws IOException {
+		int type = buf.get();
+		switch(type) {
+		case INITIALIZE: {
+			Map<String, String> map = new HashMap<String, String>();
+			int size = buf.getInt();
+			for(int i = 0; i < size; ++i) {
+				map.put(getString(buf), getString(buf));
+			}
+			try {
+				db.getGameStats().updateAll(map);
+			} catch(DatabaseIntegrityException e) {
+				throw new IOException("Journal does not belong to this database.", e);
+			}
+			db.initialize();
+			break;
+		}
+		// fullyMapped is derived from the warps known when the record was
+		// written.  a replay over a later state knows more warps, so the
+		// records that can change it carry the value rather than derive it
+		case WARP: {
+			Sector sector = db.getSector(buf.getInt());
+			sector.addWarpTo(buf.getInt());
+			Sector.State state = stateOf(sector);
+			state.fullyMapped = getBoolean(buf);
+			sector.restoreState(state);
+			break;
+		}
+		case WARPS_OUT: {
+			Sector sector = db.getSector(buf.getInt());
+			int[] warps = new int[buf.getInt()];
+			for(int i = 0; i < warps.length; ++i) warps[i] = buf.getInt();
+			Arrays.sort(warps);
+			sector.setWarpsOut(warps);
+			// setWarpsOut does nothing if the warps are already known
+			Sector.State state = stateOf(sector);
+			state.explored = true;
+			state.fullyMapped = true;
+			sector.restoreState(state);
+			break;
+		}
+		case DENSITY: {
+			Sector sector = db.getSector(buf.getInt());
+			Sector.State state = stateOf(sector);
+			state.density = buf.getInt();
+			state.warpDensity = buf.getInt();
+			state.navhaz = buf.getInt();
+			state.anomaly = getBoolean(buf);
+			state.densityDate = getDate(buf);
+			state.fullyMapped = getBoolean(buf);
+			sector.restoreState(state);
+			break;
+		}
+		case HOLO_DATE: {
+			Sector sector = db.getSector(buf.getInt());
+			Sector.State state = stateOf(sector);
+			state.holoDate = getDate(buf);
+			sector.restoreState(state);
+			break;
+		}
+		case EXPLORED: {
+			Sector sector = db.getSector(buf.getInt());
+			Sector.State state = stateOf(sector);
+			state.explored = getBoolean(buf);
+			sector.restoreState(state);
+			break;
+		}
+		case FULLY_MAPPED: {
+			Sector sector = db.getSector(buf.getInt());
+			Sector.State state = stateOf(sector);
+			state.fullyMapped = getBoolean(buf);
+			sector.restoreState(state);
+			break;
+		}
+		case AVOIDED: {
+			Sector sector = db.getSector(buf.getInt());
+			Sector.State state = stateOf(sector);
+			state.avoided = getBoolean(buf);
+			sector.restoreState(state);
+			break;
+		}
+		case NEBULA: {
+			Sector sector = db.getSector(buf.getInt());
+			Sector.State state = stateOf(sector);
+			state.nebula = getString(buf);
+			sector.restoreState(state);
+			break;
+		}
+		case BEACON: {
+			Sector sector = db.getSector(buf.getInt());
+			Sector.State state = stateOf(sector);
+			state.beaconMessage = getString(buf);
+			sector.restoreState(state);
+			break;
+		}
+		case SECTOR_NOTE: {
+			Sector sector = db.getSector(buf.getInt());
+			String name = getString(buf);
+			String note = getString(buf);
+			if(note == null) sector.removeNote(name);
+			else sector.setNote(name, note);
+			break;
+		}
+		case FIGHTERS: {
+			Sector sector = db.getSector(buf.getInt());
+			int fighters = buf.getInt();
+			Owner owner = getOwner(db, buf);
+			int mode = buf.getInt();
+			Date date = getDate(buf);
+			Sector.State state = stateOf(sector);
+			state.fighters = fighters;
+			state.fighterOwner = owner;
+			state.fighterMode = mode == UNKNOWN ? null : FighterMode.values()[mode];
+			state.fighterDate = date;
+			sector.restoreState(state);
+			break;
+		}
+		case FIG_HIT: {
+			Sector sector = db.getSector(buf.getInt());
+			sector.setFigHit(getString(buf), getDate(buf));
+			break;
+		}
+		case LIMPETS: {
+			Sector sector = db.getSector(buf.getInt());
+			int limpets = buf.getInt();
+			sector.setLimpets(limpets, getOwner(db, buf));
+			break;
+		}
+		case ARMIDS: {
+			Sector sector = db.getSector(buf.getInt());
+			int armids = buf.getInt();
+			sector.setArmids(armids, getOwner(db, buf));
+			break;
+		}
+		case PORT: {
+			Sector sector = db.getSector(buf.getInt());
+			boolean stardock = getBoolean(buf);
+			Port port = sector.getPort();
+			if(port == null || stardock != port instanceof Stardock) {
+				port = stardock ? new Stardock(sector) : new Port(sector);
+				sector.setPort(port);
+			}
+			port.restoreState(getPort(buf));
+			break;
+		}
+		case PORT_NAME: {
+			Port port = getPort(db, buf);
+			Port.State state = stateOf(port);
+			state.name = getString(buf);
+			port.restoreState(state);
+			break;
+		}
+		case PORT_STATUS: {
+			Port port = getPort(db, buf);
+			Port.State state = stateOf(port);
+			int status = buf.getInt();
+			state.status = status == UNKNOWN ? null : PortStatus.values()[status];
+			state.statusDate = getDate(buf);
+			port.restoreState(state);
+			break;
+		}
+		case PORT_REPORT: {
+			Port port = getPort(db, buf);
+			Port.State state = stateOf(port);
+			for(int i = 0; i < 3; ++i) state.levels[i] = buf.getInt();
+			for(int i = 0; i < 3; ++i) state.percents[i] = buf.getInt();
+			state.reportDate = getDate(buf);
+			port.restoreState(state);
+			break;
+		}
+		case PORT_CAPACITY: {
+			Port port = getPort(db, buf);
+			int product = buf.getInt();
+			port.setCapacity(product, buf.getInt());
+			break;
+		}
+		case PORT_CREDITS: {
+			Port port = getPort(db, buf);
+			Port.State state = stateOf(port);
+			state.credits = buf.getInt();
+			state.creditsDate = getDate(buf);
+			port.restoreState(state);
+			break;
+		}
+		case PORT_CLASS: {
+			Port port = getPort(db, buf);
+			Port.State state = stateOf(port);
+			state.tradingClass = buf.getInt();
+			port.restoreState(state);
+			break;
+		}
+		case PORT_BUST: {
+			Port port = getPort(db, buf);
+			Port.State state = stateOf(port);
+			state.bustDate = getDate(buf);
+			port.restoreState(state);
+			break;
+		}
+		case STARDOCK:
+			db.setStardockSector(buf.getInt());
+			break;
+		case ZERO_SECTOR:
+			db.addZeroSector(buf.getInt());
+			break;
+		case NOTE: {
+			String name = getString(buf);
+			String note = getString(buf);
+			if(note == null) db.removeNote(name);
+			else db.setNote(name, note);
+			break;
+		}
+		case LAST_CIM_PORTS:
+			db.setLastCimPortsDate(getDate(buf));
+			break;
+		default:
+			throw new IOException("Unknown journal record type " + type);
+		}
+	}
+
+	// records are replayed by copying the fields, changing some, and restoring them
+	private static Sector.State stateOf(Sector sector) {
+		Sector.State state = new Sector.State();
+		sector.copyState(state);
+		return state;
+	}
+
+	private static Port.State stateOf(Port port) {
+		Port.State state = new Port.State();
+		port.copyState(state);
+		return state;
+	}
+
+	private static Port getPort(Database db, ByteBuffer buf) throws IOException {
+		int sector = buf.getInt();
+		Port port = db.getSector(sector).getPort();
+		if(port == null) throw new IOException("Journal refers to unknown port in sector " + sector);
+		return port;
+	}
+
+	private static Port.State getPort(ByteBuffer buf) {
+		Port.State port = new Port.State();
+		port.name = getString(buf);
+		int status = buf.getInt();
+		port.status = status == UNKNOWN ? null : PortStatus.values()[status];
+		port.statusDate = getDate(buf);
+		for(int i = 0; i < 3; ++i) port.mcic[i] = buf.getInt();
+		port.tradingClass = buf.getInt();
+		for(int i = 0; i < 3; ++i) port.levels[i] = buf.getInt();
+		for(int i = 0; i < 3; ++i) port.percents[i] = buf.getInt();
+		for(int i = 0; i < 3; ++i) port.capacities[i] = buf.getInt();
+		port.reportDate = getDate(buf);
+		port.credits = buf.getInt();
+		port.creditsDate = getDate(buf);
+		port.bustDate = getDate(buf);
+		return port;
+	}
+
+	private static boolean getBoolean(ByteBuffer buf) {
+		return buf.get() != 0;
+	}
+
+	private static Date getDate(ByteBuffer buf) {
+		long time = buf.getLong();
+		return time == NULL_DATE ? null : new Date(time);
+	}
+
+	private static String getString(ByteBuffer buf) {
+		int len = buf.getInt();
+		if(len == UNKNOWN) return null;
+		char[] chars = new char[len];
+		for(int i = 0; i < len; ++i) chars[i] = buf.getChar();
+		return new String(chars);
+	}
+
+	private static Owner getOwner(Database db, ByteBuffer buf) {
+		switch(buf.get()) {
+		case OWNER_SPECIAL: return SpecialOwner.values()[buf.getInt()];
+		case OWNER_YOU: return db.getYou();
+		case OWNER_CORP: return db.getOrCreateCorp(buf.getInt());
+		case OWNER_TRADER: return db.getOrCreateTrader(getString(buf));
+		default: return null;
+		}
+	}
+
+	/* files */
+
+	private void flushLoop() {
+		while(!closed) {
+			synchronized(this) {
+				try {
+					wait(FLUSH_INTERVAL);
+				} catch(InterruptedException e) {
+					// closed will be checked
+				}
+			}
+			try {
+				flush();
+			} catch(IOException e) {
+				log.error("error flushing database journal", e);
+			}
+			boolean compact;
+			synchronized(this) {
+				compact = compactionRequested || bytesSinceCompaction > COMPACTION_THRESHOLD;
+			}
+			if(compact && !closed) manager.compact(this);
+		}
+	}
+
+	// writes and syncs everything appended so far
+	private void flush() throws IOException {
+		synchronized(ioLock) {
+			if(channel == null) return;
+			synchronized(this) {
+				ByteBuffer buf = writing;
+				writing = pending;
+				pending = buf;
+			}
+			writing.flip();
+			if(writing.hasRemaining()) {
+				while(writing.hasRemaining()) channel.write(writing);
+				channel.force(false);
+			}
+			writing.clear();
+		}
+	}
+
+	private void openSegment(int number) throws IOException {
+		File f = new File(file.getPath() + SUFFIX + number);
+		channel = new FileOutputStream(f).getChannel();
+		segment = number;
+		ByteBuffer header = ByteBuffer.allocate(8);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.flip();
+		while(header.hasRemaining()) channel.write(header);
+	}
+
+	private static ByteBuffer readFully(File f) throws IOException {
+		FileInputStream in = new FileInputStream(f);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+			while(buf.hasRemaining()) {
+				if(channel.read(buf) == -1) break;
+			}
+			buf.flip();
+			return buf;
+		} finally {
+			in.close();
+		}
+	}
+
+	// returns the segments in ascending order
+	private static File[] segments(final File file) {
+		File dir = file.getAbsoluteFile().getParentFile();
+		final String prefix = file.getName() + SUFFIX;
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix) && name.length() > prefix.length()
+						&& name.substring(prefix.length()).matches("[0-9]+");
+			}
+		});
+		if(files == null) return new File[0];
+		final int[] numbers = new int[files.length];
+		for(int i = 0; i < files.length; ++i) {
+			numbers[i] = segmentNumber(file, files[i]);
+		}
+		// insertion sort; there are rarely more than two segments
+		for(int i = 1; i < files.length; ++i) {
+			for(int j = i; j > 0 && numbers[j - 1] > numbers[j]; --j) {
+				int n = numbers[j]; numbers[j] = numbers[j - 1]; numbers[j - 1] = n;
+				File f = files[j]; files[j] = files[j - 1]; files[j - 1] = f;
+			}
+		}
+		return files;
+	}
+
+	private static int segmentNumber(File file, File segment) {
+		return Integer.parseInt(segment.getName().substring(file.getName().length() + SUFFIX.length()));
+	}
+}
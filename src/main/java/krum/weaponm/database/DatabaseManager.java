@@ -2,10 +2,8 @@ package krum.weaponm.database;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 
 import krum.weaponm.WeaponM;
 import krum.weaponm.database.lexer.DataLexer;
@@ -20,11 +18,15 @@ import org.slf4j.LoggerFactory;
  */
 public class DatabaseManager {
 	protected static final Logger log = LoggerFactory.getLogger(DatabaseManager.class);
+	static final String CHECKPOINT_SUFFIX = ".checkpoint";
 	protected final WeaponM weapon;
 	protected final DataLexer lexer; // reusable
 	private File file;
 	private Database database;
 	private DataParser parser;
+	private DatabaseJournal journal;
+	private boolean saveFailed; // keeps the journal if the last save failed
+	private boolean saving; // a compaction is writing outside the lock
 	//private boolean dirty;
 	
 	public DatabaseManager(WeaponM weapon) throws IOException, ClassNotFoundException {
@@ -45,17 +47,35 @@ public class DatabaseManager {
 	}
 	
 	synchronized public Database open(File file) throws IOException {
+		awaitCompaction();
 		// the use of createNewFile for locking is not recommended, but we can live with the limitations
 		File lockFile = new File(file.getPath() + ".lock");
 		if(!lockFile.createNewFile()) {
 			throw new IOException("Lock file " + lockFile.getPath() + " exists.");
 		}		
 		try {
-			ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
-			try {
-				this.database = (Database) in.readObject();
+			// a checkpoint is newer than the file, and the journal follows it
+			File checkpoint = checkpointFile(file);
+			if(checkpoint.exists()) {
+				log.info("recovering unsaved changes from {}", checkpoint.getPath());
+				this.database = DatabaseStore.read(checkpoint);
+			}
+			else if(DatabaseStore.isStoreFile(file)) {
+				this.database = DatabaseStore.read(file);
+			}
+			else { // saved by an older version
+				ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
+				try {
+					this.database = (Database) in.readObject();
+				}
+				finally { in.close(); }
 			}
-			finally { in.close(); }
+			int replayed = DatabaseJournal.replay(file, database);
+			if(replayed > 0) log.info("replayed {} journal records", replayed);
+			journal = new DatabaseJournal(this, file);
+			database.journal = journal;
+			if(replayed > 0) journal.requestCompaction();
+			saveFailed = false;
 			this.file = file;
 			parser = new DataParser(weapon, lexer, database);
 			weapon.gui.firePropertyChange(GUI.DATABASE_LOADED, database, true);
@@ -80,13 +100,20 @@ public class DatabaseManager {
 	}
 
 	synchronized public Database create(File file) throws IOException, ClassNotFoundException {
+		awaitCompaction();
 		File lockFile = new File(file.getPath() + ".lock");
 		if(!lockFile.createNewFile()) {
 			throw new IOException("Lock file " + lockFile.getPath() + " exists.");
 		}		
 		Database database = new Database();
+		// left over from a deleted database
+		checkpointFile(file).delete();
+		DatabaseJournal.delete(file);
 		save(file, database);
 		close();
+		journal = new DatabaseJournal(this, file);
+		database.journal = journal;
+		saveFailed = false;
 		this.file = file;
 		this.database = database;
 		parser = new DataParser(weapon, lexer, database);
@@ -96,17 +123,113 @@ public class DatabaseManager {
 	}
 	
 	synchronized public void save() throws IOException {
-		save(file, database);
+		awaitCompaction();
+		// changes made during the save go into the new segment
+		int segment = journal.rotate();
+		try {
+			save(file, database);
+		} catch(IOException e) {
+			saveFailed = true;
+			throw e;
+		}
+		saveFailed = false;
+		// the checkpoint goes first; it is useless without the segments after it
+		deleteCheckpoint(file);
+		journal.deleteSegments(segment);
 		log.info("database saved");
 	}
 	
+	// called from the journal's thread when the journal is getting large.
+	// the database is written to a checkpoint next to its file, not over it,
+	// so the file only changes when the user saves.  the database is copied
+	// under the lock but written outside it, so scripts calling getDatabase()
+	// are not held up by the file I/O
+	void compact(DatabaseJournal journal) {
+		File checkpoint;
+		DatabaseStore.Snapshot snapshot;
+		int segment;
+		synchronized(this) {
+			if(journal != this.journal || saving) return; // closed or saved as
+			try {
+				segment = journal.rotate();
+				snapshot = new DatabaseStore.Snapshot(database);
+			} catch(IOException e) {
+				log.error("error copying database for checkpoint", e);
+				return;
+			}
+			checkpoint = checkpointFile(file);
+			saving = true;
+		}
+		boolean written = false;
+		try {
+			write(checkpoint, snapshot);
+			written = true;
+		} catch(IOException e) {
+			log.error("error writing database checkpoint", e);
+		} finally {
+			synchronized(this) {
+				saving = false;
+				notifyAll();
+				if(written) {
+					journal.deleteSegments(segment);
+					log.info("database checkpointed to {}", checkpoint.getPath());
+				}
+			}
+		}
+	}
+	
+	// where compaction writes the database, for recovery after a crash
+	static File checkpointFile(File file) {
+		return new File(file.getPath() + CHECKPOINT_SUFFIX);
+	}
+	
+	private static void deleteCheckpoint(File file) {
+		File checkpoint = checkpointFile(file);
+		if(checkpoint.exists() && !checkpoint.delete()) {
+			log.warn("could not delete database checkpoint {}", checkpoint.getPath());
+		}
+	}
+	
+	// waits for a compaction to finish writing; requires the lock
+	private void awaitCompaction() {
+		boolean interrupted = false;
+		while(saving) {
+			try {
+				wait();
+			} catch(InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+	}
+	
 	synchronized public void saveAs(File newFile) throws IOException {
+		awaitCompaction();
 		// create new lock file
 		File lockFile = new File(newFile.getPath() + ".lock");
 		if(!lockFile.createNewFile()) {
 			throw new IOException("Lock file " + lockFile.getPath() + " exists.");
 		}
-		save(newFile, database);
+		checkpointFile(newFile).delete();
+		DatabaseJournal.delete(newFile);
+		DatabaseJournal newJournal = new DatabaseJournal(this, newFile);
+		database.journal = newJournal;
+		try {
+			save(newFile, database);
+		} catch(IOException e) {
+			// changes made during the save only went to the new journal
+			database.journal = journal;
+			journal.requestCompaction();
+			newJournal.close();
+			DatabaseJournal.delete(newFile);
+			lockFile.delete();
+			throw e;
+		}
+		journal.close();
+		deleteCheckpoint(file);
+		DatabaseJournal.delete(file);
+		journal = newJournal;
+		saveFailed = false;
 		// delete old lock file
 		new File(file.getPath() + ".lock").delete();
 		file = newFile;
@@ -123,18 +246,34 @@ public class DatabaseManager {
 		log.info("database copied to {}", copyFile.getPath());
 	}
 	
+	/**
+	 * Exports a memory-mapped snapshot of the universe for external tools.
+	 * The snapshot is written to a temp file and renamed, so tools that have
+	 * the old snapshot mapped will not see a partial file.
+	 *
+	 * @see UniverseSnapshot
+	 */
+	synchronized public void exportSnapshot(File snapshotFile) throws IOException {
+		if(snapshotFile.isDirectory()) throw new IOException("Target file is a directory.");
+		File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+		UniverseSnapshot.write(tmpFile, database);
+		if(snapshotFile.exists() && !snapshotFile.delete()) {
+			throw new IOException("Export incomplete: could not delete old snapshot.");
+		}
+		if(!tmpFile.renameTo(snapshotFile)) {
+			throw new IOException("Export incomplete: could not rename temp file.");
+		}
+		log.info("snapshot exported to {}", snapshotFile.getPath());
+	}
+
 	protected void save(File file, Database database) throws IOException {
+		write(file, new DatabaseStore.Snapshot(database));
+	}
+	
+	private static void write(File file, DatabaseStore.Snapshot snapshot) throws IOException {
 		if(file.isDirectory()) throw new IOException("Target file is a directory.");
 		File tmpFile = new File(file.getPath() + ".tmp");
-		ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(tmpFile));
-		//FileOutputStream out = new FileOutputStream(tmpFile);
-		//XStream xstream = new XStream(new DomDriver());
-		try {
-			out.writeObject(database);
-			//xstream.toXML(database, out);
-		} finally {
-			out.close();
-		}
+		DatabaseStore.write(tmpFile, snapshot);
 		if(file.exists() && !file.delete()) {
 			throw new IOException("Save incomplete: could not delete old file.");
 		}
@@ -144,12 +283,31 @@ public class DatabaseManager {
 	}
 	
 	/**
-	 * Nulls database references and shuts down network and scripts.
+	 * Nulls database references and shuts down network and scripts.  Unless
+	 * the last save failed, unsaved changes are discarded, along with the
+	 * journal and any checkpoint that held them.  The database file itself
+	 * is only ever written by a save.
 	 */
 	public void close() {
-		if(file != null) {
-			weapon.scripts.unloadAll();
-			weapon.network.disconnect();
+		// scripts and the network may need the lock to finish
+		if(!isDatabaseOpen()) return;
+		weapon.scripts.unloadAll();
+		weapon.network.disconnect();
+		synchronized(this) {
+			awaitCompaction();
+			if(file == null) return;
+			TradeRoutes routes = database.tradeRoutes;
+			if(routes != null) routes.shutdown();
+			DistanceTable distances = database.distanceTable;
+			if(distances != null) distances.shutdown();
+			database.journal = null;
+			journal.close();
+			journal = null;
+			if(saveFailed) log.warn("keeping database journal after failed save");
+			else {
+				deleteCheckpoint(file);
+				DatabaseJournal.delete(file);
+			}
 			new File(file.getPath() + ".lock").delete();
 			file = null;
 			database = null;
@@ -159,6 +317,5 @@ public class DatabaseManager {
 			weapon.gui.firePropertyChange(GUI.DATABASE_LOADED, null, false);
 			log.info("database closed");
 		}
-		
 	}
 }
@@ -0,0 +1,705 @@
+package krum.weaponm.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes databases in the binary store format.  Sector and port
+ * fields are written as parallel primitive columns, and warps are written as
+ * a packed adjacency list, so saving and loading a large universe does not
+ * involve an object per sector.  The rest of the database is small, so it is
+ * still written with Java serialization, but with sector references replaced
+ * by sector numbers.
+ * <p>
+ * A store file begins with {@link #MAGIC} and a format version.  Files
+ * written by older versions of Weapon M begin with a Java serialization
+ * header instead, and must be read with <tt>ObjectInputStream</tt>.
+ */
+class DatabaseStore implements Constants {
+	/** The first four bytes of every store file: "WMDB". */
+	static final int MAGIC = 0x574D4442;
+	/** The current format version. */
+	static final int VERSION = 1;
+
+	private static final int BUFFER_SIZE = 65536;
+	private static final long NULL_DATE = Long.MIN_VALUE;
+	private static final int NULL_INDEX = -1;
+
+	// sector flag bits
+	private static final int ANOMALY = 1;
+	private static final int FULLY_MAPPED = 2;
+	private static final int EXPLORED = 4;
+	private static final int AVOIDED = 8;
+
+	// port kinds
+	private static final int KIND_PORT = 0;
+	private static final int KIND_STARDOCK = 1;
+
+	private DatabaseStore() { }
+
+	/**
+	 * Returns true if the file begins with the store format's magic number.
+	 */
+	static boolean isStoreFile(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			ByteBuffer buf = ByteBuffer.allocate(4);
+			FileChannel channel = in.getChannel();
+			while(buf.hasRemaining()) {
+				if(channel.read(buf) == -1) return false;
+			}
+			buf.flip();
+			return buf.getInt() == MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the database to the specified file.
+	 */
+	static void write(File file, Database database) throws IOException {
+		write(file, new Snapshot(database));
+	}
+
+	/**
+	 * Writes a snapshot taken earlier to the specified file.  The snapshot
+	 * holds copies of everything it writes, so only taking it needs the
+	 * caller's lock.
+	 */
+	static void write(File file, Snapshot snapshot) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			Output output = new Output(out.getChannel());
+			snapshot.write(output);
+			output.flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads a database from the specified file.
+	 *
+	 * @throws IOException if the file is not a compatible store file
+	 */
+	static Database read(File file) throws IOException {
+		ByteBuffer buf;
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE) throw new IOException("File is too large.");
+			buf = ByteBuffer.allocate((int) size);
+			while(buf.hasRemaining()) {
+				if(channel.read(buf) == -1) break;
+			}
+			buf.flip();
+		} finally {
+			in.close();
+		}
+		try {
+			return read(buf);
+		} catch(BufferUnderflowException e) {
+			throw new IOException("The file \"" + file.getPath() + "\" is truncated.", e);
+		} catch(ClassNotFoundException e) {
+			throw new IOException("The file \"" + file.getPath() + "\" is not a compatible Weapon M database.", e);
+		} catch(RuntimeException e) { // bad indexes, ClassCastException
+			throw new IOException("The file \"" + file.getPath() + "\" is corrupt.", e);
+		}
+	}
+
+	private static Database read(ByteBuffer buf) throws IOException, ClassNotFoundException {
+		if(buf.getInt() != MAGIC) throw new IOException("Not a Weapon M database.");
+		int version = buf.getInt();
+		if(version != VERSION) throw new IOException("Unsupported database version " + version + ".");
+
+		String[] strings = new String[buf.getInt()];
+		for(int i = 0; i < strings.length; ++i) {
+			strings[i] = getString(buf);
+		}
+
+		int n = buf.getInt();
+		Sector[] sectors = null;
+		Sector.State[] states = null;
+		int[] fighterOwners = null;
+		int[] armidOwners = null;
+		int[] limpetOwners = null;
+		if(n != UNKNOWN) {
+			sectors = new Sector[n];
+			states = new Sector.State[n];
+			for(int i = 0; i < n; ++i) {
+				sectors[i] = new Sector(null, i + 1);
+				states[i] = new Sector.State();
+			}
+
+			int[] ints = new int[n];
+			long[] longs = new long[n];
+			byte[] bytes = new byte[n];
+
+			getInts(buf, ints);
+			for(int i = 0; i < n; ++i) states[i].density = ints[i];
+			getInts(buf, ints);
+			for(int i = 0; i < n; ++i) states[i].warpDensity = ints[i];
+			getInts(buf, ints);
+			for(int i = 0; i < n; ++i) states[i].navhaz = ints[i];
+			buf.get(bytes);
+			for(int i = 0; i < n; ++i) {
+				Sector.State state = states[i];
+				state.anomaly = (bytes[i] & ANOMALY) != 0;
+				state.fullyMapped = (bytes[i] & FULLY_MAPPED) != 0;
+				state.explored = (bytes[i] & EXPLORED) != 0;
+				state.avoided = (bytes[i] & AVOIDED) != 0;
+			}
+			getLongs(buf, longs);
+			for(int i = 0; i < n; ++i) states[i].densityDate = toDate(longs[i]);
+			getLongs(buf, longs);
+			for(int i = 0; i < n; ++i) states[i].holoDate = toDate(longs[i]);
+			getInts(buf, ints);
+			for(int i = 0; i < n; ++i) states[i].nebula = toString(strings, ints[i]);
+			getInts(buf, ints);
+			for(int i = 0; i < n; ++i) states[i].beaconMessage = toString(strings, ints[i]);
+
+			getInts(buf, ints);
+			for(int i = 0; i < n; ++i) states[i].fighters = ints[i];
+			fighterOwners = new int[n];
+			getInts(buf, fighterOwners);
+			buf.get(bytes);
+			FighterMode[] modes = FighterMode.values();
+			for(int i = 0; i < n; ++i) states[i].fighterMode = bytes[i] == NULL_INDEX ? null : modes[bytes[i]];
+			getLongs(buf, longs);
+			for(int i = 0; i < n; ++i) states[i].fighterDate = toDate(longs[i]);
+			getLongs(buf, longs);
+			for(int i = 0; i < n; ++i) states[i].figHitDate = toDate(longs[i]);
+			getInts(buf, ints);
+			for(int i = 0; i < n; ++i) states[i].figHitName = toString(strings, ints[i]);
+
+			getInts(buf, ints);
+			for(int i = 0; i < n; ++i) states[i].armids = ints[i];
+			armidOwners = new int[n];
+			getInts(buf, armidOwners);
+			getInts(buf, ints);
+			for(int i = 0; i < n; ++i) states[i].limpets = ints[i];
+			limpetOwners = new int[n];
+			getInts(buf, limpetOwners);
+
+			// warps out, and warps in by inverting them
+			buf.get(bytes);
+			int[] targets = new int[buf.getInt()];
+			getInts(buf, targets);
+			int[] inDegree = new int[n];
+			for(int t : targets) ++inDegree[t - 1];
+			int off = 0;
+			for(int i = 0; i < n; ++i) {
+				states[i].warpsOut = Arrays.copyOfRange(targets, off, off + bytes[i]);
+				states[i].warpsIn = new int[inDegree[i]];
+				off += bytes[i];
+			}
+			// sources are visited in ascending order, so warps in come out sorted
+			Arrays.fill(inDegree, 0);
+			off = 0;
+			for(int i = 0; i < n; ++i) {
+				for(int j = 0; j < bytes[i]; ++j) {
+					int t = targets[off++] - 1;
+					states[t].warpsIn[inDegree[t]++] = i + 1;
+				}
+			}
+
+			// notes
+			int notes = buf.getInt();
+			for(int i = 0; i < notes; ++i) {
+				Sector.State state = states[buf.getInt()];
+				String key = toString(strings, buf.getInt());
+				String value = toString(strings, buf.getInt());
+				if(state.notes.isEmpty()) state.notes = new HashMap<String, String>();
+				state.notes.put(key, value);
+			}
+		}
+
+		// ports
+		int p = buf.getInt();
+		if(p > 0) {
+			int[] sectorIndexes = new int[p];
+			getInts(buf, sectorIndexes);
+			byte[] kinds = new byte[p];
+			buf.get(kinds);
+			Port[] ports = new Port[p];
+			Port.State[] portStates = new Port.State[p];
+			for(int i = 0; i < p; ++i) {
+				Sector sector = sectors[sectorIndexes[i]];
+				ports[i] = kinds[i] == KIND_STARDOCK ? new Stardock(sector) : new Port(sector);
+				portStates[i] = new Port.State();
+				states[sectorIndexes[i]].port = ports[i];
+			}
+			int[] ints = new int[p];
+			int[] triples = new int[p * 3];
+			long[] longs = new long[p];
+			byte[] bytes = new byte[p];
+			getInts(buf, ints);
+			for(int i = 0; i < p; ++i) portStates[i].name = toString(strings, ints[i]);
+			getInts(buf, ints);
+			for(int i = 0; i < p; ++i) portStates[i].tradingClass = ints[i];
+			getInts(buf, triples);
+			for(int i = 0; i < p; ++i) System.arraycopy(triples, i * 3, portStates[i].levels, 0, 3);
+			getInts(buf, triples);
+			for(int i = 0; i < p; ++i) System.arraycopy(triples, i * 3, portStates[i].percents, 0, 3);
+			getInts(buf, triples);
+			for(int i = 0; i < p; ++i) System.arraycopy(triples, i * 3, portStates[i].capacities, 0, 3);
+			getInts(buf, triples);
+			for(int i = 0; i < p; ++i) System.arraycopy(triples, i * 3, portStates[i].mcic, 0, 3);
+			getLongs(buf, longs);
+			for(int i = 0; i < p; ++i) portStates[i].reportDate = toDate(longs[i]);
+			buf.get(bytes);
+			PortStatus[] statuses = PortStatus.values();
+			for(int i = 0; i < p; ++i) portStates[i].status = bytes[i] == NULL_INDEX ? null : statuses[bytes[i]];
+			getLongs(buf, longs);
+			for(int i = 0; i < p; ++i) portStates[i].statusDate = toDate(longs[i]);
+			getInts(buf, ints);
+			for(int i = 0; i < p; ++i) portStates[i].credits = ints[i];
+			getLongs(buf, longs);
+			for(int i = 0; i < p; ++i) portStates[i].creditsDate = toDate(longs[i]);
+			getLongs(buf, longs);
+			for(int i = 0; i < p; ++i) portStates[i].bustDate = toDate(longs[i]);
+			for(int i = 0; i < p; ++i) ports[i].restoreState(portStates[i]);
+		}
+
+		// everything else
+		byte[] blob = new byte[buf.getInt()];
+		buf.get(blob);
+		StoreInputStream in = new StoreInputStream(new ByteArrayInputStream(blob), sectors);
+		Database database;
+		Owner[] owners;
+		try {
+			database = (Database) in.readObject();
+			owners = (Owner[]) in.readObject();
+		} finally {
+			in.close();
+		}
+
+		if(sectors != null) {
+			for(int i = 0; i < sectors.length; ++i) {
+				Sector.State state = states[i];
+				state.fighterOwner = toOwner(owners, fighterOwners[i]);
+				state.armidOwner = toOwner(owners, armidOwners[i]);
+				state.limpetOwner = toOwner(owners, limpetOwners[i]);
+				sectors[i].db = database;
+				sectors[i].restoreState(state);
+			}
+			synchronized(database) {
+				database.sectors = sectors;
+			}
+		}
+		return database;
+	}
+
+	private static Date toDate(long time) {
+		return time == NULL_DATE ? null : new Date(time);
+	}
+
+	private static String toString(String[] strings, int index) {
+		return index == NULL_INDEX ? null : strings[index];
+	}
+
+	private static Owner toOwner(Owner[] owners, int index) {
+		return index == NULL_INDEX ? null : owners[index];
+	}
+
+	private static void getInts(ByteBuffer buf, int[] dst) {
+		buf.asIntBuffer().get(dst);
+		buf.position(buf.position() + dst.length * 4);
+	}
+
+	private static void getLongs(ByteBuffer buf, long[] dst) {
+		buf.asLongBuffer().get(dst);
+		buf.position(buf.position() + dst.length * 8);
+	}
+
+	private static String getString(ByteBuffer buf) {
+		char[] chars = new char[buf.getInt()];
+		buf.asCharBuffer().get(chars);
+		buf.position(buf.position() + chars.length * 2);
+		return new String(chars);
+	}
+
+	/**
+	 * Copies the columns out of the live database, taking each sector's and
+	 * port's lock only long enough to read its fields, and serializes the
+	 * rest of it.
+	 */
+	static class Snapshot {
+		private final Map<String, Integer> stringIndex = new HashMap<String, Integer>();
+		private final List<String> strings = new ArrayList<String>();
+		private final Map<Owner, Integer> ownerIndex = new IdentityHashMap<Owner, Integer>();
+		private final List<Owner> owners = new ArrayList<Owner>();
+
+		private final int n;
+		private int[] density, warpDensity, navhaz;
+		private byte[] flags;
+		private long[] densityDate, holoDate;
+		private int[] nebula, beacon;
+		private int[] fighters, fighterOwner;
+		private byte[] fighterMode;
+		private long[] fighterDate, figHitDate;
+		private int[] figHitName;
+		private int[] armids, armidOwner, limpets, limpetOwner;
+		private byte[] warpCounts;
+		private int[] warps = new int[0];
+		private int warpTotal;
+		private int[] notes = new int[0];
+		private int noteCount;
+		private final List<Port> ports = new ArrayList<Port>();
+		private int[] portSector, portName, tradingClass;
+		private byte[] portKind, status;
+		private int[] levels, percents, capacities, mcic;
+		private long[] reportDate, statusDate, creditsDate, bustDate;
+		private int[] credits;
+		private byte[] blob;
+
+		/**
+		 * Copies everything that will be written, including the serialized
+		 * part, so the caller's lock need not be held while writing.
+		 */
+		Snapshot(Database database) throws IOException {
+			Sector[] sectors = database.getSectors();
+			n = sectors == null ? UNKNOWN : sectors.length;
+			if(sectors != null) copySectors(sectors);
+			copyPorts();
+			blob = serialize(database);
+		}
+
+		private void copySectors(Sector[] sectors) {
+			density = new int[n];
+			warpDensity = new int[n];
+			navhaz = new int[n];
+			flags = new byte[n];
+			densityDate = new long[n];
+			holoDate = new long[n];
+			nebula = new int[n];
+			beacon = new int[n];
+			fighters = new int[n];
+			fighterOwner = new int[n];
+			fighterMode = new byte[n];
+			fighterDate = new long[n];
+			figHitDate = new long[n];
+			figHitName = new int[n];
+			armids = new int[n];
+			armidOwner = new int[n];
+			limpets = new int[n];
+			limpetOwner = new int[n];
+			warpCounts = new byte[n];
+			warps = new int[n * 2];
+			Sector.State state = new Sector.State();
+			for(int i = 0; i < n; ++i) {
+				sectors[i].copyState(state);
+				density[i] = state.density;
+				warpDensity[i] = state.warpDensity;
+				navhaz[i] = state.navhaz;
+				int f = 0;
+				if(state.anomaly) f |= ANOMALY;
+				if(state.fullyMapped) f |= FULLY_MAPPED;
+				if(state.explored) f |= EXPLORED;
+				if(state.avoided) f |= AVOIDED;
+				flags[i] = (byte) f;
+				densityDate[i] = fromDate(state.densityDate);
+				holoDate[i] = fromDate(state.holoDate);
+				nebula[i] = indexOf(state.nebula);
+				beacon[i] = indexOf(state.beaconMessage);
+				fighters[i] = state.fighters;
+				fighterOwner[i] = indexOf(state.fighterOwner);
+				fighterMode[i] = (byte) (state.fighterMode == null ? NULL_INDEX : state.fighterMode.ordinal());
+				fighterDate[i] = fromDate(state.fighterDate);
+				figHitDate[i] = fromDate(state.figHitDate);
+				figHitName[i] = indexOf(state.figHitName);
+				armids[i] = state.armids;
+				armidOwner[i] = indexOf(state.armidOwner);
+				limpets[i] = state.limpets;
+				limpetOwner[i] = indexOf(state.limpetOwner);
+
+				int[] out = state.warpsOut;
+				warpCounts[i] = (byte) out.length;
+				if(warpTotal + out.length > warps.length) {
+					warps = Arrays.copyOf(warps, Math.max(warps.length * 2, warpTotal + out.length));
+				}
+				System.arraycopy(out, 0, warps, warpTotal, out.length);
+				warpTotal += out.length;
+
+				for(Map.Entry<String, String> note : state.notes.entrySet()) {
+					if(noteCount * 3 + 3 > notes.length) {
+						notes = Arrays.copyOf(notes, notes.length * 2 + 3);
+					}
+					notes[noteCount * 3] = i;
+					notes[noteCount * 3 + 1] = indexOf(note.getKey());
+					notes[noteCount * 3 + 2] = indexOf(note.getValue());
+					++noteCount;
+				}
+				if(state.port != null) ports.add(state.port);
+			}
+		}
+
+		private void copyPorts() {
+			int p = ports.size();
+			portSector = new int[p];
+			portKind = new byte[p];
+			portName = new int[p];
+			tradingClass = new int[p];
+			levels = new int[p * 3];
+			percents = new int[p * 3];
+			capacities = new int[p * 3];
+			mcic = new int[p * 3];
+			reportDate = new long[p];
+			status = new byte[p];
+			statusDate = new long[p];
+			credits = new int[p];
+			creditsDate = new long[p];
+			bustDate = new long[p];
+			Port.State state = new Port.State();
+			for(int i = 0; i < p; ++i) {
+				Port port = ports.get(i);
+				port.copyState(state);
+				portSector[i] = port.getSector().getNumber() - 1;
+				portKind[i] = (byte) (port instanceof Stardock ? KIND_STARDOCK : KIND_PORT);
+				portName[i] = indexOf(state.name);
+				tradingClass[i] = state.tradingClass;
+				System.arraycopy(state.levels, 0, levels, i * 3, 3);
+				System.arraycopy(state.percents, 0, percents, i * 3, 3);
+				System.arraycopy(state.capacities, 0, capacities, i * 3, 3);
+				System.arraycopy(state.mcic, 0, mcic, i * 3, 3);
+				reportDate[i] = fromDate(state.reportDate);
+				status[i] = (byte) (state.status == null ? NULL_INDEX : state.status.ordinal());
+				statusDate[i] = fromDate(state.statusDate);
+				credits[i] = state.credits;
+				creditsDate[i] = fromDate(state.creditsDate);
+				bustDate[i] = fromDate(state.bustDate);
+			}
+		}
+
+		void write(Output out) throws IOException {
+			out.putInt(MAGIC);
+			out.putInt(VERSION);
+
+			out.putInt(strings.size());
+			for(String s : strings) out.putString(s);
+
+			out.putInt(n);
+			if(n != UNKNOWN) {
+				out.putInts(density, n);
+				out.putInts(warpDensity, n);
+				out.putInts(navhaz, n);
+				out.putBytes(flags, n);
+				out.putLongs(densityDate, n);
+				out.putLongs(holoDate, n);
+				out.putInts(nebula, n);
+				out.putInts(beacon, n);
+				out.putInts(fighters, n);
+				out.putInts(fighterOwner, n);
+				out.putBytes(fighterMode, n);
+				out.putLongs(fighterDate, n);
+				out.putLongs(figHitDate, n);
+				out.putInts(figHitName, n);
+				out.putInts(armids, n);
+				out.putInts(armidOwner, n);
+				out.putInts(limpets, n);
+				out.putInts(limpetOwner, n);
+				out.putBytes(warpCounts, n);
+				out.putInt(warpTotal);
+				out.putInts(warps, warpTotal);
+				out.putInt(noteCount);
+				out.putInts(notes, noteCount * 3);
+			}
+
+			int p = ports.size();
+			out.putInt(p);
+			if(p > 0) {
+				out.putInts(portSector, p);
+				out.putBytes(portKind, p);
+				out.putInts(portName, p);
+				out.putInts(tradingClass, p);
+				out.putInts(levels, p * 3);
+				out.putInts(percents, p * 3);
+				out.putInts(capacities, p * 3);
+				out.putInts(mcic, p * 3);
+				out.putLongs(reportDate, p);
+				out.putBytes(status, p);
+				out.putLongs(statusDate, p);
+				out.putInts(credits, p);
+				out.putLongs(creditsDate, p);
+				out.putLongs(bustDate, p);
+			}
+
+			out.putInt(blob.length);
+			out.putBytes(blob, blob.length);
+		}
+
+		private byte[] serialize(Database database) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			StoreOutputStream out = new StoreOutputStream(bytes);
+			try {
+				out.writeObject(database);
+				out.writeObject(owners.toArray(new Owner[owners.size()]));
+			} finally {
+				out.close();
+			}
+			return bytes.toByteArray();
+		}
+
+		private int indexOf(String s) {
+			if(s == null) return NULL_INDEX;
+			Integer index = stringIndex.get(s);
+			if(index == null) {
+				index = strings.size();
+				strings.add(s);
+				stringIndex.put(s, index);
+			}
+			return index;
+		}
+
+		private int indexOf(Owner owner) {
+			if(owner == null) return NULL_INDEX;
+			Integer index = ownerIndex.get(owner);
+			if(index == null) {
+				index = owners.size();
+				owners.add(owner);
+				ownerIndex.put(owner, index);
+			}
+			return index;
+		}
+
+		private static long fromDate(Date date) {
+			return date == null ? NULL_DATE : date.getTime();
+		}
+	}
+
+	/**
+	 * Buffers primitive columns and writes them to a file channel.
+	 */
+	private static class Output {
+		private final FileChannel channel;
+		private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		Output(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		void putInt(int i) throws IOException {
+			ensure(4);
+			buf.putInt(i);
+		}
+
+		void putString(String s) throws IOException {
+			putInt(s.length());
+			for(int i = 0; i < s.length(); ++i) {
+				ensure(2);
+				buf.putChar(s.charAt(i));
+			}
+		}
+
+		void putInts(int[] src, int len) throws IOException {
+			int off = 0;
+			while(off < len) {
+				ensure(4);
+				int count = Math.min(len - off, buf.remaining() / 4);
+				buf.asIntBuffer().put(src, off, count);
+				buf.position(buf.position() + count * 4);
+				off += count;
+			}
+		}
+
+		void putLongs(long[] src, int len) throws IOException {
+			int off = 0;
+			while(off < len) {
+				ensure(8);
+				int count = Math.min(len - off, buf.remaining() / 8);
+				buf.asLongBuffer().put(src, off, count);
+				buf.position(buf.position() + count * 8);
+				off += count;
+			}
+		}
+
+		void putBytes(byte[] src, int len) throws IOException {
+			int off = 0;
+			while(off < len) {
+				ensure(1);
+				int count = Math.min(len - off, buf.remaining());
+				buf.put(src, off, count);
+				off += count;
+			}
+		}
+
+		void flush() throws IOException {
+			buf.flip();
+			while(buf.hasRemaining()) channel.write(buf);
+			buf.clear();
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if(buf.remaining() < bytes) flush();
+		}
+	}
+
+	/** Stands in for a sector in the serialized part of a store file. */
+	private static class SectorReference implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final int number;
+
+		SectorReference(int number) {
+			this.number = number;
+		}
+	}
+
+	private static class StoreOutputStream extends ObjectOutputStream {
+		StoreOutputStream(OutputStream out) throws IOException {
+			super(out);
+			enableReplaceObject(true);
+		}
+
+		@Override
+		protected Object replaceObject(Object obj) {
+			// the sectors array is written as columns
+			if(obj instanceof Sector[]) return null;
+			if(obj instanceof Sector) return new SectorReference(((Sector) obj).getNumber());
+			return obj;
+		}
+	}
+
+	private static class StoreInputStream extends ObjectInputStream {
+		private final Sector[] sectors;
+
+		StoreInputStream(InputStream in, Sector[] sectors) throws IOException {
+			super(in);
+			this.sectors = sectors;
+			enableResolveObject(true);
+		}
+
+		@Override
+		protected Object resolveObject(Object obj) throws IOException {
+			if(obj instanceof SectorReference) {
+				int number = ((SectorReference) obj).number;
+				if(sectors == null || number < 1 || number > sectors.length) {
+					throw new StreamCorruptedException("Invalid sector reference: " + number);
+				}
+				return sectors[number - 1];
+			}
+			return obj;
+		}
+	}
+}
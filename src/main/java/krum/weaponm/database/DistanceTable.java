@@ -0,0 +1,296 @@
+package krum.weaponm.database;
+
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A table of the shortest hop distances between all pairs of sectors, for
+ * scripts that measure many distances, e.g., to find the nearest port pair.
+ * The table is created by {@link Database#getDistanceTable()} and computed
+ * by background threads.  Once it is ready, distance queries are a single
+ * array lookup, and {@link Database#plotCourse(int, int, boolean)} uses it
+ * to plot courses without searching.
+ * <p>
+ * Distances are stored in one byte per pair, so the table is only available
+ * for universes of up to {@link #MAX_SECTORS} sectors.  Avoids are ignored.
+ * <p>
+ * When warps are discovered, the table is patched in the background; only
+ * the rows whose distances improve are copied and changed, and the patched
+ * table replaces the old one, so a reader never sees a half-patched table.
+ * Only when a warp disappears, which can make distances longer, is the table
+ * recomputed.  The table may therefore lag slightly behind the database.
+ */
+public class DistanceTable implements Constants {
+	private static final Logger log = LoggerFactory.getLogger(DistanceTable.class);
+
+	/** The largest universe for which a table can be created. */
+	public static final int MAX_SECTORS = 8192;
+	private static final int UNREACHABLE = 0xFF;
+	private static final int MAX_DISTANCE = 0xFE;
+
+	private final Database db;
+	private final int n;
+	private final ThreadPoolExecutor executor;
+	// guards rows, pending, patching, computing, stale, and shutdown
+	private final Object lock = new Object();
+	// one row per origin sector; null until the first computation completes.
+	// published rows are never written
+	private volatile byte[][] rows;
+	// new warps as from, to pairs, applied together by one patch
+	private int[] pending = new int[64];
+	private int pendingSize;
+	private boolean patching;
+	private boolean computing;
+	private boolean stale;
+	private volatile boolean shutdown;
+
+	DistanceTable(Database db, int numSectors) {
+		this.db = db;
+		this.n = numSectors;
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+		executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "DistanceTable-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		recompute();
+	}
+
+	/**
+	 * Returns true if the table has been computed.
+	 */
+	public boolean isReady() {
+		return rows != null;
+	}
+
+	/**
+	 * Returns the number of warps in the shortest known course between two
+	 * sectors.  Returns <tt>UNKNOWN</tt> if there is no known course or the
+	 * table is not ready.
+	 */
+	public int getDistance(int from, int to) {
+		byte[][] rows = this.rows;
+		if(rows == null) return UNKNOWN;
+		int d = rows[from - 1][to - 1] & 0xFF;
+		return d == UNREACHABLE ? UNKNOWN : d;
+	}
+
+	/**
+	 * Plots a shortest course between two sectors by following decreasing
+	 * distances.  If <tt>sectors</tt> is not null, the course will not pass
+	 * through avoided sectors; if every shortest course does, this method
+	 * returns null even though a longer course may exist.
+	 *
+	 * @param sectors all sectors, or null to ignore avoids
+	 * @return the course, or null if none was found or the table is not
+	 * ready
+	 */
+	int[] plotCourse(int from, int to, Sector[] sectors) {
+		byte[][] rows = this.rows;
+		if(rows == null) return null;
+		int d = rows[from - 1][to - 1] & 0xFF;
+		if(d == UNREACHABLE) return null;
+		if(sectors != null && d > 0 && sectors[from - 1].isAvoided()) return null;
+		WarpGraph graph = db.getWarpGraph();
+		int[] course = new int[d + 1];
+		course[0] = from;
+		int s = from;
+		for(int i = 1; i <= d; ++i) {
+			int next = NULL_SECTOR;
+			int warps = graph.getNumWarpsOut(s);
+			for(int j = 0; j < warps; ++j) {
+				int w = graph.getWarpOut(s, j);
+				if((rows[w - 1][to - 1] & 0xFF) != d - i) continue;
+				if(sectors != null && w != to && sectors[w - 1].isAvoided()) continue;
+				next = w;
+				break;
+			}
+			if(next == NULL_SECTOR) return null; // avoided, or the table is stale
+			course[i] = s = next;
+		}
+		return course;
+	}
+
+	/** Called by the warp index when a warp is discovered. */
+	void warpAdded(int from, int to) {
+		warpsAdded(from, new int[] { to });
+	}
+
+	/** Called by the warp index when warps are added to a sector's warps out. */
+	void warpsAdded(int from, int[] to) {
+		synchronized(lock) {
+			if(shutdown) return;
+			if(computing) {
+				stale = true;
+				return;
+			}
+			if(pendingSize + to.length * 2 > pending.length) {
+				pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingSize + to.length * 2));
+			}
+			for(int t : to) {
+				pending[pendingSize++] = from;
+				pending[pendingSize++] = t;
+			}
+			if(patching) return;
+			patching = true;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					patch();
+				}
+			});
+		}
+	}
+
+	/** Called by the warp index when a warp is removed from a sector's warps out. */
+	void warpsReplaced() {
+		recompute();
+	}
+
+	/**
+	 * Stops the background threads.  Called when the database is closed;
+	 * later changes are ignored.
+	 */
+	void shutdown() {
+		synchronized(lock) {
+			shutdown = true;
+		}
+		executor.shutdownNow();
+	}
+
+	private void recompute() {
+		synchronized(lock) {
+			if(shutdown) return;
+			if(computing) {
+				stale = true;
+				return;
+			}
+			computing = true;
+			stale = false;
+			final WarpGraph graph = db.getWarpGraph();
+			final byte[][] result = new byte[n][];
+			final AtomicInteger nextRow = new AtomicInteger(1);
+			final AtomicInteger remaining = new AtomicInteger(executor.getMaximumPoolSize());
+			final long start = System.currentTimeMillis();
+			for(int t = executor.getMaximumPoolSize(); t > 0; --t) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						boolean ok = true;
+						int[] queue = new int[n];
+						for(int row = nextRow.getAndIncrement(); row <= n && !shutdown; row = nextRow.getAndIncrement()) {
+							ok &= computeRow(graph, row, result, queue);
+						}
+						if(remaining.decrementAndGet() == 0) finish(result, ok, start);
+					}
+				});
+			}
+		}
+	}
+
+	private void finish(byte[][] result, boolean ok, long start) {
+		boolean again;
+		synchronized(lock) {
+			if(shutdown) return;
+			if(ok) rows = result;
+			computing = false;
+			again = stale;
+		}
+		if(ok) log.debug("distance table computed in {} ms", System.currentTimeMillis() - start);
+		else log.warn("universe is too large for the distance table");
+		// warps discovered while computing may not be in the result
+		if(again && ok) recompute();
+	}
+
+	// breadth-first search from one sector; returns false if a distance is too large
+	private boolean computeRow(WarpGraph graph, int origin, byte[][] result, int[] queue) {
+		byte[] row = new byte[n];
+		result[origin - 1] = row;
+		Arrays.fill(row, (byte) UNREACHABLE);
+		row[origin - 1] = 0;
+		queue[0] = origin;
+		int size = 1;
+		for(int i = 0; i < size; ++i) {
+			int s = queue[i];
+			int d = (row[s - 1] & 0xFF) + 1;
+			int warps = graph.getNumWarpsOut(s);
+			for(int j = 0; j < warps; ++j) {
+				int w = graph.getWarpOut(s, j);
+				if((row[w - 1] & 0xFF) != UNREACHABLE) continue;
+				if(d > MAX_DISTANCE) return false;
+				row[w - 1] = (byte) d;
+				queue[size++] = w;
+			}
+		}
+		return true;
+	}
+
+	// lowers distances through the pending warps.  rows that don't improve
+	// via a warp are skipped; rows that do are copied before they are
+	// written, and the patched table is published when all warps are applied
+	private void patch() {
+		synchronized(lock) {
+			patching = false;
+			int[] warps = Arrays.copyOf(pending, pendingSize);
+			pendingSize = 0;
+			byte[][] rows = this.rows;
+			if(rows == null || computing || shutdown) {
+				stale = true;
+				return;
+			}
+			byte[][] patched = rows.clone();
+			boolean[] copied = new boolean[n];
+			boolean changed = false;
+			for(int i = 0; i < warps.length; i += 2) {
+				int result = patch(patched, copied, warps[i], warps[i + 1]);
+				if(result < 0) {
+					log.warn("distance table overflow; table disabled");
+					this.rows = null;
+					return;
+				}
+				if(result > 0) changed = true;
+			}
+			if(changed) this.rows = patched;
+		}
+	}
+
+	// applies one warp; returns the number of rows changed, or -1 on overflow
+	private int patch(byte[][] patched, boolean[] copied, int a, int b) {
+		int changed = 0;
+		byte[] bRow = patched[b - 1];
+		for(int x = 0; x < n; ++x) {
+			byte[] xRow = patched[x];
+			int dxa = xRow[a - 1] & 0xFF;
+			if(dxa == UNREACHABLE || dxa + 1 >= (xRow[b - 1] & 0xFF)) continue;
+			if(!copied[x]) {
+				xRow = patched[x] = xRow.clone();
+				copied[x] = true;
+			}
+			for(int y = 0; y < n; ++y) {
+				int dby = bRow[y] & 0xFF;
+				if(dby == UNREACHABLE) continue;
+				int d = dxa + 1 + dby;
+				if(d < (xRow[y] & 0xFF)) {
+					if(d > MAX_DISTANCE) return -1;
+					xRow[y] = (byte) d;
+				}
+			}
+			++changed;
+		}
+		return changed;
+	}
+}
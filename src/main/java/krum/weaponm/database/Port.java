@@ -48,7 +48,10 @@ public class Port implements Serializable, Constants {
 	}
 	
 	void setName(String name) {
-		if(this.name == null) this.name = name;
+		if(this.name == null && name != null) {
+			this.name = name;
+			sector.changed(DatabaseJournal.PORT_NAME, null);
+		}
 	}
 	
 	/**
@@ -59,10 +62,12 @@ public class Port implements Serializable, Constants {
 	}
 	
 	void setStatus(PortStatus status) {
-		if(this.status != status) {
+		synchronized(this) {
+			if(this.status == status) return;
 			statusDate = new Date();
 			this.status = status;
 		}
+		sector.changed(DatabaseJournal.PORT_STATUS, null);
 	}
 	
 	/**
@@ -125,8 +130,11 @@ public class Port implements Serializable, Constants {
 		return capacities[product];
 	}
 	
-	synchronized void setCapacity(int product, int capacity) {
-		capacities[product] = capacity;
+	void setCapacity(int product, int capacity) {
+		synchronized(this) {
+			capacities[product] = capacity;
+		}
+		sector.changed(DatabaseJournal.PORT_CAPACITY, product);
 	}
 	
 	synchronized public Date getReportDate() {
@@ -141,9 +149,12 @@ public class Port implements Serializable, Constants {
 		return creditsDate;
 	}
 	
-	synchronized void setCredits(int credits) {
-		this.credits = credits;
-		creditsDate = new Date();
+	void setCredits(int credits) {
+		synchronized(this) {
+			this.credits = credits;
+			creditsDate = new Date();
+		}
+		sector.changed(DatabaseJournal.PORT_CREDITS, null);
 	}
 	
 	// updates from list of values extracted from cim port report
@@ -159,10 +170,13 @@ public class Port implements Serializable, Constants {
 	*/
 	
 	// for regular port reports
-	synchronized void setReport(int[] levels, int[] percents) {
-		System.arraycopy(levels, 0, this.levels, 0, levels.length);
-		System.arraycopy(percents, 0, this.percents, 0, percents.length);
-		reportDate = new Date();
+	void setReport(int[] levels, int[] percents) {
+		synchronized(this) {
+			System.arraycopy(levels, 0, this.levels, 0, levels.length);
+			System.arraycopy(percents, 0, this.percents, 0, percents.length);
+			reportDate = new Date();
+		}
+		sector.changed(DatabaseJournal.PORT_REPORT, null);
 	}
 	
 	/**
@@ -176,7 +190,10 @@ public class Port implements Serializable, Constants {
 	}
 	
 	void setTradingClass(int tradingClass) {
-		if(this.tradingClass == UNKNOWN) this.tradingClass = tradingClass;
+		if(this.tradingClass == UNKNOWN) {
+			this.tradingClass = tradingClass;
+			sector.changed(DatabaseJournal.PORT_CLASS, null);
+		}
 	}
 	
 	// sets trading class using an array of 'S' and 'B' or ' ' and '-'
@@ -187,6 +204,7 @@ public class Port implements Serializable, Constants {
 				if(indicators[i] == ' ' || indicators[i] == 'S') productCode += 1 << i;
 			}
 			tradingClass = productToClass[productCode];
+			sector.changed(DatabaseJournal.PORT_CLASS, null);
 		}
 	}
 	
@@ -286,6 +304,7 @@ public class Port implements Serializable, Constants {
 	 */
 	public void clearBust() {
 		bustDate = null;
+		sector.changed(DatabaseJournal.PORT_BUST, null);
 	}
 
 	/**
@@ -338,6 +357,64 @@ public class Port implements Serializable, Constants {
 		in.defaultReadObject();
 	}
 	
+	/**
+	 * Copies this port's fields.
+	 */
+	synchronized void copyState(State state) {
+		state.name = name;
+		state.status = status;
+		state.statusDate = statusDate;
+		System.arraycopy(mcic, 0, state.mcic, 0, 3);
+		state.tradingClass = tradingClass;
+		System.arraycopy(levels, 0, state.levels, 0, 3);
+		System.arraycopy(percents, 0, state.percents, 0, 3);
+		System.arraycopy(capacities, 0, state.capacities, 0, 3);
+		state.reportDate = reportDate;
+		state.credits = credits;
+		state.creditsDate = creditsDate;
+		state.bustDate = bustDate;
+	}
+	
+	/**
+	 * Replaces this port's fields with a copy, as when loading a database or
+	 * replaying its journal.  Nothing is journaled or notified.
+	 */
+	synchronized void restoreState(State state) {
+		name = state.name;
+		status = state.status;
+		statusDate = state.statusDate;
+		System.arraycopy(state.mcic, 0, mcic, 0, 3);
+		tradingClass = state.tradingClass;
+		System.arraycopy(state.levels, 0, levels, 0, 3);
+		System.arraycopy(state.percents, 0, percents, 0, 3);
+		System.arraycopy(state.capacities, 0, capacities, 0, 3);
+		reportDate = state.reportDate;
+		credits = state.credits;
+		creditsDate = state.creditsDate;
+		bustDate = state.bustDate;
+	}
+	
+	/**
+	 * A copy of a port's fields, for code in this package that saves or
+	 * journals ports in bulk.
+	 * 
+	 * @see Port#copyState(State)
+	 */
+	static class State {
+		String name;
+		PortStatus status;
+		Date statusDate;
+		final int[] mcic = new int[3];
+		int tradingClass = UNKNOWN;
+		final int[] levels = new int[3];
+		final int[] percents = new int[3];
+		final int[] capacities = new int[3];
+		Date reportDate;
+		int credits = UNKNOWN;
+		Date creditsDate;
+		Date bustDate;
+	}
+	
 	/*
 	public static void main(String[] args) {
 		//for(int i = 1; i < 9; ++i) {
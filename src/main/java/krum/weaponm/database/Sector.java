@@ -5,6 +5,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -61,6 +62,13 @@ public class Sector implements Serializable, Constants {
 		this.number = number;
 	}
 	
+	/**
+	 * Returns the database this sector belongs to.
+	 */
+	public Database getDatabase() {
+		return db;
+	}
+	
 	/**
 	 * Returns the sector number.
 	 */
@@ -132,6 +140,8 @@ public class Sector implements Serializable, Constants {
 				}
 				if(warpsOut.length == 6 || warpsOut.length == warpDensity) fullyMapped = true;
 			}
+			db.warpIndex.addWarp(number, sector);
+			changed(DatabaseJournal.WARP, sector);
 			Sector warp = db.getSector(sector);
 			warp.addWarpFrom(number);
 	}
@@ -153,6 +163,8 @@ public class Sector implements Serializable, Constants {
 			explored = true;
 			fullyMapped = true;
 		}
+		db.warpIndex.setWarpsOut(number, warpsOut);
+		changed(DatabaseJournal.WARPS_OUT, null);
 		for(int i = 0; i < warpsOut.length; ++i) {
 			Sector warp = db.getSector(warpsOut[i]);
 			warp.addWarpFrom(number);
@@ -246,13 +258,16 @@ public class Sector implements Serializable, Constants {
 		return densityDate;
 	}
 	
-	synchronized protected void setDensityData(int density, int warpDensity, int navhaz, boolean anomaly) {
-		this.density = density;
-		this.warpDensity = warpDensity;
-		this.navhaz = navhaz;
-		this.anomaly = anomaly;
-		this.densityDate = new Date();
-		if(warpDensity == warpsOut.length) fullyMapped = true;
+	protected void setDensityData(int density, int warpDensity, int navhaz, boolean anomaly) {
+		synchronized(this) {
+			this.density = density;
+			this.warpDensity = warpDensity;
+			this.navhaz = navhaz;
+			this.anomaly = anomaly;
+			this.densityDate = new Date();
+			if(warpDensity == warpsOut.length) fullyMapped = true;
+		}
+		changed(DatabaseJournal.DENSITY, null);
 	}
 	
 	/**
@@ -267,6 +282,7 @@ public class Sector implements Serializable, Constants {
 	
 	void setHoloDate(Date holoDate) {
 		this.holoDate = holoDate;
+		changed(DatabaseJournal.HOLO_DATE, null);
 	}
 	
 	/**
@@ -277,7 +293,10 @@ public class Sector implements Serializable, Constants {
 	}
 	
 	protected void setExplored(boolean explored) {
-		if(this.explored != explored) this.explored = explored;
+		if(this.explored != explored) {
+			this.explored = explored;
+			changed(DatabaseJournal.EXPLORED, null);
+		}
 	}
 	
 	/**
@@ -292,6 +311,7 @@ public class Sector implements Serializable, Constants {
 	
 	protected void setFullyMapped(boolean fullyMapped) {
 		this.fullyMapped = fullyMapped;
+		changed(DatabaseJournal.FULLY_MAPPED, null);
 	}
 	
 	/**
@@ -303,6 +323,7 @@ public class Sector implements Serializable, Constants {
 	
 	protected void setAvoided(boolean avoided) {
 		this.avoided = avoided;
+		changed(DatabaseJournal.AVOIDED, null);
 	}
 	
 	/**
@@ -314,7 +335,10 @@ public class Sector implements Serializable, Constants {
 	}
 	
 	void setNebula(String nebula) {
-		if(nebula != null) this.nebula = nebula;
+		if(nebula != null && !nebula.equals(this.nebula)) {
+			this.nebula = nebula;
+			changed(DatabaseJournal.NEBULA, null);
+		}
 	}	
 	
 	/**
@@ -336,8 +360,11 @@ public class Sector implements Serializable, Constants {
 	 * @param name the name of the note
 	 * @param note the content of the note
 	 */
-	synchronized public void setNote(String name, String note) {
-		notes.put(name, note);
+	public void setNote(String name, String note) {
+		synchronized(this) {
+			notes.put(name, note);
+		}
+		changed(DatabaseJournal.SECTOR_NOTE, name);
 	}
 	
 	/**
@@ -345,8 +372,11 @@ public class Sector implements Serializable, Constants {
 	 * 
 	 * @param name the name of the note
 	 */
-	synchronized public void removeNote(String name) {
-		notes.remove(name);
+	public void removeNote(String name) {
+		synchronized(this) {
+			if(notes.remove(name) == null) return;
+		}
+		changed(DatabaseJournal.SECTOR_NOTE, name);
 	}
 	
 	
@@ -366,6 +396,7 @@ public class Sector implements Serializable, Constants {
 	
 	protected void setPort(Port port) {
 			this.port = port;
+			changed(DatabaseJournal.PORT, null);
 	}
 	
 	/**
@@ -414,13 +445,16 @@ public class Sector implements Serializable, Constants {
 		return fighterDate;
 	}
 	
-	synchronized void setFighters(int fighters, Owner owner, FighterMode mode) {
-		// don't update fighter date if nothing has changed
-		if(this.fighters == fighters && fighterOwner == owner && fighterMode == mode) return;
-		this.fighters = fighters;
-		fighterOwner = owner;
-		fighterMode = mode;
-		fighterDate = (fighters == 0) ? null : new Date();
+	void setFighters(int fighters, Owner owner, FighterMode mode) {
+		synchronized(this) {
+			// don't update fighter date if nothing has changed
+			if(this.fighters == fighters && fighterOwner == owner && fighterMode == mode) return;
+			this.fighters = fighters;
+			fighterOwner = owner;
+			fighterMode = mode;
+			fighterDate = (fighters == 0) ? null : new Date();
+		}
+		changed(DatabaseJournal.FIGHTERS, null);
 	}
 	
 	public String getBeaconMessage() {
@@ -429,6 +463,7 @@ public class Sector implements Serializable, Constants {
 	
 	void setBeaconMessage(String message) {
 		beaconMessage = message;
+		changed(DatabaseJournal.BEACON, null);
 	}
 	
 	/**
@@ -448,9 +483,12 @@ public class Sector implements Serializable, Constants {
 		return figHitDate;
 	}
 	
-	synchronized void setFigHit(String name, Date date) {
-		figHitName = name;
-		figHitDate = date;
+	void setFigHit(String name, Date date) {
+		synchronized(this) {
+			figHitName = name;
+			figHitDate = date;
+		}
+		changed(DatabaseJournal.FIG_HIT, null);
 	}
 	
 	/**
@@ -470,9 +508,12 @@ public class Sector implements Serializable, Constants {
 		return limpetOwner;
 	}
 	
-	synchronized void setLimpets(int limpets, Owner owner) {
-		this.limpets = limpets;
-		limpetOwner = owner;
+	void setLimpets(int limpets, Owner owner) {
+		synchronized(this) {
+			this.limpets = limpets;
+			limpetOwner = owner;
+		}
+		changed(DatabaseJournal.LIMPETS, null);
 	}
 	
 	/**
@@ -490,9 +531,127 @@ public class Sector implements Serializable, Constants {
 		return armidOwner;
 	}
 	
-	synchronized void setArmids(int armids, Owner owner) {
-		this.armids = armids;
-		armidOwner = owner;
+	void setArmids(int armids, Owner owner) {
+		synchronized(this) {
+			this.armids = armids;
+			armidOwner = owner;
+		}
+		changed(DatabaseJournal.ARMIDS, null);
+	}
+	
+	/**
+	 * Called after a change to this sector or its port, without the lock.
+	 * Journals the change, copies the sector to the database's columns, and
+	 * tells the trade routes if the port's trading changed.  The journal
+	 * reads the current values, so this can be called after the lock is
+	 * released.
+	 * 
+	 * @param record the {@link DatabaseJournal} record type that holds what
+	 * changed
+	 * @param key the target of a new warp, the name of a changed note, the
+	 * product of a changed capacity, or null
+	 */
+	void changed(int record, Object key) {
+		Database db = this.db;
+		if(db == null) return;
+		DatabaseJournal journal = db.journal;
+		if(journal != null) journal.record(this, record, key);
+		switch(record) {
+		case DatabaseJournal.SECTOR_NOTE:
+		case DatabaseJournal.BEACON:
+		case DatabaseJournal.PORT_NAME:
+		case DatabaseJournal.PORT_STATUS:
+		case DatabaseJournal.PORT_CREDITS:
+		case DatabaseJournal.PORT_BUST:
+			break;
+		case DatabaseJournal.PORT:
+		case DatabaseJournal.PORT_CLASS:
+			db.columns.update(this);
+			// fall through
+		case DatabaseJournal.PORT_REPORT:
+		case DatabaseJournal.PORT_CAPACITY: {
+			TradeRoutes routes = db.tradeRoutes;
+			if(routes != null) routes.portChanged(number);
+			break;
+		}
+		default:
+			db.columns.update(this);
+		}
+	}
+	
+	/**
+	 * Copies this sector's fields.  The warps are copied in ascending order,
+	 * and the notes are copied; the port and owners are shared.
+	 */
+	synchronized void copyState(State state) {
+		if(!warpsOutSorted) {
+			Arrays.sort(warpsOut);
+			warpsOutSorted = true;
+		}
+		if(!warpsInSorted) {
+			Arrays.sort(warpsIn);
+			warpsInSorted = true;
+		}
+		state.warpsOut = Arrays.copyOf(warpsOut, warpsOut.length);
+		state.warpsIn = Arrays.copyOf(warpsIn, warpsIn.length);
+		state.density = density;
+		state.warpDensity = warpDensity;
+		state.navhaz = navhaz;
+		state.anomaly = anomaly;
+		state.densityDate = densityDate;
+		state.holoDate = holoDate;
+		state.fullyMapped = fullyMapped;
+		state.explored = explored;
+		state.avoided = avoided;
+		state.nebula = nebula;
+		state.notes = notes.isEmpty() ? Collections.<String, String>emptyMap() : new HashMap<String, String>(notes);
+		state.port = port;
+		state.beaconMessage = beaconMessage;
+		state.fighters = fighters;
+		state.fighterOwner = fighterOwner;
+		state.fighterMode = fighterMode;
+		state.fighterDate = fighterDate;
+		state.figHitDate = figHitDate;
+		state.figHitName = figHitName;
+		state.armids = armids;
+		state.armidOwner = armidOwner;
+		state.limpets = limpets;
+		state.limpetOwner = limpetOwner;
+	}
+	
+	/**
+	 * Replaces this sector's fields with a copy, as when loading a database
+	 * or replaying its journal.  Nothing is journaled or notified.
+	 */
+	synchronized void restoreState(State state) {
+		warpsOut = state.warpsOut;
+		warpsOutSorted = false;
+		warpsIn = state.warpsIn;
+		warpsInSorted = false;
+		density = state.density;
+		warpDensity = state.warpDensity;
+		navhaz = state.navhaz;
+		anomaly = state.anomaly;
+		densityDate = state.densityDate;
+		holoDate = state.holoDate;
+		fullyMapped = state.fullyMapped;
+		explored = state.explored;
+		avoided = state.avoided;
+		nebula = state.nebula;
+		notes.clear();
+		notes.putAll(state.notes);
+		port = state.port;
+		beaconMessage = state.beaconMessage;
+		fighters = state.fighters;
+		fighterOwner = state.fighterOwner;
+		fighterMode = state.fighterMode;
+		fighterDate = state.fighterDate;
+		figHitDate = state.figHitDate;
+		figHitName = state.figHitName;
+		armids = state.armids;
+		armidOwner = state.armidOwner;
+		limpets = state.limpets;
+		limpetOwner = state.limpetOwner;
 	}
 	
 	public boolean isFedSpace() {
@@ -523,4 +682,38 @@ public class Sector implements Serializable, Constants {
 		ships = new LinkedList<Ship>();
 		planets = new LinkedList<Planet>();
 	}
+	
+	/**
+	 * A copy of a sector's fields, for code in this package that saves,
+	 * indexes, or journals sectors in bulk.
+	 * 
+	 * @see Sector#copyState(State)
+	 */
+	static class State {
+		int[] warpsOut = new int[0];
+		int[] warpsIn = new int[0];
+		int density = UNKNOWN;
+		int warpDensity = UNKNOWN;
+		int navhaz = UNKNOWN;
+		boolean anomaly;
+		Date densityDate;
+		Date holoDate;
+		boolean fullyMapped;
+		boolean explored;
+		boolean avoided;
+		String nebula;
+		Map<String, String> notes = Collections.emptyMap();
+		Port port;
+		String beaconMessage;
+		int fighters;
+		Owner fighterOwner;
+		FighterMode fighterMode;
+		Date fighterDate;
+		Date figHitDate;
+		String figHitName;
+		int armids = UNKNOWN;
+		Owner armidOwner;
+		int limpets;
+		Owner limpetOwner;
+	}
 }
@@ -0,0 +1,537 @@
+package krum.weaponm.database;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A column-oriented copy of the sectors' scalar attributes, for scripts that
+ * scan the whole universe.  Each numeric attribute is an <tt>int[]</tt>,
+ * each date a <tt>long[]</tt> of epoch milliseconds, and each flag a bitset,
+ * all indexed by sector number minus one.  A {@link Query} filters them in
+ * tight loops under one lock instead of calling thousands of synchronized
+ * getters.
+ * <p>
+ * The flags double as bitmap indexes, along with sets of sectors by port
+ * class, fighter owner, and nebula.  These are returned as {@link SectorSet}
+ * snapshots that can be combined and iterated without locking.
+ * <p>
+ * Like the {@link WarpIndex}, the columns are built from the sectors the
+ * first time they are needed and updated in place as sectors change.
+ * Sectors call in after releasing their own locks; the columns then take the
+ * sector's lock to copy its current state, so updates never go backwards and
+ * the two never deadlock.
+ */
+public class SectorColumns implements Constants {
+	// numeric attributes
+	public static final int DENSITY = 0;
+	public static final int WARP_DENSITY = 1;
+	public static final int NAVHAZ = 2;
+	public static final int FIGHTERS = 3;
+	public static final int ARMIDS = 4;
+	public static final int LIMPETS = 5;
+	public static final int WARPS_OUT = 6;
+	/** The port class, or {@link Constants#UNKNOWN} if there is no port or its class is unknown. */
+	public static final int PORT_CLASS = 7;
+	private static final int INTS = 8;
+
+	// flags
+	public static final int EXPLORED = 0;
+	public static final int AVOIDED = 1;
+	public static final int FULLY_MAPPED = 2;
+	public static final int FED_SPACE = 3;
+	public static final int HAS_PORT = 4;
+	public static final int ANOMALY = 5;
+	public static final int HAS_FIGHTERS = 6;
+	/** Armids or limpets. */
+	public static final int HAS_MINES = 7;
+	/** Fully mapped with one warp out. */
+	public static final int DEAD_END = 8;
+	public static final int IN_NEBULA = 9;
+	private static final int FLAGS = 10;
+
+	// dates
+	public static final int DENSITY_DATE = 0;
+	public static final int HOLO_DATE = 1;
+	public static final int FIGHTER_DATE = 2;
+	public static final int FIG_HIT_DATE = 3;
+	private static final int DATES = 4;
+
+	private final Database db;
+	private int n;
+	private int[][] ints;
+	private long[][] flags;
+	private long[][] dates; // 0 if there is no date
+	// owners of fighters, armids, and limpets, indexed like ints
+	private Owner[][] owners;
+	private String[] nebulas;
+	// secondary indexes
+	private long[][] portClasses;
+	private final Map<Owner, long[]> fighterOwners = new HashMap<Owner, long[]>();
+	private final Map<String, long[]> nebulaMembers = new HashMap<String, long[]>();
+	// reused by copy
+	private final Sector.State state = new Sector.State();
+
+	SectorColumns(Database db) {
+		this.db = db;
+	}
+
+	/**
+	 * Returns the number of sectors, or 0 if the database has not been
+	 * initialized.
+	 */
+	synchronized public int size() {
+		build();
+		return n;
+	}
+
+	/**
+	 * Returns one of the numeric attributes of a sector.
+	 *
+	 * @param attribute one of the numeric attribute constants, such as
+	 * {@link #FIGHTERS}
+	 */
+	synchronized public int get(int attribute, int sector) {
+		build();
+		return ints[attribute][sector - 1];
+	}
+
+	/**
+	 * Returns one of the flags of a sector.
+	 *
+	 * @param flag one of the flag constants, such as {@link #EXPLORED}
+	 */
+	synchronized public boolean is(int flag, int sector) {
+		build();
+		return isSet(flags[flag], sector - 1);
+	}
+
+	/**
+	 * Returns one of the dates of a sector in milliseconds since the epoch, or
+	 * 0 if the sector has no such date.
+	 *
+	 * @param date one of the date constants, such as {@link #HOLO_DATE}
+	 */
+	synchronized public long getDate(int date, int sector) {
+		build();
+		return dates[date][sector - 1];
+	}
+
+	/**
+	 * Returns the sectors where one of the flags is set.  The set is empty
+	 * if the database has not been initialized.
+	 *
+	 * @param flag one of the flag constants, such as {@link #DEAD_END}
+	 */
+	synchronized public SectorSet flagged(int flag) {
+		build();
+		if(ints == null) return SectorSet.empty(0);
+		return snapshot(flags[flag]);
+	}
+
+	/**
+	 * Returns the sectors with ports of the specified class.
+	 *
+	 * @see Port#getPortClass()
+	 */
+	synchronized public SectorSet withPortClass(int portClass) {
+		if(portClass < 0 || portClass > 9) throw new IllegalArgumentException();
+		build();
+		if(ints == null) return SectorSet.empty(0);
+		return snapshot(portClasses[portClass]);
+	}
+
+	/**
+	 * Returns the sectors with fighters belonging to the specified owner.
+	 */
+	synchronized public SectorSet withFightersOwnedBy(Owner owner) {
+		build();
+		if(ints == null) return SectorSet.empty(0);
+		return snapshot(fighterOwners.get(owner));
+	}
+
+	/**
+	 * Returns the sectors in the named nebula.
+	 */
+	synchronized public SectorSet inNebula(String name) {
+		build();
+		if(ints == null) return SectorSet.empty(0);
+		return snapshot(nebulaMembers.get(name));
+	}
+
+	// requires the lock
+	private SectorSet snapshot(long[] bits) {
+		if(bits == null) return SectorSet.empty(n);
+		return new SectorSet(n, Arrays.copyOf(bits, bits.length));
+	}
+
+	/**
+	 * Creates a query that matches all sectors until it is narrowed.
+	 */
+	public Query query() {
+		return new Query();
+	}
+
+	// called by a sector after it changes, without its lock held
+	synchronized void update(Sector sector) {
+		if(ints == null) return; // sectors will be read when the columns are built
+		copy(sector);
+	}
+
+	// requires the lock
+	private void build() {
+		if(ints != null) return;
+		Sector[] sectors = db.getSectors();
+		if(sectors == null) return; // try again once the database is initialized
+		n = sectors.length;
+		ints = new int[INTS][n];
+		flags = new long[FLAGS][(n + 63) >>> 6];
+		dates = new long[DATES][n];
+		owners = new Owner[INTS][];
+		owners[FIGHTERS] = new Owner[n];
+		owners[ARMIDS] = new Owner[n];
+		owners[LIMPETS] = new Owner[n];
+		nebulas = new String[n];
+		portClasses = new long[10][(n + 63) >>> 6];
+		fighterOwners.clear();
+		nebulaMembers.clear();
+		for(Sector sector : sectors) copy(sector);
+	}
+
+	// requires the lock
+	private void copy(Sector sector) {
+		int i = sector.getNumber() - 1;
+		Owner oldOwner = owners[FIGHTERS][i];
+		int oldClass = ints[PORT_CLASS][i];
+		String oldNebula = nebulas[i];
+		Sector.State state = this.state;
+		sector.copyState(state);
+		ints[DENSITY][i] = state.density;
+		ints[WARP_DENSITY][i] = state.warpDensity;
+		ints[NAVHAZ][i] = state.navhaz;
+		ints[FIGHTERS][i] = state.fighters;
+		ints[ARMIDS][i] = state.armids;
+		ints[LIMPETS][i] = state.limpets;
+		ints[WARPS_OUT][i] = state.warpsOut.length;
+		owners[FIGHTERS][i] = state.fighterOwner;
+		owners[ARMIDS][i] = state.armidOwner;
+		owners[LIMPETS][i] = state.limpetOwner;
+		set(flags[ANOMALY], i, state.anomaly);
+		dates[DENSITY_DATE][i] = millis(state.densityDate);
+		dates[FIGHTER_DATE][i] = millis(state.fighterDate);
+		dates[FIG_HIT_DATE][i] = millis(state.figHitDate);
+		set(flags[DEAD_END], i, state.fullyMapped && state.warpsOut.length == 1);
+		int fighters = ints[FIGHTERS][i];
+		Owner owner = owners[FIGHTERS][i];
+		set(flags[HAS_FIGHTERS], i, fighters > 0);
+		set(flags[HAS_MINES], i, ints[ARMIDS][i] > 0 || ints[LIMPETS][i] > 0);
+		// an owner stored with no fighters has no bitmap
+		long[] oldBits = oldOwner == null ? null : fighterOwners.get(oldOwner);
+		if(oldBits != null) set(oldBits, i, false);
+		if(owner != null && fighters > 0) set(bitsFor(fighterOwners, owner), i, true);
+		
+		Port port = state.port;
+		int portClass = port == null ? UNKNOWN : port.getPortClass();
+		ints[PORT_CLASS][i] = portClass;
+		if(oldClass >= 0 && oldClass <= 9) set(portClasses[oldClass], i, false);
+		if(portClass >= 0 && portClass <= 9) set(portClasses[portClass], i, true);
+		
+		String nebula = state.nebula;
+		nebulas[i] = nebula;
+		set(flags[IN_NEBULA], i, nebula != null);
+		if(oldNebula != null) set(nebulaMembers.get(oldNebula), i, false);
+		if(nebula != null) set(bitsFor(nebulaMembers, nebula), i, true);
+		
+		set(flags[EXPLORED], i, state.explored);
+		set(flags[AVOIDED], i, state.avoided);
+		set(flags[FULLY_MAPPED], i, state.fullyMapped);
+		set(flags[FED_SPACE], i, sector.isFedSpace());
+		set(flags[HAS_PORT], i, port != null);
+		dates[HOLO_DATE][i] = millis(state.holoDate);
+	}
+
+	// requires the lock
+	private <K> long[] bitsFor(Map<K, long[]> index, K key) {
+		long[] bits = index.get(key);
+		if(bits == null) {
+			bits = new long[(n + 63) >>> 6];
+			index.put(key, bits);
+		}
+		return bits;
+	}
+
+	private static long millis(Date date) {
+		return date == null ? 0 : date.getTime();
+	}
+
+	private static boolean isSet(long[] bits, int i) {
+		return (bits[i >>> 6] & 1L << i) != 0;
+	}
+
+	private static void set(long[] bits, int i, boolean value) {
+		if(value) bits[i >>> 6] |= 1L << i;
+		else bits[i >>> 6] &= ~(1L << i);
+	}
+
+	/**
+	 * A conjunction of conditions on the columns.  Conditions are recorded
+	 * as they are added; {@link #sectors()} and {@link #count()} evaluate
+	 * them together under the columns' lock, each as one pass over a column
+	 * that narrows a bitset of candidates.
+	 */
+	public class Query {
+		private static final int INT_LT = 0;
+		private static final int INT_GT = 1;
+		private static final int INT_EQ = 2;
+		private static final int FLAG = 3;
+		private static final int NOT_FLAG = 4;
+		private static final int DATE_BEFORE = 5;
+		private static final int DATE_AFTER = 6;
+		private static final int YOURS = 7;
+		private static final int NOT_YOURS = 8;
+
+		private int size;
+		private int[] kinds = new int[4];
+		private int[] columns = new int[4];
+		private long[] values = new long[4];
+
+		Query() { }
+
+		private Query add(int kind, int column, long value) {
+			if(size == kinds.length) {
+				kinds = Arrays.copyOf(kinds, size * 2);
+				columns = Arrays.copyOf(columns, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			kinds[size] = kind;
+			columns[size] = column;
+			values[size] = value;
+			++size;
+			return this;
+		}
+
+		/** Narrows to sectors where the attribute is less than the value. */
+		public Query lessThan(int attribute, int value) {
+			return add(INT_LT, attribute, value);
+		}
+
+		/** Narrows to sectors where the attribute is greater than the value. */
+		public Query greaterThan(int attribute, int value) {
+			return add(INT_GT, attribute, value);
+		}
+
+		/** Narrows to sectors where the attribute equals the value. */
+		public Query equalTo(int attribute, int value) {
+			return add(INT_EQ, attribute, value);
+		}
+
+		/** Narrows to sectors where the flag is set. */
+		public Query is(int flag) {
+			return add(FLAG, flag, 0);
+		}
+
+		/** Narrows to sectors where the flag is not set. */
+		public Query isNot(int flag) {
+			return add(NOT_FLAG, flag, 0);
+		}
+
+		/**
+		 * Narrows to sectors with the date before the specified time.
+		 * Sectors without the date are excluded.
+		 */
+		public Query before(int date, long millis) {
+			return add(DATE_BEFORE, date, millis);
+		}
+
+		/** Narrows to sectors with the date after the specified time. */
+		public Query after(int date, long millis) {
+			return add(DATE_AFTER, date, millis);
+		}
+
+		/**
+		 * Narrows to sectors where the fighters, armids, or limpets belong to
+		 * you or your corporation.
+		 *
+		 * @param attribute {@link #FIGHTERS}, {@link #ARMIDS}, or {@link #LIMPETS}
+		 */
+		public Query yours(int attribute) {
+			checkOwned(attribute);
+			return add(YOURS, attribute, 0);
+		}
+
+		/**
+		 * Narrows to sectors where the fighters, armids, or limpets do not
+		 * belong to you or your corporation, including sectors where there
+		 * are none.
+		 *
+		 * @param attribute {@link #FIGHTERS}, {@link #ARMIDS}, or {@link #LIMPETS}
+		 */
+		public Query notYours(int attribute) {
+			checkOwned(attribute);
+			return add(NOT_YOURS, attribute, 0);
+		}
+
+		private void checkOwned(int attribute) {
+			if(attribute != FIGHTERS && attribute != ARMIDS && attribute != LIMPETS) {
+				throw new IllegalArgumentException("not an owned attribute");
+			}
+		}
+
+		/**
+		 * Returns the numbers of the matching sectors in ascending order.
+		 */
+		public int[] sectors() {
+			return toSet().toArray();
+		}
+		
+		/**
+		 * Returns the matching sectors as a set.
+		 */
+		public SectorSet toSet() {
+			long[] bits = evaluate();
+			return new SectorSet(bits.length == 0 ? 0 : n, bits);
+		}
+
+		/**
+		 * Returns the number of matching sectors.
+		 */
+		public int count() {
+			int count = 0;
+			for(long word : evaluate()) count += Long.bitCount(word);
+			return count;
+		}
+
+		private long[] evaluate() {
+			You you = db.getYou();
+			Corporation corp = you.getCorp();
+			synchronized(SectorColumns.this) {
+				build();
+				if(ints == null) return new long[0];
+				long[] bits = new long[(n + 63) >>> 6];
+				Arrays.fill(bits, -1L);
+				if((n & 63) != 0) bits[bits.length - 1] = (1L << n) - 1;
+				for(int q = 0; q < size; ++q) {
+					int column = columns[q];
+					long value = values[q];
+					switch(kinds[q]) {
+					case INT_LT:
+						filterLess(bits, ints[column], value);
+						break;
+					case INT_GT:
+						filterGreater(bits, ints[column], value);
+						break;
+					case INT_EQ:
+						filterEqual(bits, ints[column], value);
+						break;
+					case FLAG:
+						and(bits, flags[column], false);
+						break;
+					case NOT_FLAG:
+						and(bits, flags[column], true);
+						break;
+					case DATE_BEFORE:
+						filterBefore(bits, dates[column], value);
+						break;
+					case DATE_AFTER:
+						filterGreater(bits, dates[column], value);
+						break;
+					case YOURS:
+					case NOT_YOURS:
+						filterOwner(bits, owners[column], you, corp, kinds[q] == YOURS);
+						break;
+					}
+				}
+				return bits;
+			}
+		}
+	}
+
+	private static void and(long[] bits, long[] flags, boolean invert) {
+		long mask = invert ? -1L : 0;
+		for(int w = 0; w < bits.length; ++w) bits[w] &= flags[w] ^ mask;
+	}
+
+	// the loops test every sector in a word, and skip empty words
+
+	private static void filterLess(long[] bits, int[] column, long value) {
+		for(int w = 0; w < bits.length; ++w) {
+			if(bits[w] == 0) continue;
+			long keep = 0;
+			int base = w << 6;
+			int end = Math.min(64, column.length - base);
+			for(int b = 0; b < end; ++b) {
+				if(column[base + b] < value) keep |= 1L << b;
+			}
+			bits[w] &= keep;
+		}
+	}
+
+	private static void filterGreater(long[] bits, int[] column, long value) {
+		for(int w = 0; w < bits.length; ++w) {
+			if(bits[w] == 0) continue;
+			long keep = 0;
+			int base = w << 6;
+			int end = Math.min(64, column.length - base);
+			for(int b = 0; b < end; ++b) {
+				if(column[base + b] > value) keep |= 1L << b;
+			}
+			bits[w] &= keep;
+		}
+	}
+
+	private static void filterEqual(long[] bits, int[] column, long value) {
+		for(int w = 0; w < bits.length; ++w) {
+			if(bits[w] == 0) continue;
+			long keep = 0;
+			int base = w << 6;
+			int end = Math.min(64, column.length - base);
+			for(int b = 0; b < end; ++b) {
+				if(column[base + b] == value) keep |= 1L << b;
+			}
+			bits[w] &= keep;
+		}
+	}
+
+	private static void filterGreater(long[] bits, long[] column, long value) {
+		for(int w = 0; w < bits.length; ++w) {
+			if(bits[w] == 0) continue;
+			long keep = 0;
+			int base = w << 6;
+			int end = Math.min(64, column.length - base);
+			for(int b = 0; b < end; ++b) {
+				if(column[base + b] > value) keep |= 1L << b;
+			}
+			bits[w] &= keep;
+		}
+	}
+
+	private static void filterBefore(long[] bits, long[] column, long value) {
+		for(int w = 0; w < bits.length; ++w) {
+			if(bits[w] == 0) continue;
+			long keep = 0;
+			int base = w << 6;
+			int end = Math.min(64, column.length - base);
+			for(int b = 0; b < end; ++b) {
+				long date = column[base + b];
+				if(date != 0 && date < value) keep |= 1L << b;
+			}
+			bits[w] &= keep;
+		}
+	}
+
+	private static void filterOwner(long[] bits, Owner[] column, You you, Corporation corp, boolean yours) {
+		for(int w = 0; w < bits.length; ++w) {
+			if(bits[w] == 0) continue;
+			long keep = 0;
+			int base = w << 6;
+			int end = Math.min(64, column.length - base);
+			for(int b = 0; b < end; ++b) {
+				Owner owner = column[base + b];
+				boolean mine = owner != null && (owner == you || owner == corp);
+				if(mine == yours) keep |= 1L << b;
+			}
+			bits[w] &= keep;
+		}
+	}
+}
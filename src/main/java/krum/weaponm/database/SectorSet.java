@@ -0,0 +1,159 @@
+package krum.weaponm.database;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of sector numbers, stored as a bitmap.  Sets from the
+ * indexes of {@link SectorColumns} can be combined without locking, for
+ * example to find unexplored dead ends that are not avoided:
+ * <pre>
+ * SectorColumns columns = db.getSectorColumns();
+ * SectorSet set = columns.flagged(SectorColumns.DEAD_END)
+ *         .andNot(columns.flagged(SectorColumns.EXPLORED))
+ *         .andNot(columns.flagged(SectorColumns.AVOIDED));
+ * for(int s = set.next(1); s != -1; s = set.next(s + 1)) { ... }
+ * </pre>
+ * A universe has at most tens of thousands of sectors, so an uncompressed
+ * bitmap is a few kilobytes and every operation is a short loop over words.
+ */
+public final class SectorSet {
+	private final int n;
+	private final long[] words;
+
+	// takes ownership of the words, which must be clear above n
+	SectorSet(int n, long[] words) {
+		this.n = n;
+		this.words = words;
+	}
+
+	/**
+	 * Creates an empty set for a universe of the specified number of sectors.
+	 */
+	public static SectorSet empty(int sectors) {
+		return new SectorSet(sectors, new long[(sectors + 63) >>> 6]);
+	}
+
+	/**
+	 * Creates a set of every sector in a universe of the specified size.
+	 */
+	public static SectorSet all(int sectors) {
+		return empty(sectors).not();
+	}
+
+	/**
+	 * Returns the number of sectors in the universe this set belongs to.
+	 */
+	public int universe() {
+		return n;
+	}
+
+	/**
+	 * Returns true if the set contains the specified sector.
+	 */
+	public boolean contains(int sector) {
+		int i = sector - 1;
+		if(i < 0 || i >= n) return false;
+		return (words[i >>> 6] & 1L << i) != 0;
+	}
+
+	/**
+	 * Returns the number of sectors in the set.
+	 */
+	public int size() {
+		int count = 0;
+		for(long word : words) count += Long.bitCount(word);
+		return count;
+	}
+
+	public boolean isEmpty() {
+		for(long word : words) {
+			if(word != 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the first sector in the set numbered at least
+	 * <tt>sector</tt>, or -1 if there is none.
+	 */
+	public int next(int sector) {
+		int i = Math.max(sector - 1, 0);
+		if(i >= n) return -1;
+		int w = i >>> 6;
+		long word = words[w] & -1L << i;
+		while(true) {
+			if(word != 0) return (w << 6) + Long.numberOfTrailingZeros(word) + 1;
+			if(++w == words.length) return -1;
+			word = words[w];
+		}
+	}
+
+	/**
+	 * Returns the sectors in the set in ascending order.
+	 */
+	public int[] toArray() {
+		int[] result = new int[size()];
+		int r = 0;
+		for(int w = 0; w < words.length; ++w) {
+			long word = words[w];
+			while(word != 0) {
+				result[r++] = (w << 6) + Long.numberOfTrailingZeros(word) + 1;
+				word &= word - 1;
+			}
+		}
+		return result;
+	}
+
+	/** Returns the sectors in both this set and the other. */
+	public SectorSet and(SectorSet other) {
+		check(other);
+		long[] result = new long[words.length];
+		for(int w = 0; w < words.length; ++w) result[w] = words[w] & other.words[w];
+		return new SectorSet(n, result);
+	}
+
+	/** Returns the sectors in either this set or the other. */
+	public SectorSet or(SectorSet other) {
+		check(other);
+		long[] result = new long[words.length];
+		for(int w = 0; w < words.length; ++w) result[w] = words[w] | other.words[w];
+		return new SectorSet(n, result);
+	}
+
+	/** Returns the sectors in this set but not the other. */
+	public SectorSet andNot(SectorSet other) {
+		check(other);
+		long[] result = new long[words.length];
+		for(int w = 0; w < words.length; ++w) result[w] = words[w] & ~other.words[w];
+		return new SectorSet(n, result);
+	}
+
+	/** Returns the sectors not in this set. */
+	public SectorSet not() {
+		long[] result = new long[words.length];
+		for(int w = 0; w < words.length; ++w) result[w] = ~words[w];
+		if((n & 63) != 0) result[result.length - 1] &= (1L << n) - 1;
+		return new SectorSet(n, result);
+	}
+
+	private void check(SectorSet other) {
+		if(other.n != n) throw new IllegalArgumentException("sets are from different universes");
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof SectorSet)) return false;
+		SectorSet other = (SectorSet) o;
+		return other.n == n && Arrays.equals(other.words, words);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(words);
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+}
@@ -0,0 +1,127 @@
+package krum.weaponm.database;
+
+import java.util.Arrays;
+
+/**
+ * A round trip between two or three ports, trading a product on every leg.
+ * Routes are found and ranked by {@link TradeRoutes}.  The sectors are
+ * listed in the order they are visited, starting with the lowest numbered;
+ * the last leg returns to the first sector.
+ */
+public final class TradeRoute implements Comparable<TradeRoute> {
+	private final int[] sectors;
+	private final int[] products;
+	private final int[] hops;
+	private final int[] units;
+	private final double score;
+
+	TradeRoute(int[] sectors, int[] products, int[] hops, int[] units, double score) {
+		this.sectors = sectors;
+		this.products = products;
+		this.hops = hops;
+		this.units = units;
+		this.score = score;
+	}
+
+	/**
+	 * Returns the number of legs, which is also the number of ports.
+	 */
+	public int getLegs() {
+		return sectors.length;
+	}
+
+	/**
+	 * Returns the sector where the specified leg starts.
+	 */
+	public int getSector(int leg) {
+		return sectors[leg];
+	}
+
+	public int[] getSectors() {
+		return Arrays.copyOf(sectors, sectors.length);
+	}
+
+	/**
+	 * Returns the product bought at the start of the specified leg and sold
+	 * at its end.
+	 *
+	 * @return one of the constants from the {@link Product} class
+	 */
+	public int getProduct(int leg) {
+		return products[leg];
+	}
+
+	/**
+	 * Returns the number of warps in the specified leg.
+	 */
+	public int getHops(int leg) {
+		return hops[leg];
+	}
+
+	/**
+	 * Returns the number of warps in the whole route.
+	 */
+	public int getTotalHops() {
+		int total = 0;
+		for(int h : hops) total += h;
+		return total;
+	}
+
+	/**
+	 * Returns the number of units that can be traded on the specified leg:
+	 * the lesser of what the seller has and what the buyer wants, as of the
+	 * ports' last reports.
+	 */
+	public int getUnits(int leg) {
+		return units[leg];
+	}
+
+	/**
+	 * Returns the estimated profit of one round trip per warp travelled, in
+	 * arbitrary units.  Scores are comparable only with each other.
+	 */
+	public double getScore() {
+		return score;
+	}
+
+	/**
+	 * Returns true if this route visits the specified sector.
+	 */
+	public boolean visits(int sector) {
+		for(int s : sectors) {
+			if(s == sector) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Orders routes from best to worst.
+	 */
+	@Override
+	public int compareTo(TradeRoute other) {
+		return Double.compare(other.score, score);
+	}
+
+	// routes are the same if they visit the same sectors in the same order
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof TradeRoute && Arrays.equals(((TradeRoute) o).sectors, sectors);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(sectors);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < sectors.length; ++i) {
+			sb.append(sectors[i]);
+			sb.append(" -").append("FOE".charAt(products[i])).append(units[i]).append("/").append(hops[i]).append("-> ");
+		}
+		sb.append(sectors[0]);
+		sb.append(String.format(" (%.1f)", score));
+		return sb.toString();
+	}
+}
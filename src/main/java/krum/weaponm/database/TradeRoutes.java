@@ -0,0 +1,507 @@
+package krum.weaponm.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds and ranks profitable trade routes: pairs of ports that each sell
+ * what the other buys, and triplets of ports that trade around a cycle,
+ * where every leg is at most {@link #getMaxHops()} warps.  The engine is
+ * created by {@link Database#getTradeRoutes()}, which computes every route
+ * in parallel in the background.
+ * <p>
+ * After that, routes are maintained incrementally.  When a port report,
+ * trading class, or capacity changes, only the routes through that port are
+ * recomputed.  When warps are discovered, only the routes through ports
+ * that could reach the new warps are.  Updates are batched on a background
+ * thread, so the rankings may lag slightly behind the database.
+ * <p>
+ * Routes are scored by the estimated profit of a round trip per warp.  Each
+ * leg trades the product with the best value of the lesser of the seller's
+ * and buyer's levels, weighted by the product's typical margin and by the
+ * ports' trading percents, since prices move against the trader as a port's
+ * percent falls.
+ */
+public class TradeRoutes {
+	private static final Logger log = LoggerFactory.getLogger(TradeRoutes.class);
+	/** The largest supported value of max hops. */
+	public static final int MAX_HOPS = 4;
+	// relative profit per unit, roughly proportional to the products' base prices
+	private static final int[] VALUES = { 2, 3, 5 };
+
+	private final Database db;
+	private final int n;
+	// runs updates one at a time, and waits for parallel recomputations
+	private final ExecutorService updater;
+	private final ExecutorService workers;
+	private volatile int maxHops = 1;
+
+	// port data, indexed by sector; accessed only by the updater thread or
+	// by workers while the updater waits for them
+	private final int[] sells;
+	private final int[] buys;
+	private final int[] levels;
+	private final int[] percents;
+
+	// guards the routes and the index
+	private final Object lock = new Object();
+	private final Set<TradeRoute> routes = new HashSet<TradeRoute>();
+	private final Map<Integer, Set<TradeRoute>> bySector = new HashMap<Integer, Set<TradeRoute>>();
+	private volatile boolean ready;
+
+	// guards the dirty sets and drainScheduled
+	private final Object dirtyLock = new Object();
+	private BitSet dirtyPorts = new BitSet();
+	private BitSet dirtyWarps = new BitSet();
+	private boolean drainScheduled;
+	private boolean shutdown;
+
+	TradeRoutes(Database db, int numSectors) {
+		this.db = db;
+		n = numSectors;
+		sells = new int[n + 1];
+		buys = new int[n + 1];
+		levels = new int[(n + 1) * 3];
+		percents = new int[(n + 1) * 3];
+		ThreadPoolExecutor single = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "TradeRoutes");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		single.allowCoreThreadTimeOut(true);
+		updater = single;
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "TradeRoutes-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		pool.allowCoreThreadTimeOut(true);
+		workers = pool;
+		recompute();
+	}
+
+	/**
+	 * Returns true once the first computation has completed.
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Returns the most warps allowed in one leg of a route.  The default is
+	 * 1, meaning adjacent ports.
+	 */
+	public int getMaxHops() {
+		return maxHops;
+	}
+
+	/**
+	 * Sets the most warps allowed in one leg of a route, and recomputes all
+	 * routes.
+	 */
+	public Future<?> setMaxHops(int maxHops) {
+		if(maxHops < 1 || maxHops > MAX_HOPS) throw new IllegalArgumentException();
+		this.maxHops = maxHops;
+		return recompute();
+	}
+
+	/**
+	 * Returns the number of profitable routes known.
+	 */
+	public int size() {
+		synchronized(lock) {
+			return routes.size();
+		}
+	}
+
+	/**
+	 * Returns up to <tt>k</tt> of the best routes, best first.
+	 */
+	public List<TradeRoute> getBest(int k) {
+		return getBest(k, 0);
+	}
+
+	/**
+	 * Returns up to <tt>k</tt> of the best routes with the specified number
+	 * of legs, best first.
+	 *
+	 * @param legs 2 for port pairs, 3 for triplets, or 0 for both
+	 */
+	public List<TradeRoute> getBest(int k, int legs) {
+		if(k < 1) return new ArrayList<TradeRoute>();
+		// a min-heap of the best k, so each route costs at most log k
+		PriorityQueue<TradeRoute> best;
+		synchronized(lock) {
+			best = new PriorityQueue<TradeRoute>(Math.min(k, routes.size()) + 1, Collections.reverseOrder());
+			for(TradeRoute route : routes) {
+				if(legs != 0 && route.getLegs() != legs) continue;
+				if(best.size() < k) best.add(route);
+				else if(route.getScore() > best.peek().getScore()) {
+					best.poll();
+					best.add(route);
+				}
+			}
+		}
+		List<TradeRoute> result = new ArrayList<TradeRoute>(best);
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Returns the known routes that visit the specified sector, best first.
+	 */
+	public List<TradeRoute> getRoutesVisiting(int sector) {
+		List<TradeRoute> result;
+		synchronized(lock) {
+			Set<TradeRoute> set = bySector.get(sector);
+			result = set == null ? new ArrayList<TradeRoute>() : new ArrayList<TradeRoute>(set);
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Recomputes every route in parallel, discarding the incremental state.
+	 *
+	 * @return a future that completes when the new routes are published
+	 */
+	public Future<?> recompute() {
+		return updater.submit(new Runnable() {
+			@Override
+			public void run() {
+				computeAll();
+			}
+		});
+	}
+
+	/**
+	 * Stops the background threads.  Called when the database is closed;
+	 * later changes are ignored.
+	 */
+	void shutdown() {
+		synchronized(dirtyLock) {
+			shutdown = true;
+		}
+		updater.shutdownNow();
+		workers.shutdownNow();
+	}
+
+	/** Called when a port's class, report, or capacities change. */
+	void portChanged(int sector) {
+		synchronized(dirtyLock) {
+			dirtyPorts.set(sector);
+			scheduleDrain();
+		}
+	}
+
+	/** Called by the warp index when a sector's warps out change. */
+	void warpsChanged(int sector) {
+		synchronized(dirtyLock) {
+			dirtyWarps.set(sector);
+			scheduleDrain();
+		}
+	}
+
+	// requires dirtyLock
+	private void scheduleDrain() {
+		if(drainScheduled || shutdown) return;
+		drainScheduled = true;
+		updater.execute(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		});
+	}
+
+	// runs on the updater thread
+	private void drain() {
+		BitSet ports;
+		BitSet warps;
+		synchronized(dirtyLock) {
+			ports = dirtyPorts;
+			warps = dirtyWarps;
+			dirtyPorts = new BitSet();
+			dirtyWarps = new BitSet();
+			drainScheduled = false;
+		}
+		WarpGraph graph = db.getWarpGraph();
+		if(graph == null) return;
+		Sector[] sectors = db.getSectors();
+		for(int s = ports.nextSetBit(1); s >= 0; s = ports.nextSetBit(s + 1)) refreshPort(sectors[s - 1]);
+		// a leg can use a new warp out of w only if it starts within maxHops - 1 warps before w
+		int maxHops = this.maxHops;
+		Workspace ws = new Workspace(n);
+		for(int w = warps.nextSetBit(1); w >= 0; w = warps.nextSetBit(w + 1)) {
+			ws.to.search(graph, w, maxHops - 1, false);
+			for(int i = 0; i < ws.to.size; ++i) {
+				int s = ws.to.queue[i];
+				if(sells[s] != 0 || buys[s] != 0) ports.set(s);
+			}
+		}
+		if(ports.isEmpty()) return;
+		List<TradeRoute> found = new ArrayList<TradeRoute>();
+		for(int s = ports.nextSetBit(1); s >= 0; s = ports.nextSetBit(s + 1)) {
+			routesThrough(graph, s, maxHops, false, found, ws);
+		}
+		synchronized(lock) {
+			for(int s = ports.nextSetBit(1); s >= 0; s = ports.nextSetBit(s + 1)) {
+				Set<TradeRoute> stale = bySector.remove(s);
+				if(stale == null) continue;
+				for(TradeRoute route : stale) {
+					routes.remove(route);
+					for(int i = 0; i < route.getLegs(); ++i) {
+						Set<TradeRoute> other = bySector.get(route.getSector(i));
+						if(other != null) other.remove(route);
+					}
+				}
+			}
+			for(TradeRoute route : found) add(route);
+		}
+	}
+
+	// runs on the updater thread
+	private void computeAll() {
+		final WarpGraph graph = db.getWarpGraph();
+		Sector[] sectors = db.getSectors();
+		if(graph == null || sectors == null) return;
+		long start = System.currentTimeMillis();
+		for(Sector sector : sectors) refreshPort(sector);
+		final int maxHops = this.maxHops;
+		final AtomicInteger next = new AtomicInteger(1);
+		int threads = ((ThreadPoolExecutor) workers).getMaximumPoolSize();
+		List<Callable<List<TradeRoute>>> tasks = new ArrayList<Callable<List<TradeRoute>>>();
+		for(int t = 0; t < threads; ++t) {
+			tasks.add(new Callable<List<TradeRoute>>() {
+				@Override
+				public List<TradeRoute> call() {
+					List<TradeRoute> found = new ArrayList<TradeRoute>();
+					Workspace ws = new Workspace(n);
+					for(int s = next.getAndIncrement(); s <= n; s = next.getAndIncrement()) {
+						routesThrough(graph, s, maxHops, true, found, ws);
+					}
+					return found;
+				}
+			});
+		}
+		List<List<TradeRoute>> results = new ArrayList<List<TradeRoute>>();
+		try {
+			for(Future<List<TradeRoute>> future : workers.invokeAll(tasks)) results.add(future.get());
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch(ExecutionException e) {
+			log.error("error computing trade routes", e.getCause());
+			return;
+		}
+		synchronized(lock) {
+			routes.clear();
+			bySector.clear();
+			for(List<TradeRoute> found : results) {
+				for(TradeRoute route : found) add(route);
+			}
+			ready = true;
+			log.debug("{} trade routes computed in {} ms", routes.size(), System.currentTimeMillis() - start);
+		}
+	}
+
+	// requires lock
+	private void add(TradeRoute route) {
+		if(!routes.add(route)) return;
+		for(int i = 0; i < route.getLegs(); ++i) {
+			Set<TradeRoute> set = bySector.get(route.getSector(i));
+			if(set == null) {
+				set = new HashSet<TradeRoute>();
+				bySector.put(route.getSector(i), set);
+			}
+			set.add(route);
+		}
+	}
+
+	private void refreshPort(Sector sector) {
+		int s = sector.getNumber();
+		Port port = sector.getPort();
+		int sell = 0;
+		int buy = 0;
+		if(port != null) {
+			int[] portLevels = port.getLevels();
+			int[] portPercents = port.getPercents();
+			for(int p = 0; p < 3; ++p) {
+				if(port.sells(p)) sell |= 1 << p;
+				if(port.buys(p)) buy |= 1 << p;
+				levels[s * 3 + p] = Math.abs(portLevels[p]);
+				percents[s * 3 + p] = Math.min(100, Math.abs(portPercents[p]));
+			}
+		}
+		sells[s] = sell;
+		buys[s] = buy;
+	}
+
+	/**
+	 * Finds the routes through one port.  If <tt>lowestOnly</tt> is true,
+	 * only routes on which it is the lowest numbered port are found, so
+	 * that searching from every port finds every route once.
+	 */
+	private void routesThrough(WarpGraph graph, int x, int maxHops, boolean lowestOnly, List<TradeRoute> found, Workspace ws) {
+		if(sells[x] == 0 && buys[x] == 0) return;
+		ws.from.search(graph, x, maxHops, true);
+		ws.to.search(graph, x, maxHops, false);
+		for(int i = 1; i < ws.from.size; ++i) {
+			int b = ws.from.queue[i];
+			if(sells[b] == 0 && buys[b] == 0) continue;
+			if(lowestOnly && b < x) continue;
+			int xb = ws.from.dist[b];
+			if(ws.to.reached(b)) {
+				TradeRoute pair = route(new int[] { x, b }, new int[] { xb, ws.to.dist[b] });
+				if(pair != null) found.add(pair);
+			}
+			ws.hop.search(graph, b, maxHops, true);
+			for(int j = 1; j < ws.hop.size; ++j) {
+				int c = ws.hop.queue[j];
+				if(c == x || !ws.to.reached(c) || (sells[c] == 0 && buys[c] == 0)) continue;
+				if(lowestOnly && c < x) continue;
+				TradeRoute triplet = route(new int[] { x, b, c }, new int[] { xb, ws.hop.dist[c], ws.to.dist[c] });
+				if(triplet != null) found.add(triplet);
+			}
+		}
+	}
+
+	// scores a cycle; returns null if some leg has nothing to trade
+	private TradeRoute route(int[] cycle, int[] hops) {
+		int legs = cycle.length;
+		int[] products = new int[legs];
+		int[] units = new int[legs];
+		long value = 0;
+		int totalHops = 0;
+		for(int i = 0; i < legs; ++i) {
+			int from = cycle[i];
+			int to = cycle[(i + 1) % legs];
+			int traded = sells[from] & buys[to];
+			int best = -1;
+			long bestValue = 0;
+			for(int p = 0; p < 3; ++p) {
+				if((traded & 1 << p) == 0) continue;
+				int u = Math.min(levels[from * 3 + p], levels[to * 3 + p]);
+				// the sum of the percents stands in for how good both prices are
+				long v = (long) u * VALUES[p] * (percents[from * 3 + p] + percents[to * 3 + p]);
+				if(v > bestValue) {
+					best = p;
+					bestValue = v;
+					units[i] = u;
+				}
+			}
+			if(best == -1) return null;
+			products[i] = best;
+			value += bestValue;
+			totalHops += hops[i];
+		}
+		// start at the lowest sector so each route has one representation
+		int first = 0;
+		for(int i = 1; i < legs; ++i) {
+			if(cycle[i] < cycle[first]) first = i;
+		}
+		if(first != 0) {
+			cycle = rotate(cycle, first);
+			products = rotate(products, first);
+			hops = rotate(hops, first);
+			units = rotate(units, first);
+		}
+		return new TradeRoute(cycle, products, hops, units, value / 200.0 / totalHops);
+	}
+
+	private static int[] rotate(int[] a, int first) {
+		int[] result = new int[a.length];
+		for(int i = 0; i < a.length; ++i) result[i] = a[(first + i) % a.length];
+		return result;
+	}
+
+	// per-thread search state
+	private static class Workspace {
+		final Reach from;
+		final Reach to;
+		final Reach hop;
+
+		Workspace(int n) {
+			from = new Reach(n);
+			to = new Reach(n);
+			hop = new Reach(n);
+		}
+	}
+
+	// a breadth-first search limited to a number of hops; marks are stamped so nothing is cleared between searches
+	private static class Reach {
+		final int[] mark;
+		final int[] dist;
+		final int[] queue;
+		int stamp;
+		int size;
+
+		Reach(int n) {
+			mark = new int[n + 1];
+			dist = new int[n + 1];
+			queue = new int[n];
+		}
+
+		void search(WarpGraph graph, int origin, int maxHops, boolean forward) {
+			if(++stamp == 0) {
+				Arrays.fill(mark, 0);
+				stamp = 1;
+			}
+			mark[origin] = stamp;
+			dist[origin] = 0;
+			queue[0] = origin;
+			size = 1;
+			for(int i = 0; i < size; ++i) {
+				int s = queue[i];
+				int d = dist[s];
+				if(d >= maxHops) continue;
+				int warps = forward ? graph.getNumWarpsOut(s) : graph.getNumWarpsIn(s);
+				for(int j = 0; j < warps; ++j) {
+					int w = forward ? graph.getWarpOut(s, j) : graph.getWarpIn(s, j);
+					if(mark[w] == stamp) continue;
+					// warps in are never forgotten, so they can outlive the warp out they came from
+					if(!forward && !graph.hasWarp(w, s)) continue;
+					mark[w] = stamp;
+					dist[w] = d + 1;
+					queue[size++] = w;
+				}
+			}
+		}
+
+		boolean reached(int sector) {
+			return mark[sector] == stamp;
+		}
+	}
+}
@@ -0,0 +1,650 @@
+package krum.weaponm.database;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only, memory-mapped snapshot of a database's sectors and ports,
+ * for use by analysis tools running outside Weapon M.  Snapshots are
+ * exported with {@link DatabaseManager#exportSnapshot(File)}.
+ * <p>
+ * Every record in a snapshot is at a computed offset, so opening one costs
+ * nothing more than mapping the file, and any number of processes can share
+ * the same pages.  Sectors and ports are read through flyweight views that
+ * decode fields on demand.  A view can be repositioned to avoid allocating
+ * one per record:
+ * <pre>
+ * UniverseSnapshot snapshot = UniverseSnapshot.open(file);
+ * UniverseSnapshot.SectorView sector = snapshot.getSector(1);
+ * for(int i = 1; i &lt;= snapshot.getNumSectors(); ++i) {
+ *     sector.moveTo(i);
+ *     ...
+ * }
+ * </pre>
+ * Snapshots and their views are safe for use by multiple threads, but a
+ * single view should not be repositioned by one thread while another is
+ * reading it.
+ */
+public final class UniverseSnapshot implements Constants {
+	/** The first four bytes of every snapshot file: "WMDS". */
+	static final int MAGIC = 0x574D4453;
+	static final int VERSION = 1;
+	static final long NULL_DATE = Long.MIN_VALUE;
+	static final int NULL_OFFSET = -1;
+
+	// header layout
+	static final int HEADER_SIZE = 64;
+	private static final int H_MAGIC = 0;
+	private static final int H_VERSION = 4;
+	private static final int H_SECTORS = 8;
+	private static final int H_PORTS = 12;
+	private static final int H_STARDOCK = 16;
+	private static final int H_DATE = 24;
+	private static final int H_SECTOR_TABLE = 32;
+	private static final int H_WARPS_OUT = 36;
+	private static final int H_WARP_OUT_TARGETS = 40;
+	private static final int H_WARPS_IN = 44;
+	private static final int H_WARP_IN_TARGETS = 48;
+	private static final int H_PORT_TABLE = 52;
+	private static final int H_STRING_TABLE = 56;
+	private static final int H_LENGTH = 60;
+
+	// sector record layout
+	static final int SECTOR_RECORD = 64;
+	private static final int S_DENSITY = 0;
+	private static final int S_WARP_DENSITY = 4;
+	private static final int S_NAVHAZ = 8;
+	private static final int S_FLAGS = 12;
+	private static final int S_DENSITY_DATE = 16;
+	private static final int S_HOLO_DATE = 24;
+	private static final int S_FIGHTERS = 32;
+	private static final int S_NEBULA = 36;
+	private static final int S_BEACON = 40;
+	private static final int S_PORT = 44;
+	private static final int S_FIGHTER_OWNER = 48;
+	private static final int S_FIGHTER_MODE = 52;
+	private static final int S_ARMIDS = 56;
+	private static final int S_LIMPETS = 60;
+
+	// sector flag bits
+	private static final int ANOMALY = 1;
+	private static final int FULLY_MAPPED = 2;
+	private static final int EXPLORED = 4;
+	private static final int AVOIDED = 8;
+
+	// port record layout
+	static final int PORT_RECORD = 80;
+	private static final int P_SECTOR = 0;
+	private static final int P_PORT_CLASS = 4;
+	private static final int P_TRADING_CLASS = 8;
+	private static final int P_NAME = 12;
+	private static final int P_LEVELS = 16;
+	private static final int P_PERCENTS = 28;
+	private static final int P_CAPACITIES = 40;
+	private static final int P_CREDITS = 52;
+	private static final int P_REPORT_DATE = 56;
+	private static final int P_BUST_DATE = 64;
+	private static final int P_STATUS = 72;
+
+	private final ByteBuffer buf;
+	private final int numSectors;
+	private final int numPorts;
+	private final int sectorTable;
+	private final int warpsOut;
+	private final int warpOutTargets;
+	private final int warpsIn;
+	private final int warpInTargets;
+	private final int portTable;
+	private final int stringTable;
+
+	private UniverseSnapshot(ByteBuffer buf) throws IOException {
+		this.buf = buf;
+		if(buf.capacity() < HEADER_SIZE || buf.getInt(H_MAGIC) != MAGIC) {
+			throw new IOException("Not a Weapon M snapshot.");
+		}
+		int version = buf.getInt(H_VERSION);
+		if(version != VERSION) throw new IOException("Unsupported snapshot version " + version + ".");
+		if(buf.getInt(H_LENGTH) != buf.capacity()) throw new IOException("The snapshot is truncated.");
+		numSectors = buf.getInt(H_SECTORS);
+		numPorts = buf.getInt(H_PORTS);
+		sectorTable = buf.getInt(H_SECTOR_TABLE);
+		warpsOut = buf.getInt(H_WARPS_OUT);
+		warpOutTargets = buf.getInt(H_WARP_OUT_TARGETS);
+		warpsIn = buf.getInt(H_WARPS_IN);
+		warpInTargets = buf.getInt(H_WARP_IN_TARGETS);
+		portTable = buf.getInt(H_PORT_TABLE);
+		stringTable = buf.getInt(H_STRING_TABLE);
+	}
+
+	/**
+	 * Maps a snapshot file into memory.  The file is not locked, and must not
+	 * be modified while it is mapped; exporting a new snapshot replaces the
+	 * file rather than overwriting it.
+	 *
+	 * @throws IOException if the file is not a compatible snapshot
+	 */
+	public static UniverseSnapshot open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if(channel.size() > Integer.MAX_VALUE) throw new IOException("File is too large.");
+			// the mapping remains valid after the channel is closed
+			return new UniverseSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns the number of sectors in the universe.
+	 */
+	public int getNumSectors() {
+		return numSectors;
+	}
+
+	/**
+	 * Returns the number of known ports.
+	 */
+	public int getNumPorts() {
+		return numPorts;
+	}
+
+	/**
+	 * Returns the number of the sector where Stardock is located, or
+	 * <tt>UNKNOWN</tt> if it is unknown.
+	 */
+	public int getStardockSector() {
+		return buf.getInt(H_STARDOCK);
+	}
+
+	/**
+	 * Returns the time the snapshot was exported.
+	 */
+	public Date getDate() {
+		return new Date(buf.getLong(H_DATE));
+	}
+
+	/**
+	 * Returns a view of the specified sector.
+	 */
+	public SectorView getSector(int number) {
+		return new SectorView().moveTo(number);
+	}
+
+	/**
+	 * Returns a view of the port with the specified index.  Ports are indexed
+	 * from zero in order of sector number.
+	 */
+	public PortView getPort(int index) {
+		return new PortView().moveTo(index);
+	}
+
+	/**
+	 * Returns the number of known warps out of the specified sector.  This
+	 * and {@link #getWarpOut(int, int)} allow graph searches to walk the
+	 * snapshot without creating views.
+	 */
+	public int getNumWarpsOut(int sector) {
+		checkSector(sector);
+		return buf.getInt(warpsOut + sector * 4) - buf.getInt(warpsOut + (sector - 1) * 4);
+	}
+
+	/**
+	 * Returns the destination of the specified warp out of a sector.  Warps
+	 * are sorted in ascending order.
+	 */
+	public int getWarpOut(int sector, int index) {
+		return buf.getInt(warpOutTargets + (buf.getInt(warpsOut + (sector - 1) * 4) + index) * 4);
+	}
+
+	/**
+	 * Returns the number of known warps into the specified sector.
+	 */
+	public int getNumWarpsIn(int sector) {
+		checkSector(sector);
+		return buf.getInt(warpsIn + sector * 4) - buf.getInt(warpsIn + (sector - 1) * 4);
+	}
+
+	/**
+	 * Returns the origin of the specified warp into a sector.  Warps are
+	 * sorted in ascending order.
+	 */
+	public int getWarpIn(int sector, int index) {
+		return buf.getInt(warpInTargets + (buf.getInt(warpsIn + (sector - 1) * 4) + index) * 4);
+	}
+
+	private void checkSector(int sector) {
+		if(sector < 1 || sector > numSectors) throw new IndexOutOfBoundsException("Invalid sector: " + sector);
+	}
+
+	private String getString(int offset) {
+		if(offset == NULL_OFFSET) return null;
+		int pos = stringTable + offset;
+		int len = buf.getInt(pos);
+		char[] chars = new char[len];
+		pos += 4;
+		for(int i = 0; i < len; ++i, pos += 2) {
+			chars[i] = buf.getChar(pos);
+		}
+		return new String(chars);
+	}
+
+	private Date getDate(int pos) {
+		long time = buf.getLong(pos);
+		return time == NULL_DATE ? null : new Date(time);
+	}
+
+	/**
+	 * A view of a sector record.
+	 *
+	 * @see Sector
+	 */
+	public final class SectorView {
+		private int number;
+		private int record;
+
+		private SectorView() { }
+
+		/**
+		 * Repositions this view on the specified sector.
+		 *
+		 * @return this view
+		 */
+		public SectorView moveTo(int number) {
+			checkSector(number);
+			this.number = number;
+			record = sectorTable + (number - 1) * SECTOR_RECORD;
+			return this;
+		}
+
+		public int getNumber() {
+			return number;
+		}
+
+		public int getDensity() {
+			return buf.getInt(record + S_DENSITY);
+		}
+
+		public int getWarpDensity() {
+			return buf.getInt(record + S_WARP_DENSITY);
+		}
+
+		public int getNavhaz() {
+			return buf.getInt(record + S_NAVHAZ);
+		}
+
+		public boolean containsAnomaly() {
+			return (buf.getInt(record + S_FLAGS) & ANOMALY) != 0;
+		}
+
+		public boolean isFullyMapped() {
+			return (buf.getInt(record + S_FLAGS) & FULLY_MAPPED) != 0;
+		}
+
+		public boolean isExplored() {
+			return (buf.getInt(record + S_FLAGS) & EXPLORED) != 0;
+		}
+
+		public boolean isAvoided() {
+			return (buf.getInt(record + S_FLAGS) & AVOIDED) != 0;
+		}
+
+		public Date getDensityDate() {
+			return UniverseSnapshot.this.getDate(record + S_DENSITY_DATE);
+		}
+
+		public Date getHoloDate() {
+			return UniverseSnapshot.this.getDate(record + S_HOLO_DATE);
+		}
+
+		public String getNebula() {
+			return getString(buf.getInt(record + S_NEBULA));
+		}
+
+		public String getBeaconMessage() {
+			return getString(buf.getInt(record + S_BEACON));
+		}
+
+		public int getFighters() {
+			return buf.getInt(record + S_FIGHTERS);
+		}
+
+		/**
+		 * Returns the name of the fighters' owner, or null if there are no
+		 * fighters in the sector.
+		 */
+		public String getFighterOwnerName() {
+			return getString(buf.getInt(record + S_FIGHTER_OWNER));
+		}
+
+		public FighterMode getFighterMode() {
+			int mode = buf.getInt(record + S_FIGHTER_MODE);
+			return mode == UNKNOWN ? null : FighterMode.values()[mode];
+		}
+
+		public int getArmids() {
+			return buf.getInt(record + S_ARMIDS);
+		}
+
+		public int getLimpets() {
+			return buf.getInt(record + S_LIMPETS);
+		}
+
+		public boolean hasPort() {
+			return buf.getInt(record + S_PORT) != UNKNOWN;
+		}
+
+		/**
+		 * Returns the index of this sector's port, or <tt>UNKNOWN</tt> if no
+		 * port is known.
+		 */
+		public int getPortIndex() {
+			return buf.getInt(record + S_PORT);
+		}
+
+		/**
+		 * Returns a new view of this sector's port, or null if no port is
+		 * known.
+		 */
+		public PortView getPort() {
+			int index = getPortIndex();
+			return index == UNKNOWN ? null : UniverseSnapshot.this.getPort(index);
+		}
+
+		public int getNumWarpsOut() {
+			return UniverseSnapshot.this.getNumWarpsOut(number);
+		}
+
+		public int getWarpOut(int index) {
+			return UniverseSnapshot.this.getWarpOut(number, index);
+		}
+
+		/**
+		 * Copies the warps out into a new array.
+		 */
+		public int[] getWarpsOut() {
+			int[] warps = new int[getNumWarpsOut()];
+			for(int i = 0; i < warps.length; ++i) warps[i] = getWarpOut(i);
+			return warps;
+		}
+
+		public int getNumWarpsIn() {
+			return UniverseSnapshot.this.getNumWarpsIn(number);
+		}
+
+		public int getWarpIn(int index) {
+			return UniverseSnapshot.this.getWarpIn(number, index);
+		}
+
+		/**
+		 * Copies the warps in into a new array.
+		 */
+		public int[] getWarpsIn() {
+			int[] warps = new int[getNumWarpsIn()];
+			for(int i = 0; i < warps.length; ++i) warps[i] = getWarpIn(i);
+			return warps;
+		}
+
+		@Override
+		public String toString() {
+			return Integer.toString(number);
+		}
+	}
+
+	/**
+	 * A view of a port record.
+	 *
+	 * @see Port
+	 */
+	public final class PortView {
+		private int record;
+
+		private PortView() { }
+
+		/**
+		 * Repositions this view on the port with the specified index.
+		 *
+		 * @return this view
+		 */
+		public PortView moveTo(int index) {
+			if(index < 0 || index >= numPorts) throw new IndexOutOfBoundsException("Invalid port index: " + index);
+			record = portTable + index * PORT_RECORD;
+			return this;
+		}
+
+		public int getSectorNumber() {
+			return buf.getInt(record + P_SECTOR);
+		}
+
+		public String getName() {
+			return getString(buf.getInt(record + P_NAME));
+		}
+
+		public int getPortClass() {
+			return buf.getInt(record + P_PORT_CLASS);
+		}
+
+		public int getTradingClass() {
+			return buf.getInt(record + P_TRADING_CLASS);
+		}
+
+		/**
+		 * @param product one of the constants from the {@link Product} class
+		 */
+		public int getLevel(int product) {
+			return buf.getInt(record + P_LEVELS + checkProduct(product) * 4);
+		}
+
+		/**
+		 * @param product one of the constants from the {@link Product} class
+		 */
+		public int getPercent(int product) {
+			return buf.getInt(record + P_PERCENTS + checkProduct(product) * 4);
+		}
+
+		/**
+		 * @param product one of the constants from the {@link Product} class
+		 */
+		public int getCapacity(int product) {
+			return buf.getInt(record + P_CAPACITIES + checkProduct(product) * 4);
+		}
+
+		public int getCredits() {
+			return buf.getInt(record + P_CREDITS);
+		}
+
+		public Date getReportDate() {
+			return UniverseSnapshot.this.getDate(record + P_REPORT_DATE);
+		}
+
+		public Date getBustDate() {
+			return UniverseSnapshot.this.getDate(record + P_BUST_DATE);
+		}
+
+		public PortStatus getStatus() {
+			int status = buf.getInt(record + P_STATUS);
+			return status == UNKNOWN ? null : PortStatus.values()[status];
+		}
+
+		private int checkProduct(int product) {
+			if(product < 0 || product > 2) throw new IllegalArgumentException();
+			return product;
+		}
+	}
+
+	/************************************************************************/
+
+	/**
+	 * Writes a snapshot of the database to the specified file.  Each sector
+	 * and port is locked only long enough to copy its fields.
+	 */
+	static void write(File file, Database database) throws IOException {
+		Sector[] sectors = database.getSectors();
+		if(sectors == null) throw new IOException("The database has not been initialized.");
+		int n = sectors.length;
+		Strings strings = new Strings();
+		ByteBuffer sectorRecords = ByteBuffer.allocate(n * SECTOR_RECORD);
+		int[] outOffsets = new int[n + 1];
+		int[] outTargets = new int[n * 2];
+		int[] inOffsets = new int[n + 1];
+		int[] inTargets = new int[n * 2];
+		List<Port> ports = new ArrayList<Port>();
+		Sector.State state = new Sector.State();
+		for(int i = 0; i < n; ++i) {
+			sectors[i].copyState(state);
+			int record = i * SECTOR_RECORD;
+			sectorRecords.putInt(record + S_DENSITY, state.density);
+			sectorRecords.putInt(record + S_WARP_DENSITY, state.warpDensity);
+			sectorRecords.putInt(record + S_NAVHAZ, state.navhaz);
+			int flags = 0;
+			if(state.anomaly) flags |= ANOMALY;
+			if(state.fullyMapped) flags |= FULLY_MAPPED;
+			if(state.explored) flags |= EXPLORED;
+			if(state.avoided) flags |= AVOIDED;
+			sectorRecords.putInt(record + S_FLAGS, flags);
+			sectorRecords.putLong(record + S_DENSITY_DATE, fromDate(state.densityDate));
+			sectorRecords.putLong(record + S_HOLO_DATE, fromDate(state.holoDate));
+			sectorRecords.putInt(record + S_FIGHTERS, state.fighters);
+			sectorRecords.putInt(record + S_NEBULA, strings.offsetOf(state.nebula));
+			sectorRecords.putInt(record + S_BEACON, strings.offsetOf(state.beaconMessage));
+			sectorRecords.putInt(record + S_FIGHTER_OWNER,
+					strings.offsetOf(state.fighterOwner == null ? null : state.fighterOwner.getName()));
+			sectorRecords.putInt(record + S_FIGHTER_MODE,
+					state.fighterMode == null ? UNKNOWN : state.fighterMode.ordinal());
+			sectorRecords.putInt(record + S_ARMIDS, state.armids);
+			sectorRecords.putInt(record + S_LIMPETS, state.limpets);
+			int[] out = state.warpsOut;
+			int[] in = state.warpsIn;
+			Port port = state.port;
+			if(port != null) {
+				sectorRecords.putInt(record + S_PORT, ports.size());
+				ports.add(port);
+			}
+			else {
+				sectorRecords.putInt(record + S_PORT, UNKNOWN);
+			}
+			outTargets = append(outTargets, outOffsets[i], out);
+			outOffsets[i + 1] = outOffsets[i] + out.length;
+			inTargets = append(inTargets, inOffsets[i], in);
+			inOffsets[i + 1] = inOffsets[i] + in.length;
+		}
+
+		int p = ports.size();
+		ByteBuffer portRecords = ByteBuffer.allocate(p * PORT_RECORD);
+		Port.State portState = new Port.State();
+		for(int i = 0; i < p; ++i) {
+			Port port = ports.get(i);
+			int record = i * PORT_RECORD;
+			port.copyState(portState);
+			portRecords.putInt(record + P_SECTOR, port.getSector().getNumber());
+			portRecords.putInt(record + P_PORT_CLASS, port.getPortClass());
+			portRecords.putInt(record + P_TRADING_CLASS, portState.tradingClass);
+			portRecords.putInt(record + P_NAME, strings.offsetOf(portState.name));
+			for(int j = 0; j < 3; ++j) {
+				portRecords.putInt(record + P_LEVELS + j * 4, portState.levels[j]);
+				portRecords.putInt(record + P_PERCENTS + j * 4, portState.percents[j]);
+				portRecords.putInt(record + P_CAPACITIES + j * 4, portState.capacities[j]);
+			}
+			portRecords.putInt(record + P_CREDITS, portState.credits);
+			portRecords.putLong(record + P_REPORT_DATE, fromDate(portState.reportDate));
+			portRecords.putLong(record + P_BUST_DATE, fromDate(portState.bustDate));
+			portRecords.putInt(record + P_STATUS, portState.status == null ? UNKNOWN : portState.status.ordinal());
+		}
+
+		// compute offsets; tables containing longs are 8-byte aligned
+		int sectorTable = HEADER_SIZE;
+		int warpsOut = sectorTable + n * SECTOR_RECORD;
+		int warpOutTargets = warpsOut + (n + 1) * 4;
+		int warpsIn = warpOutTargets + outOffsets[n] * 4;
+		int warpInTargets = warpsIn + (n + 1) * 4;
+		int portTable = align(warpInTargets + inOffsets[n] * 4);
+		int stringTable = portTable + p * PORT_RECORD;
+		int length = stringTable + strings.buf.position();
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(H_MAGIC, MAGIC);
+		header.putInt(H_VERSION, VERSION);
+		header.putInt(H_SECTORS, n);
+		header.putInt(H_PORTS, p);
+		Sector stardock = database.getStardockSector();
+		header.putInt(H_STARDOCK, stardock == null ? UNKNOWN : stardock.getNumber());
+		header.putLong(H_DATE, System.currentTimeMillis());
+		header.putInt(H_SECTOR_TABLE, sectorTable);
+		header.putInt(H_WARPS_OUT, warpsOut);
+		header.putInt(H_WARP_OUT_TARGETS, warpOutTargets);
+		header.putInt(H_WARPS_IN, warpsIn);
+		header.putInt(H_WARP_IN_TARGETS, warpInTargets);
+		header.putInt(H_PORT_TABLE, portTable);
+		header.putInt(H_STRING_TABLE, stringTable);
+		header.putInt(H_LENGTH, length);
+
+		ByteBuffer warps = ByteBuffer.allocate(portTable - warpsOut);
+		warps.asIntBuffer()
+			.put(outOffsets)
+			.put(outTargets, 0, outOffsets[n])
+			.put(inOffsets)
+			.put(inTargets, 0, inOffsets[n]);
+		strings.buf.flip();
+
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			FileChannel channel = out.getChannel();
+			ByteBuffer[] buffers = { header, sectorRecords, warps, portRecords, strings.buf };
+			long remaining = length;
+			while(remaining > 0) remaining -= channel.write(buffers);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static int[] append(int[] dest, int offset, int[] src) {
+		if(offset + src.length > dest.length) {
+			dest = Arrays.copyOf(dest, Math.max(dest.length * 2, offset + src.length));
+		}
+		System.arraycopy(src, 0, dest, offset, src.length);
+		return dest;
+	}
+
+	private static int align(int offset) {
+		return (offset + 7) & ~7;
+	}
+
+	private static long fromDate(Date date) {
+		return date == null ? NULL_DATE : date.getTime();
+	}
+
+	/** Pools strings for the string table. */
+	private static class Strings {
+		private final Map<String, Integer> offsets = new HashMap<String, Integer>();
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+
+		int offsetOf(String s) {
+			if(s == null) return NULL_OFFSET;
+			Integer offset = offsets.get(s);
+			if(offset == null) {
+				offset = buf.position();
+				int bytes = 4 + s.length() * 2;
+				if(buf.remaining() < bytes) {
+					ByteBuffer grown = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + bytes));
+					buf.flip();
+					grown.put(buf);
+					buf = grown;
+				}
+				buf.putInt(s.length());
+				for(int i = 0; i < s.length(); ++i) buf.putChar(s.charAt(i));
+				offsets.put(s, offset);
+			}
+			return offset;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package krum.weaponm.database;
+
+import java.util.Arrays;
+
+/**
+ * An immutable view of the warp graph.  The warps out of sector <i>s</i> are
+ * <tt>getWarpOut(s, 0)</tt> through <tt>getWarpOut(s, getNumWarpsOut(s) - 1)</tt>,
+ * in ascending order; warps in are stored the same way.  Because a graph
+ * never changes, pathfinding and map code can walk it from any thread
+ * without locking sectors or copying warp arrays.
+ * <p>
+ * Graphs are obtained from {@link Database#getWarpGraph()}.  A graph is a
+ * snapshot; warps discovered afterward appear in the next graph the database
+ * returns.
+ * <p>
+ * Each direction is stored in compressed sparse rows, in chunks of
+ * {@link #CHUNK_SIZE} sectors.  A chunk starts with <tt>CHUNK_SIZE + 1</tt>
+ * offsets; row <i>r</i> of the chunk is the targets from
+ * <tt>chunk[r]</tt> up to <tt>chunk[r + 1]</tt>, so a sector with many
+ * warps takes room only in its own chunk.  Graphs share chunks with each
+ * other and with the {@link WarpIndex}, which copies a chunk only when it
+ * changes after being published.
+ */
+public final class WarpGraph {
+	static final int CHUNK_SHIFT = 6;
+	static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final int numSectors;
+	private final int numWarps;
+	private final int[][] outChunks;
+	private final int[][] inChunks;
+	private final long version;
+
+	WarpGraph(int numSectors, int numWarps, int[][] outChunks, int[][] inChunks, long version) {
+		this.numSectors = numSectors;
+		this.numWarps = numWarps;
+		this.outChunks = outChunks;
+		this.inChunks = inChunks;
+		this.version = version;
+	}
+
+	/**
+	 * Returns the number of sectors in the universe.
+	 */
+	public int getNumSectors() {
+		return numSectors;
+	}
+
+	/**
+	 * Returns a number that increases every time the database's warp data
+	 * changes.  Two graphs with the same version are identical.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the total number of known warps.
+	 */
+	public int getNumWarps() {
+		return numWarps;
+	}
+
+	/**
+	 * Returns the number of known warps out of the specified sector.
+	 */
+	public int getNumWarpsOut(int sector) {
+		return count(outChunks, sector);
+	}
+
+	/**
+	 * Returns the destination of the specified warp out of a sector.
+	 *
+	 * @param sector the sector number
+	 * @param index the index of the warp, from zero to one less than
+	 * {@link #getNumWarpsOut(int)}
+	 */
+	public int getWarpOut(int sector, int index) {
+		int i = sector - 1;
+		int[] chunk = outChunks[i >>> CHUNK_SHIFT];
+		return chunk[chunk[i & CHUNK_MASK] + index];
+	}
+
+	/**
+	 * Copies the warps out of the specified sector into a new array.
+	 */
+	public int[] getWarpsOut(int sector) {
+		return row(outChunks, sector);
+	}
+
+	/**
+	 * Returns the number of known warps into the specified sector.
+	 */
+	public int getNumWarpsIn(int sector) {
+		return count(inChunks, sector);
+	}
+
+	/**
+	 * Returns the origin of the specified warp into a sector.
+	 *
+	 * @param sector the sector number
+	 * @param index the index of the warp, from zero to one less than
+	 * {@link #getNumWarpsIn(int)}
+	 */
+	public int getWarpIn(int sector, int index) {
+		int i = sector - 1;
+		int[] chunk = inChunks[i >>> CHUNK_SHIFT];
+		return chunk[chunk[i & CHUNK_MASK] + index];
+	}
+
+	/**
+	 * Copies the warps into the specified sector into a new array.
+	 */
+	public int[] getWarpsIn(int sector) {
+		return row(inChunks, sector);
+	}
+
+	/**
+	 * Returns true if there is a known warp from one sector to another.
+	 */
+	public boolean hasWarp(int from, int to) {
+		int i = from - 1;
+		int[] chunk = outChunks[i >>> CHUNK_SHIFT];
+		int r = i & CHUNK_MASK;
+		// rows are short, so a linear scan beats a binary search
+		for(int j = chunk[r], end = chunk[r + 1]; j < end; ++j) {
+			if(chunk[j] == to) return true;
+		}
+		return false;
+	}
+
+	private static int count(int[][] chunks, int sector) {
+		int i = sector - 1;
+		int[] chunk = chunks[i >>> CHUNK_SHIFT];
+		int r = i & CHUNK_MASK;
+		return chunk[r + 1] - chunk[r];
+	}
+
+	private static int[] row(int[][] chunks, int sector) {
+		int i = sector - 1;
+		int[] chunk = chunks[i >>> CHUNK_SHIFT];
+		int r = i & CHUNK_MASK;
+		return Arrays.copyOfRange(chunk, chunk[r], chunk[r + 1]);
+	}
+}
@@ -0,0 +1,205 @@
+package krum.weaponm.database;
+
+import java.util.Arrays;
+
+/**
+ * Maintains the database's warp graph as chunked compressed sparse rows; see
+ * {@link WarpGraph}.  The index is built from the sectors the first time a
+ * graph is requested, and is updated in place as warps are discovered.  Publishing a {@link WarpGraph} copies
+ * only the table of chunks; a chunk the graph shares is copied the first
+ * time it changes afterward.  Exploring therefore costs a chunk or two per
+ * prompt, not a copy of the whole graph.
+ * <p>
+ * Sectors call into the index after releasing their own locks, and the index
+ * takes sector locks while building, so the two never deadlock.  Listeners
+ * are notified after the index's lock is released.
+ */
+class WarpIndex {
+	// most sectors have at most six warps each way.  a chunk whose sectors
+	// have more, e.g., a hub with many warps in, grows by itself
+	private static final int INITIAL_CAPACITY = 6;
+
+	private final Database db;
+	private Rows out;
+	private Rows in;
+	private WarpGraph graph;
+	private long version;
+
+	WarpIndex(Database db) {
+		this.db = db;
+	}
+
+	/**
+	 * Returns the current warp graph, or null if the database has not been
+	 * initialized.
+	 */
+	synchronized WarpGraph getGraph() {
+		if(graph != null) return graph;
+		if(out == null && !build()) return null;
+		graph = new WarpGraph(out.n, out.total, out.publish(), in.publish(), version);
+		return graph;
+	}
+
+	void addWarp(int from, int to) {
+		synchronized(this) {
+			if(out == null) return; // sectors will be read when the index is built
+			boolean changed = out.insert(from, to);
+			changed |= in.insert(to, from);
+			if(!changed) return;
+			invalidate();
+		}
+		DistanceTable distances = db.distanceTable;
+		if(distances != null) distances.warpAdded(from, to);
+		TradeRoutes routes = db.tradeRoutes;
+		if(routes != null) routes.warpsChanged(from);
+	}
+
+	void setWarpsOut(int sector, int[] warps) {
+		int[] added;
+		synchronized(this) {
+			if(out == null) return;
+			int[] sorted = Arrays.copyOf(warps, warps.length);
+			Arrays.sort(sorted);
+			added = added(out.get(sector), sorted);
+			boolean changed = out.replace(sector, sorted);
+			// like Sector, never forgets warps in
+			for(int w : sorted) changed |= in.insert(w, sector);
+			if(!changed) return;
+			invalidate();
+		}
+		// the parser replaces warps every time a sector is displayed, but
+		// usually only adds to them
+		DistanceTable distances = db.distanceTable;
+		if(distances != null) {
+			if(added == null) distances.warpsReplaced();
+			else if(added.length > 0) distances.warpsAdded(sector, added);
+		}
+		TradeRoutes routes = db.tradeRoutes;
+		if(routes != null) routes.warpsChanged(sector);
+	}
+
+	private boolean build() {
+		Sector[] sectors = db.getSectors();
+		if(sectors == null) return false;
+		int n = sectors.length;
+		out = new Rows(n);
+		in = new Rows(n);
+		for(int i = 0; i < n; ++i) {
+			out.replace(i + 1, sectors[i].getWarpsOut());
+			in.replace(i + 1, sectors[i].getWarpsIn());
+		}
+		return true;
+	}
+
+	// returns the warps in newRow but not oldRow, or null if oldRow has a
+	// warp that newRow doesn't; both rows are sorted
+	private static int[] added(int[] oldRow, int[] newRow) {
+		int[] added = new int[newRow.length];
+		int count = 0;
+		int i = 0;
+		for(int w : newRow) {
+			if(i < oldRow.length && oldRow[i] < w) return null;
+			if(i < oldRow.length && oldRow[i] == w) ++i;
+			else added[count++] = w;
+		}
+		if(i < oldRow.length) return null;
+		return Arrays.copyOf(added, count);
+	}
+
+	private void invalidate() {
+		graph = null;
+		++version;
+	}
+
+	/**
+	 * One direction of the graph.  Row <i>s</i> is in chunk
+	 * <tt>(s - 1) / CHUNK_SIZE</tt>; each chunk is a table of offsets
+	 * followed by the rows' sorted targets, packed, and has its own spare
+	 * room.  <tt>chunk[CHUNK_SIZE]</tt> is the end of the used part.
+	 */
+	private static class Rows {
+		private static final int OFFSETS = WarpGraph.CHUNK_SIZE + 1;
+		final int n;
+		int total;
+		int[][] chunks;
+		// chunks not shared with a published graph, which may be written in place
+		boolean[] owned;
+
+		Rows(int n) {
+			this.n = n;
+			chunks = new int[(n + WarpGraph.CHUNK_MASK) >>> WarpGraph.CHUNK_SHIFT][];
+			for(int c = 0; c < chunks.length; ++c) {
+				int[] chunk = new int[OFFSETS + WarpGraph.CHUNK_SIZE * INITIAL_CAPACITY];
+				Arrays.fill(chunk, 0, OFFSETS, OFFSETS);
+				chunks[c] = chunk;
+			}
+			owned = new boolean[chunks.length];
+			Arrays.fill(owned, true);
+		}
+
+		// returns the chunk table for a new graph, which then shares every chunk
+		int[][] publish() {
+			Arrays.fill(owned, false);
+			return Arrays.copyOf(chunks, chunks.length);
+		}
+
+		int[] get(int sector) {
+			int i = sector - 1;
+			int[] chunk = chunks[i >>> WarpGraph.CHUNK_SHIFT];
+			int r = i & WarpGraph.CHUNK_MASK;
+			return Arrays.copyOfRange(chunk, chunk[r], chunk[r + 1]);
+		}
+
+		boolean insert(int sector, int value) {
+			int i = sector - 1;
+			int c = i >>> WarpGraph.CHUNK_SHIFT;
+			int r = i & WarpGraph.CHUNK_MASK;
+			int[] chunk = chunks[c];
+			int end = chunk[r + 1];
+			int pos = chunk[r];
+			while(pos < end && chunk[pos] < value) ++pos;
+			if(pos < end && chunk[pos] == value) return false;
+			chunk = writable(c, 1);
+			System.arraycopy(chunk, pos, chunk, pos + 1, chunk[WarpGraph.CHUNK_SIZE] - pos);
+			chunk[pos] = value;
+			for(int k = r + 1; k < OFFSETS; ++k) ++chunk[k];
+			++total;
+			return true;
+		}
+
+		boolean replace(int sector, int[] row) {
+			int i = sector - 1;
+			int c = i >>> WarpGraph.CHUNK_SHIFT;
+			int r = i & WarpGraph.CHUNK_MASK;
+			int[] chunk = chunks[c];
+			int start = chunk[r];
+			int count = chunk[r + 1] - start;
+			if(count == row.length) {
+				boolean same = true;
+				for(int j = 0; j < count && same; ++j) same = chunk[start + j] == row[j];
+				if(same) return false;
+			}
+			int delta = row.length - count;
+			chunk = writable(c, Math.max(delta, 0));
+			int end = start + count;
+			System.arraycopy(chunk, end, chunk, end + delta, chunk[WarpGraph.CHUNK_SIZE] - end);
+			System.arraycopy(row, 0, chunk, start, row.length);
+			for(int k = r + 1; k < OFFSETS; ++k) chunk[k] += delta;
+			total += delta;
+			return true;
+		}
+
+		// returns a chunk that may be written and has room for extra more
+		// targets, copying it if it is shared or full
+		private int[] writable(int c, int extra) {
+			int[] chunk = chunks[c];
+			int needed = chunk[WarpGraph.CHUNK_SIZE] + extra;
+			if(owned[c] && needed <= chunk.length) return chunk;
+			int length = chunk.length;
+			if(needed > length) length = Math.max(needed, length + (length >> 1));
+			chunk = chunks[c] = Arrays.copyOf(chunk, length);
+			owned[c] = true;
+			return chunk;
+		}
+	}
+}
@@ -3,6 +3,7 @@ package krum.weaponm.emulation;
 import java.io.IOException;
 
 import krum.jplex.UnderflowException;
+import krum.jtx.ScrollbackBuffer;
 import krum.weaponm.WeaponM;
 import krum.weaponm.emulation.lexer.EmulationLexer;
 
@@ -12,12 +13,22 @@ public class Emulation {
 	protected final EmulationParser parser;
 
 	public Emulation(WeaponM weapon) throws IOException, ClassNotFoundException {
+		this(new EmulationParser(weapon));
+	}
+	
+	public Emulation(ScrollbackBuffer buffer) throws IOException, ClassNotFoundException {
+		this(new EmulationParser(buffer));
+	}
+	
+	private Emulation(EmulationParser parser) throws IOException, ClassNotFoundException {
 		lexer = new EmulationLexer();
-		parser = new EmulationParser(weapon);
+		this.parser = parser;
 		lexer.addEventListener(parser);
 	}
 	
-	public int write(CharSequence seq, int off, int len, boolean endOfInput) throws UnderflowException {
+	// synchronized because the network manager writes its disconnect message
+	// from whatever thread disconnects, while the emulation stage may be running
+	synchronized public int write(CharSequence seq, int off, int len, boolean endOfInput) throws UnderflowException {
 		return lexer.lex(seq, off, len, endOfInput);
 	}
 	
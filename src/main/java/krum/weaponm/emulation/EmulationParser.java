@@ -7,6 +7,7 @@ import java.util.Arrays;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import krum.jtx.ScrollbackBuffer;
 import krum.jtx.VGABufferElement;
 import krum.weaponm.WeaponM;
 import krum.weaponm.emulation.lexer.EmulationEventListener;
@@ -15,7 +16,9 @@ import krum.weaponm.emulation.lexer.EmulationEventListener;
 
 public class EmulationParser implements EmulationEventListener {
 	protected static final Logger log = LoggerFactory.getLogger(EmulationParser.class);
+	/** The Weapon, or null if the parser was created without one. */
 	protected final WeaponM weapon;
+	protected final ScrollbackBuffer buffer;
 
 	/** The cursor position. */
 	protected final Point cursor;
@@ -36,22 +39,35 @@ public class EmulationParser implements EmulationEventListener {
 	protected final Point cursorMark;	
 	
 	public EmulationParser(WeaponM weapon) {
+		this(weapon, weapon.buffer);
+	}
+	
+	/**
+	 * Creates a parser that writes to the specified buffer without a Weapon,
+	 * e.g., for benchmarks.
+	 */
+	public EmulationParser(ScrollbackBuffer buffer) {
+		this(null, buffer);
+	}
+	
+	private EmulationParser(WeaponM weapon, ScrollbackBuffer buffer) {
 		this.weapon = weapon;
-		Rectangle extents = weapon.buffer.getExtents();		
+		this.buffer = buffer;
+		Rectangle extents = buffer.getExtents();		
 		columns = extents.width;
 		// position cursor to new row at bottom of buffer
 		cursor = new Point(0, extents.x + extents.height);
 		maxLine = cursor.y;
-		weapon.buffer.advance(maxLine);
+		buffer.advance(maxLine);
 		pageMark = cursor.y;
 		cursorMark = new Point(cursor);
 	}
 	
 	public void reset() {
-		Rectangle extents = weapon.buffer.getExtents();
+		Rectangle extents = buffer.getExtents();
 		cursor.setLocation(0, extents.x + extents.height);
 		maxLine = cursor.y;
-		weapon.buffer.advance(maxLine);
+		buffer.advance(maxLine);
 		pageMark = cursor.y;
 		cursorMark.setLocation(cursor);
 	}
@@ -60,7 +76,7 @@ public class EmulationParser implements EmulationEventListener {
 	public void literalText(CharSequence seq, int off, int len) {
 		//System.out.println("literalText: " + seq.subSequence(off, off + len));
 		// TODO: line wrap
-		weapon.buffer.write(cursor.x, cursor.y, seq, off, len, attributes);
+		buffer.write(cursor.x, cursor.y, seq, off, len, attributes);
 		// advance the cursor
 		cursor.x += len;
 		if(cursor.x == columns) {
@@ -68,7 +84,7 @@ public class EmulationParser implements EmulationEventListener {
 			++cursor.y;
 			if(cursor.y > maxLine) {
 				++maxLine;
-				weapon.buffer.advance(maxLine);
+				buffer.advance(maxLine);
 			}
 		}		
 	}
@@ -136,7 +152,7 @@ public class EmulationParser implements EmulationEventListener {
 		if(params.length == 0) ++cursor.y;
 		else if(params.length == 1) cursor.y += params[0];
 		if(cursor.y > maxLine) {
-			weapon.buffer.advance(cursor.y);
+			buffer.advance(cursor.y);
 			maxLine = cursor.y;
 		}
 	}
@@ -175,7 +191,7 @@ public class EmulationParser implements EmulationEventListener {
 		if(cursor.x >= columns) cursor.x = columns - 1;
 		if(cursor.y < pageMark) cursor.y = pageMark;
 		if(cursor.y > maxLine) {
-			weapon.buffer.advance(cursor.y);
+			buffer.advance(cursor.y);
 			maxLine = cursor.y;
 		}
 		
@@ -203,7 +219,7 @@ public class EmulationParser implements EmulationEventListener {
 		++cursor.y;
 		if(cursor.y > maxLine) {
 			++maxLine;
-			weapon.buffer.advance(maxLine);
+			buffer.advance(maxLine);
 		}		
 	}
 
@@ -235,13 +251,13 @@ public class EmulationParser implements EmulationEventListener {
 		//}
 		int[] values = new int[columns - cursor.x];
 		Arrays.fill(values, VGABufferElement.DEFAULT_VALUE);
-		weapon.buffer.setContent(cursor.x, cursor.y, values, 0, values.length);
+		buffer.setContent(cursor.x, cursor.y, values, 0, values.length);
 	}
 
 	@Override
 	public void clearScreen(CharSequence seq, int off, int len) {
 		++maxLine;
-		weapon.buffer.advance(maxLine);
+		buffer.advance(maxLine);
 		pageMark = maxLine;
 		cursor.setLocation(0, maxLine);		
 	}
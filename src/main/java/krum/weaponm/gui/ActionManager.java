@@ -221,6 +221,7 @@ public class ActionManager {
 		networkMenu.add(new JMenuItem(disconnect));
 		networkMenu.addSeparator();
 		networkMenu.add(new JMenuItem(showLoginOptionsDialog));
+		networkMenu.add(new JMenuItem(new ShowNetworkStatsWindowAction(gui)));
 		networkMenu.setEnabled(false);
 		enableOnLoadMenus.add(networkMenu);
 		menuBar.add(networkMenu);
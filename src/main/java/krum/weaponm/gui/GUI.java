@@ -104,6 +104,7 @@ public class GUI {
 	protected final MainWindow mainWindow;
 	protected final MapWindow mapWindow;
 	protected final CreditsWindow creditsWindow = new CreditsWindow();
+	protected final NetworkStatsWindow networkStatsWindow;
 	
 	public GUI(WeaponM weapon) throws IOException {
 		this.weapon = weapon;
@@ -146,6 +147,8 @@ public class GUI {
 		mapWindow = new MapWindow(this);
 		mapWindow.pack();
 		
+		networkStatsWindow = new NetworkStatsWindow(weapon.network);
+		
 		mainWindow = new MainWindow(this);
 		actionManager = new ActionManager(this);
 		mainWindow.setJMenuBar(actionManager.createMainMenu());
@@ -158,6 +161,17 @@ public class GUI {
 		return mainWindow;
 	}
 	
+	/**
+	 * Disposes of this session's windows.  Called when the session closes
+	 * while others in the process remain open.
+	 */
+	public void dispose() {
+		networkStatsWindow.dispose();
+		mapWindow.dispose();
+		creditsWindow.dispose();
+		mainWindow.dispose();
+	}
+	
 	/** thread safe */
 	//public void setStatusField(int field, int value) {
 	//	mainWindow.statusPanel.setField(field, value);
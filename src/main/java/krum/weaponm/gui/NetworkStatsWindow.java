@@ -0,0 +1,88 @@
+package krum.weaponm.gui;
+
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.Font;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.JButton;
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+
+import krum.weaponm.network.NetworkManager;
+import krum.weaponm.network.NetworkStats;
+
+/**
+ * Shows the network counters and latency statistics, refreshed every second
+ * while the window is visible.
+ */
+public class NetworkStatsWindow extends JFrame {
+	private static final long serialVersionUID = 1L;
+	private static final int REFRESH_MILLIS = 1000;
+
+	private final NetworkManager network;
+	private final JTextArea text = new JTextArea(14, 72);
+	private final Timer timer;
+
+	public NetworkStatsWindow(NetworkManager network) {
+		super("Network Statistics");
+		this.network = network;
+		text.setEditable(false);
+		text.setFocusable(false);
+		text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+		add(text, BorderLayout.CENTER);
+
+		JButton reset = new JButton("Reset Latency");
+		reset.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				NetworkStatsWindow.this.network.getLatencyStats().reset();
+				refresh();
+			}
+		});
+		JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+		buttons.add(reset);
+		add(buttons, BorderLayout.SOUTH);
+
+		timer = new Timer(REFRESH_MILLIS, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				refresh();
+			}
+		});
+		setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+		pack();
+	}
+
+	@Override
+	public void setVisible(boolean b) {
+		if(b) {
+			refresh();
+			timer.start();
+		}
+		else timer.stop();
+		super.setVisible(b);
+	}
+
+	@Override
+	public void dispose() {
+		timer.stop();
+		super.dispose();
+	}
+
+	private void refresh() {
+		NetworkStats stats = network.getStats();
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Reads: %d   Bytes: %d   Bytes/read: %.1f   Read buffer: %d%n",
+				stats.getReads(), stats.getBytesRead(), stats.getMeanBytesPerRead(), stats.getReadBufferSize()));
+		sb.append(String.format("Parser: %s%n", stats.getParserStats()));
+		sb.append(String.format("Emulation: %s%n", stats.getEmulationStats()));
+		sb.append(String.format("Major prompts: %d%n%n", network.getLatencyStats().getPrompts()));
+		sb.append("Times in milliseconds\n");
+		sb.append(network.getLatencyStats());
+		text.setText(sb.toString());
+	}
+}
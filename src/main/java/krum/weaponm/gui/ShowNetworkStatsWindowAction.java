@@ -0,0 +1,24 @@
+package krum.weaponm.gui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
+
+import javax.swing.AbstractAction;
+
+public class ShowNetworkStatsWindowAction extends AbstractAction {
+	private static final long serialVersionUID = 1L;
+
+	protected final GUI gui;
+	
+	public ShowNetworkStatsWindowAction(GUI gui) {
+		this.gui = gui;
+		putValue(NAME, "Statistics");
+		putValue(MNEMONIC_KEY, KeyEvent.VK_S);
+	}
+	
+	@Override
+	public void actionPerformed(ActionEvent arg0) {
+		gui.networkStatsWindow.setVisible(true);
+		gui.networkStatsWindow.toFront();
+	}
+}
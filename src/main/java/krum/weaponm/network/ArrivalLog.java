@@ -0,0 +1,54 @@
+package krum.weaponm.network;
+
+/**
+ * When each read's bytes arrived, keyed by their end position in the ring.
+ * The parser stage may be far behind the reader, so the time of the latest
+ * read says nothing about the bytes the stage is lexing; this log lets it
+ * find when the read that completed an event arrived.
+ * <p>
+ * The reader adds an entry for each read, and the parser stage discards the
+ * entries for bytes it has released.  If the stage falls more than
+ * {@link #CAPACITY} reads behind, the newest entry is extended to cover
+ * later reads, so their bytes appear to have arrived early.
+ */
+class ArrivalLog {
+	static final int CAPACITY = 4096;
+	private static final int MASK = CAPACITY - 1;
+
+	private final long[] ends = new long[CAPACITY];
+	private final long[] nanos = new long[CAPACITY];
+	private long head;
+	private long tail;
+
+	/**
+	 * Records that the bytes up to the specified ring position arrived at
+	 * the specified time.  Called by the reader.
+	 */
+	synchronized void arrived(long end, long time) {
+		if(head - tail == CAPACITY) {
+			ends[(int) ((head - 1) & MASK)] = end;
+			return;
+		}
+		ends[(int) (head & MASK)] = end;
+		nanos[(int) (head & MASK)] = time;
+		++head;
+	}
+
+	/**
+	 * Returns when the byte before the specified ring position arrived, or
+	 * zero if it is not in the log.  Positions must not decrease between
+	 * calls; earlier entries are discarded.  Called by the parser stage.
+	 */
+	synchronized long arrivalOf(long position) {
+		while(tail < head && ends[(int) (tail & MASK)] < position) ++tail;
+		return tail == head ? 0 : nanos[(int) (tail & MASK)];
+	}
+
+	/**
+	 * Discards the entries for bytes before the specified ring position.
+	 * Called by the parser stage.
+	 */
+	synchronized void discard(long position) {
+		while(tail < head && ends[(int) (tail & MASK)] <= position) ++tail;
+	}
+}
@@ -0,0 +1,183 @@
+package krum.weaponm.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free ring buffer of bytes with one producer thread and a fixed
+ * number of consumer threads.  Every consumer sees every byte through its
+ * own {@link Cursor}, and space is reclaimed only once all of them have
+ * advanced past it.  The producer blocks while the ring is full, which holds
+ * the network reader back rather than losing data; a consumer blocks while
+ * it has nothing new.  A blocked thread parks until another makes progress.
+ * <p>
+ * The head and the cursors only increase.  Each is written by one thread and
+ * read by the others, so no thread ever needs a lock.
+ */
+class ByteRing {
+	private static final long PARK_NANOS = 10000000L; // recheck in case of a missed wakeup
+
+	final byte[] bytes;
+	final int mask;
+	private final AtomicLong head = new AtomicLong(); // written by the producer
+	private final Cursor[] cursors;
+	private volatile Thread parkedProducer;
+	private volatile boolean closed;
+
+	/**
+	 * @param capacity the capacity in bytes; must be a power of two
+	 * @param consumers the number of consumers
+	 */
+	ByteRing(int capacity, int consumers) {
+		if(Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two");
+		bytes = new byte[capacity];
+		mask = capacity - 1;
+		cursors = new Cursor[consumers];
+		for(int i = 0; i < consumers; ++i) cursors[i] = new Cursor();
+	}
+
+	int capacity() {
+		return bytes.length;
+	}
+
+	/**
+	 * Returns the position after the last byte written.
+	 */
+	long getHead() {
+		return head.get();
+	}
+
+	Cursor getCursor(int consumer) {
+		return cursors[consumer];
+	}
+
+	/**
+	 * Copies all the remaining bytes from the buffer into the ring, waiting
+	 * for space as necessary.  Called only by the producer.
+	 */
+	void write(ByteBuffer src) throws InterruptedException {
+		while(src.hasRemaining()) {
+			if(offer(src) == 0) {
+				parkedProducer = Thread.currentThread();
+				if(bytes.length - (int) (head.get() - slowest()) == 0) LockSupport.parkNanos(this, PARK_NANOS);
+				parkedProducer = null;
+				if(Thread.interrupted()) throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * Copies as many of the remaining bytes from the buffer into the ring as
+	 * fit without waiting.  Called only by the producer.
+	 *
+	 * @return the number of bytes copied
+	 */
+	int offer(ByteBuffer src) {
+		long h = head.get();
+		int n = Math.min(bytes.length - (int) (h - slowest()), src.remaining());
+		if(n == 0) return 0;
+		int index = (int) (h & mask);
+		int first = Math.min(n, bytes.length - index);
+		src.get(bytes, index, first);
+		src.get(bytes, 0, n - first);
+		head.set(h + n);
+		for(Cursor cursor : cursors) {
+			Thread consumer = cursor.parked;
+			if(consumer != null) LockSupport.unpark(consumer);
+		}
+		return n;
+	}
+
+	/**
+	 * Signals the end of the stream.  The consumers read what remains, then
+	 * see end of stream.  Called only by the producer.
+	 */
+	void close() {
+		closed = true;
+		for(Cursor cursor : cursors) {
+			Thread consumer = cursor.parked;
+			if(consumer != null) LockSupport.unpark(consumer);
+		}
+	}
+
+	private long slowest() {
+		long min = Long.MAX_VALUE;
+		for(Cursor cursor : cursors) min = Math.min(min, cursor.position.get());
+		return min;
+	}
+
+	/**
+	 * One consumer's read position.  Each cursor is used only by its own
+	 * consumer thread.
+	 */
+	class Cursor {
+		private final AtomicLong position = new AtomicLong();
+		private volatile Thread parked;
+
+		/**
+		 * Returns the position of the first byte this consumer has not
+		 * released.
+		 */
+		long getPosition() {
+			return position.get();
+		}
+
+		/**
+		 * Waits until the producer has written past the specified position.
+		 *
+		 * @return the producer's position, or -1 if the stream ended there
+		 */
+		long await(long seen) throws InterruptedException {
+			while(true) {
+				long h = head.get();
+				if(h > seen) return h;
+				if(closed && head.get() == seen) return -1;
+				parked = Thread.currentThread();
+				if(head.get() == seen && !closed) LockSupport.parkNanos(this, PARK_NANOS);
+				parked = null;
+				if(Thread.interrupted()) throw new InterruptedException();
+			}
+		}
+
+		/**
+		 * Waits up to the specified time for the producer to write past the
+		 * specified position.
+		 *
+		 * @return the producer's position, which equals <tt>seen</tt> if the
+		 * time ran out or the stream ended
+		 */
+		long await(long seen, long timeoutNanos) throws InterruptedException {
+			long deadline = System.nanoTime() + timeoutNanos;
+			while(true) {
+				long h = head.get();
+				if(h > seen || closed) return h;
+				long wait = deadline - System.nanoTime();
+				if(wait <= 0) return h;
+				parked = Thread.currentThread();
+				if(head.get() == seen && !closed) LockSupport.parkNanos(this, wait);
+				parked = null;
+				if(Thread.interrupted()) throw new InterruptedException();
+			}
+		}
+
+		/**
+		 * Returns true if the byte before the specified position is a line
+		 * delimiter.
+		 */
+		boolean endsLine(long position) {
+			byte b = bytes[(int) ((position - 1) & mask)];
+			return b == '\n' || b == '\r';
+		}
+
+		/**
+		 * Releases the bytes before the specified position.  The producer may
+		 * reuse them once every consumer has released them.
+		 */
+		void release(long to) {
+			position.set(to);
+			Thread producer = parkedProducer;
+			if(producer != null) LockSupport.unpark(producer);
+		}
+	}
+}
@@ -0,0 +1,336 @@
+package krum.weaponm.network;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the chunks of a captured session.  A capture file begins with the
+ * magic number <tt>WMCP</tt>, a version, and the capture's start time in
+ * milliseconds since the epoch.  The chunks follow in deflated blocks, each
+ * headed by its uncompressed and compressed lengths and the times of its
+ * first and last chunks.  A chunk is a direction, the number of
+ * milliseconds since the start, a length, and the bytes of one network read
+ * or write.  The file ends with an index of the blocks, so the reader can
+ * {@link #seek(long)} to any time without decompressing what comes before.
+ * If the recorder did not finish, the index is rebuilt from the block
+ * headers.
+ * <p>
+ * Because chunks preserve the original read boundaries, replaying a capture
+ * splits lexer input exactly as the live session did.
+ * <p>
+ * Files without the magic number are treated as raw byte logs, such as
+ * those written by terminal programs.  They are read in chunks of
+ * {@link NetworkManager#BUFFER_SIZE} bytes with no timing.
+ *
+ * @see CaptureRecorder
+ */
+public class CaptureReader {
+	static final int MAGIC = 0x574D4350;
+	static final int INDEX_MAGIC = 0x574D4349;
+	static final int VERSION = 2;
+	static final int HEADER_SIZE = 16;
+	static final int BLOCK_HEADER_SIZE = 16;
+	// the most a block can hold: a full block plus the chunk that overflowed
+	// it, which is no larger than the recorder's ring buffer
+	static final int MAX_BLOCK_SIZE = CaptureRecorder.BLOCK_SIZE + CaptureRecorder.RING_SIZE;
+	private static final int TRAILER_SIZE = 12;
+
+	private final File file;
+	private final FileInputStream in;
+	private final FileChannel channel;
+	private final boolean timed;
+	private final boolean outbound;
+	private final long startTime;
+	// index
+	private long[] blockOffsets;
+	private int[] blockLast; // time of each block's last chunk
+	private int blocks;
+	// current block
+	private final Inflater inflater = new Inflater();
+	private final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+	private byte[] compressed = new byte[0];
+	private byte[] block = new byte[0];
+	private int nextBlock;
+	private int blockLength;
+	private int blockPos;
+	// current chunk
+	private byte[] chunk = new byte[NetworkManager.BUFFER_SIZE];
+	private int chunkOffset;
+	private int length;
+	private long elapsed;
+	private boolean chunkOutbound;
+	private long rawPosition;
+
+	/**
+	 * Opens a capture for reading the received chunks only.
+	 */
+	public CaptureReader(File file) throws IOException {
+		this(file, false);
+	}
+
+	/**
+	 * Opens a capture.
+	 *
+	 * @param outbound true to include chunks that were sent to the server
+	 */
+	public CaptureReader(File file, boolean outbound) throws IOException {
+		this.file = file;
+		this.outbound = outbound;
+		in = new FileInputStream(file);
+		channel = in.getChannel();
+		boolean timed = false;
+		long startTime = 0;
+		try {
+			ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(buf, 0);
+			if(buf.position() == HEADER_SIZE && buf.getInt(0) == MAGIC) {
+				if(buf.getInt(4) != VERSION) {
+					throw new IOException("The file \"" + file.getPath() + "\" is not a compatible capture.");
+				}
+				startTime = buf.getLong(8);
+				timed = true;
+				if(!readIndex()) scanBlocks();
+			}
+		} catch(IOException e) {
+			close();
+			throw e;
+		}
+		this.timed = timed;
+		this.startTime = startTime;
+	}
+
+	/**
+	 * Returns true if the capture records when each chunk was received.
+	 */
+	public boolean isTimed() {
+		return timed;
+	}
+
+	/**
+	 * Returns the time the capture was started, or 0 if it is not timed.
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Returns the milliseconds between the start of the capture and its last
+	 * chunk, or 0 if it is not timed.
+	 */
+	public long getDuration() {
+		return blocks == 0 ? 0 : blockLast[blocks - 1] & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Positions the reader so the next chunk is the first one recorded at or
+	 * after the specified time.  Only the block containing that time is
+	 * decompressed.  Raw logs can only be rewound to the start.
+	 *
+	 * @param elapsedMillis milliseconds since the start of the capture
+	 */
+	public void seek(long elapsedMillis) throws IOException {
+		length = 0;
+		blockLength = blockPos = 0;
+		if(!timed) {
+			if(elapsedMillis != 0) throw new IOException("Raw logs are not seekable.");
+			rawPosition = 0;
+			return;
+		}
+		int i = 0;
+		while(i < blocks && (blockLast[i] & 0xFFFFFFFFL) < elapsedMillis) ++i;
+		nextBlock = i;
+		if(i == blocks) return;
+		while(next()) {
+			if(elapsed >= elapsedMillis) {
+				blockPos = chunkOffset - 9; // unread it
+				length = 0;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Advances to the next chunk.
+	 *
+	 * @return false at the end of the capture
+	 */
+	public boolean next() throws IOException {
+		if(!timed) {
+			ByteBuffer buf = ByteBuffer.wrap(chunk);
+			readFully(buf, rawPosition);
+			length = buf.position();
+			chunkOffset = 0;
+			rawPosition += length;
+			return length > 0;
+		}
+		while(true) {
+			while(blockPos >= blockLength) {
+				if(!readBlock()) {
+					length = 0;
+					return false;
+				}
+			}
+			chunkOutbound = block[blockPos] != 0;
+			elapsed = getInt(block, blockPos + 1) & 0xFFFFFFFFL;
+			length = getInt(block, blockPos + 5);
+			chunkOffset = blockPos + 9;
+			blockPos = chunkOffset + length;
+			if(length < 0 || blockPos > blockLength) {
+				throw new IOException("The file \"" + file.getPath() + "\" is corrupt.");
+			}
+			if(outbound || !chunkOutbound) return true;
+		}
+	}
+
+	/**
+	 * Returns the milliseconds between the start of the capture and the
+	 * current chunk.  Always 0 if the capture is not timed.
+	 */
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	/**
+	 * Returns true if the current chunk was sent to the server.
+	 */
+	public boolean isOutbound() {
+		return chunkOutbound;
+	}
+
+	/**
+	 * Returns the array containing the current chunk's bytes, which begin
+	 * at {@link #getOffset()}.  The array may be reused by the next call to
+	 * {@link #next()}.
+	 */
+	public byte[] getChunk() {
+		return timed ? block : chunk;
+	}
+
+	/**
+	 * Returns the offset of the current chunk in {@link #getChunk()}.
+	 */
+	public int getOffset() {
+		return chunkOffset;
+	}
+
+	/**
+	 * Returns the length of the current chunk.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	public void close() throws IOException {
+		inflater.end();
+		in.close();
+	}
+
+	private boolean readBlock() throws IOException {
+		if(nextBlock >= blocks) return false;
+		header.clear();
+		readFully(header, blockOffsets[nextBlock]);
+		if(header.position() < BLOCK_HEADER_SIZE) return false;
+		int uncompressedLength = header.getInt(0);
+		int compressedLength = header.getInt(4);
+		if(uncompressedLength < 0 || uncompressedLength > MAX_BLOCK_SIZE || compressedLength < 0) {
+			throw new IOException("The file \"" + file.getPath() + "\" is corrupt.");
+		}
+		if(compressed.length < compressedLength) compressed = new byte[compressedLength];
+		ByteBuffer buf = ByteBuffer.wrap(compressed, 0, compressedLength);
+		readFully(buf, blockOffsets[nextBlock] + BLOCK_HEADER_SIZE);
+		if(buf.hasRemaining()) return false; // torn tail
+		if(block.length < uncompressedLength) block = new byte[uncompressedLength];
+		inflater.reset();
+		inflater.setInput(compressed, 0, compressedLength);
+		try {
+			int n = 0;
+			while(n < uncompressedLength && !inflater.finished()) {
+				int inflated = inflater.inflate(block, n, uncompressedLength - n);
+				if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				n += inflated;
+			}
+			if(n != uncompressedLength) throw new DataFormatException("short block");
+		} catch(DataFormatException e) {
+			throw new IOException("The file \"" + file.getPath() + "\" is corrupt.", e);
+		}
+		++nextBlock;
+		blockLength = uncompressedLength;
+		blockPos = 0;
+		return true;
+	}
+
+	// reads the index written by the recorder when it was closed
+	private boolean readIndex() throws IOException {
+		long size = channel.size();
+		if(size < HEADER_SIZE + TRAILER_SIZE) return false;
+		ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+		readFully(trailer, size - TRAILER_SIZE);
+		if(trailer.getInt(8) != INDEX_MAGIC) return false;
+		long indexOffset = trailer.getLong(0);
+		if(indexOffset < HEADER_SIZE || indexOffset > size - TRAILER_SIZE - 8) return false;
+		ByteBuffer head = ByteBuffer.allocate(8);
+		readFully(head, indexOffset);
+		if(head.getInt(0) != INDEX_MAGIC) return false;
+		int count = head.getInt(4);
+		if(count < 0 || indexOffset + 8 + count * 16L != size - TRAILER_SIZE) return false;
+		ByteBuffer entries = ByteBuffer.allocate(count * 16);
+		readFully(entries, indexOffset + 8);
+		entries.flip();
+		allocateIndex(count);
+		for(int i = 0; i < count; ++i) {
+			blockOffsets[i] = entries.getLong();
+			entries.getInt(); // first chunk
+			blockLast[i] = entries.getInt();
+		}
+		blocks = count;
+		return true;
+	}
+
+	// rebuilds the index from the block headers
+	private void scanBlocks() throws IOException {
+		allocateIndex(64);
+		long size = channel.size();
+		long pos = HEADER_SIZE;
+		while(pos + BLOCK_HEADER_SIZE <= size) {
+			header.clear();
+			readFully(header, pos);
+			int uncompressedLength = header.getInt(0);
+			int compressedLength = header.getInt(4);
+			// a torn index follows the last block
+			if(uncompressedLength == INDEX_MAGIC) break;
+			if(uncompressedLength < 0 || uncompressedLength > MAX_BLOCK_SIZE) break;
+			if(compressedLength < 0 || pos + BLOCK_HEADER_SIZE + compressedLength > size) break;
+			if(blocks == blockOffsets.length) {
+				blockOffsets = Arrays.copyOf(blockOffsets, blocks * 2);
+				blockLast = Arrays.copyOf(blockLast, blocks * 2);
+			}
+			blockOffsets[blocks] = pos;
+			blockLast[blocks] = header.getInt(12);
+			++blocks;
+			pos += BLOCK_HEADER_SIZE + compressedLength;
+		}
+	}
+
+	private void allocateIndex(int capacity) {
+		blockOffsets = new long[capacity];
+		blockLast = new int[capacity];
+	}
+
+	private void readFully(ByteBuffer buf, long position) throws IOException {
+		while(buf.hasRemaining()) {
+			int n = channel.read(buf, position);
+			if(n == -1) break;
+			position += n;
+		}
+	}
+
+	private static int getInt(byte[] b, int off) {
+		return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+	}
+}
@@ -0,0 +1,280 @@
+package krum.weaponm.network;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records a session to a capture file that {@link CaptureReader} can read.
+ * Network threads copy each chunk into a bounded ring buffer, and a
+ * background thread compresses the chunks into blocks and writes them to
+ * disk, so recording never makes the network thread wait for the disk.  If
+ * the writer falls so far behind that the ring buffer fills, chunks are
+ * dropped and counted rather than blocking.
+ * <p>
+ * A block is written when it reaches {@link #BLOCK_SIZE} bytes or is a
+ * second old, so a crash loses at most a second or so of the session.  The
+ * block index is written when the recorder is closed; if it is missing, the
+ * reader rebuilds it from the block headers.
+ */
+public class CaptureRecorder {
+	private static final Logger log = LoggerFactory.getLogger(CaptureRecorder.class);
+
+	/** The uncompressed size at which a block is written. */
+	public static final int BLOCK_SIZE = 65536;
+	static final int RING_SIZE = 1 << 20; // power of two
+	private static final int RECORD_HEADER = 9; // direction, elapsed, length
+	private static final long FLUSH_MILLIS = 1000;
+
+	private final File file;
+	private final long startTime = System.currentTimeMillis();
+	private final long startNanos = System.nanoTime();
+	private final Thread writer;
+	// ring buffer, guarded by this; head and tail only increase
+	private final byte[] ring = new byte[RING_SIZE];
+	private long head;
+	private long tail;
+	private boolean writerWaiting;
+	private boolean closing;
+	private long dropped;
+	// writer thread state
+	private final DataOutputStream out;
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private byte[] block = new byte[BLOCK_SIZE + NetworkManager.BUFFER_SIZE + RECORD_HEADER];
+	private byte[] compressed = new byte[BLOCK_SIZE];
+	private int blockLength;
+	private int blockFirst;
+	private int blockLast;
+	private long blockStartNanos;
+	private long offset;
+	private long[] indexOffsets = new long[64];
+	private int[] indexFirst = new int[64];
+	private int[] indexLast = new int[64];
+	private int blocks;
+	private volatile IOException error;
+
+	/**
+	 * Creates a capture file and starts the writer thread.
+	 */
+	public CaptureRecorder(File file) throws IOException {
+		this.file = file;
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+		out.writeInt(CaptureReader.MAGIC);
+		out.writeInt(CaptureReader.VERSION);
+		out.writeLong(startTime);
+		out.flush();
+		offset = CaptureReader.HEADER_SIZE;
+		writer = new Thread("CaptureRecorder") {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Records the remaining bytes of the buffer without changing its
+	 * position.  Never blocks on disk.
+	 *
+	 * @param outbound true if the bytes were sent to the server
+	 * @return false if the chunk was dropped because the ring buffer is full
+	 */
+	public boolean record(ByteBuffer buf, boolean outbound) {
+		int len = buf.remaining();
+		if(len == 0) return true;
+		int elapsed = (int) ((System.nanoTime() - startNanos) / 1000000L);
+		synchronized(this) {
+			if(closing) return false;
+			if(RING_SIZE - (head - tail) < RECORD_HEADER + len) {
+				++dropped;
+				return false;
+			}
+			put((byte) (outbound ? 1 : 0));
+			putInt(elapsed);
+			putInt(len);
+			int pos = buf.position();
+			int index = (int) (head & (RING_SIZE - 1));
+			int first = Math.min(len, RING_SIZE - index);
+			buf.get(ring, index, first);
+			buf.get(ring, 0, len - first);
+			buf.position(pos);
+			head += len;
+			if(writerWaiting) notify();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of chunks dropped because the writer fell behind.
+	 */
+	synchronized public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Returns the capture file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Writes the remaining chunks and the index, and closes the file.
+	 *
+	 * @throws IOException if the writer thread failed
+	 */
+	public void close() throws IOException {
+		synchronized(this) {
+			if(closing) return;
+			closing = true;
+			notify();
+		}
+		try {
+			writer.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if(dropped > 0) log.warn("{} chunks dropped from capture {}", dropped, file.getPath());
+		if(error != null) throw error;
+	}
+
+	private void put(byte b) {
+		ring[(int) (head++ & (RING_SIZE - 1))] = b;
+	}
+
+	private void putInt(int v) {
+		put((byte) (v >>> 24));
+		put((byte) (v >>> 16));
+		put((byte) (v >>> 8));
+		put((byte) v);
+	}
+
+	private int getInt(long pos) {
+		int v = 0;
+		for(int i = 0; i < 4; ++i) {
+			v = (v << 8) | (ring[(int) ((pos + i) & (RING_SIZE - 1))] & 0xFF);
+		}
+		return v;
+	}
+
+	private void writeLoop() {
+		try {
+			while(true) {
+				long end;
+				boolean done;
+				synchronized(this) {
+					if(head == tail && !closing) {
+						writerWaiting = true;
+						try {
+							wait(FLUSH_MILLIS);
+						} catch(InterruptedException e) {
+							closing = true;
+						}
+						writerWaiting = false;
+					}
+					end = head;
+					done = closing && head == tail;
+				}
+				if(done) break;
+				// producers only write past head, so [tail, end) is stable
+				long pos = tail;
+				while(pos < end) {
+					int len = getInt(pos + 5);
+					appendRecord(pos, len);
+					pos += RECORD_HEADER + len;
+					if(blockLength >= BLOCK_SIZE) writeBlock();
+				}
+				synchronized(this) {
+					tail = end;
+				}
+				if(blockLength > 0 && System.nanoTime() - blockStartNanos >= FLUSH_MILLIS * 1000000L) {
+					writeBlock();
+				}
+			}
+			if(blockLength > 0) writeBlock();
+			writeIndex();
+		} catch(IOException e) {
+			log.error("error writing capture " + file.getPath(), e);
+			error = e;
+			synchronized(this) {
+				closing = true; // stop accepting chunks
+				tail = head;
+			}
+		} finally {
+			deflater.end();
+			try {
+				out.close();
+			} catch(IOException e) {
+				if(error == null) error = e;
+			}
+		}
+	}
+
+	private void appendRecord(long pos, int len) {
+		int elapsed = getInt(pos + 1);
+		int size = RECORD_HEADER + len;
+		if(blockLength + size > block.length) block = Arrays.copyOf(block, blockLength + size);
+		int index = (int) (pos & (RING_SIZE - 1));
+		int first = Math.min(size, RING_SIZE - index);
+		System.arraycopy(ring, index, block, blockLength, first);
+		System.arraycopy(ring, 0, block, blockLength + first, size - first);
+		if(blockLength == 0) {
+			blockFirst = elapsed;
+			blockStartNanos = System.nanoTime();
+		}
+		blockLast = elapsed;
+		blockLength += size;
+	}
+
+	private void writeBlock() throws IOException {
+		deflater.reset();
+		deflater.setInput(block, 0, blockLength);
+		deflater.finish();
+		int compressedLength = 0;
+		while(!deflater.finished()) {
+			if(compressedLength == compressed.length) compressed = Arrays.copyOf(compressed, compressed.length * 2);
+			compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+		}
+		if(blocks == indexOffsets.length) {
+			indexOffsets = Arrays.copyOf(indexOffsets, blocks * 2);
+			indexFirst = Arrays.copyOf(indexFirst, blocks * 2);
+			indexLast = Arrays.copyOf(indexLast, blocks * 2);
+		}
+		indexOffsets[blocks] = offset;
+		indexFirst[blocks] = blockFirst;
+		indexLast[blocks] = blockLast;
+		++blocks;
+		out.writeInt(blockLength);
+		out.writeInt(compressedLength);
+		out.writeInt(blockFirst);
+		out.writeInt(blockLast);
+		out.write(compressed, 0, compressedLength);
+		out.flush();
+		offset += CaptureReader.BLOCK_HEADER_SIZE + compressedLength;
+		blockLength = 0;
+	}
+
+	private void writeIndex() throws IOException {
+		long indexOffset = offset;
+		out.writeInt(CaptureReader.INDEX_MAGIC);
+		out.writeInt(blocks);
+		for(int i = 0; i < blocks; ++i) {
+			out.writeLong(indexOffsets[i]);
+			out.writeInt(indexFirst[i]);
+			out.writeInt(indexLast[i]);
+		}
+		out.writeLong(indexOffset);
+		out.writeInt(CaptureReader.INDEX_MAGIC);
+		out.flush();
+	}
+}
@@ -0,0 +1,95 @@
+package krum.weaponm.network;
+
+/**
+ * A histogram of non-negative values in a fixed amount of memory, in the
+ * manner of HdrHistogram.  Values below 32 are counted exactly.  Above
+ * that, each power of two is divided into 16 equal buckets, so a value is
+ * reported to within about 6% no matter how large it is.
+ */
+public class Histogram {
+	private static final int EXACT = 32;
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = EXACT + (63 - 5) * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count;
+	private long total;
+	private long min = Long.MAX_VALUE;
+	private long max;
+
+	public Histogram() { }
+
+	public Histogram(Histogram other) {
+		synchronized(other) {
+			System.arraycopy(other.counts, 0, counts, 0, BUCKETS);
+			count = other.count;
+			total = other.total;
+			min = other.min;
+			max = other.max;
+		}
+	}
+
+	synchronized public void record(long value) {
+		if(value < 0) value = 0;
+		++counts[index(value)];
+		++count;
+		total += value;
+		if(value < min) min = value;
+		if(value > max) max = value;
+	}
+
+	synchronized public void reset() {
+		for(int i = 0; i < BUCKETS; ++i) counts[i] = 0;
+		count = total = max = 0;
+		min = Long.MAX_VALUE;
+	}
+
+	synchronized public long getCount() {
+		return count;
+	}
+
+	synchronized public double getMean() {
+		return count == 0 ? 0 : (double) total / count;
+	}
+
+	synchronized public long getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	synchronized public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Returns the value below which the specified percentage of the recorded
+	 * values fall, to the precision of the buckets.
+	 *
+	 * @param percentile from 0 to 100
+	 */
+	synchronized public long getValueAtPercentile(double percentile) {
+		if(count == 0) return 0;
+		long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; ++i) {
+			seen += counts[i];
+			if(seen >= target) return Math.min(max, Math.max(min, highestValue(i)));
+		}
+		return max;
+	}
+
+	private static int index(long value) {
+		if(value < EXACT) return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return EXACT + (exponent - 5) * SUB_BUCKETS + sub;
+	}
+
+	private static long highestValue(int index) {
+		if(index < EXACT) return index;
+		int exponent = 5 + (index - EXACT) / SUB_BUCKETS;
+		long sub = (index - EXACT) % SUB_BUCKETS;
+		int shift = exponent - SUB_BITS;
+		return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,122 @@
+package krum.weaponm.network;
+
+/**
+ * Where the time goes between the user or a script sending a command and
+ * the game answering with its next major prompt.
+ * <ul>
+ * <li><em>Round trip</em>: from the first write after a prompt to the next
+ * major prompt, as seen by scripts.  This includes the link and the parser.
+ * <li><em>Parse delay</em>: from the arrival of the read that completed a
+ * major prompt to the prompt event, which is the parser's share of the
+ * round trip, including any time the prompt waited behind earlier input.
+ * <li><em>Think time</em>: from a major prompt to the first write after it,
+ * which is the time taken by scripts or the user.
+ * <li><em>Bytes per prompt</em>: the bytes received between major prompts.
+ * </ul>
+ * Times are in nanoseconds.  Each histogram has a fixed size, so the
+ * statistics can be kept for the life of a session.
+ */
+public class LatencyStats {
+	private final NetworkStats network;
+	private final Histogram roundTrip = new Histogram();
+	private final Histogram parseDelay = new Histogram();
+	private final Histogram thinkTime = new Histogram();
+	private final Histogram bytesPerPrompt = new Histogram();
+	private long lastPromptNanos;
+	private volatile boolean awaitingArrival; // the last prompt's parse delay is not yet recorded
+	private long firstWriteNanos;
+	private boolean written;
+	private long bytesAtLastPrompt;
+	private long prompts;
+
+	LatencyStats(NetworkStats network) {
+		this.network = network;
+	}
+
+	// called by the network manager for each write
+	synchronized void written() {
+		if(written) return;
+		written = true;
+		firstWriteNanos = System.nanoTime();
+		if(lastPromptNanos != 0) thinkTime.record(firstWriteNanos - lastPromptNanos);
+	}
+
+	// called by the network manager for each major prompt
+	synchronized void prompt() {
+		long now = System.nanoTime();
+		++prompts;
+		if(written) roundTrip.record(now - firstWriteNanos);
+		awaitingArrival = true;
+		long bytes = network.bytesRead.get();
+		if(lastPromptNanos != 0) bytesPerPrompt.record(bytes - bytesAtLastPrompt);
+		bytesAtLastPrompt = bytes;
+		lastPromptNanos = now;
+		written = false;
+	}
+
+	// true from a major prompt until the pipeline reports when it arrived
+	boolean isAwaitingArrival() {
+		return awaitingArrival;
+	}
+
+	// called by the pipeline after the lexer event that caused a major
+	// prompt, with the arrival time of the read that completed it
+	synchronized void promptArrival(long arrivalNanos) {
+		if(!awaitingArrival) return;
+		awaitingArrival = false;
+		if(arrivalNanos != 0) parseDelay.record(lastPromptNanos - arrivalNanos);
+	}
+
+	/** Returns the number of major prompts seen. */
+	synchronized public long getPrompts() {
+		return prompts;
+	}
+
+	/** Returns a copy of the round trip histogram. */
+	public Histogram getRoundTrip() {
+		return new Histogram(roundTrip);
+	}
+
+	/** Returns a copy of the parse delay histogram. */
+	public Histogram getParseDelay() {
+		return new Histogram(parseDelay);
+	}
+
+	/** Returns a copy of the think time histogram. */
+	public Histogram getThinkTime() {
+		return new Histogram(thinkTime);
+	}
+
+	/** Returns a copy of the bytes per prompt histogram. */
+	public Histogram getBytesPerPrompt() {
+		return new Histogram(bytesPerPrompt);
+	}
+
+	synchronized public void reset() {
+		roundTrip.reset();
+		parseDelay.reset();
+		thinkTime.reset();
+		bytesPerPrompt.reset();
+		prompts = 0;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-16s %8s %10s %10s %10s %10s%n", "", "count", "mean", "p50", "p99", "max"));
+		appendTimes(sb, "Round trip", roundTrip);
+		appendTimes(sb, "Parse delay", parseDelay);
+		appendTimes(sb, "Think time", thinkTime);
+		Histogram h = new Histogram(bytesPerPrompt);
+		sb.append(String.format("%-16s %8d %10.0f %10d %10d %10d%n", "Bytes/prompt", h.getCount(), h.getMean(),
+				h.getValueAtPercentile(50), h.getValueAtPercentile(99), h.getMax()));
+		return sb.toString();
+	}
+
+	// in milliseconds
+	private static void appendTimes(StringBuilder sb, String name, Histogram histogram) {
+		Histogram h = new Histogram(histogram);
+		sb.append(String.format("%-16s %8d %10.1f %10.1f %10.1f %10.1f%n", name, h.getCount(), h.getMean() / 1e6,
+				h.getValueAtPercentile(50) / 1e6, h.getValueAtPercentile(99) / 1e6, h.getMax() / 1e6));
+	}
+}
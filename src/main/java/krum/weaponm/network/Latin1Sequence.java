@@ -0,0 +1,67 @@
+package krum.weaponm.network;
+
+/**
+ * A read-only view of latin-1 bytes in a {@link ByteRing} as chars.  Each
+ * char is widened from its byte when it is read, so lexers can scan network
+ * input without it first being copied into a char buffer.  The view may
+ * wrap around the end of the ring.
+ * <p>
+ * The viewed bytes are only valid until the owning consumer advances past
+ * them, so {@link #subSequence(int, int)} and {@link #toString()} return
+ * copies.
+ */
+class Latin1Sequence implements CharSequence {
+	private final byte[] bytes;
+	private final int mask;
+	private long start;
+	private int length;
+
+	Latin1Sequence(ByteRing ring) {
+		bytes = ring.bytes;
+		mask = ring.mask;
+	}
+
+	/**
+	 * Moves the view.
+	 *
+	 * @param start the ring position of the first char
+	 * @param length the number of chars
+	 */
+	void set(long start, int length) {
+		this.start = start;
+		this.length = length;
+	}
+
+	/**
+	 * Returns the ring position of the char at the specified index.
+	 */
+	long position(int index) {
+		return start + index;
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if(index < 0 || index >= length) throw new IndexOutOfBoundsException();
+		return (char) (bytes[(int) ((start + index) & mask)] & 0xFF);
+	}
+
+	@Override
+	public CharSequence subSequence(int begin, int end) {
+		if(begin < 0 || end > length || begin > end) throw new IndexOutOfBoundsException();
+		char[] chars = new char[end - begin];
+		for(int i = 0; i < chars.length; ++i) {
+			chars[i] = (char) (bytes[(int) ((start + begin + i) & mask)] & 0xFF);
+		}
+		return new String(chars);
+	}
+
+	@Override
+	public String toString() {
+		return subSequence(0, length).toString();
+	}
+}
@@ -1,57 +1,114 @@
 package krum.weaponm.network;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.ByteChannel;
+
+import javax.swing.JOptionPane;
 
 import krum.jplex.UnderflowException;
 import krum.weaponm.WeaponM;
 import krum.weaponm.gui.GUI;
 import krum.weaponm.script.ScriptEvent;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 public class NetworkManager {
+	protected static final Logger log = LoggerFactory.getLogger(NetworkManager.class);
 	public static final int BUFFER_SIZE = 8192;
 	
 	protected final WeaponM weapon;
 	protected final ByteBuffer writeBuffer;
+	protected final NetworkStats stats = new NetworkStats();
+	protected final LatencyStats latency = new LatencyStats(stats);
+	protected final NetworkMonitor monitor = new NetworkMonitor(stats, latency);
 	protected NetworkThread thread;
-	protected SocketChannel channel;
-	protected int totalBytesWritten;
+	protected SelectorSession session;
+	protected ByteChannel channel;
+	protected volatile int totalBytesWritten; // written under the lock, read without it
+	protected volatile CaptureRecorder recorder;
+	protected volatile boolean captureOutbound;
 	
 	public NetworkManager(WeaponM weapon) {
 		this.weapon = weapon;
 		writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		monitor.register();
+	}
+	
+	/**
+	 * Releases resources held for the life of the manager.
+	 */
+	public void dispose() {
+		monitor.unregister();
 	}
 	
 	synchronized public boolean isConnected() {
-		return thread != null;
+		return thread != null || session != null;
 	}
 	
+	/**
+	 * Starts connecting to the game server.  The socket is read by the
+	 * {@link NetworkSelector} shared by every session in the process.
+	 */
 	synchronized public void connect() throws IOException {
-		if(thread != null) return;
-		thread = new NetworkThread(this);
+		if(isConnected()) return;
+		session = new SelectorSession(this, NetworkSelector.getDefault());
+		session.start();
+		weapon.gui.firePropertyChange(GUI.NETWORK_ACTIVE, false, true);
+		weapon.scripts.fireEvent(ScriptEvent.CONNECTING);
+	}
+	
+	/**
+	 * Replays a captured session through the data parser and emulation as
+	 * if it were arriving from the game server.  Anything written to the
+	 * network during the replay is discarded.
+	 * 
+	 * @param file the capture file
+	 * @param speed the playback speed relative to the recorded timing; 0 to
+	 * replay as fast as possible
+	 * @return the statistics, which are updated as the replay proceeds
+	 * @see CaptureReader
+	 */
+	synchronized public ReplayStats replay(File file, double speed) throws IOException {
+		return replay(file, speed, 0, 0);
+	}
+	
+	/**
+	 * Replays part of a captured session.  The capture's index is used to
+	 * skip to the start time without decompressing what comes before.
+	 * 
+	 * @param fromMillis the capture time at which to start
+	 * @param toMillis the capture time at which to stop; 0 for the end
+	 * @see #replay(File, double)
+	 */
+	synchronized public ReplayStats replay(File file, double speed, long fromMillis, long toMillis) throws IOException {
+		if(isConnected()) throw new IOException("Already connected.");
+		ReplayThread replay = new ReplayThread(this, file, speed, fromMillis, toMillis);
+		thread = replay;
 		thread.start();
 		weapon.gui.firePropertyChange(GUI.NETWORK_ACTIVE, false, true);
 		weapon.scripts.fireEvent(ScriptEvent.CONNECTING);
+		return replay.stats;
 	}
 	
 	public void blockingConnect() throws IOException, InterruptedException {
+		SelectorSession session;
 		synchronized(this) {
-			if(thread != null) return;
-			thread = new NetworkThread(this);
-			thread.start();
-			weapon.gui.firePropertyChange(GUI.NETWORK_ACTIVE, false, true);
-			weapon.scripts.fireEvent(ScriptEvent.CONNECTING);
-		}
-		synchronized(thread) {
-			wait();
+			if(isConnected()) return;
+			connect();
+			session = this.session;
 		}
+		session.awaitConnected();
 	}
 	
 	synchronized public void disconnect() {
-		if(thread != null) {
-			thread.interrupt();
+		if(thread != null || session != null) {
+			if(thread != null) thread.interrupt();
+			if(session != null) session.close(false);
 			thread = null;
+			session = null;
 			weapon.gui.firePropertyChange(GUI.NETWORK_ACTIVE, true, false);
 			weapon.scripts.fireEvent(ScriptEvent.DISCONNECTING);
 		}
@@ -71,31 +128,124 @@ public class NetworkManager {
 		}
 	}
 	
+	// called when a session ends on its own
+	synchronized void sessionClosed(SelectorSession closed) {
+		if(session == closed) disconnect();
+	}
+	
+	void reportError(Throwable t) {
+		log.error("unspecified error", t);
+		String msg = t.getMessage();
+		if(msg == null) msg = t.getClass().getName();
+		weapon.gui.threadSafeMessageDialog(msg, "Error", JOptionPane.ERROR_MESSAGE);
+	}
+	
+	/**
+	 * Starts recording received bytes to a capture file, replacing any
+	 * capture in progress.  Recording continues across reconnects until
+	 * {@link #stopCapture()} is called.
+	 * 
+	 * @param outbound true to record bytes sent to the server as well
+	 * @see CaptureRecorder
+	 */
+	public void startCapture(File file, boolean outbound) throws IOException {
+		CaptureRecorder old;
+		synchronized(this) {
+			old = recorder;
+			recorder = new CaptureRecorder(file);
+			captureOutbound = outbound;
+		}
+		if(old != null) old.close();
+		log.info("capturing to {}", file.getPath());
+	}
+	
+	/**
+	 * Stops recording and finishes the capture file.
+	 */
+	public void stopCapture() throws IOException {
+		CaptureRecorder old;
+		synchronized(this) {
+			old = recorder;
+			recorder = null;
+		}
+		if(old != null) {
+			old.close();
+			log.info("capture to {} finished", old.getFile().getPath());
+		}
+	}
+	
+	public boolean isCapturing() {
+		return recorder != null;
+	}
+	
+	/**
+	 * Sends the remaining bytes of the buffer.  On a live connection, the
+	 * bytes are queued and this method returns without waiting for the
+	 * socket.
+	 */
 	synchronized public int write(ByteBuffer buf) throws IOException {
 		if(channel == null) throw new IOException("not connected");
-		int writtenThisMethod = 0;
-		while(buf.hasRemaining()) {
-			int writtenThisLoop = channel.write(buf);
-			writtenThisMethod += writtenThisLoop;
-			totalBytesWritten += writtenThisLoop;
+		CaptureRecorder recorder = this.recorder;
+		if(recorder != null && captureOutbound) recorder.record(buf, true);
+		int len = buf.remaining();
+		latency.written();
+		if(session != null) {
+			session.send(buf);
 		}
-		return writtenThisMethod;
+		else {
+			while(buf.hasRemaining()) channel.write(buf);
+		}
+		totalBytesWritten += len;
+		return len;
 	}
 	
+	/**
+	 * Sends the low byte of each char in the sequence, which may be of any
+	 * length.
+	 */
 	synchronized public int write(CharSequence seq) throws IOException {
-		// FIXME: do in chunks if seq.length() > writeBuffer.remaining();
 		if(channel == null) throw new IOException("not connected");
+		if(session != null && (recorder == null || !captureOutbound)) {
+			latency.written();
+			session.send(seq);
+			totalBytesWritten += seq.length();
+			return seq.length();
+		}
 		int len = seq.length();
-		for(int i = 0; i < len; ++i) {
-			writeBuffer.put((byte) seq.charAt(i));
+		int i = 0;
+		while(i < len) {
+			int end = i + Math.min(writeBuffer.remaining(), len - i);
+			while(i < end) writeBuffer.put((byte) seq.charAt(i++));
+			writeBuffer.flip();
+			write(writeBuffer);
+			writeBuffer.clear();
 		}
-		writeBuffer.flip();
-		int written = write(writeBuffer);
-		writeBuffer.clear();
-		return written;
+		return len;
+	}
+	
+	/**
+	 * Records the arrival of a major prompt for the latency statistics.
+	 * Called by the script manager as it fires the prompt's event.
+	 */
+	public void promptArrived() {
+		latency.prompt();
+	}
+	
+	/**
+	 * Returns the round trip, think time, and parse delay statistics.
+	 */
+	public LatencyStats getLatencyStats() {
+		return latency;
+	}
+	
+	/**
+	 * Returns the network pipeline's counters.
+	 */
+	public NetworkStats getStats() {
+		return stats;
 	}
 	
-	synchronized public int getTotalBytesWritten() {
+	public int getTotalBytesWritten() {
 		return totalBytesWritten;
 	}
 }
@@ -0,0 +1,137 @@
+package krum.weaponm.network;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes a session's network and latency statistics over JMX.  Each
+ * session registers as <tt>krum.weaponm:type=Network,session=</tt><i>n</i>.
+ */
+class NetworkMonitor implements NetworkMonitorMBean {
+	private static final Logger log = LoggerFactory.getLogger(NetworkMonitor.class);
+	private static int SESSION_COUNTER;
+
+	private final NetworkStats stats;
+	private final LatencyStats latency;
+	private ObjectName name;
+
+	NetworkMonitor(NetworkStats stats, LatencyStats latency) {
+		this.stats = stats;
+		this.latency = latency;
+	}
+
+	void register() {
+		try {
+			synchronized(NetworkMonitor.class) {
+				name = new ObjectName("krum.weaponm:type=Network,session=" + SESSION_COUNTER);
+				++SESSION_COUNTER;
+			}
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		} catch(JMException e) {
+			log.warn("could not register network MBean", e);
+			name = null;
+		}
+	}
+
+	void unregister() {
+		if(name == null) return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.unregisterMBean(name);
+		} catch(JMException e) {
+			log.warn("could not unregister network MBean", e);
+		}
+		name = null;
+	}
+
+	@Override
+	public long getReads() {
+		return stats.getReads();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return stats.getBytesRead();
+	}
+
+	@Override
+	public double getMeanBytesPerRead() {
+		return stats.getMeanBytesPerRead();
+	}
+
+	@Override
+	public int getReadBufferSize() {
+		return stats.getReadBufferSize();
+	}
+
+	@Override
+	public long getParserUnderflows() {
+		return stats.parser.getUnderflows();
+	}
+
+	@Override
+	public long getEmulationUnderflows() {
+		return stats.emulation.getUnderflows();
+	}
+
+	@Override
+	public long getPrompts() {
+		return latency.getPrompts();
+	}
+
+	@Override
+	public double getRoundTripMeanMillis() {
+		return latency.getRoundTrip().getMean() / 1e6;
+	}
+
+	@Override
+	public double getRoundTrip50thMillis() {
+		return latency.getRoundTrip().getValueAtPercentile(50) / 1e6;
+	}
+
+	@Override
+	public double getRoundTrip99thMillis() {
+		return latency.getRoundTrip().getValueAtPercentile(99) / 1e6;
+	}
+
+	@Override
+	public double getRoundTripMaxMillis() {
+		return latency.getRoundTrip().getMax() / 1e6;
+	}
+
+	@Override
+	public double getParseDelay50thMillis() {
+		return latency.getParseDelay().getValueAtPercentile(50) / 1e6;
+	}
+
+	@Override
+	public double getParseDelay99thMillis() {
+		return latency.getParseDelay().getValueAtPercentile(99) / 1e6;
+	}
+
+	@Override
+	public double getThinkTime50thMillis() {
+		return latency.getThinkTime().getValueAtPercentile(50) / 1e6;
+	}
+
+	@Override
+	public double getThinkTime99thMillis() {
+		return latency.getThinkTime().getValueAtPercentile(99) / 1e6;
+	}
+
+	@Override
+	public double getMeanBytesPerPrompt() {
+		return latency.getBytesPerPrompt().getMean();
+	}
+
+	@Override
+	public void resetLatency() {
+		latency.reset();
+	}
+}
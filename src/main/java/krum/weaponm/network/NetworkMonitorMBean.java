@@ -0,0 +1,25 @@
+package krum.weaponm.network;
+
+/**
+ * The management interface of a session's network statistics.  Times are
+ * in milliseconds.
+ */
+public interface NetworkMonitorMBean {
+	public long getReads();
+	public long getBytesRead();
+	public double getMeanBytesPerRead();
+	public int getReadBufferSize();
+	public long getParserUnderflows();
+	public long getEmulationUnderflows();
+	public long getPrompts();
+	public double getRoundTripMeanMillis();
+	public double getRoundTrip50thMillis();
+	public double getRoundTrip99thMillis();
+	public double getRoundTripMaxMillis();
+	public double getParseDelay50thMillis();
+	public double getParseDelay99thMillis();
+	public double getThinkTime50thMillis();
+	public double getThinkTime99thMillis();
+	public double getMeanBytesPerPrompt();
+	public void resetLatency();
+}
@@ -0,0 +1,140 @@
+package krum.weaponm.network;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One thread that reads the sockets of every connected session in the
+ * process.  Each session still has its own data parser, database, and
+ * emulation, fed through its own {@link Pipeline}.  If a session's pipeline
+ * falls a full ring behind, the selector stops reading that socket until
+ * the pipeline catches up, so one slow session never holds up the others.
+ * Output is sent by this thread too, so no writer ever waits on a socket.
+ * <p>
+ * Connecting and disconnecting can block, so they are done on pooled worker
+ * threads that exit when idle.
+ */
+public class NetworkSelector implements Runnable {
+	private static final Logger log = LoggerFactory.getLogger(NetworkSelector.class);
+	private static final long STALL_RETRY_MILLIS = 10;
+	private static NetworkSelector defaultSelector;
+
+	private final Selector selector;
+	private final ExecutorService workers;
+	private final Queue<SelectorSession> pending = new ConcurrentLinkedQueue<SelectorSession>();
+	private final Queue<SelectorSession> flushRequests = new ConcurrentLinkedQueue<SelectorSession>();
+	// selector thread only
+	private final List<SelectorSession> stalled = new ArrayList<SelectorSession>();
+	private final List<SelectorSession> flushes = new ArrayList<SelectorSession>();
+	private volatile int sessions;
+
+	/**
+	 * Returns the selector shared by all sessions in this process, starting
+	 * it if necessary.
+	 */
+	synchronized public static NetworkSelector getDefault() throws IOException {
+		if(defaultSelector == null) defaultSelector = new NetworkSelector();
+		return defaultSelector;
+	}
+
+	protected NetworkSelector() throws IOException {
+		selector = Selector.open();
+		workers = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Network-worker-" + counter.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		Thread thread = new Thread(this, "Network-selector");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the number of sessions whose sockets are being read.
+	 */
+	public int getSessionCount() {
+		return sessions;
+	}
+
+	// runs a task that may block
+	void execute(Runnable task) {
+		workers.execute(task);
+	}
+
+	// called by a session once its socket is connected
+	void register(SelectorSession session) {
+		pending.add(session);
+		selector.wakeup();
+	}
+
+	// called by a session with newly queued output
+	void requestFlush(SelectorSession session) {
+		flushRequests.add(session);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		log.info("network selector started");
+		while(true) {
+			try {
+				long timeout = stalled.isEmpty() ? 0 : STALL_RETRY_MILLIS;
+				long now = System.nanoTime();
+				for(SelectorSession flush : flushes) {
+					long wait = Math.max(1, (flush.getFlushDue() - now + 999999) / 1000000);
+					if(timeout == 0 || wait < timeout) timeout = wait;
+				}
+				selector.select(timeout);
+				SelectorSession session;
+				while((session = pending.poll()) != null) {
+					session.register(selector);
+				}
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					session = (SelectorSession) key.attachment();
+					if(key.isValid() && key.isReadable() && !session.readable()) stalled.add(session);
+					if(key.isValid() && key.isWritable()) session.flush();
+				}
+				while((session = flushRequests.poll()) != null) {
+					flushes.add(session);
+				}
+				now = System.nanoTime();
+				Iterator<SelectorSession> flushIt = flushes.iterator();
+				while(flushIt.hasNext()) {
+					session = flushIt.next();
+					if(session.getFlushDue() - now <= 0) {
+						flushIt.remove();
+						session.flush();
+					}
+				}
+				Iterator<SelectorSession> stalledIt = stalled.iterator();
+				while(stalledIt.hasNext()) {
+					if(stalledIt.next().retry()) stalledIt.remove();
+				}
+				sessions = selector.keys().size();
+			} catch(Throwable t) {
+				log.error("network selector error", t);
+			}
+		}
+	}
+}
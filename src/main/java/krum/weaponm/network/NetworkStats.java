@@ -0,0 +1,102 @@
+package krum.weaponm.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the network pipeline, accumulated across connections.  They
+ * are updated without locking by the reader and the pipeline
+ * stages, so a snapshot taken while connected may be slightly inconsistent.
+ */
+public class NetworkStats {
+	final AtomicLong reads = new AtomicLong();
+	final AtomicLong bytesRead = new AtomicLong();
+	final AtomicLong bufferGrowths = new AtomicLong();
+	final AtomicLong bufferShrinks = new AtomicLong();
+	volatile int readBufferSize = NetworkManager.BUFFER_SIZE;
+	final StageStats parser = new StageStats();
+	final StageStats emulation = new StageStats();
+
+	/**
+	 * Returns the number of socket reads that returned data.
+	 */
+	public long getReads() {
+		return reads.get();
+	}
+
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	public double getMeanBytesPerRead() {
+		long n = reads.get();
+		return n == 0 ? 0 : (double) bytesRead.get() / n;
+	}
+
+	/**
+	 * Returns the current size of the read buffer, which grows under
+	 * sustained bursts and shrinks when input is light.
+	 */
+	public int getReadBufferSize() {
+		return readBufferSize;
+	}
+
+	public long getBufferGrowths() {
+		return bufferGrowths.get();
+	}
+
+	public long getBufferShrinks() {
+		return bufferShrinks.get();
+	}
+
+	public StageStats getParserStats() {
+		return parser;
+	}
+
+	public StageStats getEmulationStats() {
+		return emulation;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d reads, %d bytes (%.1f bytes/read), buffer %d bytes (%d growths, %d shrinks); parser %s; emulation %s",
+				getReads(), getBytesRead(), getMeanBytesPerRead(), readBufferSize, getBufferGrowths(), getBufferShrinks(),
+				parser, emulation);
+	}
+
+	/**
+	 * Counters for one pipeline stage.
+	 */
+	public static class StageStats {
+		final AtomicLong passes = new AtomicLong();
+		final AtomicLong underflows = new AtomicLong();
+		final AtomicLong coalesced = new AtomicLong();
+
+		/**
+		 * Returns the number of times the stage handed input to its lexer.
+		 */
+		public long getPasses() {
+			return passes.get();
+		}
+
+		/**
+		 * Returns the number of lex passes that ended mid-token and had to be
+		 * restarted when more input arrived.
+		 */
+		public long getUnderflows() {
+			return underflows.get();
+		}
+
+		/**
+		 * Returns the number of times the stage waited for more input to
+		 * finish a line before lexing.
+		 */
+		public long getCoalesced() {
+			return coalesced.get();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d passes, %d underflows, %d coalesced", getPasses(), getUnderflows(), getCoalesced());
+		}
+	}
+}
@@ -1,44 +1,44 @@
 package krum.weaponm.network;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.ClosedByInterruptException;
-import java.nio.channels.SocketChannel;
 
 import javax.swing.JOptionPane;
 
-import krum.jplex.UnderflowException;
-import krum.weaponm.WeaponM;
 import krum.weaponm.database.DataParser;
-import krum.weaponm.database.LoginOptions;
-import krum.weaponm.emulation.Emulation;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-// thread's job is to read from network and write to db & emu
-public class NetworkThread extends Thread {
+/**
+ * A thread that reads a blocking channel and feeds the parser and emulation
+ * stages.  Live connections are read by the {@link NetworkSelector}
+ * instead; this is for channels that cannot be selected, such as a replay.
+ */
+public abstract class NetworkThread extends Thread {
 	protected static final Logger log = LoggerFactory.getLogger(NetworkThread.class);
 	protected static int NAME_COUNTER;
 
 	protected final NetworkManager manager;
 	protected final DataParser parser;
-	protected final Emulation emulation;
-	protected final ByteBuffer readBuffer = ByteBuffer.allocateDirect(NetworkManager.BUFFER_SIZE);
-	protected final CharBuffer parserBuffer = CharBuffer.allocate(NetworkManager.BUFFER_SIZE);
-	protected final CharBuffer emulationBuffer = CharBuffer.allocate(NetworkManager.BUFFER_SIZE);
-	protected SocketChannel channel;
+	protected ByteChannel channel;
+	private final Pipeline pipeline;
 	
 	public NetworkThread(NetworkManager manager) {
 		this.manager = manager;
 		parser = manager.weapon.dbm.getDataParser();
-		emulation = manager.weapon.emulation;
 		synchronized(NetworkThread.class) {
 			setName("Network-" + NAME_COUNTER);
 			++NAME_COUNTER;
 		}
+		pipeline = new Pipeline(manager, getName(), new Runnable() {
+			@Override
+			public void run() {
+				interrupt();
+			}
+		});
 	}
 	
 	@Override
@@ -47,13 +47,9 @@ public class NetworkThread extends Thread {
 		
 		// establish connection
 		try {
-			LoginOptions options = manager.weapon.dbm.getDatabase().getLoginOptions();
-			channel = SocketChannel.open(new InetSocketAddress(options.getHost(), options.getPort()));
-			channel.configureBlocking(true);
+			channel = openChannel();
 			synchronized(manager) {
 				manager.channel = channel;		
-				// this satisfies TWGS we're a proper Telnet client
-				manager.write("\u00FF\u00FC\u00F6");
 			}
 			parser.reset();
 		} catch(IOException e) {
@@ -68,85 +64,48 @@ public class NetworkThread extends Thread {
 				notify();
 			}
 		}
+		pipeline.start();
 
 		// main loop
+		boolean endOfInput = false;
 		try {
 			while(!isInterrupted()) {
+				ByteBuffer readBuffer = pipeline.getReadBuffer();
 				int bytesRead = channel.read(readBuffer);
 				//log.debug("bytes read: {}", bytesRead);
-				//System.err.println("bytes read: " + bytesRead);
-				if(bytesRead == -1) break;
-				
-				// convert and copy buffers
-				readBuffer.flip();
-				int limit = Math.min(parserBuffer.remaining(), emulationBuffer.remaining());
-				limit = Math.min(limit, readBuffer.remaining());
-				for(int i = 0; i < limit; ++i) {
-					char c = (char)(readBuffer.get() & 0xff);
-					parserBuffer.put(c);
-					emulationBuffer.put(c);
-					//System.err.print(c);
+				if(bytesRead == -1) {
+					endOfInput = true;
+					break;
 				}
-				//System.err.println("~");
-				readBuffer.compact();
 				
-				// write to data parser
-				parserBuffer.flip();
-				try {
-					int pos = parserBuffer.position();
-					while(parserBuffer.hasRemaining()) {
-						pos += parser.parse(parserBuffer, 0, parserBuffer.length(), false);
-						//pos += parser.parse(parserBuffer, 0, parserBuffer.length(), true);
-						parserBuffer.position(pos);
-					}
-				}
-				catch(UnderflowException e) {
-					// this is normal...
-					if(parserBuffer.length() == parserBuffer.capacity()) {
-						// ...but if *this* ever happens, something
-						// is seriously wrong with the lexer rules
-						throw e;
-					}
-				}
-				parserBuffer.compact();
-				
-				// write to emulation
-				emulationBuffer.flip();
-				try {
-					//System.out.println("writing " + emulationBuffer.remaining() + " chars to emulation");
-					int pos = emulationBuffer.position();
-					while(emulationBuffer.hasRemaining()) {
-						//pos += emulation.write(emulationBuffer, 0, emulationBuffer.length(), false);
-						int written = emulation.write(emulationBuffer, 0, emulationBuffer.length(), false);
-						pos += written;
-						if(WeaponM.DEBUG_ANSI) {
-							// convert and print chars parsed
-							System.err.print(AnsiConverter.convert(emulationBuffer, 0, written));
-						}
-						emulationBuffer.position(pos);
-					}
-				}
-				catch(UnderflowException e) {
-					//System.out.println("emulation underflow - buffer contains: " + emulationBuffer);
-					// this is normal...
-					if(emulationBuffer.length() == emulationBuffer.capacity()) {
-						// ...but if *this* ever happens, something
-						// is seriously wrong with the lexer rules
-						throw e;
-					}
-				}
-				emulationBuffer.compact();
+				// blocks only if a stage falls a full ring behind
+				readBuffer.flip();
+				CaptureRecorder recorder = manager.recorder;
+				if(recorder != null) recorder.record(readBuffer, false);
+				pipeline.write(readBuffer);
+				readBuffer.clear();
+				pipeline.adapt(bytesRead);
 			}
 		} catch(ClosedByInterruptException e) {
 			// this is the normal result of a commanded disconnect
+		} catch(InterruptedException e) {
+			// disconnected while waiting for a stage
 		} catch(Throwable t) {
-			log.error("unspecified error", t);
-			String msg = t.getMessage();
-			if(msg == null) msg = t.getClass().getName();
-			manager.weapon.gui.threadSafeMessageDialog(msg, "Error", JOptionPane.ERROR_MESSAGE);
+			manager.reportError(t);
 		} finally {
+			pipeline.stop(endOfInput);
+			if(pipeline.getError() != null) manager.reportError(pipeline.getError());
 			manager.disconnect();
 			log.info("network thread exiting");
 		}
-	}	
+	}
+	
+	Pipeline getPipeline() {
+		return pipeline;
+	}
+	
+	/**
+	 * Opens the channel from which the game is read.
+	 */
+	protected abstract ByteChannel openChannel() throws IOException;
 }
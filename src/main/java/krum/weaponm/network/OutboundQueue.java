@@ -0,0 +1,111 @@
+package krum.weaponm.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Bytes waiting to be sent to the game server, held in pooled direct
+ * buffers of {@link #CHUNK_SIZE} bytes.  Writers append text of any length
+ * under the queue's lock without touching the socket.  The selector thread
+ * takes everything queued at once and sends it with gathering writes, so
+ * a burst of keystrokes or a long macro goes out in as few writes as the
+ * socket allows.
+ */
+class OutboundQueue {
+	static final int CHUNK_SIZE = NetworkManager.BUFFER_SIZE;
+	private static final int MAX_POOLED = 16;
+
+	private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<ByteBuffer>();
+	private final ArrayDeque<ByteBuffer> filled = new ArrayDeque<ByteBuffer>(); // in write mode
+	// selector thread only
+	private ByteBuffer[] sending = new ByteBuffer[8];
+	private int sendOffset;
+	private int sendCount;
+
+	/**
+	 * Appends the low byte of each char.
+	 */
+	synchronized void put(CharSequence seq) {
+		int len = seq.length();
+		int i = 0;
+		while(i < len) {
+			ByteBuffer buf = tail();
+			int end = i + Math.min(buf.remaining(), len - i);
+			while(i < end) buf.put((byte) seq.charAt(i++));
+		}
+	}
+
+	/**
+	 * Appends the remaining bytes of the buffer.
+	 */
+	synchronized void put(ByteBuffer src) {
+		while(src.hasRemaining()) {
+			ByteBuffer buf = tail();
+			if(src.remaining() <= buf.remaining()) {
+				buf.put(src);
+			}
+			else {
+				int limit = src.limit();
+				src.limit(src.position() + buf.remaining());
+				buf.put(src);
+				src.limit(limit);
+			}
+		}
+	}
+
+	// returns a chunk with room in it
+	private ByteBuffer tail() {
+		ByteBuffer buf = filled.peekLast();
+		if(buf == null || !buf.hasRemaining()) {
+			buf = pool.isEmpty() ? ByteBuffer.allocateDirect(CHUNK_SIZE) : pool.pollLast();
+			filled.add(buf);
+		}
+		return buf;
+	}
+
+	/**
+	 * Writes as much as the channel will take without blocking.  Called only
+	 * by the selector thread.
+	 *
+	 * @return true if everything queued has been written
+	 */
+	boolean flush(GatheringByteChannel channel) throws IOException {
+		if(sendOffset == sendCount) take();
+		while(sendOffset < sendCount) {
+			channel.write(sending, sendOffset, sendCount - sendOffset);
+			int drained = sendOffset;
+			while(drained < sendCount && !sending[drained].hasRemaining()) ++drained;
+			recycle(drained);
+			if(sendOffset < sendCount) return false; // socket buffer is full
+			take();
+		}
+		return true;
+	}
+
+	// moves the filled chunks to the sending array
+	private synchronized void take() {
+		int count = filled.size();
+		if(sending.length < count) sending = Arrays.copyOf(sending, Integer.highestOneBit(count) << 1);
+		for(int i = 0; i < count; ++i) {
+			ByteBuffer buf = filled.poll();
+			buf.flip();
+			sending[i] = buf;
+		}
+		sendOffset = 0;
+		sendCount = count;
+	}
+
+	// returns sent chunks to the pool
+	private synchronized void recycle(int drained) {
+		for(int i = sendOffset; i < drained; ++i) {
+			ByteBuffer buf = sending[i];
+			sending[i] = null;
+			buf.clear();
+			if(pool.size() < MAX_POOLED) pool.add(buf);
+		}
+		sendOffset = drained;
+	}
+}
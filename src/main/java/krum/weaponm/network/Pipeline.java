@@ -0,0 +1,226 @@
+package krum.weaponm.network;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+
+import krum.jplex.UnderflowException;
+import krum.weaponm.WeaponM;
+import krum.weaponm.database.DataParser;
+import krum.weaponm.database.lexer.DataEventListener;
+import krum.weaponm.emulation.Emulation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The receiving side of one connection: a read buffer, and the ring that
+ * carries what is read to the data parser and emulation stages.  Whoever
+ * reads the channel, a {@link NetworkThread} or the {@link NetworkSelector},
+ * fills the read buffer, passes it to the ring, and reports the size of
+ * each read so the buffer can adapt to the input.
+ */
+class Pipeline {
+	private static final Logger log = LoggerFactory.getLogger(Pipeline.class);
+	private static final long STAGE_JOIN_MILLIS = 1000;
+	private static final int RING_SIZE = 1 << 20;
+	private static final int MAX_READ_BUFFER_SIZE = 1 << 16;
+	private static final int GROW_AFTER_FULL_READS = 2;
+	private static final int SHRINK_AFTER_SHORT_READS = 16;
+
+	private final NetworkStats stats;
+	private final LatencyStats latency;
+	private final DataParser parser;
+	private final Runnable onFailure;
+	private final ByteRing ring = new ByteRing(RING_SIZE, 2);
+	final ArrivalLog arrivals = new ArrivalLog();
+	private final PipelineStage parserStage;
+	private final PipelineStage emulationStage;
+	private ByteBuffer readBuffer = ByteBuffer.allocateDirect(NetworkManager.BUFFER_SIZE);
+	private int fullReads;
+	private int shortReads;
+	private volatile boolean bursting;
+	private volatile Throwable error;
+	// registered after the data parser's own listener, so it sees each event
+	// after any major prompt it caused
+	private final DataEventListener arrivalListener = (DataEventListener) Proxy.newProxyInstance(
+			DataEventListener.class.getClassLoader(),
+			new Class<?>[] { DataEventListener.class },
+			new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if(method.getDeclaringClass() == Object.class) {
+						if("equals".equals(method.getName())) return proxy == args[0];
+						if("hashCode".equals(method.getName())) return System.identityHashCode(proxy);
+						return "Pipeline arrival listener";
+					}
+					if(latency.isAwaitingArrival()) latency.promptArrival(arrivalOf(args));
+					return null;
+				}
+			});
+
+	/**
+	 * @param name the prefix of the stage threads' names
+	 * @param onFailure run on the failing stage's thread if a stage throws
+	 */
+	Pipeline(NetworkManager manager, String name, Runnable onFailure) {
+		this.stats = manager.stats;
+		this.latency = manager.getLatencyStats();
+		this.onFailure = onFailure;
+		final DataParser parser = this.parser = manager.weapon.dbm.getDataParser();
+		final Emulation emulation = manager.weapon.emulation;
+		parserStage = new PipelineStage(this, name + "-parser", ring, 0, stats.parser, true) {
+			@Override
+			protected int process(CharSequence seq, int off, int len) throws UnderflowException {
+				arrivals.discard(((Latin1Sequence) seq).position(off));
+				return parser.parse(seq, off, len, false);
+			}
+		};
+		emulationStage = new PipelineStage(this, name + "-emulation", ring, 1, stats.emulation, false) {
+			@Override
+			protected int process(CharSequence seq, int off, int len) throws UnderflowException {
+				int written = emulation.write(seq, off, len, false);
+				if(WeaponM.DEBUG_ANSI) {
+					// convert and print chars parsed
+					System.err.print(AnsiConverter.convert(seq, off, written));
+				}
+				return written;
+			}
+		};
+	}
+
+	void start() {
+		stats.readBufferSize = readBuffer.capacity();
+		parser.addEventListener(arrivalListener);
+		parserStage.start();
+		emulationStage.start();
+	}
+
+	/**
+	 * Returns the buffer to read into.  The buffer may be replaced after each
+	 * call to {@link #adapt(int)}.
+	 */
+	ByteBuffer getReadBuffer() {
+		return readBuffer;
+	}
+
+	/**
+	 * Copies the flipped read buffer into the ring, waiting if a stage has
+	 * fallen a full ring behind.
+	 */
+	void write(ByteBuffer buf) throws InterruptedException {
+		long now = System.nanoTime();
+		ring.write(buf);
+		arrivals.arrived(ring.getHead(), now);
+	}
+
+	/**
+	 * Copies as much of the flipped read buffer into the ring as fits without
+	 * waiting.
+	 *
+	 * @return true if the buffer was emptied
+	 */
+	boolean offer(ByteBuffer buf) {
+		if(ring.offer(buf) > 0) arrivals.arrived(ring.getHead(), System.nanoTime());
+		return !buf.hasRemaining();
+	}
+
+	/**
+	 * Counts a read and resizes the read buffer if necessary.  Call after the
+	 * read buffer has been passed to the ring and cleared.
+	 */
+	void adapt(int bytesRead) {
+		stats.reads.incrementAndGet();
+		stats.bytesRead.addAndGet(bytesRead);
+
+		// grow the buffer under sustained bursts, shrink it when input is light
+		int capacity = readBuffer.capacity();
+		bursting = bytesRead == capacity;
+		if(bytesRead == capacity) {
+			shortReads = 0;
+			if(++fullReads >= GROW_AFTER_FULL_READS && capacity < MAX_READ_BUFFER_SIZE) {
+				resizeReadBuffer(capacity * 2);
+				stats.bufferGrowths.incrementAndGet();
+				fullReads = 0;
+			}
+		}
+		else if(bytesRead < capacity / 4) {
+			fullReads = 0;
+			if(++shortReads >= SHRINK_AFTER_SHORT_READS && capacity > NetworkManager.BUFFER_SIZE) {
+				resizeReadBuffer(capacity / 2);
+				stats.bufferShrinks.incrementAndGet();
+				shortReads = 0;
+			}
+		}
+		else {
+			fullReads = shortReads = 0;
+		}
+	}
+
+	/**
+	 * Returns true if the last read filled the read buffer, so more input is
+	 * probably waiting.
+	 */
+	boolean isBursting() {
+		return bursting;
+	}
+
+	/**
+	 * Returns when the read that completed a lexer event arrived, or zero if
+	 * it is unknown.  Called by the parser stage with the event's arguments.
+	 */
+	long arrivalOf(Object[] args) {
+		if(args == null || args.length < 3 || !(args[0] instanceof Latin1Sequence)) return 0;
+		int off = (Integer) args[1];
+		int len = (Integer) args[2];
+		return arrivals.arrivalOf(((Latin1Sequence) args[0]).position(off + len));
+	}
+
+	private void resizeReadBuffer(int capacity) {
+		readBuffer = ByteBuffer.allocateDirect(capacity);
+		stats.readBufferSize = capacity;
+		log.debug("read buffer resized to {} bytes", capacity);
+	}
+
+	/**
+	 * Returns what a stage threw, if anything.
+	 */
+	Throwable getError() {
+		return error;
+	}
+
+	// called by a stage that failed
+	void stageFailed(Throwable t) {
+		error = t;
+		onFailure.run();
+	}
+
+	/**
+	 * Stops the stages.  At the end of the input, they are allowed to finish
+	 * what remains in the ring; otherwise they are interrupted.  Preserves
+	 * the calling thread's interrupt status.
+	 */
+	void stop(boolean endOfInput) {
+		ring.close();
+		parser.removeEventListener(arrivalListener);
+		if(!endOfInput || error != null) {
+			parserStage.interrupt();
+			emulationStage.interrupt();
+		}
+		boolean interrupted = Thread.interrupted();
+		try {
+			if(endOfInput) {
+				parserStage.join();
+				emulationStage.join();
+			}
+			else {
+				parserStage.join(STAGE_JOIN_MILLIS);
+				emulationStage.join(STAGE_JOIN_MILLIS);
+			}
+		} catch(InterruptedException e) {
+			interrupted = true;
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+	}
+}
@@ -0,0 +1,99 @@
+package krum.weaponm.network;
+
+import krum.jplex.UnderflowException;
+
+/**
+ * A consumer thread of the network pipeline.  The reader writes
+ * every byte it reads into a ring shared by all the stages; each stage lexes
+ * the bytes in place through its own cursor and {@link Latin1Sequence}, so
+ * a slow script handler in the data parser stalls neither the socket nor the
+ * terminal.
+ * <p>
+ * A burst such as a CIM download arrives over many reads.  Rather than lex
+ * each read as it comes and restart the token it splits, a stage that
+ * coalesces waits briefly for the rest of a partial line before lexing.  It
+ * waits only during a burst, meaning the last read filled the read buffer or
+ * the last pass ended in the middle of a token, because prompts and echoed
+ * keystrokes also end without a newline and must not be delayed.
+ */
+abstract class PipelineStage extends Thread {
+	private static final long COALESCE_NANOS = 2000000L;
+	private static final int COALESCE_LIMIT = 1 << 16;
+
+	private final Pipeline owner;
+	private final ByteRing ring;
+	private final ByteRing.Cursor cursor;
+	private final Latin1Sequence seq;
+	private final NetworkStats.StageStats stats;
+	private final boolean coalesce;
+
+	/**
+	 * @param coalesce true to wait for the rest of partial lines during bursts
+	 */
+	PipelineStage(Pipeline owner, String name, ByteRing ring, int consumer, NetworkStats.StageStats stats, boolean coalesce) {
+		super(name);
+		this.owner = owner;
+		this.coalesce = coalesce;
+		this.ring = ring;
+		cursor = ring.getCursor(consumer);
+		seq = new Latin1Sequence(ring);
+		this.stats = stats;
+		setDaemon(true);
+	}
+
+	/**
+	 * Lexes chars from the sequence.
+	 *
+	 * @return the number of chars consumed
+	 */
+	protected abstract int process(CharSequence seq, int off, int len) throws UnderflowException;
+
+	@Override
+	public void run() {
+		try {
+			long pos = cursor.getPosition();
+			long head = pos;
+			boolean underflowed = false;
+			while((head = cursor.await(head)) != -1) {
+				if(coalesce && (underflowed || owner.isBursting())) head = coalesce(pos, head);
+				underflowed = false;
+				try {
+					while(pos < head) {
+						seq.set(pos, (int) (head - pos));
+						stats.passes.incrementAndGet();
+						pos += process(seq, 0, seq.length());
+					}
+				}
+				catch(UnderflowException e) {
+					stats.underflows.incrementAndGet();
+					underflowed = true;
+					// this is normal...
+					if(head - pos == ring.capacity()) {
+						// ...but if *this* ever happens, something
+						// is seriously wrong with the lexer rules
+						throw e;
+					}
+				}
+				cursor.release(pos);
+			}
+		} catch(InterruptedException e) {
+			// disconnected
+		} catch(Throwable t) {
+			owner.stageFailed(t);
+		}
+	}
+
+	// waits for the rest of a partial line, within limits
+	private long coalesce(long pos, long head) throws InterruptedException {
+		if(cursor.endsLine(head)) return head;
+		stats.coalesced.incrementAndGet();
+		long deadline = System.nanoTime() + COALESCE_NANOS;
+		long wait;
+		while(!cursor.endsLine(head) && head - pos < COALESCE_LIMIT && (wait = deadline - System.nanoTime()) > 0) {
+			long next = cursor.await(head, wait);
+			if(next == head) break;
+			head = next;
+		}
+		return head;
+	}
+}
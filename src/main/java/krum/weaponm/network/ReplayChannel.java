@@ -0,0 +1,94 @@
+package krum.weaponm.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * A channel that stands in for the game server's socket during a replay.
+ * Reads return the chunks of a capture, either at their recorded times
+ * or as fast as they are consumed.  Writes are discarded.
+ */
+class ReplayChannel implements ByteChannel {
+	private final CaptureReader reader;
+	private final double speed;
+	private final ReplayStats stats;
+	private final long toMillis;
+	private long startNanos;
+	private long startElapsed;
+	private int offset;
+	private boolean open = true;
+
+	/**
+	 * @param speed the playback speed relative to the recorded timing, e.g.,
+	 * 2.0 for double speed; 0 to replay as fast as possible
+	 * @param fromMillis the capture time at which to start
+	 * @param toMillis the capture time at which to stop; 0 for the end
+	 */
+	ReplayChannel(CaptureReader reader, double speed, long fromMillis, long toMillis, ReplayStats stats) throws IOException {
+		this.reader = reader;
+		this.speed = speed;
+		this.toMillis = toMillis;
+		this.stats = stats;
+		if(fromMillis > 0) reader.seek(fromMillis);
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if(!open) throw new ClosedChannelException();
+		if(offset == reader.getLength()) {
+			if(!reader.next()) return -1;
+			if(toMillis > 0 && reader.getElapsed() > toMillis) return -1;
+			offset = 0;
+			pace(reader.getElapsed());
+		}
+		int n = Math.min(dst.remaining(), reader.getLength() - offset);
+		dst.put(reader.getChunk(), reader.getOffset() + offset, n);
+		offset += n;
+		stats.bytesArrived(n);
+		return n;
+	}
+
+	// sleeps until the chunk's recorded time
+	private void pace(long elapsedMillis) throws IOException {
+		if(speed <= 0 || !reader.isTimed()) return;
+		if(startNanos == 0) {
+			startNanos = System.nanoTime();
+			startElapsed = elapsedMillis;
+		}
+		long due = startNanos + (long) ((elapsedMillis - startElapsed) * 1000000L / speed);
+		try {
+			long wait;
+			while((wait = due - System.nanoTime()) > 0) {
+				Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+			}
+		} catch(InterruptedException e) {
+			close();
+			Thread.currentThread().interrupt();
+			throw new ClosedByInterruptException();
+		}
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		if(!open) throw new ClosedChannelException();
+		int n = src.remaining();
+		src.position(src.limit());
+		return n;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(open) {
+			open = false;
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package krum.weaponm.network;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.TreeMap;
+
+import krum.weaponm.database.lexer.DataEventListener;
+
+/**
+ * Throughput and latency statistics for a session replay.  Event latency
+ * is measured from the arrival of the chunk that completed the event to the
+ * return of the data parser's handler, so it covers lexing and parsing.
+ * In a timed replay it also covers any time the bytes spent waiting behind
+ * earlier input.
+ */
+public class ReplayStats {
+	private long startNanos;
+	private long endNanos;
+	private long bytes;
+	private long events;
+	// set by the replay thread before the replay starts
+	volatile Pipeline pipeline;
+	private final Map<String, EventStats> eventStats = new TreeMap<String, EventStats>();
+
+	/** Registered with the data parser after its own listener. */
+	final DataEventListener listener = (DataEventListener) Proxy.newProxyInstance(
+			DataEventListener.class.getClassLoader(),
+			new Class<?>[] { DataEventListener.class },
+			new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if(method.getDeclaringClass() == Object.class) {
+						if("equals".equals(method.getName())) return proxy == args[0];
+						if("hashCode".equals(method.getName())) return System.identityHashCode(proxy);
+						return "ReplayStats listener";
+					}
+					Pipeline pipeline = ReplayStats.this.pipeline;
+					event(method.getName(), pipeline == null ? 0 : pipeline.arrivalOf(args));
+					return null;
+				}
+			});
+
+	synchronized void start() {
+		startNanos = System.nanoTime();
+		endNanos = 0;
+	}
+
+	synchronized void finish() {
+		endNanos = System.nanoTime();
+	}
+
+	synchronized void bytesArrived(int count) {
+		bytes += count;
+	}
+
+	synchronized void event(String type, long arrivalNanos) {
+		++events;
+		if(arrivalNanos == 0) return;
+		long latency = System.nanoTime() - arrivalNanos;
+		EventStats stats = eventStats.get(type);
+		if(stats == null) {
+			stats = new EventStats();
+			eventStats.put(type, stats);
+		}
+		++stats.count;
+		stats.totalNanos += latency;
+		if(latency > stats.maxNanos) stats.maxNanos = latency;
+	}
+
+	/**
+	 * Returns the number of bytes replayed.
+	 */
+	synchronized public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns the number of lexer events fired.
+	 */
+	synchronized public long getEvents() {
+		return events;
+	}
+
+	/**
+	 * Returns the duration of the replay so far, in nanoseconds.
+	 */
+	synchronized public long getElapsedNanos() {
+		if(startNanos == 0) return 0;
+		return (endNanos == 0 ? System.nanoTime() : endNanos) - startNanos;
+	}
+
+	synchronized public double getBytesPerSecond() {
+		long elapsed = getElapsedNanos();
+		return elapsed == 0 ? 0 : bytes * 1e9 / elapsed;
+	}
+
+	synchronized public double getEventsPerSecond() {
+		long elapsed = getElapsedNanos();
+		return elapsed == 0 ? 0 : events * 1e9 / elapsed;
+	}
+
+	/**
+	 * Returns a copy of the statistics for each event type, keyed by the
+	 * name of the event.
+	 */
+	synchronized public Map<String, EventStats> getEventStats() {
+		Map<String, EventStats> copy = new TreeMap<String, EventStats>();
+		for(Map.Entry<String, EventStats> entry : eventStats.entrySet()) {
+			copy.put(entry.getKey(), new EventStats(entry.getValue()));
+		}
+		return copy;
+	}
+
+	@Override
+	synchronized public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%d bytes, %d events in %.3f s (%.0f bytes/s, %.0f events/s)",
+				bytes, events, getElapsedNanos() / 1e9, getBytesPerSecond(), getEventsPerSecond()));
+		for(Map.Entry<String, EventStats> entry : eventStats.entrySet()) {
+			EventStats stats = entry.getValue();
+			sb.append(String.format("%n  %-28s %8d  mean %8.1f us  max %8.1f us", entry.getKey(), stats.count,
+					stats.getMeanNanos() / 1e3, stats.maxNanos / 1e3));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Latency statistics for one event type.
+	 */
+	public static class EventStats {
+		private long count;
+		private long totalNanos;
+		private long maxNanos;
+
+		EventStats() { }
+
+		EventStats(EventStats other) {
+			count = other.count;
+			totalNanos = other.totalNanos;
+			maxNanos = other.maxNanos;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMeanNanos() {
+			return count == 0 ? 0 : (double) totalNanos / count;
+		}
+
+		public long getMaxNanos() {
+			return maxNanos;
+		}
+	}
+}
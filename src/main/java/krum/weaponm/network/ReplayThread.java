@@ -0,0 +1,51 @@
+package krum.weaponm.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ByteChannel;
+
+/**
+ * A network thread that reads from a capture file instead of the game
+ * server.  Everything downstream of the channel, including the data parser,
+ * the emulation, and scripts, runs exactly as it does online.
+ */
+class ReplayThread extends NetworkThread {
+	final ReplayStats stats = new ReplayStats();
+	private final File file;
+	private final double speed;
+	private final long fromMillis;
+	private final long toMillis;
+
+	ReplayThread(NetworkManager manager, File file, double speed, long fromMillis, long toMillis) {
+		super(manager);
+		this.file = file;
+		this.speed = speed;
+		this.fromMillis = fromMillis;
+		this.toMillis = toMillis;
+	}
+
+	@Override
+	protected ByteChannel openChannel() throws IOException {
+		CaptureReader reader = new CaptureReader(file);
+		try {
+			return new ReplayChannel(reader, speed, fromMillis, toMillis, stats);
+		} catch(IOException e) {
+			reader.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void run() {
+		stats.pipeline = getPipeline();
+		parser.addEventListener(stats.listener);
+		stats.start();
+		try {
+			super.run();
+		} finally {
+			stats.finish();
+			parser.removeEventListener(stats.listener);
+			log.info("replay of {} finished: {}", file.getPath(), stats);
+		}
+	}
+}
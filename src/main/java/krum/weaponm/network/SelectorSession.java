@@ -0,0 +1,254 @@
+package krum.weaponm.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.JOptionPane;
+
+import krum.weaponm.AppSettings;
+import krum.weaponm.database.LoginOptions;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A live connection read by the {@link NetworkSelector}.  The socket is
+ * connected on a worker thread, then switched to non-blocking mode and
+ * handed to the selector, which reads it into the session's pipeline and
+ * sends what is queued for output.
+ * <p>
+ * Output waits up to the configured write delay before it is sent, so
+ * text written in quick succession is coalesced, much as Nagle's algorithm
+ * would.  With no delay, output is sent as soon as the selector thread gets
+ * to it, which still coalesces whatever was queued in the meantime.
+ */
+class SelectorSession {
+	private static final Logger log = LoggerFactory.getLogger(SelectorSession.class);
+	private static int NAME_COUNTER;
+
+	private final NetworkManager manager;
+	private final NetworkSelector selector;
+	private final String name;
+	private final Pipeline pipeline;
+	private final CountDownLatch connected = new CountDownLatch(1);
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private final OutboundQueue outbound = new OutboundQueue();
+	private final long writeDelayNanos;
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+	private volatile long flushDue;
+	private volatile SocketChannel channel;
+	private volatile SelectionKey key;
+	// selector thread only
+	private int stalledBytes; // size of a read waiting for ring space
+	private boolean readPaused;
+	private boolean writePending;
+
+	SelectorSession(NetworkManager manager, NetworkSelector selector) {
+		this.manager = manager;
+		this.selector = selector;
+		writeDelayNanos = AppSettings.getWriteDelay() * 1000000L;
+		synchronized(SelectorSession.class) {
+			name = "Session-" + NAME_COUNTER;
+			++NAME_COUNTER;
+		}
+		pipeline = new Pipeline(manager, name, new Runnable() {
+			@Override
+			public void run() {
+				close(false);
+			}
+		});
+	}
+
+	void start() {
+		selector.execute(new Runnable() {
+			@Override
+			public void run() {
+				connect();
+			}
+		});
+	}
+
+	/**
+	 * Waits until the connection has been established or has failed.
+	 */
+	void awaitConnected() throws InterruptedException {
+		connected.await();
+	}
+
+	// on a worker thread
+	private void connect() {
+		try {
+			LoginOptions options = manager.weapon.dbm.getDatabase().getLoginOptions();
+			SocketChannel channel = SocketChannel.open(new InetSocketAddress(options.getHost(), options.getPort()));
+			channel.configureBlocking(false);
+			this.channel = channel;
+			// the manager's lock orders this against a disconnect
+			synchronized(manager) {
+				if(closed.get()) {
+					channel.close();
+					return;
+				}
+				manager.channel = channel;
+				// this satisfies TWGS we're a proper Telnet client
+				manager.write("\u00FF\u00FC\u00F6");
+				manager.weapon.dbm.getDataParser().reset();
+				pipeline.start();
+				selector.register(this);
+			}
+			log.info("{} connected to {}:{}", new Object[] { name, options.getHost(), options.getPort() });
+		} catch(IOException e) {
+			log.error("network error", e);
+			manager.weapon.gui.threadSafeMessageDialog(e.getMessage(), "Network Error", JOptionPane.ERROR_MESSAGE);
+			manager.sessionClosed(this);
+		} finally {
+			connected.countDown();
+		}
+	}
+
+	// on the selector thread
+	void register(Selector sel) {
+		try {
+			key = channel.register(sel, SelectionKey.OP_READ, this);
+			if(closed.get()) key.cancel(); // lost a race with close
+		} catch(ClosedChannelException e) {
+			// disconnected before it was registered
+		}
+	}
+
+	/**
+	 * Reads the socket into the pipeline.  Called by the selector thread when
+	 * the socket is readable.
+	 *
+	 * @return false if the pipeline is full and the read must be retried
+	 */
+	boolean readable() {
+		try {
+			ByteBuffer buf = pipeline.getReadBuffer();
+			int bytesRead = channel.read(buf);
+			if(bytesRead == -1) {
+				close(true);
+				return true;
+			}
+			if(bytesRead == 0) return true;
+			buf.flip();
+			CaptureRecorder recorder = manager.recorder;
+			if(recorder != null) recorder.record(buf, false);
+			if(!pipeline.offer(buf)) {
+				// stop reading until the stages catch up
+				stalledBytes = bytesRead;
+				readPaused = true;
+				updateInterest();
+				return false;
+			}
+			buf.clear();
+			pipeline.adapt(bytesRead);
+		} catch(CancelledKeyException e) {
+			// closed
+		} catch(IOException e) {
+			if(!closed.get()) manager.reportError(e);
+			close(false);
+		}
+		return true;
+	}
+
+	/**
+	 * Retries passing a stalled read to the pipeline.  Called by the selector
+	 * thread.
+	 *
+	 * @return true if the read was passed or the session was closed
+	 */
+	boolean retry() {
+		if(closed.get()) return true;
+		ByteBuffer buf = pipeline.getReadBuffer();
+		if(!pipeline.offer(buf)) return false;
+		buf.clear();
+		pipeline.adapt(stalledBytes);
+		readPaused = false;
+		updateInterest();
+		return true;
+	}
+
+	/**
+	 * Queues text for the server.  May be called by any thread.
+	 */
+	void send(CharSequence seq) {
+		outbound.put(seq);
+		requestFlush();
+	}
+
+	/**
+	 * Queues bytes for the server.  May be called by any thread.
+	 */
+	void send(ByteBuffer buf) {
+		outbound.put(buf);
+		requestFlush();
+	}
+
+	private void requestFlush() {
+		if(flushRequested.compareAndSet(false, true)) {
+			flushDue = System.nanoTime() + writeDelayNanos;
+			selector.requestFlush(this);
+		}
+	}
+
+	/**
+	 * Returns when the selector should flush the output queue.
+	 */
+	long getFlushDue() {
+		return flushDue;
+	}
+
+	/**
+	 * Sends what is queued, as far as the socket will take it.  Called by
+	 * the selector thread when a flush comes due or the socket becomes
+	 * writable.
+	 */
+	void flush() {
+		if(closed.get()) return;
+		flushRequested.set(false);
+		try {
+			writePending = !outbound.flush(channel);
+			updateInterest();
+		} catch(IOException e) {
+			if(!closed.get()) manager.reportError(e);
+			close(false);
+		}
+	}
+
+	private void updateInterest() {
+		if(key == null) return;
+		try {
+			key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (writePending ? SelectionKey.OP_WRITE : 0));
+		} catch(CancelledKeyException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * Stops reading the socket and stops the pipeline on a worker thread.  At
+	 * the end of the input, the stages finish what they have before the
+	 * manager is told.
+	 */
+	void close(final boolean endOfInput) {
+		if(!closed.compareAndSet(false, true)) return;
+		selector.execute(new Runnable() {
+			@Override
+			public void run() {
+				SelectionKey key = SelectorSession.this.key;
+				if(key != null) key.cancel();
+				pipeline.stop(endOfInput);
+				if(pipeline.getError() != null) manager.reportError(pipeline.getError());
+				manager.sessionClosed(SelectorSession.this);
+				log.info("{} closed", name);
+			}
+		});
+	}
+}
@@ -1,9 +1,10 @@
 package krum.weaponm.script;
 
 import java.util.Arrays;
-import java.util.BitSet;
 
+import krum.weaponm.database.Constants;
 import krum.weaponm.database.Sector;
+import krum.weaponm.database.WarpGraph;
 
 /**
  * A class for performing a
@@ -12,10 +13,13 @@ import krum.weaponm.database.Sector;
  * sectors matching any criteria you design.
  */
 public class BreadthFirstSearch {
+	// each thread's idle engine; removed while in use in case a matcher searches too
+	private static final ThreadLocal<SearchContext> contexts = new ThreadLocal<SearchContext>();
+	
 	private final Node[] included;
 	private final Node[] ordered;
-	private int size;
-	private Node targetNode;
+	private final int size;
+	private final Node targetNode;
 
 	/**
 	 * Performs a breadth-first search around the origin sector, including
@@ -29,6 +33,9 @@ public class BreadthFirstSearch {
 	 * result will contain the origin node; if not, it will be empty.
 	 * Otherwise, if the include matcher does not match the origin sector, the
 	 * search will terminate immediately and the search result will be empty.
+	 * <p>
+	 * This class creates a node for every sector it considers.  Scripts that
+	 * search frequently should use a {@link SearchContext} instead.
 	 * 
 	 * @param sectors all sectors as returned by <tt>Database.getSectors()</tt>
 	 * @param origin the sector number from which to begin the search
@@ -39,54 +46,21 @@ public class BreadthFirstSearch {
 	 */
 	public BreadthFirstSearch(Sector[] sectors, int origin, int limit, NodeMatcher include, NodeMatcher target, boolean includeTarget) {
 		if(limit < 0 || origin < 1 || origin > sectors.length) throw new IllegalArgumentException();
-		if(limit == 0) limit = Integer.MAX_VALUE;
 		included = new Node[sectors.length];
-		ordered = new Node[Math.min(limit, sectors.length)];
-		BitSet considered = new BitSet(sectors.length);
-		
-		// test for weird conditions
-		Node originNode = new Node(sectors[origin - 1], null);
-		if(target.matches(originNode)) {
-			if(includeTarget) {
-				included[origin - 1] = originNode;
-				ordered[0] = originNode;
-				size = 1;
-				targetNode = originNode;
-			}
-			return;
-		}
-		else if(!include.matches(originNode)) return;
-		
-		// prime it with the origin node
-		included[origin - 1] = originNode;
-		ordered[0] = originNode;
-		size = 1;
-		considered.set(origin - 1, true);
-		
-		// go!
-		for(int i = 0; i < size; ++i) {
-			Node parent = ordered[i];
-			int[] warps = originNode.sector.getWarpsOut();
-			for(int w : warps) {
-				if(considered.get(w - 1)) continue;
-				considered.set(w - 1, true);
-				Node child = new Node(sectors[w - 1], parent);
-				if(target.matches(child)) {
-					if(includeTarget) {
-						included[w - 1] = child;
-						ordered[size] = child;
-						++size;
-						targetNode = child;
-					}
-					return;
-				}
-				else if(include.matches(child)) {
-					included[w - 1] = child;
-					ordered[size] = child;
-					++size;
-					if(size == ordered.length) return;
-				}
+		Adapter adapter = new Adapter(sectors, included, include, target, includeTarget);
+		SearchContext context = contexts.get();
+		if(context == null) context = new SearchContext();
+		else contexts.remove();
+		try {
+			WarpGraph graph = sectors[origin - 1].getDatabase().getWarpGraph();
+			size = context.search(graph, origin, limit, adapter.include, adapter.target, includeTarget);
+			ordered = new Node[size];
+			for(int i = 0; i < size; ++i) {
+				ordered[i] = included[context.getSector(i) - 1];
 			}
+			targetNode = context.targetFound() ? included[context.getTarget() - 1] : null;
+		} finally {
+			contexts.set(context);
 		}
 	}
 	
@@ -155,9 +129,8 @@ public class BreadthFirstSearch {
 		if(includesSector(dest.getNumber())) {
 			Node node = getNode(dest.getNumber());
 			Sector[] course = new Sector[node.distance + 1];
-			while(node.distance >= 0) {
+			for(; node != null; node = node.parent) {
 				course[node.distance] = node.sector;
-				node = node.parent;
 			}
 			return course;
 		}
@@ -175,15 +148,60 @@ public class BreadthFirstSearch {
 		if(includesSector(dest)) {
 			Node node = getNode(dest);
 			int[] course = new int[node.distance + 1];
-			while(node.distance >= 0) {
+			for(; node != null; node = node.parent) {
 				course[node.distance] = node.sector.getNumber();
-				node = node.parent;
 			}
 			return course;
 		}
 		else return null;
 	}
 	
+	/**
+	 * Wraps node matchers as sector matchers, creating one node per sector
+	 * considered.  Nodes that the search includes are recorded in the
+	 * <tt>included</tt> array.
+	 */
+	private static class Adapter implements Constants {
+		private final Sector[] sectors;
+		private final Node[] included;
+		private int candidateSector;
+		private Node candidate;
+		final SectorMatcher include;
+		final SectorMatcher target;
+		
+		Adapter(Sector[] sectors, Node[] included, final NodeMatcher include, final NodeMatcher target, final boolean includeTarget) {
+			this.sectors = sectors;
+			this.included = included;
+			this.include = new SectorMatcher() {
+				@Override
+				public boolean matches(int sector, int distance, int parent) {
+					Node node = candidate(sector, parent);
+					if(!include.matches(node)) return false;
+					Adapter.this.included[sector - 1] = node;
+					return true;
+				}
+			};
+			this.target = new SectorMatcher() {
+				@Override
+				public boolean matches(int sector, int distance, int parent) {
+					Node node = candidate(sector, parent);
+					if(!target.matches(node)) return false;
+					if(includeTarget) Adapter.this.included[sector - 1] = node;
+					return true;
+				}
+			};
+		}
+		
+		// the target and include matchers see the same node
+		private Node candidate(int sector, int parent) {
+			if(sector != candidateSector) {
+				candidateSector = sector;
+				candidate = new Node(sectors[sector - 1], parent == NULL_SECTOR ? null : included[parent - 1]);
+			}
+			return candidate;
+		}
+	}
+	
 	/**
 	 * A node in a {@link BreadthFirstSearch}.
 	 */
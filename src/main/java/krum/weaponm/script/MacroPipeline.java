@@ -0,0 +1,244 @@
+package krum.weaponm.script;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends a sequence of commands without waiting a full round trip for each.
+ * Each command is queued with the prompts it should produce, and up to a
+ * window of commands are sent ahead.  As prompts arrive, they are matched
+ * in order against the prompts expected by the commands in flight.  When a
+ * command has seen all its prompts, it is acknowledged and the next
+ * command is sent.
+ * <p>
+ * If a prompt arrives that the oldest command in flight did not expect,
+ * the pipeline stops sending and rolls back to that command, then fires
+ * {@link ScriptEvent#PIPELINE_MISMATCH}.  The commands sent after it may or
+ * may not have been acted on, so the script should examine the game state
+ * before it calls {@link #resume()} or {@link #cancel()}.  When every
+ * command has been acknowledged, {@link ScriptEvent#PIPELINE_COMPLETE} is
+ * fired.
+ * <p>
+ * Only events whose names end in "_PROMPT" are matched.  A pipeline obtains
+ * the network the same way its script does, so sending is held back while
+ * another script has the network locked.
+ *
+ * @see Script#createPipeline(int)
+ */
+public class MacroPipeline {
+	private static final Logger log = LoggerFactory.getLogger(MacroPipeline.class);
+
+	private final ScriptManager manager;
+	private final Script owner;
+	private final int window;
+	// acknowledged steps are dropped, so a long-running pipeline holds only
+	// the steps in flight and those not yet sent
+	private final Deque<Step> inFlight = new ArrayDeque<Step>();
+	private final Deque<Step> queued = new ArrayDeque<Step>();
+	private int acknowledged; // steps acknowledged so far
+	private int sent; // steps sent so far, including those acknowledged
+	private int matched; // prompts matched for the oldest step in flight
+	private boolean running;
+
+	MacroPipeline(ScriptManager manager, Script owner, int window) {
+		if(window < 1) throw new IllegalArgumentException("window must be at least 1");
+		this.manager = manager;
+		this.owner = owner;
+		this.window = window;
+	}
+
+	/**
+	 * Queues a command.  Commands may be added while the pipeline is
+	 * running.
+	 *
+	 * @param command the text to send
+	 * @param prompts the prompts the command should produce, in order; at
+	 * least one
+	 */
+	public void add(CharSequence command, ScriptEvent... prompts) {
+		if(prompts.length == 0) throw new IllegalArgumentException("at least one prompt is required");
+		for(ScriptEvent prompt : prompts) {
+			if(!prompt.isPrompt()) throw new IllegalArgumentException(prompt + " is not a prompt");
+		}
+		synchronized(manager) {
+			queued.add(new Step(command.toString(), prompts.clone()));
+			if(running) {
+				try {
+					fill();
+				} catch(NetworkLockedException e) {
+					// try again on the next prompt
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts sending.
+	 *
+	 * @throws NetworkLockedException if another script has the network
+	 * locked
+	 */
+	public void start() throws NetworkLockedException {
+		synchronized(manager) {
+			if(running) return;
+			running = true;
+			manager.addPipeline(this);
+			try {
+				fill();
+			} catch(NetworkLockedException e) {
+				running = false;
+				manager.removePipeline(this);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Resumes sending from the command that failed to match, after a
+	 * {@link ScriptEvent#PIPELINE_MISMATCH}.
+	 */
+	public void resume() throws NetworkLockedException {
+		start();
+	}
+
+	/**
+	 * Stops sending and forgets the commands not yet acknowledged.
+	 */
+	public void cancel() {
+		synchronized(manager) {
+			running = false;
+			manager.removePipeline(this);
+			inFlight.clear();
+			queued.clear();
+			sent = acknowledged;
+			matched = 0;
+		}
+	}
+
+	public boolean isRunning() {
+		synchronized(manager) {
+			return running;
+		}
+	}
+
+	/**
+	 * Returns the number of commands that have been acknowledged.
+	 */
+	public int getAcknowledged() {
+		synchronized(manager) {
+			return acknowledged;
+		}
+	}
+
+	/**
+	 * Returns the number of commands that have been sent, including those
+	 * acknowledged.
+	 */
+	public int getSent() {
+		synchronized(manager) {
+			return sent;
+		}
+	}
+
+	/**
+	 * Returns the number of commands queued, including those sent.
+	 */
+	public int size() {
+		synchronized(manager) {
+			return acknowledged + inFlight.size() + queued.size();
+		}
+	}
+
+	/**
+	 * Returns the commands that have not been acknowledged, starting with
+	 * the one that will be sent next when the pipeline resumes.
+	 */
+	public List<String> getUnacknowledged() {
+		synchronized(manager) {
+			List<String> list = new ArrayList<String>(inFlight.size() + queued.size());
+			for(Step step : inFlight) list.add(step.command);
+			for(Step step : queued) list.add(step.command);
+			return list;
+		}
+	}
+
+	public Script getOwner() {
+		return owner;
+	}
+
+	/**
+	 * Matches a prompt against the oldest command in flight.  Called by the
+	 * script manager with its lock held.
+	 *
+	 * @return the event to fire to scripts as a result, or null
+	 */
+	ScriptEvent prompt(ScriptEvent event) {
+		if(!running) return null;
+		if(inFlight.isEmpty()) {
+			// nothing in flight, probably because the network was locked
+			try {
+				fill();
+			} catch(NetworkLockedException e) {
+				// try again on the next prompt
+			}
+			return null;
+		}
+		Step step = inFlight.peekFirst();
+		if(step.prompts[matched] != event) {
+			log.debug("pipeline expected {} but got {}; rolling back to step {}", new Object[] { step.prompts[matched], event, acknowledged });
+			running = false;
+			manager.removePipeline(this);
+			while(!inFlight.isEmpty()) queued.addFirst(inFlight.removeLast());
+			sent = acknowledged;
+			matched = 0;
+			return ScriptEvent.PIPELINE_MISMATCH;
+		}
+		if(++matched < step.prompts.length) return null;
+		matched = 0;
+		inFlight.removeFirst();
+		++acknowledged;
+		if(inFlight.isEmpty() && queued.isEmpty()) {
+			running = false;
+			manager.removePipeline(this);
+			return ScriptEvent.PIPELINE_COMPLETE;
+		}
+		try {
+			fill();
+		} catch(NetworkLockedException e) {
+			// try again on the next prompt
+		}
+		return null;
+	}
+
+	// sends until the window is full
+	private void fill() throws NetworkLockedException {
+		while(!queued.isEmpty() && inFlight.size() < window) {
+			try {
+				manager.writeToNetwork(queued.peekFirst().command, owner);
+			} catch(NetworkLockedException e) {
+				throw e;
+			} catch(IOException e) {
+				log.error("error writing to network", e);
+				return;
+			}
+			inFlight.addLast(queued.removeFirst());
+			++sent;
+		}
+	}
+
+	private static class Step {
+		final String command;
+		final ScriptEvent[] prompts;
+
+		Step(String command, ScriptEvent[] prompts) {
+			this.command = command;
+			this.prompts = prompts;
+		}
+	}
+}
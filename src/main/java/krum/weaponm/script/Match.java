@@ -0,0 +1,351 @@
+package krum.weaponm.script;
+
+import krum.weaponm.database.Constants;
+import krum.weaponm.database.Product;
+import krum.weaponm.database.Sector;
+import krum.weaponm.script.BreadthFirstSearch.Node;
+
+/**
+ * An expression describing the sectors a search should include or target.
+ * Expressions are built from the static methods of this class and combined
+ * with {@link #and(Match)}, {@link #or(Match)}, and {@link #not()}:
+ * <pre>
+ * SectorMatcher target = Match.notAvoided()
+ *         .and(Match.hasPort().buying(Product.EQUIPMENT))
+ *         .and(Match.distance().lt(5))
+ *         .compile(db.getSectors());
+ * </pre>
+ * Composite matchers built with {@link NodeMatcher#intersection} and the
+ * like make a virtual call for every matcher in the tree, at every sector.
+ * A compiled expression is instead a flat program of primitive tests, each
+ * of which jumps to the next test to perform or to the result.  Deep
+ * expressions match about as fast as the equivalent hand-written matcher.
+ * <p>
+ * Expressions are immutable and may be compiled any number of times.
+ */
+abstract public class Match {
+
+	Match() { }
+
+	/**
+	 * Emits the tests for this expression into the program.
+	 *
+	 * @param onTrue where to go if this expression is true
+	 * @param onFalse where to go if this expression is false
+	 * @return where to go to evaluate this expression
+	 */
+	abstract int emit(MatchProgram program, int onTrue, int onFalse);
+
+	/**
+	 * Returns an expression that is true where both this and the other
+	 * expression are true.  The other expression is evaluated only where
+	 * this one is true.
+	 */
+	public Match and(Match other) {
+		if(other == null) throw new NullPointerException();
+		return new And(this, other);
+	}
+
+	/**
+	 * Returns an expression that is true where either this or the other
+	 * expression is true.  The other expression is evaluated only where
+	 * this one is false.
+	 */
+	public Match or(Match other) {
+		if(other == null) throw new NullPointerException();
+		return new Or(this, other);
+	}
+
+	/**
+	 * Returns an expression that is true where this one is false.
+	 */
+	public Match not() {
+		return new Not(this);
+	}
+
+	/**
+	 * Compiles this expression into a matcher for a {@link SearchContext}.
+	 *
+	 * @param sectors all sectors as returned by <tt>Database.getSectors()</tt>
+	 */
+	public SectorMatcher compile(final Sector[] sectors) {
+		final MatchProgram program = new MatchProgram(this);
+		return new SectorMatcher() {
+			@Override
+			public boolean matches(int sector, int distance, int parent) {
+				return program.matches(sectors[sector - 1], sector, distance, parent);
+			}
+		};
+	}
+
+	/**
+	 * Compiles this expression into a matcher for a
+	 * {@link BreadthFirstSearch}.
+	 */
+	public NodeMatcher compile() {
+		final MatchProgram program = new MatchProgram(this);
+		return new NodeMatcher() {
+			@Override
+			public boolean matches(Node node) {
+				int parent = node.parent == null ? Constants.NULL_SECTOR : node.parent.sector.getNumber();
+				return program.matches(node.sector, node.sector.getNumber(), node.distance, parent);
+			}
+		};
+	}
+
+	/** True for all sectors. */
+	public static Match all() {
+		return ALL;
+	}
+
+	/** True for no sectors. */
+	public static Match none() {
+		return NONE;
+	}
+
+	/** True where the sector is avoided. */
+	public static Match avoided() {
+		return new Test(MatchProgram.AVOIDED, 0, 0);
+	}
+
+	/** True where the sector is not avoided.  Useful for include matchers. */
+	public static Match notAvoided() {
+		return avoided().not();
+	}
+
+	/** True where the sector is explored. */
+	public static Match explored() {
+		return new Test(MatchProgram.EXPLORED, 0, 0);
+	}
+
+	/** True where the sector is unexplored.  Useful for target matchers. */
+	public static Match unexplored() {
+		return explored().not();
+	}
+
+	/** True where the sector is in FedSpace. */
+	public static Match fedSpace() {
+		return new Test(MatchProgram.FED_SPACE, 0, 0);
+	}
+
+	/** True for the specified sector. */
+	public static Match sector(int sector) {
+		return new Test(MatchProgram.SECTOR, 0, sector);
+	}
+
+	/**
+	 * True where the sector has a port.  The result can be narrowed by what
+	 * the port trades.
+	 */
+	public static PortMatch hasPort() {
+		return new PortMatch(0, 0, 0);
+	}
+
+	/** The distance from the origin of the search. */
+	public static Quantity distance() {
+		return new Quantity(MatchProgram.DISTANCE);
+	}
+
+	/** The number of warps out of the sector. */
+	public static Quantity warpsOut() {
+		return new Quantity(MatchProgram.WARPS_OUT);
+	}
+
+	/**
+	 * Wraps a matcher of your own as an expression.  The matcher is called
+	 * only where the rest of the expression needs it.
+	 */
+	public static Match of(SectorMatcher matcher) {
+		if(matcher == null) throw new NullPointerException();
+		return new Custom(matcher);
+	}
+
+	/**
+	 * An expression that is true where the sector has a port trading as
+	 * specified.
+	 */
+	public static final class PortMatch extends Match {
+		private final int buys;
+		private final int sells;
+		private final int portClass;
+
+		PortMatch(int buys, int sells, int portClass) {
+			this.buys = buys;
+			this.sells = sells;
+			this.portClass = portClass;
+		}
+
+		/**
+		 * Narrows this expression to ports that buy the specified product.
+		 *
+		 * @param product one of the constants from the {@link Product} class
+		 */
+		public PortMatch buying(int product) {
+			checkProduct(product);
+			return new PortMatch(buys | 1 << product, sells, portClass);
+		}
+
+		/**
+		 * Narrows this expression to ports that sell the specified product.
+		 *
+		 * @param product one of the constants from the {@link Product} class
+		 */
+		public PortMatch selling(int product) {
+			checkProduct(product);
+			return new PortMatch(buys, sells | 1 << product, portClass);
+		}
+
+		/**
+		 * Narrows this expression to ports of the specified class.
+		 *
+		 * @see krum.weaponm.database.Port#getPortClass()
+		 */
+		public PortMatch ofClass(int portClass) {
+			if(portClass < 0 || portClass > 9) throw new IllegalArgumentException();
+			// 0 is a real class, so it's stored one higher
+			return new PortMatch(buys, sells, portClass + 1);
+		}
+
+		private static void checkProduct(int product) {
+			if(product < Product.FUEL_ORE || product > Product.EQUIPMENT) throw new IllegalArgumentException();
+		}
+
+		@Override
+		int emit(MatchProgram program, int onTrue, int onFalse) {
+			return program.emit(MatchProgram.PORT, 0, buys | sells << 3 | portClass << 6, null, onTrue, onFalse);
+		}
+	}
+
+	/**
+	 * A number that can be compared to make an expression.
+	 */
+	public static final class Quantity {
+		private final int op;
+
+		Quantity(int op) {
+			this.op = op;
+		}
+
+		/** True where the quantity is less than the value. */
+		public Match lt(int value) {
+			return new Test(op, MatchProgram.LT, value);
+		}
+
+		/** True where the quantity is less than or equal to the value. */
+		public Match le(int value) {
+			return new Test(op, MatchProgram.LE, value);
+		}
+
+		/** True where the quantity equals the value. */
+		public Match eq(int value) {
+			return new Test(op, MatchProgram.EQ, value);
+		}
+
+		/** True where the quantity does not equal the value. */
+		public Match ne(int value) {
+			return new Test(op, MatchProgram.EQ, value).not();
+		}
+
+		/** True where the quantity is greater than or equal to the value. */
+		public Match ge(int value) {
+			return new Test(op, MatchProgram.LT, value).not();
+		}
+
+		/** True where the quantity is greater than the value. */
+		public Match gt(int value) {
+			return new Test(op, MatchProgram.LE, value).not();
+		}
+	}
+
+	private static final Match ALL = new Match() {
+		@Override
+		int emit(MatchProgram program, int onTrue, int onFalse) {
+			return onTrue;
+		}
+	};
+
+	private static final Match NONE = new Match() {
+		@Override
+		int emit(MatchProgram program, int onTrue, int onFalse) {
+			return onFalse;
+		}
+	};
+
+	private static class Test extends Match {
+		private final int op;
+		private final int cmp;
+		private final int arg;
+
+		Test(int op, int cmp, int arg) {
+			this.op = op;
+			this.cmp = cmp;
+			this.arg = arg;
+		}
+
+		@Override
+		int emit(MatchProgram program, int onTrue, int onFalse) {
+			return program.emit(op, cmp, arg, null, onTrue, onFalse);
+		}
+	}
+
+	private static class Custom extends Match {
+		private final SectorMatcher matcher;
+
+		Custom(SectorMatcher matcher) {
+			this.matcher = matcher;
+		}
+
+		@Override
+		int emit(MatchProgram program, int onTrue, int onFalse) {
+			return program.emit(MatchProgram.CUSTOM, 0, 0, matcher, onTrue, onFalse);
+		}
+	}
+
+	private static class And extends Match {
+		private final Match m0;
+		private final Match m1;
+
+		And(Match m0, Match m1) {
+			this.m0 = m0;
+			this.m1 = m1;
+		}
+
+		@Override
+		int emit(MatchProgram program, int onTrue, int onFalse) {
+			return m0.emit(program, m1.emit(program, onTrue, onFalse), onFalse);
+		}
+	}
+
+	private static class Or extends Match {
+		private final Match m0;
+		private final Match m1;
+
+		Or(Match m0, Match m1) {
+			this.m0 = m0;
+			this.m1 = m1;
+		}
+
+		@Override
+		int emit(MatchProgram program, int onTrue, int onFalse) {
+			return m0.emit(program, onTrue, m1.emit(program, onTrue, onFalse));
+		}
+	}
+
+	private static class Not extends Match {
+		private final Match m;
+
+		Not(Match m) {
+			this.m = m;
+		}
+
+		@Override
+		int emit(MatchProgram program, int onTrue, int onFalse) {
+			return m.emit(program, onFalse, onTrue);
+		}
+
+		@Override
+		public Match not() {
+			return m;
+		}
+	}
+}
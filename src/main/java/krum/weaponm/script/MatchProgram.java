@@ -0,0 +1,139 @@
+package krum.weaponm.script;
+
+import java.util.Arrays;
+
+import krum.weaponm.database.Port;
+import krum.weaponm.database.Sector;
+
+/**
+ * A compiled {@link Match}.  Each instruction is one primitive test with two
+ * successors, the instructions or results to go to if the test is true or
+ * false.  <tt>and</tt>, <tt>or</tt>, and <tt>not</tt> exist only in how the
+ * successors are wired, so evaluation is a single loop over parallel arrays
+ * instead of a walk over the expression tree.
+ * <p>
+ * The tests still read the {@link Sector} and its {@link Port} through their
+ * synchronized accessors, one call per test per sector visited; the program
+ * removes the matcher objects and virtual calls between tests, not the
+ * sector locking.  {@link krum.weaponm.database.SectorColumns} is the place
+ * for queries over whole columns without per-sector locks.
+ * <p>
+ * The instructions are emitted last first, so the entry point is the last
+ * one emitted.
+ */
+final class MatchProgram {
+	static final int ACCEPT = -1;
+	static final int REJECT = -2;
+
+	// opcodes
+	static final int AVOIDED = 0;
+	static final int EXPLORED = 1;
+	static final int FED_SPACE = 2;
+	static final int SECTOR = 3;
+	static final int PORT = 4;
+	static final int DISTANCE = 5;
+	static final int WARPS_OUT = 6;
+	static final int CUSTOM = 7;
+
+	// comparisons; the others are negations of these
+	static final int LT = 0;
+	static final int LE = 1;
+	static final int EQ = 2;
+
+	private int length;
+	private int[] ops = new int[8];
+	private int[] cmps = new int[8];
+	private int[] args = new int[8];
+	private int[] onTrue = new int[8];
+	private int[] onFalse = new int[8];
+	private SectorMatcher[] customs = new SectorMatcher[8];
+	private final int entry;
+
+	MatchProgram(Match match) {
+		entry = match.emit(this, ACCEPT, REJECT);
+	}
+
+	int emit(int op, int cmp, int arg, SectorMatcher custom, int ifTrue, int ifFalse) {
+		if(length == ops.length) {
+			int capacity = length * 2;
+			ops = Arrays.copyOf(ops, capacity);
+			cmps = Arrays.copyOf(cmps, capacity);
+			args = Arrays.copyOf(args, capacity);
+			onTrue = Arrays.copyOf(onTrue, capacity);
+			onFalse = Arrays.copyOf(onFalse, capacity);
+			customs = Arrays.copyOf(customs, capacity);
+		}
+		ops[length] = op;
+		cmps[length] = cmp;
+		args[length] = arg;
+		onTrue[length] = ifTrue;
+		onFalse[length] = ifFalse;
+		customs[length] = custom;
+		return length++;
+	}
+
+	/**
+	 * Runs the program for one sector.
+	 *
+	 * @param s the sector object
+	 * @param sector the sector number
+	 * @param distance the distance from the origin of the search
+	 * @param parent the parent sector number
+	 */
+	boolean matches(Sector s, int sector, int distance, int parent) {
+		int pc = entry;
+		while(pc >= 0) {
+			boolean result;
+			switch(ops[pc]) {
+			case AVOIDED:
+				result = s.isAvoided();
+				break;
+			case EXPLORED:
+				result = s.isExplored();
+				break;
+			case FED_SPACE:
+				result = s.isFedSpace();
+				break;
+			case SECTOR:
+				result = sector == args[pc];
+				break;
+			case PORT:
+				result = port(s.getPort(), args[pc]);
+				break;
+			case DISTANCE:
+				result = compare(distance, cmps[pc], args[pc]);
+				break;
+			case WARPS_OUT:
+				result = compare(s.getNumWarpsOut(), cmps[pc], args[pc]);
+				break;
+			case CUSTOM:
+				result = customs[pc].matches(sector, distance, parent);
+				break;
+			default:
+				throw new IllegalStateException();
+			}
+			pc = result ? onTrue[pc] : onFalse[pc];
+		}
+		return pc == ACCEPT;
+	}
+
+	private static boolean compare(int value, int cmp, int arg) {
+		switch(cmp) {
+		case LT: return value < arg;
+		case LE: return value <= arg;
+		default: return value == arg;
+		}
+	}
+
+	// arg holds the buy mask, the sell mask, and the port class plus one
+	private static boolean port(Port port, int arg) {
+		if(port == null) return false;
+		int portClass = arg >>> 6;
+		if(portClass != 0 && port.getPortClass() != portClass - 1) return false;
+		for(int product = 0; product < 3; ++product) {
+			if((arg & 1 << product) != 0 && !port.buys(product)) return false;
+			if((arg & 8 << product) != 0 && !port.sells(product)) return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,193 @@
+package krum.weaponm.script;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import krum.weaponm.database.Constants;
+import krum.weaponm.database.WarpGraph;
+
+/**
+ * A breadth-first search that starts from many sectors at once.  One search
+ * finds, for every sector, the distance to the nearest source sector and
+ * which source that is, e.g., the nearest Class 0 port or the nearest of
+ * your fighters.  This takes the same time as a single ordinary search.
+ * <p>
+ * By default, distances are measured <i>to</i> the sources, following warps
+ * backward, which answers "how far is it from here to the nearest X?"  Pass
+ * <tt>toSources = false</tt> to measure distances <i>from</i> the sources
+ * instead.
+ * <p>
+ * A <tt>MultiSourceSearch</tt> reuses its queue between searches and is not
+ * thread safe.  To run several searches in parallel, use
+ * {@link #searchAll(ExecutorService, WarpGraph, SectorMatcher[], boolean, SectorMatcher)}.
+ */
+public class MultiSourceSearch implements Constants {
+	private int[] queue = new int[0];
+
+	/**
+	 * Searches from every sector that matches <tt>sources</tt>.
+	 *
+	 * @see #search(WarpGraph, int[], boolean, SectorMatcher)
+	 */
+	public Result search(WarpGraph graph, SectorMatcher sources, boolean toSources, SectorMatcher include) {
+		int n = graph.getNumSectors();
+		int[] seeds = new int[n];
+		int count = 0;
+		for(int s = 1; s <= n; ++s) {
+			if(sources.matches(s, 0, NULL_SECTOR)) seeds[count++] = s;
+		}
+		return search(graph, Arrays.copyOf(seeds, count), toSources, include);
+	}
+
+	/**
+	 * Searches from all the specified source sectors at once.  Sectors that
+	 * do not match <tt>include</tt> are not passed through, though sources
+	 * are always included.  When two sources are equally near, the one
+	 * listed first is reported as the nearest.
+	 *
+	 * @param graph the warp graph
+	 * @param sources the source sectors
+	 * @param toSources true to measure distances to the sources; false to
+	 * measure distances from them
+	 * @param include the matcher for sectors the search may pass through
+	 * @return the distances and nearest sources
+	 */
+	public Result search(WarpGraph graph, int[] sources, boolean toSources, SectorMatcher include) {
+		int n = graph.getNumSectors();
+		if(queue.length < n) queue = new int[n];
+		int[] distance = new int[n + 1];
+		int[] nearest = new int[n + 1];
+		Arrays.fill(distance, UNKNOWN);
+		int size = 0;
+		for(int s : sources) {
+			if(s < 1 || s > n) throw new IllegalArgumentException("Invalid sector: " + s);
+			if(distance[s] == 0) continue; // duplicate
+			distance[s] = 0;
+			nearest[s] = s;
+			queue[size++] = s;
+		}
+		for(int i = 0; i < size; ++i) {
+			int u = queue[i];
+			int d = distance[u] + 1;
+			int warps = toSources ? graph.getNumWarpsIn(u) : graph.getNumWarpsOut(u);
+			for(int j = 0; j < warps; ++j) {
+				int w = toSources ? graph.getWarpIn(u, j) : graph.getWarpOut(u, j);
+				if(distance[w] != UNKNOWN) continue;
+				if(!include.matches(w, d, u)) continue;
+				distance[w] = d;
+				nearest[w] = nearest[u];
+				queue[size++] = w;
+			}
+		}
+		return new Result(distance, nearest, size);
+	}
+
+	/**
+	 * Runs one multi-source search for each source matcher, in parallel.
+	 * The matchers are called from the executor's threads, so they must be
+	 * thread safe; the standard matchers are.
+	 *
+	 * @param executor the executor on which to run the searches
+	 * @param graph the warp graph
+	 * @param sources one source matcher per search
+	 * @param toSources true to measure distances to the sources
+	 * @param include the matcher for sectors the searches may pass through
+	 * @return one result per source matcher, in the same order
+	 * @throws ExecutionException if a matcher threw an exception
+	 */
+	public static Result[] searchAll(ExecutorService executor, final WarpGraph graph, SectorMatcher[] sources,
+			final boolean toSources, final SectorMatcher include) throws InterruptedException, ExecutionException {
+		List<Callable<Result>> tasks = new ArrayList<Callable<Result>>(sources.length);
+		for(final SectorMatcher source : sources) {
+			tasks.add(new Callable<Result>() {
+				@Override
+				public Result call() {
+					return new MultiSourceSearch().search(graph, source, toSources, include);
+				}
+			});
+		}
+		List<Future<Result>> futures = executor.invokeAll(tasks);
+		Result[] results = new Result[futures.size()];
+		for(int i = 0; i < results.length; ++i) {
+			results[i] = futures.get(i).get();
+		}
+		return results;
+	}
+
+	/**
+	 * Runs one multi-source search for each source matcher, in parallel,
+	 * using one thread per processor.
+	 *
+	 * @see #searchAll(ExecutorService, WarpGraph, SectorMatcher[], boolean, SectorMatcher)
+	 */
+	public static Result[] searchAll(WarpGraph graph, SectorMatcher[] sources, boolean toSources, SectorMatcher include)
+			throws InterruptedException, ExecutionException {
+		int threads = Math.min(sources.length, Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			return searchAll(executor, graph, sources, toSources, include);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * The result of a multi-source search.  Arrays are indexed by sector
+	 * number; index 0 is unused.
+	 */
+	public static class Result {
+		private final int[] distance;
+		private final int[] nearest;
+		private final int reached;
+
+		Result(int[] distance, int[] nearest, int reached) {
+			this.distance = distance;
+			this.nearest = nearest;
+			this.reached = reached;
+		}
+
+		/**
+		 * Returns the distance between the specified sector and its nearest
+		 * source, or <tt>UNKNOWN</tt> if no source could be reached.
+		 */
+		public int getDistance(int sector) {
+			return distance[sector];
+		}
+
+		/**
+		 * Returns the source nearest to the specified sector, or
+		 * <tt>NULL_SECTOR</tt> if no source could be reached.
+		 */
+		public int getNearestSource(int sector) {
+			return nearest[sector];
+		}
+
+		/**
+		 * Returns the number of sectors reached, including the sources.
+		 */
+		public int getNumReached() {
+			return reached;
+		}
+
+		/**
+		 * Copies the distances into a new array indexed by sector number.
+		 */
+		public int[] getDistances() {
+			return Arrays.copyOf(distance, distance.length);
+		}
+
+		/**
+		 * Copies the nearest sources into a new array indexed by sector
+		 * number.
+		 */
+		public int[] getNearestSources() {
+			return Arrays.copyOf(nearest, nearest.length);
+		}
+	}
+}
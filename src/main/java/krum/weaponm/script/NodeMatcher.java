@@ -9,6 +9,7 @@ import krum.weaponm.script.BreadthFirstSearch.Node;
  * You can construct powerful searches by writing classes that extend this
  * class.  This class also provides static instances and methods to create
  * various common matchers, and methods to create composite matchers.
+ * Deep composites are faster written as a {@link Match} expression.
  */
 abstract public class NodeMatcher {
 	/** Returns true if the specified node matches the criteria of this matcher. */
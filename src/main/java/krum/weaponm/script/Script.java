@@ -68,6 +68,8 @@ public abstract class Script {
 	private final List<Parameter> parameters = new LinkedList<Parameter>();
 	private final StringBuilder burst = new StringBuilder();
 	private volatile boolean initialized = false;
+	// set by the manager while an asynchronous script is loaded
+	volatile ScriptMailbox mailbox;
 
 	public Script() {
 		manager = ScriptManager.getManagerForScript(this);
@@ -212,6 +214,29 @@ public abstract class Script {
 	 * @see ScriptEvent
 	 */
 	public void handleEvent(ScriptEvent event, Object... params) { }
+	
+	/**
+	 * Returns true if this script's events should be handled in a thread of
+	 * its own.  By default, <tt>handleEvent</tt> is called by the thread
+	 * that reads the game, and other scripts and the terminal wait while it
+	 * runs.  An asynchronous script receives its events in the same order,
+	 * but later, so a script that does heavy analysis should override this
+	 * method to return true.  An asynchronous script that falls more than
+	 * about a thousand events behind is unloaded rather than allowed to miss
+	 * any.
+	 * <p>
+	 * Text an asynchronous script sends while handling an event is treated
+	 * as a response to that event.  If any other response has been sent since
+	 * the event was fired, <tt>sendText</tt> throws a
+	 * <tt>NetworkLockedException</tt>.  While an asynchronous script has
+	 * locked the network, each of its events is handled before any other
+	 * script sees it, just as for other scripts.
+	 * <p>
+	 * The default implementation returns false.
+	 */
+	public boolean isAsynchronous() {
+		return false;
+	}
 
 	/**
 	 * Gets the current database.
@@ -515,6 +540,17 @@ public abstract class Script {
 		clearBurst();
 	}
 	
+	/**
+	 * Creates a pipeline for sending commands ahead of their prompts.
+	 * Register for {@link ScriptEvent#PIPELINE_MISMATCH} and
+	 * {@link ScriptEvent#PIPELINE_COMPLETE} to learn when it stops.
+	 * 
+	 * @param window the maximum number of commands awaiting their prompts
+	 */
+	public MacroPipeline createPipeline(int window) {
+		return new MacroPipeline(manager, this, window);
+	}
+	
 	/**
 	 * Creates a new, empty, invisible <tt>JDialog</tt> that may be modal to
 	 * the main window.  This method should only be called in the Swing event
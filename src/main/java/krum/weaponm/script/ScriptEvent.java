@@ -151,7 +151,21 @@ public enum ScriptEvent {
 	/**
 	 * Fired when you try to move and are stopped by an interdictor field.
 	 */
-	INTERDICTED;
+	INTERDICTED,
+	
+	/**
+	 * Fired when a prompt does not match what a {@link MacroPipeline}
+	 * expected.  The pipeline has stopped and rolled back to the command
+	 * that failed to match.
+	 * <p>Parameters: {@link MacroPipeline} pipeline
+	 */
+	PIPELINE_MISMATCH,
+	/**
+	 * Fired when every command in a {@link MacroPipeline} has been
+	 * acknowledged.
+	 * <p>Parameters: {@link MacroPipeline} pipeline
+	 */
+	PIPELINE_COMPLETE;
 	
 	
 	
@@ -169,4 +183,22 @@ public enum ScriptEvent {
 		CITADEL_COMPUTER_PROMPT,
 		STARDOCK_PROMPT
 	};
+	
+	/**
+	 * Returns true if this event is one of the {@link #MAJOR_PROMPTS}.
+	 */
+	public boolean isMajorPrompt() {
+		for(ScriptEvent prompt : MAJOR_PROMPTS) {
+			if(prompt == this) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns true if this event indicates that the server is waiting for
+	 * user input.
+	 */
+	public boolean isPrompt() {
+		return name().endsWith("_PROMPT");
+	}
 }
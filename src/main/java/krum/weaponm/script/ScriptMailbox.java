@@ -0,0 +1,173 @@
+package krum.weaponm.script;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The event queue of an asynchronous script.  Events are posted by the
+ * thread dispatching them and handled, in the order they were posted, by a
+ * thread dedicated to the script, so a slow handler delays only its own
+ * script.  Events are never dropped: a script that falls so far behind that
+ * its queue cannot take another event is unloaded instead, so every event a
+ * script does see arrives in order and without gaps.
+ * <p>
+ * Each event carries the sequence number the manager assigned when it was
+ * fired.  While the script handles an event, that number is its view of the
+ * session; the manager uses it to decide whether the script's writes still
+ * answer the current prompt.
+ */
+class ScriptMailbox implements Runnable {
+	private static final Logger log = LoggerFactory.getLogger(ScriptMailbox.class);
+	/** The number of events a script may fall behind before dispatch waits for it or unloads it. */
+	static final int CAPACITY = 1024;
+	/** The longest dispatch waits for a script, either to handle an event or to make room for one. */
+	static final long MAX_WAIT_MILLIS = 5000;
+	// handler threads need little stack; most of a script's work is on the heap
+	private static final long STACK_SIZE = 256 * 1024;
+	private static final Envelope STOP = new Envelope(null, null, -1);
+	// the mailbox whose handler thread is the current thread, if any
+	private static final ThreadLocal<ScriptMailbox> current = new ThreadLocal<ScriptMailbox>();
+
+	private final ScriptManager manager;
+	private final Script script;
+	private final BlockingQueue<Envelope> queue = new ArrayBlockingQueue<Envelope>(CAPACITY);
+	private final Thread thread;
+	private volatile long handling; // sequence of the event being handled
+	private long handled; // guarded by this
+	private volatile boolean closed;
+
+	ScriptMailbox(ScriptManager manager, Script script) {
+		this.manager = manager;
+		this.script = script;
+		thread = new Thread(null, this, "Script-" + script.getScriptName(), STACK_SIZE);
+		thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Returns true if called from this mailbox's handler thread.
+	 */
+	boolean isHandlerThread() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Returns true if called from any mailbox's handler thread.
+	 */
+	static boolean onHandlerThread() {
+		return current.get() != null;
+	}
+
+	/**
+	 * Returns the sequence number of the event being handled.  Meaningful
+	 * only on the handler thread.
+	 */
+	long getSequence() {
+		return handling;
+	}
+
+	/**
+	 * Queues an event.  If the queue is full, waits up to
+	 * {@link #MAX_WAIT_MILLIS} for the script to catch up, unless waiting is
+	 * not allowed because the caller holds a lock the script may need.  If
+	 * the event still can't be queued, the mailbox is closed, so the script
+	 * sees no later events either, and the caller must unload the script.
+	 * Called with the manager's dispatch lock held.
+	 *
+	 * @return false if the event could not be queued and the script must be
+	 * unloaded
+	 */
+	boolean post(ScriptEvent event, Object[] params, long sequence, boolean mayWait) {
+		if(closed) return true; // already being unloaded
+		Envelope envelope = new Envelope(event, params, sequence);
+		if(queue.offer(envelope)) return true;
+		if(mayWait) {
+			log.warn("{} is falling behind; dispatch will wait for it", script.getScriptName());
+			long deadline = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+			try {
+				while(!closed && System.currentTimeMillis() < deadline) {
+					if(queue.offer(envelope, 100, TimeUnit.MILLISECONDS)) return true;
+				}
+				if(closed) return true;
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		log.error("{} fell too far behind to receive {}; unloading it", script.getScriptName(), event);
+		close();
+		return false;
+	}
+
+	/**
+	 * Waits until the script has handled the event with the specified
+	 * sequence number, or the mailbox is closed.  Called with the manager's
+	 * dispatch lock held.
+	 *
+	 * @return false if the timeout elapsed first
+	 */
+	synchronized boolean awaitHandled(long sequence, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while(!closed && handled < sequence) {
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0) return false;
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Discards pending events and stops the handler thread after the event
+	 * it is handling, if any.
+	 */
+	void close() {
+		synchronized(this) {
+			closed = true;
+			notifyAll();
+		}
+		queue.clear();
+		queue.offer(STOP);
+	}
+
+	@Override
+	public void run() {
+		current.set(this);
+		try {
+			while(true) {
+				Envelope envelope = queue.take();
+				if(envelope == STOP || closed) break;
+				handling = envelope.sequence;
+				try {
+					if(manager.isLoaded(script)) script.handleEvent(envelope.event, envelope.params);
+				} catch(Throwable t) {
+					log.error("script error", t);
+					manager.unloadScript(script.getClass(), true);
+				}
+				synchronized(this) {
+					handled = envelope.sequence;
+					notifyAll();
+				}
+			}
+		} catch(InterruptedException e) {
+			// stopped
+		}
+	}
+
+	private static class Envelope {
+		final ScriptEvent event;
+		final Object[] params;
+		final long sequence;
+
+		Envelope(ScriptEvent event, Object[] params, long sequence) {
+			this.event = event;
+			this.params = params;
+			this.sequence = sequence;
+		}
+	}
+}
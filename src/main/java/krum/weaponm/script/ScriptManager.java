@@ -11,10 +11,14 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Queue;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.swing.SwingUtilities;
 
@@ -34,12 +38,15 @@ import org.slf4j.LoggerFactory;
  */
 public class ScriptManager {
 	private static final Logger log = LoggerFactory.getLogger(ScriptManager.class);
+	private static final Script[] NO_SCRIPTS = new Script[0];
 	// experimental 
 	//private static final Map<Class<? extends Script>, ScriptManager> managerMap = new HashMap<Class<? extends Script>, ScriptManager>();
 	private static final Map<ClassLoader, ScriptManager> managerMap = new HashMap<ClassLoader, ScriptManager>();
+	// this manager's key in managerMap; other sessions in the JVM have their own
+	private ClassLoader scriptLoader;
 	// package - accessed by script
 	final WeaponM weapon;
-	private final Timer timer = new Timer("ScriptTimer");
+	private final TimingWheel wheel = new TimingWheel(this, "ScriptTimer", AppSettings.getTimerThreads());
 	// found classes
 	//private Set<Class<? extends Script>> classes = new HashSet<Class<? extends Script>>();
 	private Map<String, Class<? extends Script>> classMap = new HashMap<String, Class<? extends Script>>();
@@ -50,19 +57,40 @@ public class ScriptManager {
 	// maps loaded script classes to other loaded script classes that require them
 	private final Map<Class<? extends Script>, Set<Class<? extends Script>>> deps =
 			new HashMap<Class<? extends Script>, Set<Class<? extends Script>>>();
-	// maps script instances to timer tasks they have scheduled
-	private final Map<Script, Set<TimerTask>> timerTasks = new HashMap<Script, Set<TimerTask>>();
+	// maps script instances to timer tasks they have scheduled and that may still run
+	private final ConcurrentMap<Script, Set<ScriptTimerTask>> timerTasks = new ConcurrentHashMap<Script, Set<ScriptTimerTask>>();
 	// maps uninitialized script instances to events they have registered for
 	private final Map<Script, Set<ScriptEvent>> pendingEventRegs = new HashMap<Script, Set<ScriptEvent>>();
 	// maps script events to script instances that are registered for them
 	private final Map<ScriptEvent, Set<Script>> eventListeners = new HashMap<ScriptEvent, Set<Script>>();
+	// copy-on-write snapshots of eventListeners, indexed by event ordinal, for dispatch
+	private final AtomicReferenceArray<Script[]> listenerArrays = new AtomicReferenceArray<Script[]>(ScriptEvent.values().length);
+	// copy-on-write snapshot of instances, so isLoaded doesn't need the lock
+	private volatile Map<Class<? extends Script>, Script> loadedInstances = Collections.emptyMap();
+	// serializes event dispatch
+	private final ReentrantLock dispatchLock = new ReentrantLock();
+	// events fired by handler threads while another thread was dispatching
+	private final Queue<PendingEvent> deferredEvents = new ConcurrentLinkedQueue<PendingEvent>();
+	private int randomState = (int) System.nanoTime() | 1;
+	// sequence number of the event being dispatched; written only under the dispatch lock
+	private volatile long sequence;
+	// sequence number of the last event something was sent in response to, and the script that sent it
+	private long answered;
+	private Script answeredBy;
+	// writes made by the thread holding the dispatch lock, which are the only
+	// writes that answer the event being dispatched
+	private int dispatchWrites;
 	// the script instance with exclusive network write access
 	private volatile Script exclusiveScript;
 	// true if network is locked because some listener wrote in response to the event currently being dispatched
 	private volatile boolean networkLocked;
+	// running macro pipelines, which see prompts before scripts do
+	private final List<MacroPipeline> pipelines = new ArrayList<MacroPipeline>();
+	private volatile MacroPipeline[] pipelineArray = new MacroPipeline[0];
 	
 	public ScriptManager(WeaponM weapon) {
 		this.weapon = weapon;
+		for(int i = 0; i < listenerArrays.length(); ++i) listenerArrays.set(i, NO_SCRIPTS);
 		//Script.setManager(this);
 		findScriptClasses();
 	}
@@ -73,6 +101,7 @@ public class ScriptManager {
 			for(ScriptEvent event : events) {
 				if(!eventListeners.containsKey(event)) eventListeners.put(event, new HashSet<Script>());
 				eventListeners.get(event).add(listener);
+				updateListenerArray(event);
 			}
 		}
 		else {
@@ -91,6 +120,7 @@ public class ScriptManager {
 					Set<Script> listeners = eventListeners.get(event);
 					listeners.remove(listener);
 					if(listeners.isEmpty()) eventListeners.remove(event);
+					updateListenerArray(event);
 				}
 			}
 		}
@@ -107,8 +137,10 @@ public class ScriptManager {
 			// copy the key set to avoid a ConcurrentModificationException
 			for(ScriptEvent event : new HashSet<ScriptEvent>(eventListeners.keySet())) {
 				Set<Script> listeners = eventListeners.get(event);
-				listeners.remove(listener);
-				if(listeners.isEmpty()) eventListeners.remove(event);
+				if(listeners.remove(listener)) {
+					if(listeners.isEmpty()) eventListeners.remove(event);
+					updateListenerArray(event);
+				}
 			}
 		}
 		else pendingEventRegs.remove(listener);
@@ -125,7 +157,17 @@ public class ScriptManager {
 		}
 	}
 	
-	synchronized public void fireEvent(ScriptEvent event, Object... params) {
+	/**
+	 * Dispatches an event to the scripts registered for it.  Dispatch uses
+	 * its own lock and copy-on-write listener arrays, so it does not contend
+	 * with calls that only take the manager's lock.
+	 * <p>
+	 * An asynchronous script's handler thread never waits for the dispatch
+	 * lock, because the thread holding it may be waiting for that script.  If
+	 * another thread is dispatching, the event is deferred and dispatched by
+	 * that thread when it finishes.
+	 */
+	public void fireEvent(ScriptEvent event, Object... params) {
 		if(WeaponM.DEBUG_SCRIPTS) {
 			StringBuilder sb = new StringBuilder();
 			sb.append("firing ");
@@ -136,40 +178,152 @@ public class ScriptManager {
 			}
 			log.debug(sb.toString());
 		}
-		if(!eventListeners.containsKey(event)) return;
-		Set<Script> listenerSet = eventListeners.get(event);
-		int bytesWritten = weapon.network.getTotalBytesWritten();
+		if(ScriptMailbox.onHandlerThread()) {
+			deferredEvents.add(new PendingEvent(event, params));
+			fireDeferredEvents();
+			return;
+		}
+		dispatchLock.lock();
+		try {
+			dispatch(event, params);
+		} finally {
+			dispatchLock.unlock();
+		}
+		fireDeferredEvents();
+	}
+	
+	// dispatches deferred events unless another thread holds the dispatch
+	// lock, in which case that thread will do it after releasing the lock
+	private void fireDeferredEvents() {
+		if(dispatchLock.isHeldByCurrentThread()) return; // the outermost dispatch will
+		while(!deferredEvents.isEmpty() && dispatchLock.tryLock()) {
+			try {
+				PendingEvent pending;
+				while((pending = deferredEvents.poll()) != null) dispatch(pending.event, pending.params);
+			} finally {
+				dispatchLock.unlock();
+			}
+		}
+	}
+	
+	// called with the dispatch lock held
+	private void dispatch(ScriptEvent event, Object[] params) {
+		long sequence = ++this.sequence;
+		if(event.isMajorPrompt()) weapon.network.promptArrived();
+		// pipelines answer prompts first; if one sends, the prompt is answered
+		MacroPipeline[] running = pipelineArray;
+		List<MacroPipeline> stopped = null;
+		List<ScriptEvent> results = null;
+		if(running.length != 0 && event.isPrompt()) {
+			int writes = dispatchWrites;
+			synchronized(this) { // pipeline state is guarded by the manager
+				for(MacroPipeline pipeline : running) {
+					ScriptEvent result = pipeline.prompt(event);
+					if(result != null) {
+						if(stopped == null) {
+							stopped = new ArrayList<MacroPipeline>();
+							results = new ArrayList<ScriptEvent>();
+						}
+						stopped.add(pipeline);
+						results.add(result);
+					}
+				}
+			}
+			if(dispatchWrites != writes) networkLocked = true;
+		}
+		dispatchEvent(event, sequence, params);
+		if(networkLocked) {
+			synchronized(this) {
+				if(answered < sequence) {
+					answered = sequence;
+					answeredBy = null;
+				}
+			}
+		}
+		networkLocked = false;
+		// pipeline events follow the prompt that caused them
+		if(stopped != null) {
+			for(int i = 0; i < stopped.size(); ++i) {
+				dispatch(results.get(i), new Object[] { stopped.get(i) });
+			}
+		}
+	}
+	
+	// called with the dispatch lock held
+	private void dispatchEvent(ScriptEvent event, long sequence, Object[] params) {
+		// the array is a snapshot, which also prevents weirdness from scripts unloading
+		Script[] listeners = listenerArrays.get(event.ordinal());
+		int count = listeners.length;
+		if(count == 0) return;
+		int writes = dispatchWrites;
+		// an asynchronous script can't be waited for if it may need a lock this
+		// thread holds, or by another script's handler thread
+		boolean mayWait = !Thread.holdsLock(weapon.network) && !ScriptMailbox.onHandlerThread();
 		// exclusive script always gets events first.  this way, it can unlock
 		// the network on the last expected event and other scripts can respond
 		// to it.  cache the exclusive script in a local var in case the field
 		// is cleared during the method invocation.
 		Script exclusiveScript = this.exclusiveScript;
-		if(listenerSet.contains(exclusiveScript)) {
-			try {
-				exclusiveScript.handleEvent(event, params);
-			} catch(Throwable t) {
-				log.error("script error", t);
-				unloadScript(exclusiveScript.getClass(), true);
+		if(exclusiveScript != null) {
+			for(Script listener : listeners) {
+				if(listener != exclusiveScript) continue;
+				ScriptMailbox mailbox = exclusiveScript.mailbox;
+				try {
+					if(mailbox == null) exclusiveScript.handleEvent(event, params);
+					else {
+						// the sequence number is the token the others wait behind
+						if(!mailbox.post(event, params, sequence, mayWait)) unloadScript(exclusiveScript.getClass(), true);
+						else if(mayWait && !mailbox.awaitHandled(sequence, ScriptMailbox.MAX_WAIT_MILLIS)) {
+							log.warn("{} is taking too long with {}; dispatching to the others", exclusiveScript.getScriptName(), event);
+						}
+					}
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch(Throwable t) {
+					log.error("script error", t);
+					unloadScript(exclusiveScript.getClass(), true);
+				}
+				if(dispatchWrites != writes) networkLocked = true;
+				break;
 			}
-			if(weapon.network.getTotalBytesWritten() != bytesWritten) networkLocked = true;
 		}
 		// now for the others
-		// randomize the order to make it more fair
+		// start at a random position to make it more fair
 		// could even get fancy and sort by last successful network write... but no
-		// copying the collection also prevents weirdness from scripts unloading
-		List<Script> listenerList = new ArrayList<Script>(listenerSet);
-		Collections.shuffle(listenerList);
-		for(Script listener : listenerList) {
+		int start = count == 1 ? 0 : nextRandom(count);
+		for(int i = 0; i < count; ++i) {
+			Script listener = listeners[(start + i) % count];
 			if(listener == exclusiveScript) continue;
+			ScriptMailbox mailbox = listener.mailbox;
+			if(mailbox != null) {
+				// a script that can't keep up is unloaded rather than miss events
+				if(!mailbox.post(event, params, sequence, mayWait)) unloadScript(listener.getClass(), true);
+				continue;
+			}
 			try {
 				if(isLoaded(listener)) listener.handleEvent(event, params);
 			} catch(Throwable t) {
 				log.error("script error", t);
 				unloadScript(listener.getClass(), true);
 			}
-			if(weapon.network.getTotalBytesWritten() != bytesWritten) networkLocked = true;
+			if(dispatchWrites != writes) networkLocked = true;
 		}
-		networkLocked = false;
+	}
+	
+	// xorshift; called with the dispatch lock held
+	private int nextRandom(int bound) {
+		int x = randomState;
+		x ^= x << 13;
+		x ^= x >>> 17;
+		x ^= x << 5;
+		randomState = x;
+		return (x >>> 1) % bound;
+	}
+	
+	// called with the manager's lock held whenever a listener set changes
+	private void updateListenerArray(ScriptEvent event) {
+		Set<Script> set = eventListeners.get(event);
+		listenerArrays.set(event.ordinal(), set == null ? NO_SCRIPTS : set.toArray(new Script[set.size()]));
 	}
 	
 	/**
@@ -181,10 +335,38 @@ public class ScriptManager {
 	 */
 	synchronized public void writeToNetwork(CharSequence seq, Script sender) throws IOException {
 		if(!isLoaded(sender)) return;
-		if(networkLocked || (exclusiveScript != null && exclusiveScript != sender)) {
+		if(exclusiveScript != null && exclusiveScript != sender) {
 			throw new NetworkLockedException();
 		}
+		// only a write made while handling an event answers it.  a write from
+		// a timer or the GUI may land in the middle of a dispatch, but it
+		// neither answers nor is locked out by the event being dispatched
+		boolean dispatching = dispatchLock.isHeldByCurrentThread();
+		ScriptMailbox mailbox = sender.mailbox;
+		boolean handling = mailbox != null && mailbox.isHandlerThread();
+		if(dispatching || handling) {
+			if(networkLocked) throw new NetworkLockedException();
+			// an asynchronous handler may only answer an event nothing else has answered since
+			if(handling && answered >= mailbox.getSequence() && answeredBy != sender) {
+				throw new NetworkLockedException();
+			}
+		}
 		weapon.network.write(seq);
+		if(dispatching) ++dispatchWrites;
+		if(dispatching || handling) {
+			answered = sequence;
+			answeredBy = sender;
+		}
+	}
+	
+	// called by a pipeline with this manager's lock held
+	void addPipeline(MacroPipeline pipeline) {
+		pipelines.add(pipeline);
+		pipelineArray = pipelines.toArray(new MacroPipeline[pipelines.size()]);
+	}
+	
+	void removePipeline(MacroPipeline pipeline) {
+		if(pipelines.remove(pipeline)) pipelineArray = pipelines.toArray(new MacroPipeline[pipelines.size()]);
 	}
 	
 	public void lockNetwork(Script script) throws NetworkLockedException {
@@ -238,6 +420,11 @@ public class ScriptManager {
 			final Script instance = classToLoad.newInstance();	
 			//instance.setManager(this);
 			instances.put(classToLoad, instance);
+			loadedInstances = new HashMap<Class<? extends Script>, Script>(instances);
+			if(instance.isAsynchronous()) {
+				instance.mailbox = new ScriptMailbox(this, instance);
+				instance.mailbox.start();
+			}
 			
 			// add loader to loader map
 			if(!deps.containsKey(classToLoad)) deps.put(classToLoad, new HashSet<Class<? extends Script>>());
@@ -272,31 +459,38 @@ public class ScriptManager {
 		}
 	}
 	
-	synchronized public boolean isLoaded(Class<? extends Script> scriptClass) {
-		return instances.containsKey(scriptClass);
+	public boolean isLoaded(Class<? extends Script> scriptClass) {
+		return loadedInstances.containsKey(scriptClass);
 	}
 	
-	synchronized public boolean isLoaded(Script instance) {
+	public boolean isLoaded(Script instance) {
 		Class<? extends Script> scriptClass = instance.getClass();
-		return instances.get(scriptClass) == instance;
+		return loadedInstances.get(scriptClass) == instance;
 	}
 	
 	synchronized public void unloadScript(Class<? extends Script> classToUnload, boolean cascade) {
 		if(!instances.containsKey(classToUnload)) return;
 		
+		// terminate instance
+		final Script instance = instances.remove(classToUnload);
+		loadedInstances = new HashMap<Class<? extends Script>, Script>(instances);
+		
 		// cancel timer tasks
-		if(timerTasks.containsKey(classToUnload)) {
-			for(TimerTask task : timerTasks.get(classToUnload)) {
+		Set<ScriptTimerTask> tasks = timerTasks.remove(instance);
+		if(tasks != null) {
+			for(ScriptTimerTask task : tasks) {
 				task.cancel();
 			}
-			timerTasks.remove(classToUnload);
-			timer.purge();
 		}
-		
-		// terminate instance
-		final Script instance = instances.remove(classToUnload);
 		removeEventListener(instance);
+		if(instance.mailbox != null) {
+			instance.mailbox.close();
+			instance.mailbox = null;
+		}
 		if(exclusiveScript == instance) exclusiveScript = null;
+		for(MacroPipeline pipeline : new ArrayList<MacroPipeline>(pipelines)) {
+			if(pipeline.getOwner() == instance) pipeline.cancel();
+		}
 		try {
 			if(SwingUtilities.isEventDispatchThread()) {
 				instance.endScript();	
@@ -377,7 +571,7 @@ public class ScriptManager {
 		/*
 		// kill timer tasks
 		for(Script script : timerTasks.keySet()) {
-			for(TimerTask task : timerTasks.get(script)) {
+			for(ScriptTimerTask task : timerTasks.get(script)) {
 				task.cancel();
 			}
 		}
@@ -400,51 +594,58 @@ public class ScriptManager {
 		*/
 	}
 	
+	/**
+	 * Unloads all scripts and stops the timer's threads.  Called when the
+	 * session shuts down.
+	 */
+	public void dispose() {
+		unloadAll();
+		wheel.stop();
+		forgetScriptLoader();
+	}
+	
 	/**
 	 * Unloads all scripts and reinitializes the class loader.
 	 */
 	synchronized public void reset() {
-		synchronized(managerMap) {
-			managerMap.clear(); // FIXME: should actually find keys with value 'this' and remove them
-		}
+		forgetScriptLoader();
 		unloadAll();
 		findScriptClasses();
 	}
 	
-	synchronized public void scheduleTask(ScriptTimerTask task, long delay) {
-		if(!isLoaded(task.script)) return;
-		timer.schedule(task, delay);
-		if(!timerTasks.containsKey(task.script)) {
-			timerTasks.put(task.script, new HashSet<TimerTask>());
-		}
-		timerTasks.get(task.script).add(task);
+	public void scheduleTask(ScriptTimerTask task, long delay) {
+		scheduleTask(task, delay, 0);
 	}
 	
-	synchronized public void scheduleTask(ScriptTimerTask task, Date date) {
-		if(!isLoaded(task.script)) return;
-		timer.schedule(task, date);
-		if(!timerTasks.containsKey(task.script)) {
-			timerTasks.put(task.script, new HashSet<TimerTask>());
-		}
-		timerTasks.get(task.script).add(task);
+	public void scheduleTask(ScriptTimerTask task, Date date) {
+		scheduleTask(task, date, 0);
 	}
 	
-	synchronized public void scheduleTask(ScriptTimerTask task, long delay, long interval) {
+	public void scheduleTask(ScriptTimerTask task, long delay, long interval) {
 		if(!isLoaded(task.script)) return;
-		timer.schedule(task, delay, interval);
-		if(!timerTasks.containsKey(task.script)) {
-			timerTasks.put(task.script, new HashSet<TimerTask>());
+		Set<ScriptTimerTask> tasks = timerTasks.get(task.script);
+		if(tasks == null) {
+			tasks = Collections.newSetFromMap(new ConcurrentHashMap<ScriptTimerTask, Boolean>());
+			Set<ScriptTimerTask> existing = timerTasks.putIfAbsent(task.script, tasks);
+			if(existing != null) tasks = existing;
+		}
+		tasks.add(task);
+		wheel.schedule(task, delay, interval);
+		// the script may have been unloaded after the check above
+		if(!isLoaded(task.script)) {
+			task.cancel();
+			timerTasks.remove(task.script);
 		}
-		timerTasks.get(task.script).add(task);
 	}
 	
-	synchronized public void scheduleTask(ScriptTimerTask task, Date date, long interval) {
-		if(!isLoaded(task.script)) return;
-		timer.schedule(task, date, interval);
-		if(!timerTasks.containsKey(task.script)) {
-			timerTasks.put(task.script, new HashSet<TimerTask>());
-		}
-		timerTasks.get(task.script).add(task);
+	public void scheduleTask(ScriptTimerTask task, Date date, long interval) {
+		scheduleTask(task, Math.max(0, date.getTime() - System.currentTimeMillis()), interval);
+	}
+	
+	// called by the timing wheel when a task will not run again
+	void taskFinished(ScriptTimerTask task) {
+		Set<ScriptTimerTask> tasks = timerTasks.get(task.script);
+		if(tasks != null) tasks.remove(task);
 	}
 	
 	private void findScriptClasses() {
@@ -464,6 +665,7 @@ public class ScriptManager {
 		synchronized(managerMap) {
 			managerMap.put(loader, this);
 		}
+		scriptLoader = loader;
 		classMap.clear();
 		for(ClassInfo info : classInfo) {
 			Class<?> clazz;
@@ -491,10 +693,29 @@ public class ScriptManager {
 	}
 	
 	
+	// removes only this manager's loader from managerMap
+	synchronized private void forgetScriptLoader() {
+		if(scriptLoader == null) return;
+		synchronized(managerMap) {
+			managerMap.remove(scriptLoader);
+		}
+		scriptLoader = null;
+	}
+	
 	static ScriptManager getManagerForScript(Script script) {
 		synchronized(managerMap) {
 			return managerMap.get(script.getClass().getClassLoader());
 		}
 	}
 
+	
+	private static class PendingEvent {
+		final ScriptEvent event;
+		final Object[] params;
+		
+		PendingEvent(ScriptEvent event, Object[] params) {
+			this.event = event;
+			this.params = params;
+		}
+	}
 }
@@ -1,33 +1,90 @@
 package krum.weaponm.script;
 
-import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A version of <tt>TimerTask</tt> that protects the timer thread from
- * uncaught throwables.  If something is thrown, it is logged and the timer
- * task is canceled.
+ * A task that a script schedules to run later or repeatedly.  Uncaught
+ * throwables are caught to protect the timer's threads; if something is
+ * thrown, it is logged and the timer task is canceled.
+ * <p>
+ * A task can be scheduled only once.  Repeating tasks run with a fixed delay
+ * between the end of one run and the start of the next, so a task never
+ * overlaps itself.
  */
-abstract public class ScriptTimerTask extends TimerTask {
+abstract public class ScriptTimerTask implements Runnable {
 	protected static final Logger log = LoggerFactory.getLogger(ScriptTimerTask.class);
+	static final int NEW = 0;
+	static final int SCHEDULING = 1; // briefly, while the wheel fills in its fields
+	static final int SCHEDULED = 2;
+	static final int FINISHED = 3;
+	static final int CANCELED = 4;
+
 	protected final Script script;
-	
+	final AtomicInteger state = new AtomicInteger(NEW);
+	private volatile long lastRunMillis;
+
+	// everything below is managed by the timing wheel
+	TimingWheel wheel;
+	long interval; // in ticks; 0 if not repeating
+	long deadline; // in ticks since the wheel started
+	int slot = -1; // -1 if not in a slot
+	ScriptTimerTask prev;
+	ScriptTimerTask next;
+
 	public ScriptTimerTask(Script script) {
 		this.script = script;
 	}
-	
+
 	/**
 	 * Does whatever this timer task does.  You must implement this method.
 	 */
 	abstract public void doTask();
 
+	/**
+	 * Cancels this timer task.  A task that is running when it is canceled
+	 * finishes its current run.
+	 *
+	 * @return true if this prevented one or more runs
+	 */
+	public boolean cancel() {
+		while(true) {
+			int s = state.get();
+			if(s == FINISHED || s == CANCELED) return false;
+			if(s == SCHEDULING) {
+				Thread.yield();
+				continue;
+			}
+			if(state.compareAndSet(s, CANCELED)) {
+				if(s == SCHEDULED) wheel.canceled(this);
+				return s == SCHEDULED;
+			}
+		}
+	}
+
+	/**
+	 * Returns true if this task has been canceled.
+	 */
+	public boolean isCanceled() {
+		return state.get() == CANCELED;
+	}
+
+	/**
+	 * Returns the time at which this task most recently started to run, in
+	 * milliseconds since the epoch, or 0 if it has not run.
+	 */
+	public long scheduledExecutionTime() {
+		return lastRunMillis;
+	}
+
 	/**
 	 * Calls <tt>doTask()</tt>.
 	 */
 	@Override
 	public final void run() {
+		lastRunMillis = System.currentTimeMillis();
 		try {
 			doTask();
 		} catch(Throwable t) {
@@ -0,0 +1,219 @@
+package krum.weaponm.script;
+
+import java.util.Arrays;
+
+import krum.weaponm.database.Constants;
+import krum.weaponm.database.Database;
+import krum.weaponm.database.WarpGraph;
+
+/**
+ * A reusable breadth-first search engine.  A context keeps its working
+ * arrays between searches and marks visited sectors with a generation
+ * number instead of clearing them, so once it has grown to the size of the
+ * universe, a search allocates nothing.  Warps are read from a
+ * {@link WarpGraph}, so searching takes no locks.
+ * <p>
+ * A script that searches on every prompt should create one context and
+ * reuse it.  The results of a search are valid until the next search.
+ * Contexts are not thread safe.
+ * <p>
+ * A sector is included in the result if it matches the target matcher and
+ * <tt>includeTarget</tt> is true, or if it does not match the target matcher
+ * but matches the include matcher.  The target matcher is always tested
+ * first.
+ *
+ * @see BreadthFirstSearch
+ */
+public class SearchContext implements Constants {
+	private int[] order = new int[0]; // included sectors, ordered by distance
+	private int[] distance = new int[1];
+	private int[] parent = new int[1];
+	private int[] considered = new int[1]; // generation stamps
+	private int[] included = new int[1];
+	private int generation;
+	private int size;
+	private int target;
+
+	/**
+	 * Searches the database's current warp graph.
+	 *
+	 * @see #search(WarpGraph, int, int, SectorMatcher, SectorMatcher, boolean)
+	 */
+	public int search(Database database, int origin, int limit, SectorMatcher include, SectorMatcher target, boolean includeTarget) {
+		return search(database.getWarpGraph(), origin, limit, include, target, includeTarget);
+	}
+
+	/**
+	 * Performs a breadth-first search around the origin sector, including
+	 * sectors that match <tt>include</tt> and stopping when a sector is found
+	 * that matches <tt>target</tt>.  The special cases are the same as for
+	 * {@link BreadthFirstSearch}.
+	 *
+	 * @param graph the warp graph to search
+	 * @param origin the sector number from which to begin the search
+	 * @param limit the maximum number of sectors to include in the search result; 0 = no limit
+	 * @param include the matcher for sectors to include in the search result
+	 * @param target the matcher for the target of the search
+	 * @param includeTarget whether to include the sector matching <tt>target</tt> in the search result
+	 * @return the number of sectors included in the search result
+	 */
+	public int search(WarpGraph graph, int origin, int limit, SectorMatcher include, SectorMatcher target, boolean includeTarget) {
+		int n = graph.getNumSectors();
+		if(limit < 0 || origin < 1 || origin > n) throw new IllegalArgumentException();
+		if(limit == 0) limit = Integer.MAX_VALUE;
+		prepare(n);
+		size = 0;
+		this.target = NULL_SECTOR;
+
+		// test for weird conditions
+		if(target.matches(origin, 0, NULL_SECTOR)) {
+			if(includeTarget) {
+				include(origin, 0, NULL_SECTOR);
+				this.target = origin;
+			}
+			return size;
+		}
+		else if(!include.matches(origin, 0, NULL_SECTOR)) return size;
+
+		// prime it with the origin
+		include(origin, 0, NULL_SECTOR);
+		considered[origin] = generation;
+		if(size == limit) return size;
+
+		// go!
+		for(int i = 0; i < size; ++i) {
+			int p = order[i];
+			int d = distance[p] + 1;
+			int warps = graph.getNumWarpsOut(p);
+			for(int j = 0; j < warps; ++j) {
+				int w = graph.getWarpOut(p, j);
+				if(considered[w] == generation) continue;
+				considered[w] = generation;
+				if(target.matches(w, d, p)) {
+					if(includeTarget) {
+						include(w, d, p);
+						this.target = w;
+					}
+					return size;
+				}
+				else if(include.matches(w, d, p)) {
+					include(w, d, p);
+					if(size == limit) return size;
+				}
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Gets the number of sectors included in the last search result.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets a sector from the search result.  Sectors are ordered by
+	 * distance, and the origin is at index 0.
+	 */
+	public int getSector(int index) {
+		if(index < 0 || index >= size) throw new IndexOutOfBoundsException();
+		return order[index];
+	}
+
+	/**
+	 * Returns true if the search result includes the specified sector.
+	 */
+	public boolean includesSector(int sector) {
+		return sector > 0 && sector < included.length && included[sector] == generation;
+	}
+
+	/**
+	 * Returns the distance from the origin to the specified sector, or
+	 * <tt>UNKNOWN</tt> if the sector was not included.
+	 */
+	public int getDistance(int sector) {
+		return includesSector(sector) ? distance[sector] : UNKNOWN;
+	}
+
+	/**
+	 * Returns the sector via which the specified sector was included, or
+	 * <tt>NULL_SECTOR</tt> if it is the origin or was not included.
+	 */
+	public int getParent(int sector) {
+		return includesSector(sector) ? parent[sector] : NULL_SECTOR;
+	}
+
+	/**
+	 * Returns true if the last search found a sector matching the target
+	 * matcher.
+	 */
+	public boolean targetFound() {
+		return target != NULL_SECTOR;
+	}
+
+	/**
+	 * Gets the sector that matched the target matcher, or
+	 * <tt>NULL_SECTOR</tt> if none did.
+	 */
+	public int getTarget() {
+		return target;
+	}
+
+	/**
+	 * Plots a course from the origin sector to the specified sector.
+	 *
+	 * @param dest the destination sector
+	 * @return the calculated course, or null if the destination was not
+	 * included in the search result
+	 */
+	public int[] plotCourse(int dest) {
+		if(!includesSector(dest)) return null;
+		int[] course = new int[distance[dest] + 1];
+		plotCourse(dest, course);
+		return course;
+	}
+
+	/**
+	 * Plots a course from the origin sector to the specified sector into an
+	 * existing array, starting at index 0.
+	 *
+	 * @param dest the destination sector
+	 * @param course the array to receive the course
+	 * @return the length of the course, or 0 if the destination was not
+	 * included in the search result
+	 * @throws ArrayIndexOutOfBoundsException if the array is too small
+	 */
+	public int plotCourse(int dest, int[] course) {
+		if(!includesSector(dest)) return 0;
+		int length = distance[dest] + 1;
+		for(int s = dest, i = length - 1; i >= 0; s = parent[s], --i) {
+			course[i] = s;
+		}
+		return length;
+	}
+
+	private void include(int sector, int d, int p) {
+		included[sector] = generation;
+		distance[sector] = d;
+		parent[sector] = p;
+		order[size++] = sector;
+	}
+
+	// grows the arrays and advances the generation
+	private void prepare(int n) {
+		if(order.length < n) {
+			order = new int[n];
+			distance = new int[n + 1];
+			parent = new int[n + 1];
+			considered = new int[n + 1];
+			included = new int[n + 1];
+			generation = 0;
+		}
+		if(++generation == 0) {
+			Arrays.fill(considered, 0);
+			Arrays.fill(included, 0);
+			generation = 1;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package krum.weaponm.script;
+
+import krum.weaponm.database.Sector;
+
+/**
+ * Defines the include or target criteria of a {@link SearchContext}.  This
+ * is the primitive counterpart of {@link NodeMatcher}: sectors are passed as
+ * numbers, so matching does not require a node object per sector.
+ *
+ * @see Match#compile(Sector[])
+ */
+abstract public class SectorMatcher {
+	/**
+	 * Returns true if the specified sector matches the criteria of this
+	 * matcher.
+	 *
+	 * @param sector the sector number
+	 * @param distance the distance from the origin of the search
+	 * @param parent the sector via which this sector was reached, or
+	 * {@link krum.weaponm.database.Constants#NULL_SECTOR} if this is the
+	 * origin
+	 */
+	abstract public boolean matches(int sector, int distance, int parent);
+
+	/**
+	 * Matches all sectors.  Useful as an include matcher.
+	 */
+	public static final SectorMatcher ALL = new SectorMatcher() {
+		@Override
+		public boolean matches(int sector, int distance, int parent) {
+			return true;
+		}
+	};
+
+	/**
+	 * Matches no sectors.  Useful as a target matcher.
+	 */
+	public static final SectorMatcher NONE = new SectorMatcher() {
+		@Override
+		public boolean matches(int sector, int distance, int parent) {
+			return false;
+		}
+	};
+
+	/**
+	 * Creates a matcher that matches sectors that are not avoided.  Useful as
+	 * an include matcher.
+	 *
+	 * @param sectors all sectors as returned by <tt>Database.getSectors()</tt>
+	 */
+	public static SectorMatcher notAvoided(final Sector[] sectors) {
+		return new SectorMatcher() {
+			@Override
+			public boolean matches(int sector, int distance, int parent) {
+				return !sectors[sector - 1].isAvoided();
+			}
+		};
+	}
+
+	/**
+	 * Creates a matcher that matches unexplored sectors.  Useful as a target
+	 * matcher.
+	 *
+	 * @param sectors all sectors as returned by <tt>Database.getSectors()</tt>
+	 */
+	public static SectorMatcher unexplored(final Sector[] sectors) {
+		return new SectorMatcher() {
+			@Override
+			public boolean matches(int sector, int distance, int parent) {
+				return !sectors[sector - 1].isExplored();
+			}
+		};
+	}
+
+	public static SectorMatcher sector(final int sector) {
+		return new SectorMatcher() {
+			@Override
+			public boolean matches(int s, int distance, int parent) {
+				return s == sector;
+			}
+		};
+	}
+
+	/**
+	 * Creates a matcher that matches sectors at the specified distance.
+	 * Useful as a target matcher.
+	 */
+	public static SectorMatcher atDistance(final int distance) {
+		return new SectorMatcher() {
+			@Override
+			public boolean matches(int sector, int d, int parent) {
+				return d == distance;
+			}
+		};
+	}
+}
@@ -0,0 +1,225 @@
+package krum.weaponm.script;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel that runs script timer tasks.  Each slot of the
+ * wheel holds a linked list of the tasks that expire on the ticks that map to
+ * it, so scheduling and canceling a task take constant time regardless of how
+ * many tasks there are, and a canceled task is gone as soon as the next tick.
+ * <p>
+ * One thread turns the wheel and owns the slots; other threads hand it new
+ * and canceled tasks through queues.  The thread sleeps until the next
+ * occupied slot, and indefinitely while the wheel is empty; scheduling a task
+ * that is due sooner wakes it.  The tasks that expire on a tick are run
+ * in batches by a pool of worker threads.  Repeating tasks with intervals of
+ * a second or more are aligned to common ticks, so that hundreds of
+ * keep-alive and polling timers wake the pool a few times instead of hundreds.
+ */
+class TimingWheel implements Runnable {
+	static final long TICK_MILLIS = 10;
+	private static final long TICK_NANOS = TICK_MILLIS * 1000000L;
+	private static final int SLOTS = 512; // about five seconds per turn
+	private static final long COALESCE_INTERVAL = 1000 / TICK_MILLIS; // in ticks
+	private static final long COALESCE_TICKS = 100 / TICK_MILLIS;
+
+	private final ScriptManager owner;
+	private final ScriptTimerTask[] heads = new ScriptTimerTask[SLOTS];
+	private final ScriptTimerTask[] tails = new ScriptTimerTask[SLOTS];
+	private final ConcurrentLinkedQueue<ScriptTimerTask> added = new ConcurrentLinkedQueue<ScriptTimerTask>();
+	private final ConcurrentLinkedQueue<ScriptTimerTask> canceled = new ConcurrentLinkedQueue<ScriptTimerTask>();
+	private final ExecutorService workers;
+	private final int workerCount;
+	private final Thread thread;
+	private final long startNanos = System.nanoTime();
+	private long tick; // the next tick to expire; accessed only by the wheel thread
+	private int linked; // tasks in slots; accessed only by the wheel thread
+	// the tick the wheel thread will wake for, or Long.MIN_VALUE while it is awake
+	private volatile long wakeTick = Long.MIN_VALUE;
+	private volatile boolean stopped;
+
+	/**
+	 * @param owner the manager to notify as tasks finish
+	 * @param name the name of the wheel's threads
+	 * @param workerCount the number of threads that run tasks
+	 */
+	TimingWheel(ScriptManager owner, final String name, int workerCount) {
+		this.owner = owner;
+		this.workerCount = Math.max(1, workerCount);
+		workers = new ThreadPoolExecutor(this.workerCount, this.workerCount, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private int count;
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + count++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Schedules a task.
+	 *
+	 * @param delay the delay in milliseconds before the first run
+	 * @param interval the delay in milliseconds between runs; 0 to run once
+	 * @throws IllegalStateException if the task was already scheduled or
+	 * canceled
+	 */
+	void schedule(ScriptTimerTask task, long delay, long interval) {
+		if(delay < 0) throw new IllegalArgumentException("negative delay");
+		if(interval < 0) throw new IllegalArgumentException("negative interval");
+		// claim the task before touching its fields, which a running task is using
+		if(!task.state.compareAndSet(ScriptTimerTask.NEW, ScriptTimerTask.SCHEDULING)) {
+			throw new IllegalStateException("Task already scheduled or canceled.");
+		}
+		task.wheel = this;
+		task.interval = (interval + TICK_MILLIS - 1) / TICK_MILLIS;
+		if(interval > 0 && task.interval == 0) task.interval = 1;
+		long now = (System.nanoTime() - startNanos) / TICK_NANOS;
+		task.deadline = align(task, now + (delay + TICK_MILLIS - 1) / TICK_MILLIS);
+		task.state.set(ScriptTimerTask.SCHEDULED);
+		enqueue(task);
+	}
+
+	// hands a task to the wheel thread, waking it if the task is due before it would wake
+	private void enqueue(ScriptTimerTask task) {
+		added.add(task);
+		if(task.deadline < wakeTick) LockSupport.unpark(thread);
+	}
+
+	// called when a task's state changes to canceled
+	void canceled(ScriptTimerTask task) {
+		canceled.add(task);
+		owner.taskFinished(task);
+	}
+
+	/**
+	 * Stops the wheel.  Tasks that have not started will not run.
+	 */
+	void stop() {
+		stopped = true;
+		LockSupport.unpark(thread);
+		workers.shutdown();
+	}
+
+	// coalesces long repeating tasks onto common ticks
+	private static long align(ScriptTimerTask task, long deadline) {
+		if(task.interval < COALESCE_INTERVAL) return deadline;
+		return (deadline + COALESCE_TICKS - 1) / COALESCE_TICKS * COALESCE_TICKS;
+	}
+
+	@Override
+	public void run() {
+		while(!stopped) {
+			wakeTick = Long.MIN_VALUE;
+			// tick <= elapsed once tick's time has fully passed
+			long elapsed = (System.nanoTime() - startNanos) / TICK_NANOS;
+			if(linked == 0 && tick < elapsed) tick = elapsed; // nothing to expire in between
+			ScriptTimerTask task;
+			while((task = canceled.poll()) != null) unlink(task);
+			while((task = added.poll()) != null) {
+				if(task.state.get() == ScriptTimerTask.SCHEDULED) link(task);
+			}
+			while(tick < elapsed) expire(tick++);
+			long next = nextOccupied();
+			wakeTick = next;
+			// a task added since the queue was drained may not have woken us
+			if(!added.isEmpty()) continue;
+			if(next == Long.MAX_VALUE) LockSupport.park(this);
+			else {
+				long wait = startNanos + (next + 1) * TICK_NANOS - System.nanoTime();
+				if(wait > 0) LockSupport.parkNanos(this, wait);
+			}
+		}
+	}
+
+	// returns the first tick from the current one whose slot holds a task, or Long.MAX_VALUE
+	private long nextOccupied() {
+		if(linked == 0) return Long.MAX_VALUE;
+		for(int i = 0; i < SLOTS; ++i) {
+			if(heads[(int) ((tick + i) % SLOTS)] != null) return tick + i;
+		}
+		return Long.MAX_VALUE; // unreachable
+	}
+
+	private void link(ScriptTimerTask task) {
+		long deadline = Math.max(task.deadline, tick);
+		task.deadline = deadline;
+		int slot = (int) (deadline % SLOTS);
+		task.slot = slot;
+		task.next = null;
+		task.prev = tails[slot];
+		if(tails[slot] == null) heads[slot] = task;
+		else tails[slot].next = task;
+		tails[slot] = task;
+		++linked;
+	}
+
+	private void unlink(ScriptTimerTask task) {
+		int slot = task.slot;
+		if(slot == -1) return;
+		if(task.prev == null) heads[slot] = task.next;
+		else task.prev.next = task.next;
+		if(task.next == null) tails[slot] = task.prev;
+		else task.next.prev = task.prev;
+		task.prev = task.next = null;
+		task.slot = -1;
+		--linked;
+	}
+
+	private void expire(long tick) {
+		int slot = (int) (tick % SLOTS);
+		List<ScriptTimerTask> batch = null;
+		ScriptTimerTask task = heads[slot];
+		while(task != null) {
+			ScriptTimerTask next = task.next;
+			// tasks due on later turns of the wheel stay
+			if(task.deadline <= tick) {
+				unlink(task);
+				if(batch == null) batch = new ArrayList<ScriptTimerTask>();
+				batch.add(task);
+			}
+			task = next;
+		}
+		if(batch == null) return;
+		// one hand-off per worker per tick, however many tasks expire
+		int batches = Math.min(workerCount, batch.size());
+		for(int i = 0; i < batches; ++i) {
+			final List<ScriptTimerTask> part = batch.subList(batch.size() * i / batches, batch.size() * (i + 1) / batches);
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					for(ScriptTimerTask task : part) runTask(task);
+				}
+			});
+		}
+	}
+
+	// called by a worker
+	private void runTask(ScriptTimerTask task) {
+		if(task.state.get() != ScriptTimerTask.SCHEDULED) return;
+		if(owner.isLoaded(task.script)) task.run();
+		else task.cancel();
+		if(task.interval > 0) {
+			// measured from the end of this run, so a task never overlaps itself
+			long now = (System.nanoTime() - startNanos) / TICK_NANOS;
+			task.deadline = align(task, now + task.interval);
+			if(task.state.get() == ScriptTimerTask.SCHEDULED) enqueue(task);
+		}
+		else if(task.state.compareAndSet(ScriptTimerTask.SCHEDULED, ScriptTimerTask.FINISHED)) {
+			owner.taskFinished(task);
+		}
+	}
+}